@@ -0,0 +1,329 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+
+import net.fec.openrq.DataUtils.SourceBlockSupplier;
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.util.collection.ImmutableList;
+
+
+/**
+ * The part of a RaptorQ data decoder that does not depend on where the source data is decoded into: the source block
+ * decoders, the dispatching of encoding packets to them, and the parsing of encoding packets.
+ */
+abstract class AbstractDataDecoder implements DataDecoder {
+
+    static interface SourceBlockFactory {
+
+        /**
+         * @param dataDecoder
+         *            The data decoder of the new source block decoder
+         * @param off
+         *            The offset of the source block inside the source data (may be larger than
+         *            {@code Integer.MAX_VALUE})
+         * @param sbn
+         *            The source block number
+         * @param K
+         *            The number of source symbols in the source block
+         * @return a new source block decoder
+         */
+        ArraySourceBlockDecoder newSourceBlock(DataDecoder dataDecoder, long off, int sbn, int K);
+    }
+
+
+    private final FECParameters fecParams;
+    private final ImmutableList<ArraySourceBlockDecoder> srcBlockDecoders;
+    private final PacketDispatcher dispatcher;
+
+
+    // the factory must not depend on the state of the subclass, which is not yet initialized
+    AbstractDataDecoder(FECParameters fecParams, final SourceBlockFactory factory) {
+
+        this.fecParams = fecParams;
+        this.srcBlockDecoders = DataUtils.partitionData(
+            ArraySourceBlockDecoder.class,
+            fecParams,
+            new SourceBlockSupplier<ArraySourceBlockDecoder>() {
+
+                @Override
+                public ArraySourceBlockDecoder get(long off, int sbn, int K) {
+
+                    return factory.newSourceBlock(AbstractDataDecoder.this, off, sbn, K);
+                }
+            });
+        this.dispatcher = PacketDispatcher.newDispatcher(srcBlockDecoders);
+    }
+
+    @Override
+    public FECParameters fecParameters() {
+
+        return fecParams;
+    }
+
+    @Override
+    public long dataLength() {
+
+        return fecParams.dataLength();
+    }
+
+    @Override
+    public int symbolSize() {
+
+        return fecParams.symbolSize();
+    }
+
+    @Override
+    public int numberOfSourceBlocks() {
+
+        return fecParams.numberOfSourceBlocks();
+    }
+
+    @Override
+    public boolean isDataDecoded() {
+
+        for (SourceBlockDecoder dec : srcBlockDecoders) {
+            if (!dec.isSourceBlockDecoded()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception IllegalArgumentException
+     *                If the provided source block number is invalid
+     */
+    @Override
+    public SourceBlockDecoder sourceBlock(int sbn) {
+
+        try {
+            return srcBlockDecoders.get(sbn); // list is random access
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("invalid source block number");
+        }
+    }
+
+    @Override
+    public Iterable<? extends SourceBlockDecoder> sourceBlockIterable() {
+
+        return srcBlockDecoders;
+    }
+
+    @Override
+    public int putEncodingPackets(Iterable<? extends EncodingPacket> packets) {
+
+        return dispatcher.dispatch(packets);
+    }
+
+    @Override
+    public int putEncodingPackets(Iterable<? extends EncodingPacket> packets, Executor executor) {
+
+        return dispatcher.dispatch(packets, executor);
+    }
+
+    @Override
+    public int putEncodingPackets(ByteBuffer[] buffers) {
+
+        return dispatcher.dispatch(DataUtils.parsePackets(this, buffers));
+    }
+
+    @Override
+    public int putEncodingPackets(ByteBuffer[] buffers, Executor executor) {
+
+        return dispatcher.dispatch(DataUtils.parsePackets(this, buffers), executor);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception NullPointerException
+     *                If {@code symbols} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(int sbn, int esi, byte[] symbols, boolean copySymbols) {
+
+        return DataUtils.parsePacket(this, sbn, esi, symbols, copySymbols);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception IndexOutOfBoundsException
+     *                If the pre-conditions on the array offset and length do not hold
+     * @exception NullPointerException
+     *                If {@code symbols} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(int sbn, int esi, byte[] symbols, int off, int len, boolean copySymbols) {
+
+        return DataUtils.parsePacket(this, sbn, esi, symbols, off, len, copySymbols);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception NullPointerException
+     *                If {@code symbols} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(int sbn, int esi, ByteBuffer symbols, boolean copySymbols) {
+
+        return DataUtils.parsePacket(this, sbn, esi, symbols, copySymbols);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception NullPointerException
+     *                If {@code ser} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(SerializablePacket ser, boolean copySymbols) {
+
+        return DataUtils.parsePacket(this, ser, copySymbols);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception NullPointerException
+     *                If {@code array} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(byte[] array, boolean copySymbols) {
+
+        return DataUtils.parsePacket(this, array, copySymbols);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception IndexOutOfBoundsException
+     *                If the pre-conditions on the array offset and length do not hold
+     * @exception NullPointerException
+     *                If {@code array} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(byte[] array, int off, int len, boolean copySymbols) {
+
+        return DataUtils.parsePacket(this, array, off, len, copySymbols);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception NullPointerException
+     *                If {@code buffer} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(ByteBuffer buffer, boolean copySymbols) {
+
+        return DataUtils.parsePacket(this, buffer, copySymbols);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception NullPointerException
+     *                If {@code buffer} or {@code pool} are {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePacket(ByteBuffer buffer, BufferPool pool) {
+
+        return DataUtils.parsePacket(this, buffer, pool);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @exception NullPointerException
+     *                If {@code buffer} or {@code pool} are {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> parsePooledPacket(ByteBuffer buffer, BufferPool pool) {
+
+        return DataUtils.parsePooledPacket(this, buffer, pool);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IOException
+     *             If an IO error occurs while reading from the {@code DataInput} object
+     * @exception NullPointerException
+     *                If {@code in} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> readPacketFrom(DataInput in) throws IOException {
+
+        return DataUtils.readPacketFrom(this, in);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IOException
+     *             If an IO error occurs while reading from the {@code DataInput} object
+     * @exception NullPointerException
+     *                If {@code in} or {@code pool} are {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> readPacketFrom(DataInput in, BufferPool pool) throws IOException {
+
+        return DataUtils.readPacketFrom(this, in, pool);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IOException
+     *             If an IO error occurs while reading from the {@code ReadableByteChannel} object
+     * @exception NullPointerException
+     *                If {@code ch} is {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> readPacketFrom(ReadableByteChannel ch) throws IOException {
+
+        return DataUtils.readPacketFrom(this, ch);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IOException
+     *             If an IO error occurs while reading from the {@code ReadableByteChannel} object
+     * @exception NullPointerException
+     *                If {@code ch} or {@code pool} are {@code null}
+     */
+    @Override
+    public Parsed<EncodingPacket> readPacketFrom(ReadableByteChannel ch, BufferPool pool) throws IOException {
+
+        return DataUtils.readPacketFrom(this, ch, pool);
+    }
+}
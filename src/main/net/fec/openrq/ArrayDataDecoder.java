@@ -16,22 +16,18 @@
 package net.fec.openrq;
 
 
-import java.io.DataInput;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.ReadableByteChannel;
-
-import net.fec.openrq.DataUtils.SourceBlockSupplier;
 import net.fec.openrq.decoder.DataDecoder;
-import net.fec.openrq.decoder.SourceBlockDecoder;
 import net.fec.openrq.parameters.FECParameters;
-import net.fec.openrq.util.collection.ImmutableList;
 
 
 /**
  * A RaptorQ decoder for an array data object.
+ * <p>
+ * Each source block is decoded into its own temporary file. Failures to write or read the file are reported by throwing
+ * a {@link DataIOException}. The file is accessed through an interruptible channel, which is closed if a thread is
+ * interrupted while putting packets; the threads that put packets into this decoder must therefore not be interrupted.
  */
-public final class ArrayDataDecoder implements DataDecoder {
+public final class ArrayDataDecoder extends AbstractDataDecoder {
 
     /**
      * @param fecParams
@@ -63,36 +59,27 @@ public final class ArrayDataDecoder implements DataDecoder {
 
 
     //private final byte[] dataArray;
-    private final FECParameters fecParams;
-    private final long fileID;
     private final String tempStorageDir;
-    private final ImmutableList<ArraySourceBlockDecoder> srcBlockDecoders;
-
-    private ArrayDataDecoder(FECParameters fecParams, final int extraSymbols, long fileID, String tempStorageDir) {
-
-        this.fecParams = fecParams;
-        this.fileID = fileID;
-        this.tempStorageDir = tempStorageDir;
-        this.srcBlockDecoders = DataUtils.partitionData(
-                ArraySourceBlockDecoder.class,
-                fecParams,
-                new SourceBlockSupplier<ArraySourceBlockDecoder>() {
 
-                    @Override
-                    public ArraySourceBlockDecoder get(int off, int sbn, int K) {
+    private ArrayDataDecoder(
+            final FECParameters fecParams,
+            final int extraSymbols,
+            final long fileID,
+            final String tempStorageDir) {
 
-                        return ArraySourceBlockDecoder.newDecoder(
-                                ArrayDataDecoder.this, off,
-                                ArrayDataDecoder.this.fecParams,
-                                sbn, K, extraSymbols, ArrayDataDecoder.this.fileID, ArrayDataDecoder.this.tempStorageDir);
-                    }
-                });
-    }
+        super(fecParams, new SourceBlockFactory() {
 
-    @Override
-    public FECParameters fecParameters() {
+            @Override
+            public ArraySourceBlockDecoder newSourceBlock(DataDecoder dataDecoder, long off, int sbn, int K) {
 
-        return fecParams;
+                // the offset fits inside an int, since the data length is at most 2^^31 - 1
+                return ArraySourceBlockDecoder.newDecoder(
+                        dataDecoder, (int)off,
+                        fecParams,
+                        sbn, K, extraSymbols, fileID, tempStorageDir);
+            }
+        });
+        this.tempStorageDir = tempStorageDir;
     }
 
     @Override
@@ -100,59 +87,6 @@ public final class ArrayDataDecoder implements DataDecoder {
         return tempStorageDir;
     }
 
-    @Override
-    public long dataLength() {
-
-        return fecParams.dataLength();
-    }
-
-    @Override
-    public int symbolSize() {
-
-        return fecParams.symbolSize();
-    }
-
-    @Override
-    public int numberOfSourceBlocks() {
-
-        return fecParams.numberOfSourceBlocks();
-    }
-
-    @Override
-    public boolean isDataDecoded() {
-
-        for (SourceBlockDecoder dec : srcBlockDecoders) {
-            if (!dec.isSourceBlockDecoded()) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception IllegalArgumentException
-     *                If the provided source block number is invalid
-     */
-    @Override
-    public SourceBlockDecoder sourceBlock(int sbn) {
-
-        try {
-            return srcBlockDecoders.get(sbn); // list is random access
-        }
-        catch (IndexOutOfBoundsException e) {
-            throw new IllegalArgumentException("invalid source block number");
-        }
-    }
-
-    @Override
-    public Iterable<? extends SourceBlockDecoder> sourceBlockIterable() {
-
-        return srcBlockDecoders;
-    }
-
     /**
      * Returns an array of bytes containing the source data. Use method {@link #isDataDecoded()} to check if the data is
      * complete.
@@ -164,120 +98,4 @@ public final class ArrayDataDecoder implements DataDecoder {
 //
 //        return dataArray;
 //    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception NullPointerException
-     *                If {@code symbols} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> parsePacket(int sbn, int esi, byte[] symbols, boolean copySymbols) {
-
-        return DataUtils.parsePacket(this, sbn, esi, symbols, copySymbols);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception IndexOutOfBoundsException
-     *                If the pre-conditions on the array offset and length do not hold
-     * @exception NullPointerException
-     *                If {@code symbols} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> parsePacket(int sbn, int esi, byte[] symbols, int off, int len, boolean copySymbols) {
-
-        return DataUtils.parsePacket(this, sbn, esi, symbols, off, len, copySymbols);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception NullPointerException
-     *                If {@code symbols} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> parsePacket(int sbn, int esi, ByteBuffer symbols, boolean copySymbols) {
-
-        return DataUtils.parsePacket(this, sbn, esi, symbols, copySymbols);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception NullPointerException
-     *                If {@code ser} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> parsePacket(SerializablePacket ser, boolean copySymbols) {
-
-        return DataUtils.parsePacket(this, ser, copySymbols);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception NullPointerException
-     *                If {@code array} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> parsePacket(byte[] array, boolean copySymbols) {
-
-        return DataUtils.parsePacket(this, array, copySymbols);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception IndexOutOfBoundsException
-     *                If the pre-conditions on the array offset and length do not hold
-     * @exception NullPointerException
-     *                If {@code array} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> parsePacket(byte[] array, int off, int len, boolean copySymbols) {
-
-        return DataUtils.parsePacket(this, array, off, len, copySymbols);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @exception NullPointerException
-     *                If {@code buffer} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> parsePacket(ByteBuffer buffer, boolean copySymbols) {
-
-        return DataUtils.parsePacket(this, buffer, copySymbols);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @throws IOException
-     *             If an IO error occurs while reading from the {@code DataInput} object
-     * @exception NullPointerException
-     *                If {@code in} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> readPacketFrom(DataInput in) throws IOException {
-
-        return DataUtils.readPacketFrom(this, in);
-    }
-
-    /**
-     * {@inheritDoc}
-     *
-     * @throws IOException
-     *             If an IO error occurs while reading from the {@code ReadableByteChannel} object
-     * @exception NullPointerException
-     *                If {@code ch} is {@code null}
-     */
-    @Override
-    public Parsed<EncodingPacket> readPacketFrom(ReadableByteChannel ch) throws IOException {
-
-        return DataUtils.readPacketFrom(this, ch);
-    }
 }
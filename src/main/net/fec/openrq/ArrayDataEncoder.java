@@ -38,24 +38,32 @@ public final class ArrayDataEncoder implements DataEncoder {
      *            An array of bytes containing the source data to be encoded
      * @param offset
      *            The index in the array where the source data begins
+     * @param cache
+     *            The cache of intermediate symbols used by the returned data encoder
      * @return a data encoder object backed by an array of bytes
      * @exception NullPointerException
-     *                If {@code data} or {@code fecParams} are {@code null}
+     *                If {@code data}, {@code fecParams} or {@code cache} are {@code null}
      * @exception IllegalArgumentException
      *                If {@code fecParams.dataLength() > Integer.MAX_VALUE}
      * @exception IndexOutOfBoundsException
      *                If {@code offset < 0 || fecParams.dataLength() > (data.length - offset)}
      */
-    static ArrayDataEncoder newEncoder(byte[] data, int offset, FECParameters fecParams) {
+    static ArrayDataEncoder newEncoder(
+        byte[] data,
+        int offset,
+        FECParameters fecParams,
+        IntermediateSymbolsCache cache)
+    {
 
         Objects.requireNonNull(data);
+        Objects.requireNonNull(cache);
         // throws NullPointerException if null fecParams
         if (fecParams.dataLength() > Integer.MAX_VALUE) {
             throw new IllegalArgumentException("data length must be at most 2^^31 - 1");
         }
         ArrayUtils.checkArrayBounds(offset, fecParams.dataLengthAsInt(), data.length);
 
-        return new ArrayDataEncoder(data, offset, fecParams);
+        return new ArrayDataEncoder(data, offset, fecParams, cache);
     }
 
 
@@ -63,15 +71,17 @@ public final class ArrayDataEncoder implements DataEncoder {
     private final int offset;   // to return to the user
 
     private final FECParameters fecParams;
+    private final IntermediateSymbolsCache cache;
     private final ImmutableList<ArraySourceBlockEncoder> srcBlockEncoders;
 
 
-    private ArrayDataEncoder(byte[] array, int offset, FECParameters fecParams) {
+    private ArrayDataEncoder(byte[] array, int offset, FECParameters fecParams, IntermediateSymbolsCache cache) {
 
         this.array = array;
         this.offset = offset;
 
         this.fecParams = fecParams;
+        this.cache = cache;
 
         this.srcBlockEncoders = DataUtils.partitionData(
             ArraySourceBlockEncoder.class,
@@ -81,13 +91,14 @@ public final class ArrayDataEncoder implements DataEncoder {
 
                 @Override
                 public ArraySourceBlockEncoder get(
-                    int off,
+                    long off,
                     int sbn,
                     int K)
                 {
 
+                    // the offset fits inside an int, since the data length is at most 2^^31 - 1
                     return ArraySourceBlockEncoder.newEncoder(
-                        ArrayDataEncoder.this, ArrayDataEncoder.this.array, off,
+                        ArrayDataEncoder.this, ArrayDataEncoder.this.cache, ArrayDataEncoder.this.array, (int)off,
                         ArrayDataEncoder.this.fecParams,
                         sbn, K);
                 }
@@ -142,6 +153,17 @@ public final class ArrayDataEncoder implements DataEncoder {
         return srcBlockEncoders;
     }
 
+    /**
+     * Returns the cache where the intermediate symbols of the source blocks of this encoder are kept. The cache may be
+     * shared with other data encoders.
+     * 
+     * @return the cache of intermediate symbols used by this encoder
+     */
+    public IntermediateSymbolsCache intermediateSymbolsCache() {
+
+        return cache;
+    }
+
     /**
      * Returns an array of bytes containing the source data.
      * 
@@ -19,22 +19,29 @@ package net.fec.openrq;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.fec.openrq.decoder.DataDecoder;
 import net.fec.openrq.decoder.SourceBlockDecoder;
 import net.fec.openrq.decoder.SourceBlockState;
 import net.fec.openrq.parameters.FECParameters;
 import net.fec.openrq.parameters.ParameterChecker;
-import net.fec.openrq.util.collection.BitSetIterators;
+import net.fec.openrq.util.array.ArrayUtils;
+import net.fec.openrq.util.collection.AtomicBitSet;
+import net.fec.openrq.util.collection.ImmutableIntSet;
 import net.fec.openrq.util.rq.SystematicIndices;
 
 
@@ -44,7 +51,7 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
 
     // requires valid arguments
     static ArraySourceBlockDecoder newDecoder(
-            ArrayDataDecoder dataDecoder,
+            DataDecoder dataDecoder,
             int arrayOff,
             FECParameters fecParams,
             int sbn,
@@ -70,17 +77,42 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
         return sbDecoder;
     }
 
+    // requires valid arguments; the source block is stored in the file starting at filePos
+    static ArraySourceBlockDecoder newFileRegionDecoder(
+            DataDecoder dataDecoder,
+            RandomAccessFileHandle rafHandle,
+            long filePos,
+            long dataOff,
+            FECParameters fecParams,
+            int sbn,
+            int K,
+            int symbOver) {
 
-    private final ArrayDataDecoder dataDecoder;
+        final int paddedLen = K * fecParams.symbolSize();
+        final int dataLen = (int) Math.min(paddedLen, fecParams.dataLength() - dataOff);
+        final PaddedByteArrayDecoder data = PaddedByteArrayDecoder.newFileRegion(
+                rafHandle, filePos, dataOff, dataLen, paddedLen);
+
+        return new ArraySourceBlockDecoder(dataDecoder, data, sbn, K, symbOver);
+    }
+
+
+    private final DataDecoder dataDecoder;
     private final PaddedByteArrayDecoder data;
 
     private final int sbn;
     private final int K;
     private final SymbolsState symbolsState;
 
+    // notified once, by the thread that writes the last missing source symbol
+    private final List<Runnable> decodedListeners = new CopyOnWriteArrayList<>();
+
+    // set once the storage is freed, after which encoding packets are ignored
+    private volatile boolean released = false;
+
 
     private ArraySourceBlockDecoder(
-            ArrayDataDecoder dataDecoder,
+            DataDecoder dataDecoder,
             PaddedByteArrayDecoder data,
             int sbn,
             int K,
@@ -91,7 +123,7 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
 
         this.sbn = sbn;
         this.K = K;
-        this.symbolsState = new SymbolsState(K, symbOver);
+        this.symbolsState = new SymbolsState(K, dataDecoder.symbolSize(), symbOver);
     }
 
     private FECParameters fecParameters() {
@@ -100,7 +132,7 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
     }
 
     @Override
-    public ArrayDataDecoder dataDecoder() {
+    public DataDecoder dataDecoder() {
 
         return dataDecoder;
     }
@@ -119,7 +151,15 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
     }
 
     public int getDataOffset() {
-        return data.arrayOffset();
+        final long off = data.dataOffset();
+        if (off > Integer.MAX_VALUE) {
+            throw new ArithmeticException("data offset value does not fit inside an int");
+        }
+        return (int) off;
+    }
+
+    public long getLongDataOffset() {
+        return data.dataOffset();
     }
 
     public int getDataLength() {
@@ -137,97 +177,78 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
 
         return K;
     }
-
     @Override
     public boolean containsSourceSymbol(int esi) {
 
         checkSourceSymbolESI(esi);
-        symbolsState.lock();
-        try {
-            return symbolsState.containsSourceSymbol(esi);
-        }
-        finally {
-            symbolsState.unlock();
-        }
+        return symbolsState.containsSourceSymbol(esi);
     }
 
     @Override
     public boolean containsRepairSymbol(int esi) {
 
         checkRepairSymbolESI(esi);
-        symbolsState.lock();
-        try {
-            return symbolsState.containsRepairSymbol(esi);
-        }
-        finally {
-            symbolsState.unlock();
-        }
+        return symbolsState.containsRepairSymbol(esi);
     }
 
     @Override
     public boolean isSourceBlockDecoded() {
 
-        symbolsState.lock();
-        try {
-            return symbolsState.isSourceBlockDecoded();
-        }
-        finally {
-            symbolsState.unlock();
-        }
+        return symbolsState.isSourceBlockDecoded();
     }
 
     @Override
     public SourceBlockState latestState() {
 
-        symbolsState.lock();
-        try {
-            return symbolsState.sourceBlockState();
-        }
-        finally {
-            symbolsState.unlock();
-        }
+        return symbolsState.sourceBlockState();
     }
 
     @Override
     public Set<Integer> missingSourceSymbols() {
 
-        symbolsState.lock();
-        try {
-            return getMissingSourceSymbols();
-        }
-        finally {
-            symbolsState.unlock();
-        }
+        return getMissingSourceSymbols();
     }
 
     @Override
     public Set<Integer> availableRepairSymbols() {
 
-        symbolsState.lock();
-        try {
-            return getAvailableRepairSymbols();
-        }
-        finally {
-            symbolsState.unlock();
-        }
+        return getAvailableRepairSymbols();
+    }
+
+    @Override
+    public int numberOfMissingSourceSymbols() {
+
+        return symbolsState.numMissingSourceSymbols();
+    }
+
+    @Override
+    public int[] missingSourceSymbolsArray() {
+
+        return symbolsState.missingSourceSymbols();
+    }
+
+    @Override
+    public int[] availableRepairSymbolsArray() {
+
+        return symbolsState.availableRepairSymbols();
     }
 
     @Override
     public SBDInfo information() {
 
-        symbolsState.lock();
-        try {
-            return SBDInfo.newInformation(
-                sbn,
-                symbolsState.sourceBlockState(),
-                getMissingSourceSymbols(),
-                getAvailableRepairSymbols());
-        }
-        finally {
-            symbolsState.unlock();
-        }
+        return SBDInfo.newInformation(
+            sbn,
+            symbolsState.sourceBlockState(),
+            getMissingSourceSymbols(),
+            getAvailableRepairSymbols());
     }
 
+    /*
+     * This method may be called concurrently by multiple threads, and it never blocks:
+     * - source symbols are written directly into the data array by the thread that first claims their ESI
+     * - repair symbols are stored by whichever thread currently owns the decoding process, or else are queued
+     * - a single thread at a time (the "decode owner", chosen with a CAS) stores queued repair symbols and decodes
+     */
     @Override
     public SourceBlockState putEncodingPacket(EncodingPacket packet) {
 
@@ -236,75 +257,283 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
             throw new IllegalArgumentException("source block number does not match the expected");
         }
 
-        symbolsState.lock();
-        try {
-            if (!symbolsState.isSourceBlockDecoded()) { // do nothing if already decoded
-                final ByteBuffer symbols = packet.symbols();
-                final int esi = packet.encodingSymbolID();
-                boolean putNewSymbol = false;
-
-                // put symbol data
-                switch (packet.symbolType()) {
-                    case SOURCE:
-                        for (int i = 0; i < packet.numberOfSymbols(); i++) {
-                            putNewSymbol |= putSourceData(esi + i, symbols);
-                        }
-                    break;
-
-                    case REPAIR:
-                        for (int i = 0; i < packet.numberOfSymbols(); i++) {
-                            putNewSymbol |= putRepairData(esi + i, symbols);
-                        }
-                    break;
-
-                    default:
-                        throw new AssertionError("unknown enum value");
-                }
+        if (!released && !symbolsState.isSourceBlockDecoded()) { // do nothing if already decoded or released
+            final ByteBuffer symbols = packet.symbols();
+            final int esi = packet.encodingSymbolID();
+            boolean putNewSymbol = false;
+
+            // put symbol data
+            switch (packet.symbolType()) {
+                case SOURCE:
+                    for (int i = 0; i < packet.numberOfSymbols(); i++) {
+                        putNewSymbol |= putSourceData(esi + i, symbols);
+                    }
+                break;
+
+                case REPAIR:
+                    putNewSymbol = putRepairSymbols(packet);
+                break;
+
+                default:
+                    throw new AssertionError("unknown enum value");
+            }
 
-                // 1. don't bother if no new symbols were added
-                // 2. the addition of a source symbol may have decoded the source block
-                // 3. enough (source/repair) symbols may have been received for a decode to start
-                if (putNewSymbol &&
-                    !symbolsState.isSourceBlockDecoded() &&
-                    symbolsState.haveEnoughSymbolsToDecode())
-                {
-                    decode();
+            // don't bother if no new symbols were added
+            if (putNewSymbol) {
+                processPendingWork();
+            }
+        }
+
+        return symbolsState.sourceBlockState();
+    }
+
+    /*
+     * Asynchronous variant of putEncodingPacket(EncodingPacket), used by AsyncDataDecoder:
+     * - source symbols are claimed by the calling thread, but written with an asynchronous file channel, and they only
+     * count as received once the write completes
+     * - repair symbols are stored (or queued) by the calling thread, as in the synchronous variant
+     * - the decoding work is run by a task submitted to the executor, after which the handler is notified
+     */
+    <A> void putEncodingPacket(
+        EncodingPacket packet,
+        ExecutorService executor,
+        A attachment,
+        CompletionHandler<SourceBlockState, ? super A> handler)
+    {
+
+        // other than a different SBN, this method assumes a correct encoding packet
+        if (packet.sourceBlockNumber() != sourceBlockNumber()) {
+            throw new IllegalArgumentException("source block number does not match the expected");
+        }
+
+        if (symbolsState.isSourceBlockDecoded()) { // do nothing if already decoded
+            packet.release();
+            handler.completed(SourceBlockState.DECODED, attachment);
+            return;
+        }
+        if (released) {
+            packet.release();
+            handler.completed(symbolsState.sourceBlockState(), attachment);
+            return;
+        }
+
+        switch (packet.symbolType()) {
+            case SOURCE:
+                putSourceDataAsync(packet, executor, attachment, handler);
+            break;
+
+            case REPAIR:
+                final boolean putNewSymbol = putRepairSymbols(packet);
+                packet.release(); // the symbols were copied, unless the packet was adopted
+                completeAfterPendingWork(putNewSymbol, executor, attachment, handler);
+            break;
+
+            default:
+                throw new AssertionError("unknown enum value");
+        }
+    }
+
+    // returns true if at least one new repair symbol was stored or queued
+    private boolean putRepairSymbols(EncodingPacket packet) {
+
+        final ByteBuffer symbols = packet.symbols();
+        final int esi = packet.encodingSymbolID();
+        boolean putNewSymbol = false;
+
+        // in zero-copy mode, the pooled buffer of the packet is kept instead of copied
+        final boolean adopted = symbolsState.isZeroCopyEnabled() && packet.adopt();
+        if (symbolsState.tryAcquireDecoding()) { // store directly into the off-heap slab
+            try {
+                for (int i = 0; i < packet.numberOfSymbols(); i++) {
+                    putNewSymbol |= putRepairData(esi + i, symbols, adopted);
                 }
+                if (adopted) {
+                    if (putNewSymbol) symbolsState.keepAdoptedPacket(packet);
+                    else packet.releaseAdopted();
+                }
+            }
+            finally {
+                symbolsState.releaseDecoding();
             }
+        }
+        else { // leave the symbols to the current decode owner
+            putNewSymbol = queueRepairData(esi, packet.numberOfSymbols(), symbols, adopted ? packet : null);
+        }
+
+        return putNewSymbol;
+    }
 
-            return symbolsState.sourceBlockState();
+    // writes each run of consecutive claimed source symbols with a single asynchronous write
+    private <A> void putSourceDataAsync(
+        final EncodingPacket packet,
+        final ExecutorService executor,
+        final A attachment,
+        final CompletionHandler<SourceBlockState, ? super A> handler)
+    {
+
+        final ByteBuffer symbols = packet.symbols();
+        final int esi = packet.encodingSymbolID();
+        final int numSymbols = packet.numberOfSymbols();
+        final int T = fecParameters().symbolSize();
+        final int symbolsLen = packet.symbolsLength(); // the last symbol may be shorter than T
+
+        final boolean[] claimed = new boolean[numSymbols];
+        int numRuns = 0;
+        for (int i = 0; i < numSymbols; i++) {
+            claimed[i] = symbolsState.claimSourceSymbol(esi + i);
+            if (claimed[i] && (i == 0 || !claimed[i - 1])) {
+                numRuns++;
+            }
         }
-        finally {
-            symbolsState.unlock();
+
+        if (numRuns == 0) { // every symbol was already put
+            packet.release();
+            handler.completed(symbolsState.sourceBlockState(), attachment);
+            return;
+        }
+
+        // a pooled buffer must outlive the asynchronous writes, so the packet cannot be released before they complete
+        final boolean adopted = packet.adopt();
+        final AtomicInteger pendingRuns = new AtomicInteger(numRuns);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final CompletionHandler<Integer, int[]> runHandler = new CompletionHandler<Integer, int[]>() {
+
+            @Override
+            public void completed(Integer written, int[] run) {
+
+                for (int runESI = run[0]; runESI < run[1]; runESI++) {
+                    if (symbolsState.addSourceSymbol(runESI)) {
+                        notifyDecoded();
+                    }
+                }
+                runFinished();
+            }
+
+            @Override
+            public void failed(Throwable exc, int[] run) {
+
+                // give up the claims, so that the symbols can be put again
+                for (int runESI = run[0]; runESI < run[1]; runESI++) {
+                    symbolsState.unclaimSourceSymbol(runESI);
+                }
+                if (!released) { // otherwise, the write failed because the storage was freed meanwhile
+                    failure.compareAndSet(null, exc);
+                }
+                runFinished();
+            }
+
+            private void runFinished() {
+
+                if (pendingRuns.decrementAndGet() == 0) {
+                    if (adopted) packet.releaseAdopted();
+
+                    final Throwable exc = failure.get();
+                    if (exc != null) {
+                        handler.failed(exc, attachment);
+                    }
+                    else {
+                        completeAfterPendingWork(true, executor, attachment, handler);
+                    }
+                }
+            }
+        };
+
+        final int bufPos = symbols.position();
+        int i = 0;
+        while (i < numSymbols) {
+            if (!claimed[i]) {
+                i++;
+            }
+            else {
+                final int start = i;
+                while (i < numSymbols && claimed[i]) {
+                    i++;
+                }
+
+                final ByteBuffer src = symbols.duplicate();
+                src.limit(bufPos + Math.min(i * T, symbolsLen));
+                src.position(bufPos + start * T);
+                data.putBytes((esi + start) * T, src, executor, new int[] {esi + start, esi + i}, runHandler);
+            }
         }
     }
 
-    @Override
-    public int symbolOverhead() {
+    // runs the pending decoding work in the executor, if there may be any, and then notifies the handler
+    private <A> void completeAfterPendingWork(
+        boolean putNewSymbol,
+        ExecutorService executor,
+        final A attachment,
+        final CompletionHandler<SourceBlockState, ? super A> handler)
+    {
+
+        if (!putNewSymbol) {
+            handler.completed(symbolsState.sourceBlockState(), attachment);
+            return;
+        }
 
-        symbolsState.lock();
         try {
-            return symbolsState.symbolOverhead();
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        processPendingWork();
+                    }
+                    catch (RuntimeException | Error e) {
+                        handler.failed(e, attachment);
+                        return;
+                    }
+                    handler.completed(symbolsState.sourceBlockState(), attachment);
+                }
+            });
         }
-        finally {
-            symbolsState.unlock();
+        catch (RejectedExecutionException e) {
+            handler.failed(e, attachment);
         }
     }
 
+    @Override
+    public int symbolOverhead() {
+
+        return symbolsState.symbolOverhead();
+    }
+
     @Override
     public void setSymbolOverhead(int symbOver) {
 
         if (symbOver < 0) throw new IllegalArgumentException("symbol overhead must be non-negative");
+        symbolsState.setSymbolOverhead(symbOver);
+    }
 
-        symbolsState.lock();
-        try {
-            symbolsState.setSymbolOverhead(symbOver);
-        }
-        finally {
-            symbolsState.unlock();
+    @Override
+    public boolean isIncrementalDecodingEnabled() {
+
+        return symbolsState.isIncrementalDecodingEnabled();
+    }
+
+    @Override
+    public void setIncrementalDecoding(boolean enable) {
+
+        symbolsState.setIncrementalDecoding(enable);
+        if (enable) {
+            processPendingWork(); // feed the symbols received so far
         }
     }
 
+    @Override
+    public boolean isZeroCopyEnabled() {
+
+        return symbolsState.isZeroCopyEnabled();
+    }
+
+    @Override
+    public void setZeroCopy(boolean enable) {
+
+        symbolsState.setZeroCopy(enable);
+    }
+
     private void checkSourceSymbolESI(int esi) {
 
         if (esi < 0 || esi >= K) {
@@ -319,75 +548,160 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
         }
     }
 
-    /*
-     * ===== Requires locked symbolsState! =====
-     */
     private Set<Integer> getMissingSourceSymbols() {
 
-        if (symbolsState.isSourceBlockDecoded()) {
-            return Collections.emptySet();
-        }
-        else {
-            final int numMissing = symbolsState.numMissingSourceSymbols();
+        // the array is already in ascending order
+        final int[] missing = symbolsState.missingSourceSymbols();
+        return ImmutableIntSet.of(missing, missing.length);
+    }
 
-            // linked hash set preserves insertion ordering (while not being sorted)
-            final Set<Integer> missingSourceSymbols = new LinkedHashSet<>(numMissing);
-            for (Integer esi : symbolsState.missingSourceSymbols()) {
-                missingSourceSymbols.add(esi);
-            }
+    private Set<Integer> getAvailableRepairSymbols() {
 
-            return missingSourceSymbols;
-        }
+        // the array follows the receiving ordering (while not being sorted)
+        final int[] available = symbolsState.availableRepairSymbols();
+        return ImmutableIntSet.of(available, available.length);
     }
 
     /*
-     * ===== Requires locked symbolsState! =====
+     * Becomes the decode owner for as long as there is work to do. If another thread is currently the owner, then this
+     * method returns immediately, since that thread will check for new work after releasing ownership.
      */
-    private Set<Integer> getAvailableRepairSymbols() {
+    private void processPendingWork() {
 
-        if (symbolsState.isSourceBlockDecoded()) {
-            return Collections.emptySet();
-        }
-        else {
-            // linked hash set preserves insertion ordering (while not being sorted)
-            return new LinkedHashSet<>(symbolsState.repairSymbolsESIs());
+        while (!released && symbolsState.hasPendingWork() && symbolsState.tryAcquireDecoding()) {
+            try {
+                symbolsState.drainQueuedRepairSymbols();
+
+                if (symbolsState.isSourceBlockDecoded()) {
+                    symbolsState.releaseRepairSymbols(); // free memory
+                }
+                else if (symbolsState.isIncrementalDecodingEnabled() || symbolsState.hasIncrementalSystem()) {
+                    decodeIncrementally();
+                }
+                else if (symbolsState.shouldAttemptDecoding()) {
+                    decode();
+                }
+            }
+            catch (DataIOException e) {
+                if (!released) throw e; // otherwise, the storage was freed meanwhile and the work is moot
+            }
+            finally {
+                symbolsState.releaseDecoding();
+            }
         }
     }
 
     /*
-     * ===== Requires locked symbolsState! =====
+     * ===== Requires decoding ownership! =====
      */
     private void decode() {
 
+        // work over a snapshot, since source symbols may keep arriving concurrently
+        final BitSet receivedSourceSymbols = symbolsState.receivedSourceSymbols();
+        final int[] missingSourceSymbols = SymbolsState.missingSourceSymbols(receivedSourceSymbols, K);
+        if (symbolsState.numRepairSymbols() < missingSourceSymbols.length) {
+            return; // not enough repair symbols yet to replace the missing source symbols
+        }
+
+        symbolsState.markDecodingAttempt();
+
+        // with only a few missing source symbols, avoid solving for all the intermediate symbols
+        if (ErasureRecovery.isApplicable(K, missingSourceSymbols.length)) {
+            final byte[][] recovered = ErasureRecovery.recover(
+                K, fecParameters().symbolSize(), receivedSourceSymbols, missingSourceSymbols,
+                data, symbolsState.repairSymbols());
+
+            if (recovered != null) {
+                symbolsState.markSolved();
+                putRecoveredSourceData(missingSourceSymbols, recovered);
+                return;
+            }
+        }
+
         // generate intermediate symbols -- watch out for decoding failure
-        final byte[][] intermediate_symbols = generateIntermediateSymbols();
+        final byte[][] intermediate_symbols = generateIntermediateSymbols(receivedSourceSymbols, missingSourceSymbols);
 
         if (intermediate_symbols == null) {
             symbolsState.setSourceBlockDecodingFailure();
+
+            // retain the reduced system of the failed attempt, so that from now on each new symbol only costs the
+            // elimination of its own equation
+            decodeIncrementally();
         }
         else {
-            /*
-             * with the intermediate symbols calculated, one can recover
-             * every missing source symbol
-             */
+            symbolsState.markSolved();
+            recoverMissingSourceSymbols(intermediate_symbols, missingSourceSymbols);
+        }
+    }
 
-            final int Kprime = SystematicIndices.ceil(K);
+    /*
+     * ===== Requires decoding ownership! =====
+     */
+    private void decodeIncrementally() {
 
-            // recover missing source symbols
-            for (int esi : missingSourceSymbols()) {
-                byte[] sourceSymbol = LinearSystem.enc(
-                    Kprime, intermediate_symbols, new Tuple(Kprime, esi), fecParameters().symbolSize());
+        final IncrementalLinearSystem system = symbolsState.incrementalSystem();
+        final int T = fecParameters().symbolSize();
+        final byte[] symbol = new byte[T];
+
+        // eliminate the equations of the source symbols received since the last call
+        final BitSet newSourceSymbols = symbolsState.receivedSourceSymbols();
+        newSourceSymbols.andNot(symbolsState.incrementalSourceSymbols());
+        for (int esi = newSourceSymbols.nextSetBit(0); esi >= 0 && !system.isSolvable(); esi = newSourceSymbols.nextSetBit(esi + 1)) {
+            data.getBytes(esi * T, symbol);
+            system.addSourceSymbol(esi, symbol);
+            symbolsState.markIncrementalSourceSymbol(esi);
+        }
+
+        // and the equations of the repair symbols stored since the last call (slots follow the receiving order)
+        final RepairSymbolSlab repairSymbols = symbolsState.repairSymbols();
+        for (int slot = symbolsState.incrementalRepairSlots(); slot < repairSymbols.size() && !system.isSolvable(); slot++) {
+            repairSymbols.get(slot, symbol);
+            system.addRepairSymbol(repairSymbols.esiAt(slot), symbol);
+            symbolsState.markIncrementalRepairSlot();
+        }
+
+        if (system.isSolvable()) {
+            // only a back-substitution is left to do
+            symbolsState.markSolved();
+            final byte[][] intermediate_symbols = system.intermediateSymbols();
+            symbolsState.releaseIncrementalSystem();
+            recoverMissingSourceSymbols(intermediate_symbols, symbolsState.missingSourceSymbols());
+        }
+        else if (symbolsState.numIncrementalSymbols() >= K + symbolsState.symbolOverhead()) {
+            symbolsState.setSourceBlockDecodingFailure();
+        }
+    }
+
+    /*
+     * ===== Requires decoding ownership! =====
+     */
+    private void recoverMissingSourceSymbols(byte[][] intermediate_symbols, int[] missingSourceSymbols) {
+
+        /*
+         * with the intermediate symbols calculated, one can recover
+         * every missing source symbol
+         */
+
+        final int Kprime = SystematicIndices.ceil(K);
+        final byte[][] sourceSymbols = new byte[missingSourceSymbols.length][];
 
-                // write to data buffer
-                putSourceData(esi, sourceSymbol, 0);
+        // recover missing source symbols (symbols received in the meantime are skipped)
+        for (int i = 0; i < missingSourceSymbols.length; i++) {
+            final int esi = missingSourceSymbols[i];
+            if (!symbolsState.containsSourceSymbol(esi)) {
+                sourceSymbols[i] = LinearSystem.enc(
+                    Kprime, intermediate_symbols, new Tuple(Kprime, esi), fecParameters().symbolSize());
             }
         }
+
+        // write to data buffer
+        putRecoveredSourceData(missingSourceSymbols, sourceSymbols);
     }
 
     /*
-     * ===== Requires locked symbolsState! =====
+     * ===== Requires decoding ownership! =====
      */
-    private final byte[][] generateIntermediateSymbols() {
+    private final byte[][] generateIntermediateSymbols(BitSet receivedSourceSymbols, int[] missingSourceSymbols) {
 
         // constraint matrix parameters
         final int Kprime = SystematicIndices.ceil(K);
@@ -398,7 +712,7 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
         int T = fecParameters().symbolSize();
 
         // number of extra repair symbols to be used for the decoding process
-        int overhead = symbolsState.numRepairSymbols() - symbolsState.numMissingSourceSymbols();
+        int overhead = symbolsState.numRepairSymbols() - missingSourceSymbols.length;
 
         // number of rows in the decoding matrix
         int M = L + overhead;
@@ -416,10 +730,8 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
         // initialize D
         byte[][] D = new byte[M][T];
 
-        // populate D with the received source symbols
-        for (int isi : symbolsState.receivedSourceSymbols()) {
-            data.getBytes(isi * T, D[S + H + isi]);
-        }
+        // populate D with the received source symbols (runs of consecutive symbols are read at once)
+        data.getSymbols(receivedSourceSymbols, T, D, S + H);
 
         /*
          * for every repair symbol received
@@ -427,16 +739,17 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
          * - populate D accordingly
          */
 
-        Iterator<EncodingSymbol> repair_symbol = symbolsState.repairSymbols().iterator();
+        final RepairSymbolSlab repairSymbols = symbolsState.repairSymbols();
+        int repairSlot = 0; // slots follow the receiving order
 
         // identify missing source symbols and replace their lines with "repair lines"
-        for (Integer missing_ESI : missingSourceSymbols()) {
+        for (int missing_ESI : missingSourceSymbols) {
 
-            EncodingSymbol repair = repair_symbol.next();
+            int repairISI = repairSymbols.esiAt(repairSlot) + (Kprime - K);
             int row = S + H + missing_ESI;
 
             // replace line S + H + missing_ESI with the line for encIndexes
-            Tuple tuple = new Tuple(Kprime, repair.getISI(K));
+            Tuple tuple = new Tuple(Kprime, repairISI);
             Set<Integer> indexes = LinearSystem.encIndexes(Kprime, tuple);
 
             byte[] newLine = new byte[L];
@@ -447,16 +760,16 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
             constraint_matrix[row] = newLine;
 
             // fill in missing source symbols in D with the repair symbols
-            D[row] = repair.data();
+            repairSymbols.get(repairSlot++, D[row]);
         }
 
         // insert the values for overhead (repair) symbols
         for (int row = L; row < M; row++)
         {
-            EncodingSymbol repair = repair_symbol.next();
+            int repairISI = repairSymbols.esiAt(repairSlot) + (Kprime - K);
 
             // generate the overhead lines
-            Tuple tuple = new Tuple(Kprime, repair.getISI(K));
+            Tuple tuple = new Tuple(Kprime, repairISI);
             Set<Integer> indexes = LinearSystem.encIndexes(Kprime, tuple);
 
             byte[] newLine = new byte[L];
@@ -467,7 +780,7 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
             constraint_matrix[row] = newLine;
 
             // update D with the data for that symbol
-            D[row] = repair.data();
+            repairSymbols.get(repairSlot++, D[row]);
         }
 
         /*
@@ -485,169 +798,322 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
         }
     }
 
-    /*
-     * ===== Requires locked symbolsState! =====
-     */
     // requires valid ESI
     private boolean putSourceData(int esi, ByteBuffer symbolData) {
 
         final int T = fecParameters().symbolSize(); // TODO handle last symbol size (no padding)
         final int bufPos = symbolData.position();
 
-        if (symbolsState.containsSourceSymbol(esi)) { // if already received, just advance the buffer position
+        if (!symbolsState.claimSourceSymbol(esi)) { // if already claimed, just advance the buffer position
             symbolData.position(bufPos + T);
             return false;
         }
         else {
-            if (symbolData.hasArray()) { // avoid array allocation and copy
-                final byte[] arr = symbolData.array();
-                final int off = bufPos + symbolData.arrayOffset();
-                data.putBytes(esi * T, arr, off, T);
-                symbolData.position(bufPos + T); // don't forget to advance the buffer position
+            // positional write of exactly T bytes, without touching the limit of the caller's buffer
+            final ByteBuffer src = symbolData.duplicate();
+            src.limit(bufPos + T);
+            try {
+                data.putBytes(esi * T, src);
             }
-            else { // must allocate and copy, no other way
-                final byte[] arr = new byte[T];
-                symbolData.get(arr); // this also advances the buffer position
-                data.putBytes(esi * T, arr);
+            catch (DataIOException e) {
+                symbolsState.unclaimSourceSymbol(esi); // give up the claim, so that the symbol can be put again
+                if (!released) throw e;
+
+                // the storage was freed meanwhile, so the symbol is ignored
+                symbolData.position(bufPos + T);
+                return false;
             }
+            symbolData.position(bufPos + T); // don't forget to advance the buffer position
 
-            symbolsState.addSourceSymbol(esi);
+            if (symbolsState.addSourceSymbol(esi)) {
+                notifyDecoded();
+            }
             return true;
         }
     }
 
     /*
-     * ===== Requires locked symbolsState! =====
+     * ===== Requires decoding ownership! =====
      */
-    // requires valid ESI
-    private void putSourceData(int esi, byte[] symbolData, int off) {
+    // requires valid ESIs in ascending order; null symbols are skipped
+    private void putRecoveredSourceData(int[] esis, byte[][] symbols) {
+
+        // claim every symbol first, so that runs of consecutive symbols can be written at once
+        final int[] claimedESIs = new int[esis.length];
+        final byte[][] claimedSymbols = new byte[esis.length][];
+        int numClaimed = 0;
+        for (int i = 0; i < esis.length; i++) {
+            if (symbols[i] != null && symbolsState.claimSourceSymbol(esis[i])) { // if already claimed, do nothing
+                claimedESIs[numClaimed] = esis[i];
+                claimedSymbols[numClaimed] = symbols[i];
+                numClaimed++;
+            }
+        }
+
+        final int T = fecParameters().symbolSize(); // TODO handle last symbol size (no padding)
+        try {
+            data.putSymbols(claimedESIs, claimedSymbols, numClaimed, T);
+        }
+        catch (DataIOException e) {
+            // give up the claims, and let a later symbol trigger a new decoding
+            for (int i = 0; i < numClaimed; i++) {
+                symbolsState.unclaimSourceSymbol(claimedESIs[i]);
+            }
+            symbolsState.clearSolved();
+            throw e;
+        }
 
-        if (!symbolsState.containsSourceSymbol(esi)) { // if already received, do nothing
-            final int T = fecParameters().symbolSize(); // TODO handle last symbol size (no padding)
-            data.putBytes(esi * T, symbolData, off, T);
-            symbolsState.addSourceSymbol(esi);
+        for (int i = 0; i < numClaimed; i++) {
+            if (symbolsState.addSourceSymbol(claimedESIs[i])) {
+                notifyDecoded();
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is run when the source block becomes decoded, by the thread that completes the source
+     * block. The listener is not run if the source block is already decoded.
+     *
+     * @param listener
+     */
+    void addDecodedListener(Runnable listener) {
+
+        decodedListeners.add(Objects.requireNonNull(listener));
+    }
+
+    void removeDecodedListener(Runnable listener) {
+
+        decodedListeners.remove(listener);
+    }
+
+    private void notifyDecoded() {
+
+        for (Runnable listener : decodedListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Copies source data of this block into an array.
+     *
+     * @param index
+     *            The index of the first byte inside the source block
+     * @param dst
+     * @param off
+     * @param len
+     */
+    void readData(int index, byte[] dst, int off, int len) {
+
+        data.getBytes(index, dst, off, len);
+    }
+
+    /**
+     * Frees the storage of the source data of this block, if it is a temporary file. In that case, encoding packets put
+     * afterwards, possibly by other threads, are ignored, and the source data must not be read anymore.
+     */
+    void releaseStorage() {
+
+        // repair symbols are already released once the source block is decoded
+        if (data.ownsFile()) {
+            released = true;
+            data.release();
         }
     }
 
     /*
-     * ===== Requires locked symbolsState! =====
+     * ===== Requires decoding ownership! =====
      */
     // requires valid ESI
-    private boolean putRepairData(int esi, ByteBuffer symbolData) {
+    private boolean putRepairData(int esi, ByteBuffer symbolData, boolean adopted) {
 
-        final int T = fecParameters().symbolSize();
-        final int bufPos = symbolData.position();
-
-        if (symbolsState.containsRepairSymbol(esi)) { // if already received, just advance the buffer position
-            symbolData.position(bufPos + T);
+        if (symbolsState.isSourceBlockDecoded()) { // if already decoded, just advance the buffer position
+            symbolData.position(symbolData.position() + fecParameters().symbolSize());
             return false;
         }
         else {
-            // generate repair symbol (cannot avoid copy)
-            final byte[] repairData = new byte[T];
-            symbolData.get(repairData); // this also advances buffer position
-            final EncodingSymbol repair = EncodingSymbol.newRepairSymbol(esi, repairData);
+            // copy into the off-heap slab, or keep a view if adopted (this also advances the buffer position)
+            return symbolsState.addRepairSymbol(esi, symbolData, adopted);
+        }
+    }
 
-            // add this repair symbol to the set of received repair symbols
-            symbolsState.addRepairSymbol(repair);
-            return true;
+    // requires valid ESIs; the adopted packet is null if the symbols data must be copied
+    private boolean queueRepairData(int esi, int numSymbols, ByteBuffer symbolData, EncodingPacket adopted) {
+
+        boolean anyNewSymbol = false;
+        for (int i = 0; i < numSymbols && !anyNewSymbol; i++) {
+            anyNewSymbol = !symbolsState.containsRepairSymbol(esi + i);
+        }
+
+        if (symbolsState.isSourceBlockDecoded() || !anyNewSymbol) {
+            if (adopted != null) adopted.releaseAdopted();
+            return false;
+        }
+
+        final ByteBuffer data;
+        if (adopted != null) {
+            data = symbolData.slice(); // the pooled buffer now belongs to this decoder
         }
+        else {
+            final byte[] arr = new byte[numSymbols * fecParameters().symbolSize()];
+            symbolData.get(arr);
+            data = ByteBuffer.wrap(arr);
+        }
+
+        symbolsState.queueRepairSymbols(esi, numSymbols, data, adopted);
+        return true;
     }
 
 
+    /*
+     * Every method in this class may be called concurrently, except the ones marked as requiring decoding ownership,
+     * which must only be called by the thread that successfully called tryAcquireDecoding().
+     */
     private static final class SymbolsState {
 
-        private SourceBlockState sbState;
+        private final AtomicReference<SourceBlockState> sbState;
 
-        private final BitSet sourceSymbolsBitSet;
-        private final Iterable<Integer> missingSourceSymbols;
-        private final Iterable<Integer> receivedSourceSymbols;
+        // a source symbol is first claimed by a single writer, and only then marked as received
+        private final AtomicBitSet claimedSourceSymbols;
+        private final AtomicBitSet receivedSourceSymbols;
+        private final AtomicInteger numReceivedSourceSymbols; // kept in sync with the received bits
 
-        private final Map<Integer, EncodingSymbol> repairSymbols;
+        private final RepairSymbolSlab repairSymbols; // only modified by the decode owner
+        private final Queue<QueuedRepairSymbols> queuedRepairSymbols;
+        private final List<EncodingPacket> adoptedPackets; // only modified by the decode owner
+        private volatile boolean zeroCopy;
+
+        private final AtomicBoolean decodeOwner;
+        private volatile int symbolsAtLastAttempt; // number of available symbols at the last decoding attempt
+        private volatile boolean solved; // true once the missing source symbols are being recovered
+
+        private volatile boolean incrementalDecoding;
+        private volatile IncrementalLinearSystem incrementalSystem; // lazily created by the decode owner
+        private BitSet incrementalSourceSymbols; // source symbols already in the incremental system
+        private int incrementalRepairSlots; // repair slots already in the incremental system
+        private volatile int numIncrementalSymbols;
 
         private final int K;
-        private int symbolOverhead;
+        private final int T;
+        private volatile int symbolOverhead;
+
 
-        private final Lock symbolsStateLock;
+        SymbolsState(int K, int T, int symbOver) {
 
+            this.sbState = new AtomicReference<>(SourceBlockState.INCOMPLETE);
 
-        SymbolsState(int K, int symbOver) {
+            this.claimedSourceSymbols = new AtomicBitSet(K);
+            this.receivedSourceSymbols = new AtomicBitSet(K);
+            this.numReceivedSourceSymbols = new AtomicInteger(0);
 
-            this.sbState = SourceBlockState.INCOMPLETE;
+            this.repairSymbols = RepairSymbolSlab.newSlab(T); // preserves receiving ordering
+            this.queuedRepairSymbols = new ConcurrentLinkedQueue<>();
+            this.adoptedPackets = new ArrayList<>();
+            this.zeroCopy = false;
 
-            this.sourceSymbolsBitSet = new BitSet(K);
+            this.decodeOwner = new AtomicBoolean(false);
+            this.symbolsAtLastAttempt = 0;
+            this.solved = false;
 
-            this.repairSymbols = new LinkedHashMap<>(); // preserved receiving ordering
-            this.missingSourceSymbols = new MissingSourceSymbolsIterable(sourceSymbolsBitSet, K);
-            this.receivedSourceSymbols = new ReceivedSourceSymbolsIterable(sourceSymbolsBitSet);
+            this.incrementalDecoding = false;
+            this.incrementalSystem = null;
 
             this.K = K;
+            this.T = T;
             setSymbolOverhead(symbOver);
-
-            this.symbolsStateLock = new ReentrantLock(false); // non-fair lock
         }
 
-        // Always call this method before accessing the symbols state!
-        void lock() {
+        // returns true if the calling thread is now the decode owner
+        boolean tryAcquireDecoding() {
 
-            symbolsStateLock.lock();
+            return decodeOwner.compareAndSet(false, true);
         }
 
-        // Always call this method after using the symbols state!
-        void unlock() {
+        // requires decoding ownership
+        void releaseDecoding() {
 
-            symbolsStateLock.unlock();
+            decodeOwner.set(false);
         }
 
         SourceBlockState sourceBlockState() {
 
-            return sbState;
+            return sbState.get();
         }
 
+        // requires decoding ownership
         void setSourceBlockDecodingFailure() {
 
-            sbState = SourceBlockState.DECODING_FAILURE;
+            // new symbols may have arrived in the meantime, in which case the state remains incomplete
+            sbState.compareAndSet(SourceBlockState.INCOMPLETE, SourceBlockState.DECODING_FAILURE);
         }
 
         boolean isSourceBlockDecoded() {
 
-            return sbState == SourceBlockState.DECODED;
+            return sbState.get() == SourceBlockState.DECODED;
         }
 
         int numMissingSourceSymbols() {
 
-            return K - sourceSymbolsBitSet.cardinality();
+            return K - numReceivedSourceSymbols.get();
         }
 
         // requires valid parameter
         boolean containsSourceSymbol(int esi) {
 
-            return sourceSymbolsBitSet.get(esi);
+            return receivedSourceSymbols.get(esi);
+        }
+
+        // requires valid parameter
+        // returns true if the calling thread must write the source symbol
+        boolean claimSourceSymbol(int esi) {
+
+            return !isSourceBlockDecoded() && claimedSourceSymbols.claim(esi);
         }
 
         // requires valid parameter
-        // requires !containsSourceSymbol(repair.esi())
-        void addSourceSymbol(int esi) {
+        // requires a previous successful claimSourceSymbol(esi) whose symbol was not added
+        void unclaimSourceSymbol(int esi) {
 
-            if (!isSourceBlockDecoded()) {
-                sourceSymbolsBitSet.set(esi); // mark the symbol as received
-                sbState = SourceBlockState.INCOMPLETE;
+            claimedSourceSymbols.clear(esi);
+        }
 
-                if (numMissingSourceSymbols() == 0) {
-                    sbState = SourceBlockState.DECODED;
-                    repairSymbols.clear(); // free memory
-                }
+        // requires valid parameter
+        // requires a previous successful claimSourceSymbol(esi), by the calling thread or on behalf of it
+        // returns true if the source block became decoded
+        boolean addSourceSymbol(int esi) {
+
+            receivedSourceSymbols.claim(esi); // mark the symbol as received
+            if (numReceivedSourceSymbols.incrementAndGet() == K) {
+                sbState.set(SourceBlockState.DECODED);
+                return true;
+            }
+            else {
+                sbState.compareAndSet(SourceBlockState.DECODING_FAILURE, SourceBlockState.INCOMPLETE);
+                return false;
             }
         }
 
-        Iterable<Integer> missingSourceSymbols() {
+        // returns a new array in ascending order
+        int[] missingSourceSymbols() {
 
-            return missingSourceSymbols;
+            return missingSourceSymbols(receivedSourceSymbols(), K);
         }
 
-        Iterable<Integer> receivedSourceSymbols() {
+        // returns a new array in ascending order
+        static int[] missingSourceSymbols(BitSet receivedSourceSymbols, int K) {
+
+            final int[] missing = new int[K - receivedSourceSymbols.cardinality()];
+            for (int i = 0, esi = receivedSourceSymbols.nextClearBit(0); i < missing.length; i++) {
+                missing[i] = esi;
+                esi = receivedSourceSymbols.nextClearBit(esi + 1);
+            }
 
-            return receivedSourceSymbols;
+            return missing;
+        }
+
+        // returns a snapshot of the received source symbols
+        BitSet receivedSourceSymbols() {
+
+            return receivedSourceSymbols.snapshot();
         }
 
         int numRepairSymbols() {
@@ -658,82 +1124,242 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
         // requires valid parameter
         boolean containsRepairSymbol(int esi) {
 
-            return !isSourceBlockDecoded() && repairSymbols.containsKey(esi);
+            return !isSourceBlockDecoded() && repairSymbols.containsPublished(esi);
         }
 
+        // requires decoding ownership
         // requires valid parameter
-        // requires !containsRepairSymbol(repair.esi())
-        void addRepairSymbol(EncodingSymbol repair) {
+        // requires !isSourceBlockDecoded()
+        // returns false if the repair symbol was already present (the buffer position is advanced regardless)
+        boolean addRepairSymbol(int esi, ByteBuffer symbolData, boolean view) {
+
+            final boolean added = view ? repairSymbols.putView(esi, symbolData) : repairSymbols.put(esi, symbolData);
+            if (added) {
+                sbState.compareAndSet(SourceBlockState.DECODING_FAILURE, SourceBlockState.INCOMPLETE);
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
+
+        // requires valid parameters
+        void queueRepairSymbols(int esi, int numSymbols, ByteBuffer symbolData, EncodingPacket adopted) {
 
-            if (!isSourceBlockDecoded()) {
-                repairSymbols.put(repair.esi(), repair);
-                sbState = SourceBlockState.INCOMPLETE;
+            queuedRepairSymbols.offer(new QueuedRepairSymbols(esi, numSymbols, symbolData, adopted));
+        }
+
+        // requires decoding ownership
+        void drainQueuedRepairSymbols() {
+
+            QueuedRepairSymbols queued;
+            while ((queued = queuedRepairSymbols.poll()) != null) {
+                if (!isSourceBlockDecoded()) {
+                    final boolean view = queued.adopted != null;
+                    for (int i = 0; i < queued.numSymbols; i++) {
+                        addRepairSymbol(queued.esi + i, queued.data, view);
+                    }
+                    if (view) {
+                        adoptedPackets.add(queued.adopted);
+                    }
+                }
+                else if (queued.adopted != null) {
+                    queued.adopted.releaseAdopted();
+                }
             }
         }
 
-        Iterable<EncodingSymbol> repairSymbols() {
+        // requires decoding ownership
+        // the pooled buffer of the packet is released together with the repair symbols
+        void keepAdoptedPacket(EncodingPacket packet) {
 
-            return repairSymbols.values();
+            adoptedPackets.add(packet);
         }
 
-        Set<Integer> repairSymbolsESIs() {
+        boolean isZeroCopyEnabled() {
 
-            return repairSymbols.keySet();
+            return zeroCopy;
         }
 
-        boolean haveEnoughSymbolsToDecode() {
+        void setZeroCopy(boolean enable) {
 
-            return (sourceSymbolsBitSet.cardinality() + repairSymbols.size()) >= (K + symbolOverhead);
+            this.zeroCopy = enable;
         }
 
-        int symbolOverhead() {
+        // requires decoding ownership
+        RepairSymbolSlab repairSymbols() {
 
-            return symbolOverhead;
+            return repairSymbols;
         }
 
-        // requires non-negative parameter
-        void setSymbolOverhead(int symbOver) {
+        // requires decoding ownership
+        void releaseRepairSymbols() {
 
-            // the symbol overhead cannot exceed the number of repair symbols
-            this.symbolOverhead = Math.min(symbOver, ParameterChecker.numRepairSymbolsPerBlock(K));
+            repairSymbols.clear();
+            for (EncodingPacket packet : adoptedPackets) {
+                packet.releaseAdopted();
+            }
+            adoptedPackets.clear();
+            releaseIncrementalSystem();
         }
 
+        boolean isIncrementalDecodingEnabled() {
 
-        private static final class MissingSourceSymbolsIterable implements Iterable<Integer> {
+            return incrementalDecoding;
+        }
 
-            private final BitSet bitSet;
-            private final int K;
+        void setIncrementalDecoding(boolean enable) {
 
+            this.incrementalDecoding = enable;
+        }
 
-            MissingSourceSymbolsIterable(BitSet bitSet, int K) {
+        // requires decoding ownership
+        IncrementalLinearSystem incrementalSystem() {
 
-                this.bitSet = Objects.requireNonNull(bitSet);
-                this.K = K;
+            if (incrementalSystem == null) {
+                incrementalSourceSymbols = new BitSet(K);
+                incrementalRepairSlots = 0;
+                numIncrementalSymbols = 0;
+                incrementalSystem = IncrementalLinearSystem.newSystem(K, T);
             }
+            return incrementalSystem;
+        }
 
-            @Override
-            public Iterator<Integer> iterator() {
+        // true if the equations of previous decoding attempts are retained in an incremental system
+        boolean hasIncrementalSystem() {
 
-                return BitSetIterators.newFalseIterator(bitSet, K);
-            }
+            return incrementalSystem != null;
+        }
+
+        // requires decoding ownership
+        void releaseIncrementalSystem() {
+
+            incrementalSystem = null;
+            incrementalSourceSymbols = null;
+        }
+
+        // requires decoding ownership
+        // the returned bit set must not be modified
+        BitSet incrementalSourceSymbols() {
+
+            return incrementalSourceSymbols;
         }
 
-        private static final class ReceivedSourceSymbolsIterable implements Iterable<Integer> {
+        // requires decoding ownership
+        void markIncrementalSourceSymbol(int esi) {
 
-            private final BitSet bitSet;
+            incrementalSourceSymbols.set(esi);
+            numIncrementalSymbols++;
+        }
+
+        // requires decoding ownership
+        int incrementalRepairSlots() {
+
+            return incrementalRepairSlots;
+        }
+
+        // requires decoding ownership
+        void markIncrementalRepairSlot() {
 
+            incrementalRepairSlots++;
+            numIncrementalSymbols++;
+        }
 
-            ReceivedSourceSymbolsIterable(BitSet bitSet) {
+        int numIncrementalSymbols() {
 
-                this.bitSet = bitSet;
+            return numIncrementalSymbols;
+        }
+
+        // returns a new array in receiving order, or an empty array if the source block is already decoded
+        int[] availableRepairSymbols() {
+
+            if (isSourceBlockDecoded()) {
+                return ArrayUtils.EmptyArrayOf.ints();
             }
+            else {
+                return repairSymbols.esis();
+            }
+        }
 
-            @Override
-            public Iterator<Integer> iterator() {
+        private int numAvailableSymbols() {
+
+            return numReceivedSourceSymbols.get() + repairSymbols.size();
+        }
+
+        // requires decoding ownership
+        void markDecodingAttempt() {
+
+            symbolsAtLastAttempt = numAvailableSymbols();
+        }
+
+        // requires decoding ownership
+        void markSolved() {
+
+            solved = true;
+        }
+
+        // requires decoding ownership
+        void clearSolved() {
+
+            solved = false;
+        }
+
+        // true if enough (source/repair) symbols were received for a decode to start, and if new symbols were
+        // received since the last decoding attempt
+        boolean shouldAttemptDecoding() {
+
+            final int available = numAvailableSymbols();
+            return !solved && available >= (K + symbolOverhead) && available > symbolsAtLastAttempt;
+        }
+
+        // true if the decode owner has something to do
+        boolean hasPendingWork() {
 
-                return BitSetIterators.newTrueIterator(bitSet);
+            if (!queuedRepairSymbols.isEmpty()) {
+                return true;
+            }
+            else if (isSourceBlockDecoded()) {
+                return repairSymbols.size() > 0 || incrementalSystem != null;
+            }
+            else if (incrementalDecoding || incrementalSystem != null) {
+                // new symbols to eliminate (the incremental system is created when needed)
+                return !solved && (incrementalSystem == null || numAvailableSymbols() > numIncrementalSymbols);
+            }
+            else {
+                return shouldAttemptDecoding();
             }
         }
+
+        int symbolOverhead() {
+
+            return symbolOverhead;
+        }
+
+        // requires non-negative parameter
+        void setSymbolOverhead(int symbOver) {
+
+            // the symbol overhead cannot exceed the number of repair symbols
+            this.symbolOverhead = Math.min(symbOver, ParameterChecker.numRepairSymbolsPerBlock(K));
+        }
+
+    }
+
+    // repair symbols left by a thread that could not store them directly, either copied or adopted
+    private static final class QueuedRepairSymbols {
+
+        final int esi;
+        final int numSymbols;
+        final ByteBuffer data;
+        final EncodingPacket adopted; // null if the data is a copy
+
+
+        QueuedRepairSymbols(int esi, int numSymbols, ByteBuffer data, EncodingPacket adopted) {
+
+            this.esi = esi;
+            this.numSymbols = numSymbols;
+            this.data = data;
+            this.adopted = adopted;
+        }
     }
 
 
@@ -741,13 +1367,22 @@ final class ArraySourceBlockDecoder implements SourceBlockDecoder {
 
     static SourceBlockState forceDecode(ArraySourceBlockDecoder decoder) {
 
-        decoder.symbolsState.lock();
+        while (!decoder.symbolsState.tryAcquireDecoding()) {
+            Thread.yield();
+        }
         try {
+            decoder.symbolsState.drainQueuedRepairSymbols();
             decoder.decode();
             return decoder.symbolsState.sourceBlockState();
         }
         finally {
-            decoder.symbolsState.unlock();
+            decoder.symbolsState.releaseDecoding();
         }
     }
+
+    // not synchronized with the decode owner, so only meaningful while no packets are being put
+    static long repairBytesCopied(ArraySourceBlockDecoder decoder) {
+
+        return decoder.symbolsState.repairSymbols().copiedBytes();
+    }
 }
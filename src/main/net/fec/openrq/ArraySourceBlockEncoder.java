@@ -16,13 +16,19 @@
 package net.fec.openrq;
 
 
+import java.lang.ref.SoftReference;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.Iterator;
 import java.util.Objects;
 
+import net.fec.openrq.encoder.DataEncoder;
 import net.fec.openrq.encoder.SourceBlockEncoder;
 import net.fec.openrq.parameters.FECParameters;
 import net.fec.openrq.parameters.ParameterChecker;
+import net.fec.openrq.parameters.ParameterIO;
+import net.fec.openrq.util.numericaltype.SizeOf;
 import net.fec.openrq.util.rq.IntermediateSymbolsDecoder;
 import net.fec.openrq.util.rq.SystematicIndices;
 
@@ -33,7 +39,8 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
 
     // requires valid arguments
     static ArraySourceBlockEncoder newEncoder(
-        ArrayDataEncoder dataEncoder,
+        DataEncoder dataEncoder,
+        IntermediateSymbolsCache cache,
         byte[] array,
         int arrayOff,
         FECParameters fecParams,
@@ -43,7 +50,7 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
 
         // account for padding in the last source symbol
         final EncodingSymbol[] sourceSymbols = prepareSourceSymbols(array, arrayOff, fecParams, K);
-        return new ArraySourceBlockEncoder(dataEncoder, sourceSymbols, sbn, K);
+        return new ArraySourceBlockEncoder(dataEncoder, cache, sourceSymbols, sbn, K);
     }
 
     private static final EncodingSymbol[] prepareSourceSymbols(
@@ -68,9 +75,16 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
     }
 
 
-    private final ArrayDataEncoder dataEncoder;
+    private final DataEncoder dataEncoder;
+    private final IntermediateSymbolsCache cache;
     private final EncodingSymbol[] sourceSymbols;
-    private byte[][] intermediateSymbols = null;
+
+    // a dedicated key, so that cached intermediate symbols do not keep this encoder (and the source data) reachable
+    private final IntermediateSymbolsCache.Key cacheKey = new IntermediateSymbolsCache.Key();
+
+    // the last intermediate symbols obtained by this encoder, in case the cache refuses or evicts them (the garbage
+    // collector may still reclaim them when memory runs low, after which they are obtained again)
+    private volatile SoftReference<SymbolMatrix> lastSymbols = new SoftReference<>(null);
 
     private final int sbn;
     private final int K;
@@ -78,13 +92,15 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
 
 
     private ArraySourceBlockEncoder(
-        ArrayDataEncoder dataEncoder,
+        DataEncoder dataEncoder,
+        IntermediateSymbolsCache cache,
         EncodingSymbol[] sourceSymbols,
         int sbn,
         int K)
     {
 
         this.dataEncoder = Objects.requireNonNull(dataEncoder);
+        this.cache = Objects.requireNonNull(cache);
         this.sourceSymbols = Objects.requireNonNull(sourceSymbols);
 
         this.sbn = sbn;
@@ -98,23 +114,54 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
     }
 
     // use only this method for access to the intermediate symbols
-    private byte[][] getIntermediateSymbols() {
+    private SymbolMatrix getIntermediateSymbols() {
 
         // Note: if multiple threads call this method concurrently, then
         // no harm is done, only the fact that some threads may perform
         // useless work
 
-        byte[][] is = intermediateSymbols;
+        SymbolMatrix is = cache.get(cacheKey);
         if (is == null) {
-            is = generateIntermediateSymbols();
-            intermediateSymbols = is;
+            is = lastSymbols.get(); // refused or evicted by the cache, but not yet reclaimed
+        }
+
+        if (is == null) {
+            final IntermediateSymbolsStore store = cache.persistentStore();
+            if (store == null) {
+                // recomputed if lost since the last time they were needed
+                is = SymbolMatrix.copyOf(generateIntermediateSymbols(), fecParameters().symbolSize());
+            }
+            else {
+                final String storeKey = IntermediateSymbolsStore.key(fecParameters(), sbn, sourceSymbols);
+                final int T = fecParameters().symbolSize();
+                final int Ki = SystematicIndices.getKIndex(Kprime);
+                final int L = Kprime + SystematicIndices.S(Ki) + SystematicIndices.H(Ki);
+
+                is = store.load(storeKey, L, T);
+                if (is == null) {
+                    is = SymbolMatrix.copyOf(generateIntermediateSymbols(), T);
+                    store.save(storeKey, is);
+                }
+            }
+            cache.put(cacheKey, is);
+            lastSymbols = new SoftReference<>(is);
         }
 
         return is;
     }
 
+    /**
+     * Removes the intermediate symbols of this encoder from the cache, if they are there. They are recomputed if this
+     * encoder is used again.
+     */
+    void releaseIntermediateSymbols() {
+
+        cache.remove(cacheKey);
+        lastSymbols = new SoftReference<>(null);
+    }
+
     @Override
-    public ArrayDataEncoder dataEncoder() {
+    public DataEncoder dataEncoder() {
 
         return dataEncoder;
     }
@@ -195,6 +242,28 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
         return EncodingPacket.newRepairPacket(sbn, esi, symbols.asReadOnlyBuffer(), numSymbols);
     }
 
+    @Override
+    public int writeEncodingPacket(int esi, ByteBuffer buffer) {
+
+        checkGenericEncodingSymbolESI(esi);
+        if (buffer.isReadOnly()) throw new ReadOnlyBufferException();
+
+        final int symbolLen = (esi < K) ? getSourceSymbol(esi).transportSize() : fecParameters().symbolSize();
+        final int packetLen = SizeOf.INT + SizeOf.INT + symbolLen;
+        if (buffer.remaining() < packetLen) throw new BufferOverflowException();
+
+        buffer.putInt(ParameterIO.buildFECpayloadID(sbn, esi));
+        buffer.putInt(symbolLen);
+        if (esi < K) { // source symbol
+            getSourceSymbol(esi).writeTransportData(buffer);
+        }
+        else { // repair symbol
+            buffer.put(encodeRepairSymbol(esi, scratchArray(symbolLen)), 0, symbolLen);
+        }
+
+        return packetLen;
+    }
+
     @Override
     public IterableBuilder newIterableBuilder() {
 
@@ -269,15 +338,42 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
     // requires valid ESI
     private EncodingSymbol getRepairSymbol(int esi) {
 
+        final int T = fecParameters().symbolSize();
+
+        // TODO should we store the repair symbols generated?
+        return EncodingSymbol.newRepairSymbol(esi, encodeRepairSymbol(esi, new byte[T]));
+    }
+
+    // requires valid ESI and an array with a length of at least T; returns the provided array
+    private byte[] encodeRepairSymbol(int esi, byte[] dst) {
+
         // calculate ISI from ESI
         final int isi = esi + (Kprime - K);
 
         // generate the repair symbol data
         final int T = fecParameters().symbolSize();
-        byte[] enc_data = LinearSystem.enc(Kprime, getIntermediateSymbols(), new Tuple(Kprime, isi), T);
+        return LinearSystem.enc(Kprime, getIntermediateSymbols(), new Tuple(Kprime, isi), T, dst);
+    }
 
-        // TODO should we store the repair symbols generated?
-        return EncodingSymbol.newRepairSymbol(esi, enc_data);
+    // scratch arrays reused when writing repair packets into buffers
+    private static final ThreadLocal<byte[]> SCRATCH_ARRAYS = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+
+            return new byte[0];
+        }
+    };
+
+    private static byte[] scratchArray(int minLength) {
+
+        byte[] array = SCRATCH_ARRAYS.get();
+        if (array.length < minLength) {
+            array = new byte[minLength];
+            SCRATCH_ARRAYS.set(array);
+        }
+
+        return array;
     }
 
     private byte[][] generateIntermediateSymbols() {
@@ -453,4 +549,9 @@ final class ArraySourceBlockEncoder implements SourceBlockEncoder {
 
         enc.generateIntermediateSymbols();
     }
+
+    static SymbolMatrix intermediateSymbols(ArraySourceBlockEncoder enc) {
+
+        return enc.getIntermediateSymbols();
+    }
 }
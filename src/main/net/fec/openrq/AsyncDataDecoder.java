@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.decoder.SourceBlockState;
+
+
+/**
+ * An asynchronous front end for a data decoder, whose {@code putEncodingPacket} methods return as soon as the encoding
+ * packet is handed over, instead of when its symbols are stored and decoded.
+ * <p>
+ * Source symbols are written into the storage of their source block with an {@link AsynchronousFileChannel}, and
+ * repair symbols are kept in memory as usual. Once the symbols of a packet are stored, the decoding work they trigger
+ * is run by a task in the executor of this decoder, which also runs the completion handlers of the file writes. A
+ * thread that receives packets from the network is therefore never blocked by the storage device or by decoding, and
+ * may keep draining its sockets while previous packets are being written and decoded.
+ * <p>
+ * The result of each operation is either delivered to a {@link CompletionHandler} or made available through a
+ * {@link Future}, as in the asynchronous channels of the Java platform. In both cases the result is the
+ * {@linkplain SourceBlockDecoder#latestState() latest state} of the source block after the packet was put. The
+ * handlers are invoked by the thread that completes the operation, which is usually a thread of the executor, but may
+ * also be the calling thread if the packet brings no new symbols.
+ * <p>
+ * The symbols data of a packet must not be modified until its operation completes. A pooled packet is released by
+ * this decoder once its symbols are stored, so the caller must not release it.
+ * <p>
+ * This class is thread safe, and operations may be started concurrently by multiple threads. The synchronous methods
+ * of the underlying data decoder may still be used, but packets should not be put concurrently by both means.
+ */
+public final class AsyncDataDecoder {
+
+    /**
+     * @param dataDecoder
+     *            A data decoder returned by one of the factory methods in class {@link OpenRQ}
+     * @param executor
+     *            The executor that stores the symbols and decodes the source blocks
+     * @return a new asynchronous data decoder
+     * @exception NullPointerException
+     *                If {@code dataDecoder} or {@code executor} are {@code null}
+     * @exception IllegalArgumentException
+     *                If the data decoder was not returned by class {@code OpenRQ}
+     */
+    static AsyncDataDecoder newDecoder(DataDecoder dataDecoder, ExecutorService executor) {
+
+        Objects.requireNonNull(executor);
+        final ArraySourceBlockDecoder[] decoders = new ArraySourceBlockDecoder[dataDecoder.numberOfSourceBlocks()];
+        for (int sbn = 0; sbn < decoders.length; sbn++) {
+            final SourceBlockDecoder dec = dataDecoder.sourceBlock(sbn);
+            if (!(dec instanceof ArraySourceBlockDecoder)) {
+                throw new IllegalArgumentException("unsupported data decoder");
+            }
+            decoders[sbn] = (ArraySourceBlockDecoder)dec;
+        }
+
+        return new AsyncDataDecoder(dataDecoder, decoders, executor);
+    }
+
+
+    private final DataDecoder dataDecoder;
+    private final ArraySourceBlockDecoder[] decoders;
+    private final ExecutorService executor;
+
+    private final AtomicInteger pendingOperations;
+
+
+    private AsyncDataDecoder(DataDecoder dataDecoder, ArraySourceBlockDecoder[] decoders, ExecutorService executor) {
+
+        this.dataDecoder = dataDecoder;
+        this.decoders = decoders;
+        this.executor = executor;
+
+        this.pendingOperations = new AtomicInteger(0);
+    }
+
+    /**
+     * Returns the underlying data decoder.
+     *
+     * @return the underlying data decoder
+     */
+    public DataDecoder dataDecoder() {
+
+        return dataDecoder;
+    }
+
+    /**
+     * Returns the executor that stores the symbols and decodes the source blocks.
+     *
+     * @return the executor of this decoder
+     */
+    public ExecutorService executor() {
+
+        return executor;
+    }
+
+    /**
+     * Returns the number of operations that were started but have not yet completed.
+     *
+     * @return the number of pending operations
+     */
+    public int pendingOperations() {
+
+        return pendingOperations.get();
+    }
+
+    /**
+     * Puts an encoding packet into its source block decoder, without waiting for its symbols to be stored or for the
+     * source block to be decoded.
+     *
+     * @param packet
+     *            An encoding packet
+     * @param attachment
+     *            The object to attach to the operation (may be {@code null})
+     * @param handler
+     *            The handler notified with the latest state of the source block, or with the cause of the failure
+     *            (for instance, an {@code IOException} if the symbols could not be stored, in which case they may be
+     *            put again later)
+     * @exception NullPointerException
+     *                If {@code packet} or {@code handler} are {@code null}
+     * @exception IllegalArgumentException
+     *                If the packet has an invalid source block number
+     */
+    public <A> void putEncodingPacket(
+        EncodingPacket packet,
+        A attachment,
+        CompletionHandler<SourceBlockState, ? super A> handler)
+    {
+
+        Objects.requireNonNull(handler);
+        final ArraySourceBlockDecoder dec = decoder(packet.sourceBlockNumber());
+
+        pendingOperations.incrementAndGet();
+        try {
+            dec.putEncodingPacket(packet, executor, attachment, new TrackingHandler<A>(handler));
+        }
+        catch (RuntimeException e) {
+            pendingOperations.decrementAndGet(); // the operation was not started
+            throw e;
+        }
+    }
+
+    /**
+     * Puts an encoding packet into its source block decoder, without waiting for its symbols to be stored or for the
+     * source block to be decoded.
+     * <p>
+     * The returned future cannot be cancelled. If the operation fails, method {@code Future.get()} throws an
+     * {@code ExecutionException} with the cause of the failure.
+     *
+     * @param packet
+     *            An encoding packet
+     * @return a future with the latest state of the source block, available once the operation completes
+     * @exception NullPointerException
+     *                If {@code packet} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the packet has an invalid source block number
+     */
+    public Future<SourceBlockState> putEncodingPacket(EncodingPacket packet) {
+
+        final PutFuture future = new PutFuture();
+        putEncodingPacket(packet, null, future);
+        return future;
+    }
+
+    private ArraySourceBlockDecoder decoder(int sbn) {
+
+        if (sbn < 0 || sbn >= decoders.length) {
+            throw new IllegalArgumentException("invalid source block number");
+        }
+        return decoders[sbn];
+    }
+
+
+    // decrements the number of pending operations before notifying the handler of the caller
+    private final class TrackingHandler<A> implements CompletionHandler<SourceBlockState, A> {
+
+        private final CompletionHandler<SourceBlockState, ? super A> handler;
+
+
+        TrackingHandler(CompletionHandler<SourceBlockState, ? super A> handler) {
+
+            this.handler = handler;
+        }
+
+        @Override
+        public void completed(SourceBlockState state, A attachment) {
+
+            pendingOperations.decrementAndGet();
+            handler.completed(state, attachment);
+        }
+
+        @Override
+        public void failed(Throwable exc, A attachment) {
+
+            pendingOperations.decrementAndGet();
+            handler.failed(exc, attachment);
+        }
+    }
+
+    // a future that is completed by an operation, and released through a latch
+    private static final class PutFuture
+        implements Future<SourceBlockState>, CompletionHandler<SourceBlockState, Object> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile SourceBlockState state;
+        private volatile Throwable failure;
+
+
+        @Override
+        public void completed(SourceBlockState state, Object attachment) {
+
+            this.state = state;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Throwable exc, Object attachment) {
+
+            this.failure = exc;
+            done.countDown();
+        }
+
+        @Override
+        public SourceBlockState get() throws InterruptedException, ExecutionException {
+
+            done.await();
+            return result();
+        }
+
+        @Override
+        public SourceBlockState get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        @Override
+        public boolean isDone() {
+
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+
+            return false;
+        }
+
+        // requires the latch to be released
+        private SourceBlockState result() throws ExecutionException {
+
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return state;
+        }
+    }
+}
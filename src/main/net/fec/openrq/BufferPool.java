@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.nio.ByteBuffer;
+
+import net.fec.openrq.decoder.DataDecoder;
+
+
+/**
+ * A source of reusable buffers for the symbols data of encoding packets.
+ * <p>
+ * Packet parsing, reading and writing methods that accept a buffer pool take their buffers from the pool instead of
+ * allocating new ones. Encoding packets whose symbols data was taken from a pool must be
+ * {@linkplain EncodingPacket#release() released} after being used (for instance, after being put into a source block
+ * decoder, which copies the symbols data into its own storage), so that their buffers return to the pool. Buffers
+ * returned by method {@link EncodingPacket#asBuffer(BufferPool)} must be released with method
+ * {@link #release(ByteBuffer)}.
+ * <p>
+ * A default implementation is provided by method {@link #newDirectPool()}, and other implementations may be provided by
+ * extending this class. Implementations must be thread safe, since a buffer may be released by a thread other than the
+ * one that acquired it.
+ *
+ * @see DataDecoder#parsePacket(ByteBuffer, BufferPool)
+ * @see DataDecoder#readPacketFrom(java.io.DataInput, BufferPool)
+ * @see DataDecoder#readPacketFrom(java.nio.channels.ReadableByteChannel, BufferPool)
+ */
+public abstract class BufferPool {
+
+    /**
+     * The default maximum size of a buffer kept by a direct buffer pool, in number of bytes.
+     */
+    public static final int DEFAULT_MAX_POOLED_SIZE = 64 * 1024;
+
+    /**
+     * The default number of buffers of each size class kept by each thread in a direct buffer pool.
+     */
+    public static final int DEFAULT_MAGAZINE_SIZE = 64;
+
+
+    /**
+     * Returns a new pool of direct buffers with a maximum pooled size of {@value #DEFAULT_MAX_POOLED_SIZE} bytes and a
+     * magazine size of {@value #DEFAULT_MAGAZINE_SIZE} buffers.
+     *
+     * @return a new pool of direct buffers
+     * @see #newDirectPool(int, int)
+     */
+    public static BufferPool newDirectPool() {
+
+        return newDirectPool(DEFAULT_MAX_POOLED_SIZE, DEFAULT_MAGAZINE_SIZE);
+    }
+
+    /**
+     * Returns a new pool of direct buffers.
+     * <p>
+     * Buffers are grouped in size classes (powers of two), and each thread keeps a <em>magazine</em> of buffers of each
+     * size class, so that most buffers are acquired and released without any synchronization. Full and empty
+     * magazines are exchanged between threads through a shared depot of bounded size. Buffers larger than the maximum
+     * pooled size are allocated on every request, and are dropped when released.
+     *
+     * @param maxPooledSize
+     *            The maximum size of a pooled buffer, in number of bytes
+     * @param magazineSize
+     *            The number of buffers of each size class kept by each thread
+     * @return a new pool of direct buffers
+     * @exception IllegalArgumentException
+     *                If {@code maxPooledSize < 1 || maxPooledSize > 2^^30 || magazineSize < 1}
+     */
+    public static BufferPool newDirectPool(int maxPooledSize, int magazineSize) {
+
+        if (maxPooledSize < 1 || maxPooledSize > (1 << 30)) {
+            throw new IllegalArgumentException("maximum pooled size must be within [1, 2^^30]");
+        }
+        if (magazineSize < 1) throw new IllegalArgumentException("magazine size must be positive");
+
+        return new DirectBufferPool(maxPooledSize, magazineSize);
+    }
+
+
+    /**
+     * Creates a new buffer pool.
+     */
+    protected BufferPool() {
+
+        // nothing to do
+    }
+
+    /**
+     * Returns a buffer with at least the requested size. The buffer will have a position of {@code 0} and a limit equal
+     * to the requested size, and its contents are undefined.
+     *
+     * @param size
+     *            The requested size, in number of bytes
+     * @return a buffer with a limit equal to the requested size
+     * @exception IllegalArgumentException
+     *                If {@code size} is negative
+     */
+    public abstract ByteBuffer acquire(int size);
+
+    /**
+     * Returns a buffer to this pool. The buffer must have been returned by method {@link #acquire(int)} of this pool,
+     * must be released at most once, and must not be used after being released.
+     *
+     * @param buffer
+     *            A buffer acquired from this pool
+     * @exception NullPointerException
+     *                If {@code buffer} is {@code null}
+     */
+    public abstract void release(ByteBuffer buffer);
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.IOException;
+import java.util.Objects;
+
+
+/**
+ * Thrown when an encoder or decoder backed by a file fails to read or write the file, from a method that cannot throw
+ * {@code IOException} directly.
+ */
+public final class DataIOException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * Constructs a new exception with the provided reason message and I/O failure.
+     *
+     * @param reason
+     *            A message detailing the reason for the exception
+     * @param cause
+     *            The I/O failure
+     */
+    public DataIOException(String reason, IOException cause) {
+
+        super(reason, Objects.requireNonNull(cause));
+    }
+
+    /**
+     * Returns the I/O failure that caused this exception.
+     *
+     * @return the I/O failure that caused this exception
+     */
+    @Override
+    public synchronized IOException getCause() {
+
+        return (IOException)super.getCause();
+    }
+}
@@ -17,9 +17,16 @@ package net.fec.openrq;
 
 
 import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 import net.fec.openrq.decoder.DataDecoder;
 import net.fec.openrq.parameters.FECParameters;
@@ -37,7 +44,7 @@ final class DataUtils {
 
     static interface SourceBlockSupplier<SB> {
 
-        SB get(int off, int sbn, int K);
+        SB get(long off, int sbn, int K);
     }
 
 
@@ -62,12 +69,13 @@ final class DataUtils {
      * @param fecParams
      * @param startOffset
      * @param supplier
-     * @return an immutable list of source block encoders/decoders
+     * @return an immutable list of source block encoders/decoders (offsets may be larger than
+     *         {@code Integer.MAX_VALUE})
      */
     static <SB> ImmutableList<SB> partitionData(
         Class<SB> clazz,
         FECParameters fecParams,
-        int startOffset,
+        long startOffset,
         SourceBlockSupplier<SB> supplier) {
 
         final int Kt = fecParams.totalSymbols();
@@ -91,13 +99,13 @@ final class DataUtils {
         final int T = fecParams.symbolSize();
         // source block number (index)
         int sbn;
-        int off;
+        long off;
 
-        for (sbn = 0, off = startOffset; sbn < ZL; sbn++, off += KL * T) { // first ZL
+        for (sbn = 0, off = startOffset; sbn < ZL; sbn++, off += (long)KL * T) { // first ZL
             srcBlocks[sbn] = supplier.get(off, sbn, KL);
         }
 
-        for (; sbn < Z; sbn++, off += KS * T) { // last ZS
+        for (; sbn < Z; sbn++, off += (long)KS * T) { // last ZS
             srcBlocks[sbn] = supplier.get(off, sbn, KS);
         }
 
@@ -125,6 +133,29 @@ final class DataUtils {
         return (sbn < ZL) ? KL : KS;
     }
 
+    /**
+     * Requires valid sbn in respect to Z.
+     * 
+     * @param fecParams
+     * @param sbn
+     * @return the offset, in number of bytes, of a source block inside the source data (may be larger than
+     *         {@code Integer.MAX_VALUE})
+     */
+    static long getSourceBlockOffset(FECParameters fecParams, int sbn) {
+
+        final int Kt = fecParams.totalSymbols();
+        final int Z = fecParams.numberOfSourceBlocks();
+
+        // (KL, KS, ZL, ZS) = Partition[Kt, Z]
+        final Partition KZ = new Partition(Kt, Z);
+        final int KL = KZ.get(1);
+        final int KS = KZ.get(2);
+        final int ZL = KZ.get(3);
+
+        final long numPrecedingSymbols = (sbn < ZL) ? (long)sbn * KL : (long)ZL * KL + (long)(sbn - ZL) * KS;
+        return numPrecedingSymbols * fecParams.symbolSize();
+    }
+
     /**
      * @param dec
      * @param sbn
@@ -219,22 +250,117 @@ final class DataUtils {
      */
     static Parsed<EncodingPacket> parsePacket(DataDecoder dec, ByteBuffer buffer, boolean copySymbols) {
 
-        if (buffer.remaining() < SizeOf.INT) return Parsed.invalid("FEC Payload ID is missing");
+        return parsePacket(dec, buffer, copySymbols, null);
+    }
+
+    /**
+     * @param dec
+     * @param buffer
+     * @param pool
+     * @return a parsed encoding packet, whose symbols data is copied into a buffer acquired from the pool
+     */
+    static Parsed<EncodingPacket> parsePacket(DataDecoder dec, ByteBuffer buffer, BufferPool pool) {
+
+        return parsePacket(dec, buffer, true, Objects.requireNonNull(pool));
+    }
+
+    // the pool is null if the symbols data is not copied into a pooled buffer
+    private static Parsed<EncodingPacket> parsePacket(
+        DataDecoder dec,
+        ByteBuffer buffer,
+        boolean copySymbols,
+        BufferPool pool) {
+
+        final Parsed<EncodingPacket> header = checkHeader(buffer);
+        if (header != null) return header;
+
         final int fecPayloadID = buffer.getInt();
+        final int symbLen = buffer.getInt();
+        final int sbn = ParameterIO.extractSourceBlockNumber(fecPayloadID);
+        final int esi = ParameterIO.extractEncodingSymbolID(fecPayloadID);
+        if (pool == null) {
+            return parsePacket(dec, sbn, esi, buffer, symbLen, copySymbols);
+        }
+        else {
+            final String failure = checkPacket(dec, sbn, esi, symbLen);
+            if (failure != null) return Parsed.invalid(failure);
+
+            final ByteBuffer symbols = pool.acquire(symbLen);
+            symbols.put(getSymbolData(buffer, symbLen, false)); // advances the position of the original buffer
+            symbols.flip();
+            return Parsed.of(newPacket(dec, sbn, esi, symbols, pool, symbols));
+        }
+    }
+
+    /**
+     * @param dec
+     * @param buffer
+     *            A buffer acquired from the pool, whose ownership is transferred to the parsed packet (or which is
+     *            released back to the pool if the parsing fails)
+     * @param pool
+     * @return a parsed encoding packet, whose symbols data is a view over the pooled buffer
+     */
+    static Parsed<EncodingPacket> parsePooledPacket(DataDecoder dec, ByteBuffer buffer, BufferPool pool) {
+
+        Objects.requireNonNull(pool);
+        final Parsed<EncodingPacket> header = checkHeader(buffer);
+        if (header != null) {
+            pool.release(buffer);
+            return header;
+        }
 
-        if (buffer.remaining() < SizeOf.INT) return Parsed.invalid("size of symbols data is missing");
+        final int fecPayloadID = buffer.getInt();
         final int symbLen = buffer.getInt();
+        final int sbn = ParameterIO.extractSourceBlockNumber(fecPayloadID);
+        final int esi = ParameterIO.extractEncodingSymbolID(fecPayloadID);
+
+        final String failure = checkPacket(dec, sbn, esi, symbLen);
+        if (failure != null) {
+            pool.release(buffer);
+            return Parsed.invalid(failure);
+        }
+
+        final ByteBuffer symbols = getSymbolData(buffer, symbLen, false); // advances the position of the buffer
+        return Parsed.of(newPacket(dec, sbn, esi, symbols, pool, buffer));
+    }
+
+    /**
+     * Parses an encoding packet from each buffer, ignoring the packets that fail to be parsed.
+     *
+     * @param dec
+     * @param buffers
+     * @return the valid parsed encoding packets, in the order of the buffers
+     */
+    static List<EncodingPacket> parsePackets(DataDecoder dec, ByteBuffer[] buffers) {
+
+        final List<EncodingPacket> packets = new ArrayList<>(buffers.length);
+        for (ByteBuffer buffer : buffers) {
+            final Parsed<EncodingPacket> parsed = parsePacket(dec, buffer, false);
+            if (parsed.isValid()) {
+                packets.add(parsed.value());
+            }
+        }
+
+        return packets;
+    }
+
+    // returns null if the buffer starts with a valid header, without changing the position of the buffer
+    private static Parsed<EncodingPacket> checkHeader(ByteBuffer buffer) {
+
+        final int pos = buffer.position();
+        if (buffer.remaining() < SizeOf.INT) return Parsed.invalid("FEC Payload ID is missing");
+        if (buffer.remaining() < SizeOf.INT + SizeOf.INT) return Parsed.invalid("size of symbols data is missing");
+
+        final int symbLen = buffer.getInt(pos + SizeOf.INT);
         if (symbLen <= 0) return Parsed.invalid("size of symbols data is non-positive");
 
-        final int rem = buffer.remaining();
+        final int rem = buffer.remaining() - (SizeOf.INT + SizeOf.INT);
         if (rem < symbLen) {
             return Parsed.invalid(String.format(
                 "symbols data is incomplete, required %d bytes but only %d bytes are available", symbLen, rem));
         }
 
-        final int sbn = ParameterIO.extractSourceBlockNumber(fecPayloadID);
-        final int esi = ParameterIO.extractEncodingSymbolID(fecPayloadID);
-        return parsePacket(dec, sbn, esi, buffer, symbLen, copySymbols);
+        return null;
     }
 
     /**
@@ -265,10 +391,10 @@ final class DataUtils {
      */
     static Parsed<EncodingPacket> readPacketFrom(DataDecoder dec, ReadableByteChannel ch) throws IOException {
 
-        final ByteBuffer intsBuf = ByteBuffer.allocate(SizeOf.INT + SizeOf.INT);
-        while (intsBuf.hasRemaining()) {
-            ch.read(intsBuf);
-        }
+        checkBlocking(ch);
+        final ByteBuffer intsBuf = HEADER_BUFFERS.get();
+        intsBuf.clear();
+        readFully(ch, intsBuf);
         intsBuf.flip();
 
         final int fecPayloadID = intsBuf.getInt();
@@ -276,9 +402,7 @@ final class DataUtils {
         if (symbLen <= 0) return Parsed.invalid("size of symbols data is non-positive");
 
         final ByteBuffer symbols = ByteBuffer.allocate(symbLen);
-        while (symbols.hasRemaining()) {
-            ch.read(symbols);
-        }
+        readFully(ch, symbols);
         symbols.flip();
 
         final int sbn = ParameterIO.extractSourceBlockNumber(fecPayloadID);
@@ -286,6 +410,152 @@ final class DataUtils {
         return parsePacket(dec, sbn, esi, symbols, false);
     }
 
+    /**
+     * @param dec
+     * @param in
+     * @param pool
+     * @return a parsed encoding packet, whose symbols data is read into a buffer acquired from the pool
+     * @throws IOException
+     */
+    static Parsed<EncodingPacket> readPacketFrom(DataDecoder dec, DataInput in, BufferPool pool) throws IOException {
+
+        Objects.requireNonNull(pool);
+        final int fecPayloadID = in.readInt();
+        final int symbLen = in.readInt();
+        if (symbLen <= 0) return Parsed.invalid("size of symbols data is non-positive");
+
+        final ByteBuffer symbols = pool.acquire(symbLen);
+        try {
+            // DataInput only reads into arrays, so the symbols data goes through a reusable scratch array
+            final byte[] scratch = SCRATCH_ARRAYS.get();
+            while (symbols.hasRemaining()) {
+                final int len = Math.min(scratch.length, symbols.remaining());
+                in.readFully(scratch, 0, len);
+                symbols.put(scratch, 0, len);
+            }
+            symbols.flip();
+        }
+        catch (IOException | RuntimeException e) {
+            pool.release(symbols);
+            throw e;
+        }
+
+        final int sbn = ParameterIO.extractSourceBlockNumber(fecPayloadID);
+        final int esi = ParameterIO.extractEncodingSymbolID(fecPayloadID);
+        return parsePooledPacket(dec, sbn, esi, symbols, pool);
+    }
+
+    /**
+     * @param dec
+     * @param ch
+     * @param pool
+     * @return a parsed encoding packet, whose symbols data is read into a buffer acquired from the pool
+     * @throws IOException
+     */
+    static Parsed<EncodingPacket> readPacketFrom(DataDecoder dec, ReadableByteChannel ch, BufferPool pool)
+        throws IOException
+    {
+
+        Objects.requireNonNull(pool);
+        checkBlocking(ch);
+        final ByteBuffer intsBuf = HEADER_BUFFERS.get();
+        intsBuf.clear();
+        readFully(ch, intsBuf);
+        intsBuf.flip();
+
+        final int fecPayloadID = intsBuf.getInt();
+        final int symbLen = intsBuf.getInt();
+        if (symbLen <= 0) return Parsed.invalid("size of symbols data is non-positive");
+
+        final ByteBuffer symbols = pool.acquire(symbLen);
+        try {
+            readFully(ch, symbols);
+            symbols.flip();
+        }
+        catch (IOException | RuntimeException e) {
+            pool.release(symbols);
+            throw e;
+        }
+
+        final int sbn = ParameterIO.extractSourceBlockNumber(fecPayloadID);
+        final int esi = ParameterIO.extractEncodingSymbolID(fecPayloadID);
+        return parsePooledPacket(dec, sbn, esi, symbols, pool);
+    }
+
+    // header buffers reused by packet reads from channels
+    private static final ThreadLocal<ByteBuffer> HEADER_BUFFERS = new ThreadLocal<ByteBuffer>() {
+
+        @Override
+        protected ByteBuffer initialValue() {
+
+            return ByteBuffer.allocate(SizeOf.INT + SizeOf.INT);
+        }
+    };
+
+    // scratch arrays reused by pooled packet reads from DataInput objects
+    private static final ThreadLocal<byte[]> SCRATCH_ARRAYS = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+
+            return new byte[8192];
+        }
+    };
+
+    // reading a whole packet from a non-blocking channel would spin while waiting for the rest of the packet
+    static void checkBlocking(ReadableByteChannel ch) {
+
+        if (ch instanceof SelectableChannel && !((SelectableChannel)ch).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+    }
+
+    static void readFully(ReadableByteChannel ch, ByteBuffer dst) throws IOException {
+
+        while (dst.hasRemaining()) {
+            if (ch.read(dst) < 0) {
+                throw new EOFException("end of channel reached before the end of the packet");
+            }
+        }
+    }
+
+    // writes every buffer, skipping the ones already written after each partial write
+    static void writeFully(GatheringByteChannel ch, ByteBuffer[] srcs) throws IOException {
+
+        writeFully(ch, srcs, srcs.length);
+    }
+
+    // writes the first length buffers of the array
+    static void writeFully(GatheringByteChannel ch, ByteBuffer[] srcs, int length) throws IOException {
+
+        int first = 0;
+        while (first < length) {
+            if (!srcs[first].hasRemaining()) {
+                first++;
+            }
+            else {
+                ch.write(srcs, first, length - first);
+            }
+        }
+    }
+
+    // the pooled symbols data is either owned by the returned packet or released back to the pool
+    private static Parsed<EncodingPacket> parsePooledPacket(
+        DataDecoder dec,
+        int sbn,
+        int esi,
+        ByteBuffer symbols,
+        BufferPool pool) {
+
+        final String failure = checkPacket(dec, sbn, esi, symbols.remaining());
+        if (failure != null) {
+            pool.release(symbols);
+            return Parsed.invalid(failure);
+        }
+
+        return Parsed.of(newPacket(dec, sbn, esi, symbols, pool, symbols));
+    }
+
     // requires valid symbLen
     private static Parsed<EncodingPacket> parsePacket(
         DataDecoder dec,
@@ -295,43 +565,72 @@ final class DataUtils {
         int symbLen,
         boolean copySymbols) {
 
+        final String failure = checkPacket(dec, sbn, esi, symbLen);
+        if (failure != null) return Parsed.invalid(failure);
+
+        return Parsed.of(newPacket(dec, sbn, esi, getSymbolData(symbols, symbLen, copySymbols), null, null));
+    }
+
+    // requires valid symbLen; returns null if the packet is valid, or the reason why it is invalid
+    private static String checkPacket(DataDecoder dec, int sbn, int esi, int symbLen) {
+
         final int Z = dec.numberOfSourceBlocks();
         if (!ParameterChecker.isValidFECPayloadID(sbn, esi, Z)) {
-            return Parsed.invalid(ParameterChecker.getFECPayloadIDErrorString(sbn, esi, Z));
+            return ParameterChecker.getFECPayloadIDErrorString(sbn, esi, Z);
         }
 
         final int T = dec.symbolSize();
         final int K = dec.sourceBlock(sbn).numberOfSourceSymbols();
         final int numSymbols = ExtraMath.ceilDiv(symbLen, T); // account for smaller last symbol
         if (numSymbols == 0) {
-            return Parsed.invalid("there is no symbols data");
+            return "there is no symbols data";
         }
 
         if (esi < K) { // source symbols
             if (numSymbols <= K - esi) {
-                return Parsed.of(EncodingPacket.newSourcePacket(
-                    sbn, esi, getSymbolData(symbols, symbLen, copySymbols), numSymbols));
+                return null;
             }
             else {
-                return Parsed.invalid(String.format(
+                return String.format(
                     "an ESI of %d requires a number of source symbols (%d) of at most %d",
-                    esi, numSymbols, K - esi));
+                    esi, numSymbols, K - esi);
             }
         }
         else { // repair symbols
             final int maxESI = ParameterChecker.maxEncodingSymbolID();
             if (numSymbols <= (1 + maxESI - esi)) {
-                return Parsed.of(EncodingPacket.newRepairPacket(
-                    sbn, esi, getSymbolData(symbols, symbLen, copySymbols), numSymbols));
+                return null;
             }
             else {
-                return Parsed.invalid(String.format(
+                return String.format(
                     "an ESI of %d requires a number of repair symbols (%d) of at most %d",
-                    esi, numSymbols, 1 + maxESI - esi));
+                    esi, numSymbols, 1 + maxESI - esi);
             }
         }
     }
 
+    // requires a valid packet; the pool and the pooled buffer are null if the symbols data is not pooled
+    private static EncodingPacket newPacket(
+        DataDecoder dec,
+        int sbn,
+        int esi,
+        ByteBuffer symbols,
+        BufferPool pool,
+        ByteBuffer pooledBuffer) {
+
+        final int K = dec.sourceBlock(sbn).numberOfSourceSymbols();
+        final int numSymbols = ExtraMath.ceilDiv(symbols.remaining(), dec.symbolSize());
+
+        if (pool == null) {
+            if (esi < K) return EncodingPacket.newSourcePacket(sbn, esi, symbols, numSymbols);
+            else return EncodingPacket.newRepairPacket(sbn, esi, symbols, numSymbols);
+        }
+        else {
+            if (esi < K) return EncodingPacket.newPooledSourcePacket(sbn, esi, symbols, numSymbols, pool, pooledBuffer);
+            else return EncodingPacket.newPooledRepairPacket(sbn, esi, symbols, numSymbols, pool, pooledBuffer);
+        }
+    }
+
     // requires valid symbolsLen
     private static ByteBuffer getSymbolData(ByteBuffer symbols, int symbLen, boolean copySymbols) {
 
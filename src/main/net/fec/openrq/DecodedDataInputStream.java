@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.util.array.ArrayUtils;
+
+
+/**
+ * An input stream over the source data of a data decoder, which yields the source blocks in source block number order
+ * as soon as each one (and every source block before it) is decoded.
+ * <p>
+ * Reading from the stream blocks the calling thread until the next source block is decoded, while other threads keep
+ * putting encoding packets into the data decoder. A consumer can therefore start processing the source data long
+ * before the whole data is decoded.
+ * <p>
+ * After a source block has been completely read from the stream, its storage is freed if it is a temporary file (as
+ * with {@link ArrayDataDecoder}); encoding packets put into that source block decoder afterwards are ignored. The
+ * storage of a {@link FileDataDecoder} is kept, since it is the destination of the source data.
+ * <p>
+ * This class is not thread safe, but it may be read by a thread other than the ones putting encoding packets.
+ */
+public final class DecodedDataInputStream extends InputStream {
+
+    /**
+     * @param dataDecoder
+     *            A data decoder returned by one of the factory methods in class {@link OpenRQ}
+     * @return a new input stream over the source data of the data decoder
+     * @exception NullPointerException
+     *                If {@code dataDecoder} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the data decoder was not returned by class {@code OpenRQ}
+     */
+    static DecodedDataInputStream newStream(DataDecoder dataDecoder) {
+
+        final ArraySourceBlockDecoder[] decoders = new ArraySourceBlockDecoder[dataDecoder.numberOfSourceBlocks()];
+        for (int sbn = 0; sbn < decoders.length; sbn++) {
+            final SourceBlockDecoder dec = dataDecoder.sourceBlock(sbn);
+            if (!(dec instanceof ArraySourceBlockDecoder)) {
+                throw new IllegalArgumentException("unsupported data decoder");
+            }
+            decoders[sbn] = (ArraySourceBlockDecoder)dec;
+        }
+
+        return new DecodedDataInputStream(decoders);
+    }
+
+
+    private final ArraySourceBlockDecoder[] decoders;
+    private final byte[] singleByte = new byte[1];
+
+    // the reading thread waits on this object for the next source block to be decoded
+    private final Object decodedSignal = new Object();
+    private final Runnable decodedListener = new Runnable() {
+
+        @Override
+        public void run() {
+
+            synchronized (decodedSignal) {
+                decodedSignal.notifyAll();
+            }
+        }
+    };
+
+    private int currentSBN; // the source block being read, or decoders.length at the end of the data
+    private int currentPos; // the position inside the current source block
+    private boolean closed;
+
+
+    private DecodedDataInputStream(ArraySourceBlockDecoder[] decoders) {
+
+        this.decoders = decoders;
+        for (ArraySourceBlockDecoder dec : decoders) {
+            dec.addDecodedListener(decodedListener);
+        }
+
+        this.currentSBN = 0;
+        this.currentPos = 0;
+        this.closed = false;
+    }
+
+    /**
+     * Returns the number of the source block being read, which is the number of source blocks already delivered.
+     *
+     * @return the number of the source block being read
+     */
+    public int currentSourceBlockNumber() {
+
+        return currentSBN;
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        return (read(singleByte, 0, 1) < 0) ? -1 : (singleByte[0] & 0xFF);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Blocks until the next source block is decoded, if the current source block was completely read.
+     *
+     * @throws InterruptedIOException
+     *             If the calling thread is interrupted while waiting for the next source block to be decoded
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        ArrayUtils.checkArrayBounds(off, len, b.length);
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!awaitCurrentBlock()) {
+            return -1;
+        }
+
+        final ArraySourceBlockDecoder dec = decoders[currentSBN];
+        final int n = Math.min(len, dec.getDataLength() - currentPos);
+        dec.readData(currentPos, b, off, n);
+        currentPos += n;
+
+        if (currentPos == dec.getDataLength()) {
+            advance();
+        }
+
+        return n;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns the number of bytes left in the current source block, if it is decoded.
+     */
+    @Override
+    public int available() throws IOException {
+
+        ensureOpen();
+        if (currentSBN < decoders.length && decoders[currentSBN].isSourceBlockDecoded()) {
+            return decoders[currentSBN].getDataLength() - currentPos;
+        }
+        else {
+            return 0;
+        }
+    }
+
+    /**
+     * Closes this stream and frees the storage of the source blocks that were not yet read, if it is a temporary file.
+     * In that case, encoding packets that other threads put into those source blocks, even while the stream is being
+     * closed, are ignored.
+     */
+    @Override
+    public void close() {
+
+        if (!closed) {
+            closed = true;
+            for (int sbn = 0; sbn < decoders.length; sbn++) {
+                decoders[sbn].removeDecodedListener(decodedListener);
+                if (sbn >= currentSBN) {
+                    decoders[sbn].releaseStorage();
+                }
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+
+        if (closed) throw new IOException("stream is closed");
+    }
+
+    // returns false at the end of the data
+    private boolean awaitCurrentBlock() throws InterruptedIOException {
+
+        if (currentSBN == decoders.length) {
+            return false;
+        }
+
+        final ArraySourceBlockDecoder dec = decoders[currentSBN];
+        synchronized (decodedSignal) {
+            // the listener notifies while holding the lock, so the notification cannot be lost between these calls
+            while (!dec.isSourceBlockDecoded()) {
+                try {
+                    decodedSignal.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for source block " + currentSBN);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void advance() {
+
+        final ArraySourceBlockDecoder dec = decoders[currentSBN];
+        dec.removeDecodedListener(decodedListener);
+        dec.releaseStorage();
+
+        currentSBN++;
+        currentPos = 0;
+    }
+}
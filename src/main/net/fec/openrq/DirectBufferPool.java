@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A pool of direct buffers, with size classes and thread-local magazines.
+ */
+final class DirectBufferPool extends BufferPool {
+
+    // the smallest size class
+    private static final int MIN_CLASS_SHIFT = 6;
+    // the maximum number of full magazines of each size class kept in the depot
+    private static final int MAX_DEPOT_MAGAZINES = 16;
+
+
+    private final int maxPooledSize; // the size of the largest size class
+    private final int magazineSize;
+
+    private final ThreadLocal<Magazine[]> magazines;
+    private final ConcurrentLinkedQueue<ByteBuffer[]>[] depots;
+    private final AtomicInteger[] depotSizes;
+
+
+    DirectBufferPool(int maxPooledSize, int magazineSize) {
+
+        final int numClasses = classIndex(maxPooledSize) + 1;
+        this.maxPooledSize = classSize(numClasses - 1);
+        this.magazineSize = magazineSize;
+
+        this.magazines = new ThreadLocal<Magazine[]>() {
+
+            @Override
+            protected Magazine[] initialValue() {
+
+                final Magazine[] mags = new Magazine[numClasses];
+                for (int i = 0; i < numClasses; i++) {
+                    mags[i] = new Magazine(DirectBufferPool.this.magazineSize);
+                }
+                return mags;
+            }
+        };
+
+        // arrays of a generic type cannot be created, but an array of wildcard queues holds only the queues created below
+        @SuppressWarnings("unchecked")
+        final ConcurrentLinkedQueue<ByteBuffer[]>[] queues =
+            (ConcurrentLinkedQueue<ByteBuffer[]>[])new ConcurrentLinkedQueue<?>[numClasses];
+        this.depots = queues;
+        this.depotSizes = new AtomicInteger[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            depots[i] = new ConcurrentLinkedQueue<>();
+            depotSizes[i] = new AtomicInteger(0);
+        }
+    }
+
+    @Override
+    public ByteBuffer acquire(int size) {
+
+        if (size < 0) throw new IllegalArgumentException("negative buffer size");
+        if (size > maxPooledSize) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        final int index = classIndex(size);
+        final Magazine mag = magazines.get()[index];
+        if (mag.count == 0) {
+            // exchange the empty magazine for a full one from the depot, if any
+            final ByteBuffer[] full = depots[index].poll();
+            if (full != null) {
+                depotSizes[index].decrementAndGet();
+                mag.buffers = full;
+                mag.count = full.length;
+            }
+        }
+
+        final ByteBuffer buf;
+        if (mag.count > 0) {
+            buf = mag.buffers[--mag.count];
+            mag.buffers[mag.count] = null;
+        }
+        else {
+            buf = ByteBuffer.allocateDirect(classSize(index));
+        }
+
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+
+        final int cap = buffer.capacity();
+        if (!buffer.isDirect() || cap > maxPooledSize || cap != classSize(classIndex(cap))) {
+            return; // not pooled
+        }
+
+        final int index = classIndex(cap);
+        final Magazine mag = magazines.get()[index];
+        if (mag.count == mag.buffers.length) {
+            // move the full magazine to the depot, if there is room for it, and start an empty one
+            if (depotSizes[index].incrementAndGet() <= MAX_DEPOT_MAGAZINES) {
+                depots[index].offer(mag.buffers);
+            }
+            else {
+                depotSizes[index].decrementAndGet();
+            }
+            mag.buffers = new ByteBuffer[magazineSize];
+            mag.count = 0;
+        }
+
+        mag.buffers[mag.count++] = buffer;
+    }
+
+    private static int classIndex(int size) {
+
+        if (size <= (1 << MIN_CLASS_SHIFT)) {
+            return 0;
+        }
+        else {
+            return (Integer.SIZE - Integer.numberOfLeadingZeros(size - 1)) - MIN_CLASS_SHIFT;
+        }
+    }
+
+    private static int classSize(int index) {
+
+        return 1 << (index + MIN_CLASS_SHIFT);
+    }
+
+
+    // a stack of buffers of the same size class, owned by a single thread
+    private static final class Magazine {
+
+        ByteBuffer[] buffers;
+        int count;
+
+
+        Magazine(int size) {
+
+            this.buffers = new ByteBuffer[size];
+            this.count = 0;
+        }
+    }
+}
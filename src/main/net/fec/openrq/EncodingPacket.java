@@ -23,9 +23,13 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ReadOnlyBufferException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import net.fec.openrq.decoder.DataDecoder;
 import net.fec.openrq.decoder.SourceBlockDecoder;
@@ -65,7 +69,31 @@ public abstract class EncodingPacket {
      */
     static EncodingPacket newSourcePacket(int sbn, int esi, ByteBuffer symbols, int numSymbols) {
 
-        return new SourcePacket(sbn, esi, symbols, numSymbols);
+        return new SourcePacket(sbn, esi, symbols, numSymbols, null, null);
+    }
+
+    /**
+     * @param sbn
+     * @param esi
+     * @param symbols
+     *            The symbols data, inside the pooled buffer
+     * @param numSymbols
+     * @param pool
+     * @param pooledBuffer
+     *            A buffer acquired from the pool, whose ownership is transferred to the packet
+     * @return a new source packet whose pooled buffer returns to the pool when the packet is released
+     */
+    static EncodingPacket newPooledSourcePacket(
+        int sbn,
+        int esi,
+        ByteBuffer symbols,
+        int numSymbols,
+        BufferPool pool,
+        ByteBuffer pooledBuffer)
+    {
+
+        return new SourcePacket(sbn, esi, symbols, numSymbols, Objects.requireNonNull(pool),
+            Objects.requireNonNull(pooledBuffer));
     }
 
     /**
@@ -77,7 +105,31 @@ public abstract class EncodingPacket {
      */
     static EncodingPacket newRepairPacket(int sbn, int esi, ByteBuffer symbols, int numSymbols) {
 
-        return new RepairPacket(sbn, esi, symbols, numSymbols);
+        return new RepairPacket(sbn, esi, symbols, numSymbols, null, null);
+    }
+
+    /**
+     * @param sbn
+     * @param esi
+     * @param symbols
+     *            The symbols data, inside the pooled buffer
+     * @param numSymbols
+     * @param pool
+     * @param pooledBuffer
+     *            A buffer acquired from the pool, whose ownership is transferred to the packet
+     * @return a new repair packet whose pooled buffer returns to the pool when the packet is released
+     */
+    static EncodingPacket newPooledRepairPacket(
+        int sbn,
+        int esi,
+        ByteBuffer symbols,
+        int numSymbols,
+        BufferPool pool,
+        ByteBuffer pooledBuffer)
+    {
+
+        return new RepairPacket(sbn, esi, symbols, numSymbols, Objects.requireNonNull(pool),
+            Objects.requireNonNull(pooledBuffer));
     }
 
     /**
@@ -420,6 +472,21 @@ public abstract class EncodingPacket {
      */
     public abstract ByteBuffer asBuffer();
 
+    /**
+     * Returns a buffer acquired from the provided pool with the contents of this packet. The buffer will contain the
+     * {@linkplain #fecPayloadID() FEC payload ID}, followed by the symbols data length, followed by the symbols data
+     * itself.
+     * <p>
+     * The returned buffer should be {@linkplain BufferPool#release(ByteBuffer) released} to the pool after being used.
+     * 
+     * @param pool
+     *            The pool from which the returned buffer is acquired
+     * @return a buffer acquired from the pool with the contents of this packet
+     * @exception NullPointerException
+     *                If {@code pool} is {@code null}
+     */
+    public abstract ByteBuffer asBuffer(BufferPool pool);
+
     /**
      * Writes in the provided buffer the contents of this packet. The write consists of the {@linkplain #fecPayloadID()
      * FEC payload ID}, followed by the symbols data length, followed by the symbols data itself.
@@ -467,6 +534,9 @@ public abstract class EncodingPacket {
      * Examples of {@code WritableByteChannel} objects are {@link java.nio.channels.SocketChannel SocketChannel} and
      * {@link java.nio.channels.FileChannel FileChannel}.
      * <p>
+     * If the channel is a {@link GatheringByteChannel}, the header and the symbols data are written with a single
+     * gathering write operation (unless the channel accepts only part of the packet).
+     * <p>
      * <b><em>Blocking behavior</em></b>: this method blocks until the whole packet is written to the channel, or an
      * {@code IOException} is throw.
      * 
@@ -479,6 +549,90 @@ public abstract class EncodingPacket {
      */
     public abstract void writeTo(WritableByteChannel ch) throws IOException;
 
+    /**
+     * Releases the symbols data of this packet, if it was acquired from a {@link BufferPool} (as in method
+     * {@link DataDecoder#parsePacket(ByteBuffer, BufferPool)}), by returning it to the pool. Otherwise, this method has
+     * no effect.
+     * <p>
+     * A packet may be released as soon as it is put into a source block decoder, since source block decoders either
+     * copy the symbols data of the packets they receive, or take over the ownership of the pooled buffer (in
+     * {@linkplain SourceBlockDecoder#setZeroCopy(boolean) zero-copy} mode), in which case this method has no effect.
+     * Only the first call to this method has effect, and a pooled packet (as well as any buffer previously returned
+     * by method {@link #symbols()}) must not be used after being released.
+     */
+    public abstract void release();
+
+    /**
+     * Transfers the ownership of the pooled buffer of this packet to the caller, which becomes responsible for calling
+     * {@link #releaseAdopted()}. Afterwards, method {@link #release()} has no effect.
+     *
+     * @return {@code true} if the buffer of this packet is pooled and was not yet released or adopted
+     */
+    abstract boolean adopt();
+
+    /**
+     * Returns the pooled buffer of an {@linkplain #adopt() adopted} packet to the pool.
+     */
+    abstract void releaseAdopted();
+
+    /**
+     * Writes multiple packets directly into the provided {@code GatheringByteChannel} object, in the order they appear
+     * in the list. Each packet is written in the same format as in method {@link #writeTo(WritableByteChannel)}, but
+     * the whole batch is written with as few gathering write operations as the channel allows (ideally, only one).
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until every packet is written to the channel, or an
+     * {@code IOException} is throw.
+     * 
+     * @param ch
+     *            A {@code GatheringByteChannel} object into which the packets are written
+     * @param packets
+     *            The packets to be written
+     * @throws IOException
+     *             If an IO error occurs while writing to the {@code GatheringByteChannel} object
+     * @exception NullPointerException
+     *                If {@code ch} or {@code packets} are {@code null}, or if some packet is {@code null}
+     */
+    public static void writeTo(GatheringByteChannel ch, List<? extends EncodingPacket> packets) throws IOException {
+
+        Objects.requireNonNull(ch);
+        final int numPackets = packets.size();
+
+        // the batch is written in chunks that fit in the reused buffers of this thread
+        final GatherBuffers buffers = GATHER_BUFFERS.get();
+        for (int first = 0; first < numPackets; first += MAX_GATHERED_PACKETS) {
+            final int n = Math.min(numPackets - first, MAX_GATHERED_PACKETS);
+            final ByteBuffer[] srcs = buffers.sources(n);
+            try {
+                for (int i = 0; i < n; i++) {
+                    final EncodingPacket packet = packets.get(first + i);
+                    buffers.putHeader(i, packet.fecPayloadID(), packet.symbolsLength());
+                    srcs[2 * i + 1] = packet.symbols();
+                }
+
+                DataUtils.writeFully(ch, srcs, 2 * n);
+            }
+            finally {
+                buffers.clearSymbols(n);
+            }
+        }
+    }
+
+    // the FEC payload ID and the symbols data length
+    private static final int HEADER_SIZE = SizeOf.INT + SizeOf.INT;
+
+    // channels usually take at most 1024 buffers (IOV_MAX) in each gathering write, that is, 512 packets
+    private static final int MAX_GATHERED_PACKETS = 512;
+
+    // buffers reused by the gathering writes of each thread
+    private static final ThreadLocal<GatherBuffers> GATHER_BUFFERS = new ThreadLocal<GatherBuffers>() {
+
+        @Override
+        protected GatherBuffers initialValue() {
+
+            return new GatherBuffers();
+        }
+    };
+
     private EncodingPacket() {
 
         // private constructor to prevent external sub-classing
@@ -487,16 +641,39 @@ public abstract class EncodingPacket {
 
     private static abstract class AbstractEncodingPacket extends EncodingPacket {
 
+        private static final AtomicIntegerFieldUpdater<AbstractEncodingPacket> OWNERSHIP =
+            AtomicIntegerFieldUpdater.newUpdater(AbstractEncodingPacket.class, "ownership");
+
+        // ownership states of the pooled buffer
+        private static final int OWNED = 0;
+        private static final int RELEASED = 1;
+        private static final int ADOPTED = 2;
+
         private final int fecPayloadID;
         private final ByteBuffer symbols;
         private final int numSymbols;
 
+        private final BufferPool pool; // null if the symbols data is not pooled
+        private final ByteBuffer pooledBuffer; // the buffer acquired from the pool, which contains the symbols data
+        private volatile int ownership;
+
 
-        AbstractEncodingPacket(int sbn, int esi, ByteBuffer symbols, int numSymbols) {
+        AbstractEncodingPacket(
+            int sbn,
+            int esi,
+            ByteBuffer symbols,
+            int numSymbols,
+            BufferPool pool,
+            ByteBuffer pooledBuffer)
+        {
 
             this.fecPayloadID = ParameterIO.buildFECpayloadID(sbn, esi);
             this.symbols = Objects.requireNonNull(symbols);
             this.numSymbols = numSymbols;
+
+            this.pool = pool;
+            this.pooledBuffer = pooledBuffer;
+            this.ownership = OWNED;
         }
 
         @Override
@@ -579,6 +756,16 @@ public abstract class EncodingPacket {
             return buffer;
         }
 
+        @Override
+        public ByteBuffer asBuffer(BufferPool pool) {
+
+            final ByteBuffer buffer = pool.acquire(SizeOf.INT + SizeOf.INT + symbolsLength());
+            writeTo(buffer);
+            buffer.flip();
+
+            return buffer;
+        }
+
         @Override
         public void writeTo(ByteBuffer buffer) {
 
@@ -616,24 +803,60 @@ public abstract class EncodingPacket {
 
             // cannot use the field directly because the position of the buffer will be changed
             final ByteBuffer symbolsBuf = symbols();
-            final ByteBuffer intsBuf = ByteBuffer.allocate(SizeOf.INT + SizeOf.INT);
-            intsBuf.putInt(fecPayloadID).putInt(symbolsLength());
-            intsBuf.flip();
+            if (ch instanceof GatheringByteChannel) {
+                final GatherBuffers buffers = GATHER_BUFFERS.get();
+                final ByteBuffer[] srcs = buffers.sources(1);
+                buffers.putHeader(0, fecPayloadID, symbolsLength());
+                srcs[1] = symbolsBuf;
+                try {
+                    DataUtils.writeFully((GatheringByteChannel)ch, srcs, 2);
+                }
+                finally {
+                    buffers.clearSymbols(1);
+                }
+            }
+            else {
+                final ByteBuffer intsBuf = ByteBuffer.allocate(HEADER_SIZE);
+                intsBuf.putInt(fecPayloadID).putInt(symbolsLength());
+                intsBuf.flip();
+
+                while (intsBuf.hasRemaining()) {
+                    ch.write(intsBuf);
+                }
+                while (symbolsBuf.hasRemaining()) {
+                    ch.write(symbolsBuf);
+                }
+            }
+        }
 
-            while (intsBuf.hasRemaining()) {
-                ch.write(intsBuf);
+        @Override
+        public void release() {
+
+            if (pool != null && OWNERSHIP.compareAndSet(this, OWNED, RELEASED)) {
+                pool.release(pooledBuffer);
             }
-            while (symbolsBuf.hasRemaining()) {
-                ch.write(symbolsBuf);
+        }
+
+        @Override
+        boolean adopt() {
+
+            return pool != null && OWNERSHIP.compareAndSet(this, OWNED, ADOPTED);
+        }
+
+        @Override
+        void releaseAdopted() {
+
+            if (OWNERSHIP.compareAndSet(this, ADOPTED, RELEASED)) {
+                pool.release(pooledBuffer);
             }
         }
     }
 
     private static final class SourcePacket extends AbstractEncodingPacket {
 
-        SourcePacket(int sbn, int esi, ByteBuffer symbols, int numSymbols) {
+        SourcePacket(int sbn, int esi, ByteBuffer symbols, int numSymbols, BufferPool pool, ByteBuffer pooledBuffer) {
 
-            super(sbn, esi, symbols, numSymbols);
+            super(sbn, esi, symbols, numSymbols, pool, pooledBuffer);
         }
 
         @Override
@@ -645,9 +868,9 @@ public abstract class EncodingPacket {
 
     private static final class RepairPacket extends AbstractEncodingPacket {
 
-        RepairPacket(int sbn, int esi, ByteBuffer symbols, int numSymbols) {
+        RepairPacket(int sbn, int esi, ByteBuffer symbols, int numSymbols, BufferPool pool, ByteBuffer pooledBuffer) {
 
-            super(sbn, esi, symbols, numSymbols);
+            super(sbn, esi, symbols, numSymbols, pool, pooledBuffer);
         }
 
         @Override
@@ -656,4 +879,42 @@ public abstract class EncodingPacket {
             return SymbolType.REPAIR;
         }
     }
+
+    // the header buffer followed by the symbols data of each packet in a gathering write
+    private static final class GatherBuffers {
+
+        private ByteBuffer[] srcs = new ByteBuffer[0];
+
+
+        // returns the sources array with room for at least the given number of packets
+        ByteBuffer[] sources(int numPackets) {
+
+            if (srcs.length < 2 * numPackets) {
+                final int newLength = 2 * Math.min(Math.max(numPackets, srcs.length), MAX_GATHERED_PACKETS);
+                final ByteBuffer[] newSrcs = Arrays.copyOf(srcs, newLength);
+                for (int i = srcs.length; i < newLength; i += 2) {
+                    newSrcs[i] = ByteBuffer.allocate(HEADER_SIZE);
+                }
+                srcs = newSrcs;
+            }
+
+            return srcs;
+        }
+
+        void putHeader(int packet, int fecPayloadID, int symbolsLength) {
+
+            final ByteBuffer header = srcs[2 * packet];
+            header.clear();
+            header.putInt(fecPayloadID).putInt(symbolsLength);
+            header.flip();
+        }
+
+        // drops the references to the symbols data, which must not be kept by the thread
+        void clearSymbols(int numPackets) {
+
+            for (int i = 0; i < numPackets; i++) {
+                srcs[2 * i + 1] = null;
+            }
+        }
+    }
 }
@@ -69,6 +69,13 @@ abstract class EncodingSymbol {
      */
     abstract ByteBuffer transportData();
 
+    /**
+     * Puts the transport data into the provided buffer, without allocating a view of it.
+     * 
+     * @param dst
+     */
+    abstract void writeTransportData(ByteBuffer dst);
+
     /**
      * @return
      */
@@ -132,6 +139,13 @@ abstract class EncodingSymbol {
             return transportBuffer.asReadOnlyBuffer();
         }
 
+        @Override
+        void writeTransportData(ByteBuffer dst) {
+
+            // the transport buffer always wraps an array, and its position is never changed
+            dst.put(transportBuffer.array(), transportBuffer.arrayOffset(), transportBuffer.remaining());
+        }
+
         @Override
         int transportSize() {
 
@@ -169,6 +183,12 @@ abstract class EncodingSymbol {
             return transportBuffer.asReadOnlyBuffer();
         }
 
+        @Override
+        void writeTransportData(ByteBuffer dst) {
+
+            dst.put(data);
+        }
+
         @Override
         int transportSize() {
 
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.fec.openrq.util.rq.OctectOps;
+import net.fec.openrq.util.rq.SystematicIndices;
+
+
+/**
+ * Recovers a few missing source symbols without computing the intermediate symbols of the source block.
+ * <p>
+ * Since the code is linear, every repair symbol is a linear combination of the source symbols of the extended source
+ * block. The coefficients of that combination (the repair symbol's row in the "source generator" matrix) only depend
+ * on K' and on the repair symbol's ISI. Subtracting the contribution of the received source symbols from a repair
+ * symbol leaves a combination of the missing source symbols alone, so {@code e} missing source symbols are recovered
+ * by solving a system of (at least) {@code e} equations in {@code e} unknowns.
+ * <p>
+ * The source generator matrix is computed once per value of K' (with a regular decoding of the constraint matrix) and
+ * is then cached, which is why this fast path is only used for small values of K'. Computing it costs about as much
+ * as a few regular decodings, so it is only computed after a value of K' shows up repeatedly; until then, the caller
+ * is expected to do a regular decoding.
+ */
+final class ErasureRecovery {
+
+    // the source generator matrix takes L * K' bytes
+    private static final int MAX_K_PRIME = 1024;
+
+    // number of regular decodings of a K' value before computing its source generator matrix
+    private static final int DECODINGS_BEFORE_GENERATOR = 3;
+
+    // the cost of subtracting the received source symbols grows with the number of missing source symbols
+    private static final int MAX_ERASURES = 16;
+    private static final int MIN_SOURCE_SYMBOLS_PER_ERASURE = 32;
+
+    // extra repair equations used in case some of them are linearly dependent
+    private static final int EXTRA_EQUATIONS = 2;
+
+    private static final int MAX_CACHED_GENERATORS = 4;
+    private static final Map<Integer, byte[][]> GENERATORS = new LinkedHashMap<Integer, byte[][]>(
+        MAX_CACHED_GENERATORS, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[][]> eldest) {
+
+            return size() > MAX_CACHED_GENERATORS;
+        }
+    };
+    private static final Map<Integer, Integer> DECODINGS_WITHOUT_GENERATOR = new HashMap<>();
+
+
+    /**
+     * @param K
+     *            The number of source symbols
+     * @param numMissing
+     *            The number of missing source symbols
+     * @return {@code true} if the number of missing source symbols is small enough for the fast path to pay off
+     */
+    static boolean isApplicable(int K, int numMissing) {
+
+        return numMissing > 0
+               && numMissing <= MAX_ERASURES
+               && (long)numMissing * MIN_SOURCE_SYMBOLS_PER_ERASURE <= K
+               && SystematicIndices.ceil(K) <= MAX_K_PRIME;
+    }
+
+    /**
+     * Recovers the missing source symbols from the received source symbols and the first received repair symbols.
+     *
+     * @param K
+     *            The number of source symbols
+     * @param T
+     *            The size of each symbol, in number of bytes
+     * @param received
+     *            The received source symbols
+     * @param missing
+     *            The missing source symbols (the complement of {@code received}), in any order
+     * @param data
+     *            The storage of the received source symbols
+     * @param repairSymbols
+     *            The received repair symbols (at least {@code missing.length})
+     * @return the recovered symbols, in the same order as {@code missing}, or {@code null} if the source generator
+     *         matrix is not yet available or if the repair symbols used are not sufficient
+     */
+    static byte[][] recover(
+        int K,
+        int T,
+        BitSet received,
+        int[] missing,
+        PaddedByteArrayDecoder data,
+        RepairSymbolSlab repairSymbols)
+    {
+
+        final int Kprime = SystematicIndices.ceil(K);
+        final byte[][] generator = sourceGenerator(Kprime);
+        if (generator == null) {
+            return null;
+        }
+
+        final int e = missing.length;
+        final int numEquations = Math.min(repairSymbols.size(), e + EXTRA_EQUATIONS);
+        if (numEquations < e) {
+            return null;
+        }
+
+        // the rows of the source generator matrix for the repair symbols used (padding symbols are zero)
+        final byte[][] coefs = new byte[numEquations][K];
+        final byte[][] symbols = new byte[numEquations][T];
+        for (int eq = 0; eq < numEquations; eq++) {
+            final int isi = repairSymbols.esiAt(eq) + (Kprime - K);
+            final Set<Integer> indexes = LinearSystem.encIndexes(Kprime, new Tuple(Kprime, isi));
+            for (Integer index : indexes) {
+                MatrixUtilities.xorSymbolInPlace(coefs[eq], generator[index]);
+            }
+            repairSymbols.get(eq, symbols[eq]);
+        }
+
+        // subtract the contribution of the received source symbols (read each one only once)
+        final byte[] sourceSymbol = new byte[T];
+        for (int esi = received.nextSetBit(0); esi >= 0 && esi < K; esi = received.nextSetBit(esi + 1)) {
+            data.getBytes(esi * T, sourceSymbol);
+            for (int eq = 0; eq < numEquations; eq++) {
+                subtractMultiple(symbols[eq], sourceSymbol, coefs[eq][esi]);
+            }
+        }
+
+        // what is left is a small system whose unknowns are the missing source symbols
+        final byte[][] A = new byte[numEquations][e];
+        for (int eq = 0; eq < numEquations; eq++) {
+            for (int k = 0; k < e; k++) {
+                A[eq][k] = coefs[eq][missing[k]];
+            }
+        }
+
+        return solve(A, symbols, e);
+    }
+
+    // Gauss-Jordan elimination over an overdetermined system; returns null if the rank is less than e
+    private static byte[][] solve(byte[][] A, byte[][] b, int e) {
+
+        final int rows = A.length;
+        for (int col = 0; col < e; col++) {
+            int pivot = col;
+            while (pivot < rows && A[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == rows) {
+                return null;
+            }
+
+            swap(A, col, pivot);
+            swap(b, col, pivot);
+
+            final byte beta = A[col][col];
+            if (beta != 1) {
+                OctectOps.betaDivisionInPlace(A[col], beta);
+                OctectOps.betaDivisionInPlace(b[col], beta);
+            }
+
+            for (int row = 0; row < rows; row++) {
+                final byte coef = A[row][col];
+                if (row != col && coef != 0) {
+                    subtractMultiple(A[row], A[col], coef);
+                    subtractMultiple(b[row], b[col], coef);
+                }
+            }
+        }
+
+        final byte[][] x = new byte[e][];
+        System.arraycopy(b, 0, x, 0, e);
+        return x;
+    }
+
+    // dst -= beta * src
+    private static void subtractMultiple(byte[] dst, byte[] src, byte beta) {
+
+        if (beta == 0) {
+            return;
+        }
+        else if (beta == 1) {
+            MatrixUtilities.xorSymbolInPlace(dst, src);
+        }
+        else {
+            for (int i = 0; i < dst.length; i++) {
+                if (src[i] != 0) {
+                    dst[i] ^= OctectOps.product(beta, src[i]);
+                }
+            }
+        }
+    }
+
+    private static void swap(byte[][] rows, int i, int j) {
+
+        final byte[] tmp = rows[i];
+        rows[i] = rows[j];
+        rows[j] = tmp;
+    }
+
+    /*
+     * Row i has the coefficients of intermediate symbol i as a combination of the source symbols of the extended
+     * source block, i.e., the inverse of the constraint matrix restricted to the columns of the source symbols.
+     */
+    private static byte[][] sourceGenerator(int Kprime) {
+
+        synchronized (GENERATORS) {
+            final byte[][] cached = GENERATORS.get(Kprime);
+            if (cached != null) {
+                return cached;
+            }
+
+            // let the caller do a regular decoding until this value of K' shows up often enough
+            final Integer count = DECODINGS_WITHOUT_GENERATOR.get(Kprime);
+            final int decodings = (count == null) ? 1 : count + 1;
+            if (decodings <= DECODINGS_BEFORE_GENERATOR) {
+                DECODINGS_WITHOUT_GENERATOR.put(Kprime, decodings);
+                return null;
+            }
+            DECODINGS_WITHOUT_GENERATOR.remove(Kprime);
+        }
+
+        final int Ki = SystematicIndices.getKIndex(Kprime);
+        final int SH = SystematicIndices.S(Ki) + SystematicIndices.H(Ki);
+        final int L = Kprime + SH;
+
+        // decode "symbols" that are the unit vectors of the source symbols
+        final byte[][] D = new byte[L][Kprime];
+        for (int isi = 0; isi < Kprime; isi++) {
+            D[SH + isi][isi] = 1;
+        }
+
+        final byte[][] generator;
+        try {
+            generator = LinearSystem.PInactivationDecoding(LinearSystem.generateConstraintMatrix(Kprime), D, Kprime);
+        }
+        catch (SingularMatrixException e) {
+            return null; // should not happen, the constraint matrix is always invertible
+        }
+
+        synchronized (GENERATORS) {
+            GENERATORS.put(Kprime, generator);
+        }
+        return generator;
+    }
+
+    private ErasureRecovery() {
+
+        // not instantiable
+    }
+
+
+    // ============================= TEST_CODE ============================= //
+
+    static boolean isSourceGeneratorCached(int K) {
+
+        synchronized (GENERATORS) {
+            return GENERATORS.containsKey(SystematicIndices.ceil(K));
+        }
+    }
+}
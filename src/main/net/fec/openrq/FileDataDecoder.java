@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Objects;
+
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.parameters.FECParameters;
+
+
+/**
+ * A RaptorQ decoder that decodes source data directly into a file.
+ * <p>
+ * Every source block is stored in its own region of the same file, at the same offset it has inside the source data
+ * (plus a fixed starting position), so the file contains the source data once every source block is decoded. Since
+ * file offsets are 64-bit values, the data length is only limited by the FEC parameters; each source block must not
+ * be larger than {@link Integer#MAX_VALUE} bytes, however.
+ * <p>
+ * Source blocks are decoded independently of each other, and only the source block being decoded (and the repair
+ * symbols received for source blocks not yet decoded) is kept in memory.
+ * <p>
+ * Failures to write or read the file are reported by throwing a {@link DataIOException}. The file is accessed through an
+ * interruptible channel, which is closed if a thread is interrupted while putting packets; the threads that put packets
+ * into this decoder must therefore not be interrupted.
+ */
+public final class FileDataDecoder extends AbstractDataDecoder implements Closeable {
+
+    /**
+     * @param fecParams
+     *            FEC parameters that configure the returned data decoder object
+     * @param extraSymbols
+     *            Repair symbol overhead (must be non-negative)
+     * @param file
+     *            The file where the source data is decoded into (created if it does not exist)
+     * @param position
+     *            The position in the file where the source data begins
+     * @return a data decoder object that decodes source data into a file
+     * @exception NullPointerException
+     *                If {@code fecParams} or {@code file} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code extraSymbols < 0 || position < 0}, or if a source block is larger than
+     *                {@code Integer.MAX_VALUE} bytes
+     * @exception IOException
+     *                If the file cannot be opened for reading and writing
+     */
+    static FileDataDecoder newDecoder(FECParameters fecParams, int extraSymbols, File file, long position)
+        throws IOException
+    {
+
+        Objects.requireNonNull(file);
+        // throws NullPointerException if null fecParams
+        if (extraSymbols < 0) {
+            throw new IllegalArgumentException("negative number of extra symbols");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        // the first source block is always one of the largest
+        if ((long)DataUtils.getK(fecParams, 0) * fecParams.symbolSize() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("source block size must be at most 2^^31 - 1");
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        return new FileDataDecoder(fecParams, extraSymbols, file, new RandomAccessFileHandle(raf, file.getPath()),
+            position);
+    }
+
+
+    private final File file;
+    private final RandomAccessFileHandle rafHandle;
+    private final long position;
+
+
+    private FileDataDecoder(
+        final FECParameters fecParams,
+        final int extraSymbols,
+        File file,
+        final RandomAccessFileHandle rafHandle,
+        final long position)
+    {
+
+        super(fecParams, new SourceBlockFactory() {
+
+            @Override
+            public ArraySourceBlockDecoder newSourceBlock(DataDecoder dataDecoder, long off, int sbn, int K) {
+
+                return ArraySourceBlockDecoder.newFileRegionDecoder(
+                    dataDecoder, rafHandle, position + off, off, fecParams, sbn, K, extraSymbols);
+            }
+        });
+        this.file = file;
+        this.rafHandle = rafHandle;
+        this.position = position;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is the directory that contains the file where the source data is decoded into.
+     */
+    @Override
+    public String tempStorageDir() {
+
+        return file.getAbsoluteFile().getParent() + File.separator;
+    }
+
+    /**
+     * Returns the file where the source data is decoded into. Use method {@link #isDataDecoded()} to check if the data
+     * is complete.
+     *
+     * @return the file where the source data is decoded into
+     * @see #isDataDecoded()
+     */
+    public File dataFile() {
+
+        return file;
+    }
+
+    /**
+     * Returns the position in the file where the source data begins.
+     *
+     * @return the position in the file where the source data begins
+     */
+    public long dataPosition() {
+
+        return position;
+    }
+
+    /**
+     * Closes the file where the source data is decoded into. This decoder must not be used afterwards.
+     *
+     * @throws IOException
+     *             If an I/O error occurs while closing the file
+     */
+    @Override
+    public void close() throws IOException {
+
+        rafHandle.closeAsyncChannel();
+        rafHandle.getHandle().close();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import net.fec.openrq.encoder.DataEncoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+
+/**
+ * A RaptorQ encoder for a data object stored in a file.
+ * <p>
+ * The source data is read from a {@code FileChannel}, one source block at a time, so the data length is not limited
+ * by the maximum size of an array. Only the source blocks inside a <em>window</em> of the most recently used source
+ * blocks are kept in memory; a source block that is needed again after leaving the window is read again from the file
+ * (and its intermediate symbols are computed again, unless they are found in the
+ * {@linkplain IntermediateSymbolsCache cache}). Iterating over the source blocks in order, and encoding each one
+ * completely before moving to the next, therefore reads the file only once and uses a bounded amount of memory.
+ * <p>
+ * The file must not be modified while it is being encoded. Failures to read the file are reported by throwing a
+ * {@link DataIOException} from {@link #sourceBlock(int)}.
+ */
+public final class FileDataEncoder implements DataEncoder {
+
+    /**
+     * The default number of source blocks kept in memory.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 2;
+
+
+    /**
+     * @param channel
+     *            A channel from which the source data is read
+     * @param position
+     *            The position in the channel where the source data begins
+     * @param fecParams
+     *            FEC parameters that configure the returned data encoder object
+     * @param windowSize
+     *            The maximum number of source blocks kept in memory
+     * @param cache
+     *            The cache of intermediate symbols used by the returned data encoder
+     * @return a data encoder object backed by a file
+     * @exception NullPointerException
+     *                If {@code channel}, {@code fecParams} or {@code cache} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code position < 0 || windowSize < 1}, or if a source block is larger than
+     *                {@code Integer.MAX_VALUE} bytes
+     */
+    static FileDataEncoder newEncoder(
+        FileChannel channel,
+        long position,
+        FECParameters fecParams,
+        int windowSize,
+        IntermediateSymbolsCache cache)
+    {
+
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(cache);
+        // throws NullPointerException if null fecParams
+        if (position < 0) throw new IllegalArgumentException("negative position");
+        if (windowSize < 1) throw new IllegalArgumentException("window size must be positive");
+
+        // the first source block is always one of the largest
+        if ((long)DataUtils.getK(fecParams, 0) * fecParams.symbolSize() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("source block size must be at most 2^^31 - 1");
+        }
+
+        return new FileDataEncoder(channel, position, fecParams, windowSize, cache);
+    }
+
+
+    private final FileChannel channel;
+    private final long position;
+
+    private final FECParameters fecParams;
+    private final IntermediateSymbolsCache cache;
+
+    private final int windowSize;
+    // access order, so that the first entry is always the least recently used source block
+    private final Map<Integer, ArraySourceBlockEncoder> window;
+
+
+    private FileDataEncoder(
+        FileChannel channel,
+        long position,
+        FECParameters fecParams,
+        final int windowSize,
+        IntermediateSymbolsCache cache)
+    {
+
+        this.channel = channel;
+        this.position = position;
+
+        this.fecParams = fecParams;
+        this.cache = cache;
+
+        this.windowSize = windowSize;
+        this.window = new LinkedHashMap<Integer, ArraySourceBlockEncoder>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ArraySourceBlockEncoder> eldest) {
+
+                if (size() > windowSize) {
+                    eldest.getValue().releaseIntermediateSymbols();
+                    return true;
+                }
+                else {
+                    return false;
+                }
+            }
+        };
+    }
+
+    @Override
+    public FECParameters fecParameters() {
+
+        return fecParams;
+    }
+
+    @Override
+    public long dataLength() {
+
+        return fecParams.dataLength();
+    }
+
+    @Override
+    public int symbolSize() {
+
+        return fecParams.symbolSize();
+    }
+
+    @Override
+    public int numberOfSourceBlocks() {
+
+        return fecParams.numberOfSourceBlocks();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the source block is not inside the window of source blocks kept in memory, it is read from the file by the
+     * calling thread.
+     *
+     * @exception IllegalArgumentException
+     *                If the provided source block number is invalid
+     * @exception DataIOException
+     *                If the source block could not be read from the file
+     * @see #numberOfSourceBlocks()
+     */
+    @Override
+    public SourceBlockEncoder sourceBlock(int sbn) {
+
+        if (sbn < 0 || sbn >= fecParams.numberOfSourceBlocks()) {
+            throw new IllegalArgumentException("invalid source block number");
+        }
+
+        synchronized (window) {
+            final ArraySourceBlockEncoder enc = window.get(sbn);
+            if (enc != null) {
+                return enc;
+            }
+        }
+
+        // read the file without holding the lock; if another thread does the same, only one result is kept
+        final ArraySourceBlockEncoder newEnc = readSourceBlock(sbn);
+        synchronized (window) {
+            final ArraySourceBlockEncoder enc = window.get(sbn);
+            if (enc != null) {
+                return enc;
+            }
+            window.put(sbn, newEnc);
+            return newEnc;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Source blocks are read from the file as the iteration advances.
+     */
+    @Override
+    public Iterable<? extends SourceBlockEncoder> sourceBlockIterable() {
+
+        return new Iterable<SourceBlockEncoder>() {
+
+            @Override
+            public Iterator<SourceBlockEncoder> iterator() {
+
+                return new Iterator<SourceBlockEncoder>() {
+
+                    private int nextSBN = 0;
+
+
+                    @Override
+                    public boolean hasNext() {
+
+                        return nextSBN < numberOfSourceBlocks();
+                    }
+
+                    @Override
+                    public SourceBlockEncoder next() {
+
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return sourceBlock(nextSBN++);
+                    }
+
+                    @Override
+                    public void remove() {
+
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the channel from which the source data is read.
+     *
+     * @return the channel from which the source data is read
+     */
+    public FileChannel dataChannel() {
+
+        return channel;
+    }
+
+    /**
+     * Returns the position in the channel where the source data begins.
+     *
+     * @return the position in the channel where the source data begins
+     */
+    public long dataPosition() {
+
+        return position;
+    }
+
+    /**
+     * Returns the maximum number of source blocks kept in memory by this encoder.
+     *
+     * @return the maximum number of source blocks kept in memory by this encoder
+     */
+    public int windowSize() {
+
+        return windowSize;
+    }
+
+    /**
+     * Returns the cache where the intermediate symbols of the source blocks of this encoder are kept. The cache may be
+     * shared with other data encoders.
+     *
+     * @return the cache of intermediate symbols used by this encoder
+     */
+    public IntermediateSymbolsCache intermediateSymbolsCache() {
+
+        return cache;
+    }
+
+    private ArraySourceBlockEncoder readSourceBlock(int sbn) {
+
+        final int K = DataUtils.getK(fecParams, sbn);
+        final long blockOff = DataUtils.getSourceBlockOffset(fecParams, sbn);
+        final int blockLen = (int)Math.min((long)K * fecParams.symbolSize(), fecParams.dataLength() - blockOff);
+
+        final byte[] array = new byte[blockLen];
+        final ByteBuffer dst = ByteBuffer.wrap(array);
+        try {
+            long pos = position + blockOff;
+            while (dst.hasRemaining()) {
+                final int read = channel.read(dst, pos);
+                if (read < 0) {
+                    throw new EOFException("end of file reached before the end of the source data");
+                }
+                pos += read;
+            }
+        }
+        catch (IOException e) {
+            throw new DataIOException("could not read source block " + sbn, e);
+        }
+
+        return ArraySourceBlockEncoder.newEncoder(this, cache, array, 0, fecParams, sbn, K);
+    }
+}
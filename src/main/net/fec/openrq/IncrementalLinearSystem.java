@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.util.Arrays;
+import java.util.Set;
+
+import net.fec.openrq.util.rq.OctectOps;
+import net.fec.openrq.util.rq.SystematicIndices;
+
+
+/**
+ * The decoding system of linear equations of a source block, solved incrementally as encoding symbols arrive.
+ * <p>
+ * Every added equation is immediately eliminated against the equations added before, which are kept in row echelon
+ * form: each kept row has a distinct <em>pivot</em> column, holding the first non-zero coefficient of the row (always
+ * equal to {@code 1}). An added equation either becomes a new pivot row, or is reduced to zero and discarded (it was
+ * linearly dependent on the previous ones). Once there is a pivot for every one of the {@code L} columns, the
+ * intermediate symbols are obtained with a single back-substitution pass.
+ * <p>
+ * This spreads the cost of the elimination over the time it takes to receive the symbols, instead of doing all of it
+ * when the last symbol arrives.
+ * <p>
+ * This class is not thread safe.
+ */
+final class IncrementalLinearSystem {
+
+    /**
+     * Returns a new system for a source block with {@code K} source symbols of size {@code T}. The LDPC and HDPC
+     * constraints, as well as the padding symbols of the extended source block, are added immediately.
+     *
+     * @param K
+     *            The number of source symbols
+     * @param T
+     *            The size of each symbol, in number of bytes
+     * @return a new incremental system of linear equations
+     */
+    static IncrementalLinearSystem newSystem(int K, int T) {
+
+        return new IncrementalLinearSystem(K, T);
+    }
+
+
+    private final int K;
+    private final int Kprime;
+    private final int T;
+    private final int L;
+    private final int SH; // S + H, the number of constraint rows
+
+    private final byte[][] constraintMatrix;
+
+    // indexed by pivot column; null entries have no pivot yet
+    private final byte[][] pivotRows;
+    private final byte[][] pivotSymbols;
+    private int rank;
+
+
+    private IncrementalLinearSystem(int K, int T) {
+
+        this.K = K;
+        this.Kprime = SystematicIndices.ceil(K);
+        this.T = T;
+
+        final int Ki = SystematicIndices.getKIndex(Kprime);
+        this.SH = SystematicIndices.S(Ki) + SystematicIndices.H(Ki);
+        this.L = Kprime + SH;
+
+        this.constraintMatrix = LinearSystem.generateConstraintMatrix(Kprime);
+
+        this.pivotRows = new byte[L][];
+        this.pivotSymbols = new byte[L][];
+        this.rank = 0;
+
+        // the LDPC and HDPC constraint symbols are all zero
+        for (int row = 0; row < SH; row++) {
+            addEquation(constraintMatrix[row].clone(), new byte[T]);
+        }
+
+        // so are the padding symbols
+        for (int isi = K; isi < Kprime; isi++) {
+            addEquation(constraintMatrix[SH + isi].clone(), new byte[T]);
+        }
+    }
+
+    /**
+     * @return the number of linearly independent equations added so far
+     */
+    int rank() {
+
+        return rank;
+    }
+
+    /**
+     * @return {@code true} if, and only if, the intermediate symbols can be computed
+     */
+    boolean isSolvable() {
+
+        return rank == L;
+    }
+
+    /**
+     * Adds the equation of a source symbol.
+     *
+     * @param esi
+     *            The ESI of a source symbol
+     * @param symbol
+     *            The symbol data (is not modified)
+     * @return {@code true} if the rank increased
+     */
+    boolean addSourceSymbol(int esi, byte[] symbol) {
+
+        return addEquation(constraintMatrix[SH + esi].clone(), Arrays.copyOf(symbol, T));
+    }
+
+    /**
+     * Adds the equation of a repair symbol.
+     *
+     * @param esi
+     *            The ESI of a repair symbol
+     * @param symbol
+     *            The symbol data (is not modified)
+     * @return {@code true} if the rank increased
+     */
+    boolean addRepairSymbol(int esi, byte[] symbol) {
+
+        final int isi = esi + (Kprime - K);
+        final Set<Integer> indexes = LinearSystem.encIndexes(Kprime, new Tuple(Kprime, isi));
+
+        final byte[] row = new byte[L];
+        for (Integer col : indexes) {
+            row[col] = 1;
+        }
+
+        return addEquation(row, Arrays.copyOf(symbol, T));
+    }
+
+    /**
+     * Computes the intermediate symbols by back-substitution.
+     *
+     * @return the intermediate symbols
+     * @exception IllegalStateException
+     *                If the system is not yet solvable
+     */
+    byte[][] intermediateSymbols() {
+
+        if (!isSolvable()) throw new IllegalStateException("not enough linearly independent equations");
+
+        final byte[][] C = new byte[L][];
+        for (int col = L - 1; col >= 0; col--) {
+            final byte[] row = pivotRows[col];
+            final byte[] symbol = Arrays.copyOf(pivotSymbols[col], T);
+
+            for (int j = col + 1; j < L; j++) {
+                if (row[j] != 0) {
+                    subtractMultiple(symbol, C[j], row[j]);
+                }
+            }
+            C[col] = symbol;
+        }
+
+        return C;
+    }
+
+    // takes ownership of both arrays
+    private boolean addEquation(byte[] row, byte[] symbol) {
+
+        for (int col = 0; col < L; col++) {
+            final byte coef = row[col];
+            if (coef != 0) {
+                final byte[] pivotRow = pivotRows[col];
+                if (pivotRow == null) {
+                    // new pivot: normalize so that the pivot coefficient is 1
+                    if (coef != 1) {
+                        OctectOps.betaDivisionInPlace(row, coef, col, L - col);
+                        OctectOps.betaDivisionInPlace(symbol, coef);
+                    }
+                    pivotRows[col] = row;
+                    pivotSymbols[col] = symbol;
+                    rank++;
+                    return true;
+                }
+                else {
+                    // the pivot row has no coefficients before col
+                    subtractMultiple(row, col, pivotRow, coef);
+                    subtractMultiple(symbol, pivotSymbols[col], coef);
+                }
+            }
+        }
+
+        return false; // linearly dependent
+    }
+
+    // dst[from..] -= beta * src[from..]
+    private static void subtractMultiple(byte[] dst, int from, byte[] src, byte beta) {
+
+        if (beta == 1) {
+            for (int i = from; i < dst.length; i++) {
+                dst[i] ^= src[i];
+            }
+        }
+        else {
+            for (int i = from; i < dst.length; i++) {
+                if (src[i] != 0) {
+                    dst[i] ^= OctectOps.product(beta, src[i]);
+                }
+            }
+        }
+    }
+
+    // dst -= beta * src
+    private static void subtractMultiple(byte[] dst, byte[] src, byte beta) {
+
+        subtractMultiple(dst, 0, src, beta);
+    }
+}
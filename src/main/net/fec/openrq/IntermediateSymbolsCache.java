@@ -0,0 +1,312 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A size-bounded cache of the intermediate symbols of source block encoders.
+ * <p>
+ * A source block encoder needs the intermediate symbols of its source block in order to produce repair symbols, and
+ * computing them is expensive. The intermediate symbols of a source block take about as much memory as the source
+ * block itself, so keeping them for every source block of every encoder may use too much memory. This cache keeps the
+ * intermediate symbols of the most recently used source blocks, up to a maximum number of bytes, and evicts the ones
+ * of the least recently used source blocks when that maximum is exceeded. A source block encoder still keeps a soft
+ * reference to the last intermediate symbols it obtained, so intermediate symbols that were evicted (or that were too
+ * large to be cached) are only recomputed when needed again after the garbage collector reclaims them.
+ * <p>
+ * Every data encoder uses a cache, which is by default an {@linkplain #newUnboundedCache() unbounded} cache owned by
+ * the encoder. A single bounded cache may instead be shared by multiple data encoders, limiting the memory used by all
+ * of them (see {@link OpenRQ#newEncoder(byte[], net.fec.openrq.parameters.FECParameters, IntermediateSymbolsCache)}).
+ * <p>
+ * A cache may optionally be backed by a {@linkplain IntermediateSymbolsStore persistent store}, which is consulted
+ * before computing intermediate symbols that are not in the cache, and which receives every computed intermediate
+ * symbols (see {@link #setPersistentStore(IntermediateSymbolsStore)}).
+ * <p>
+ * Finding cached intermediate symbols takes no lock, so encoders that produce repair symbols concurrently do not
+ * contend on the cache. Because of that, a cache hit does not reorder the source blocks by recency of use; instead, it
+ * marks its source block as recently used, and a marked source block that is about to be evicted is unmarked and
+ * given a second chance (like in the "clock" page replacement algorithm).
+ * <p>
+ * Instances of this class are thread safe.
+ */
+public final class IntermediateSymbolsCache {
+
+    /**
+     * Returns a new cache that keeps at most {@code maxBytes} bytes of intermediate symbols.
+     *
+     * @param maxBytes
+     *            The maximum number of bytes of intermediate symbols kept by the cache
+     * @return a new bounded cache
+     * @exception IllegalArgumentException
+     *                If {@code maxBytes < 0}
+     */
+    public static IntermediateSymbolsCache newCache(long maxBytes) {
+
+        checkMaxBytes(maxBytes);
+        return new IntermediateSymbolsCache(maxBytes);
+    }
+
+    /**
+     * Returns a new cache that never evicts intermediate symbols.
+     *
+     * @return a new unbounded cache
+     */
+    public static IntermediateSymbolsCache newUnboundedCache() {
+
+        return new IntermediateSymbolsCache(Long.MAX_VALUE);
+    }
+
+    private static void checkMaxBytes(long maxBytes) {
+
+        if (maxBytes < 0) throw new IllegalArgumentException("maximum number of bytes must be non-negative");
+    }
+
+
+    /**
+     * The cache key of a source block, which also references the intermediate symbols of the source block while they
+     * are cached.
+     */
+    static final class Key {
+
+        // non-null if, and only if, the key is in the cache (only written with the cache lock)
+        private volatile SymbolMatrix symbols = null;
+
+        // set by cache hits, cleared when the key is given a second chance before eviction
+        private volatile boolean recentlyUsed = false;
+    }
+
+
+    // access order, so that the first entry is always the least recently used one, apart from lock-free cache hits
+    private final Map<Key, SymbolMatrix> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;
+    private long usedBytes = 0;
+    private IntermediateSymbolsStore store = null;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long evictions = 0;
+
+
+    private IntermediateSymbolsCache(long maxBytes) {
+
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the maximum number of bytes of intermediate symbols kept by this cache.
+     *
+     * @return the maximum number of bytes of intermediate symbols kept by this cache
+     */
+    public synchronized long maxBytes() {
+
+        return maxBytes;
+    }
+
+    /**
+     * Changes the maximum number of bytes of intermediate symbols kept by this cache. If the new maximum is less than
+     * the number of bytes currently used, then the intermediate symbols of the least recently used source blocks are
+     * evicted immediately.
+     *
+     * @param maxBytes
+     *            The maximum number of bytes of intermediate symbols kept by this cache
+     * @exception IllegalArgumentException
+     *                If {@code maxBytes < 0}
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+
+        checkMaxBytes(maxBytes);
+        this.maxBytes = maxBytes;
+        evictUntilWithinBounds();
+    }
+
+    /**
+     * Returns the persistent store that backs this cache, or {@code null} if there is none.
+     *
+     * @return the persistent store that backs this cache, or {@code null} if there is none
+     */
+    public synchronized IntermediateSymbolsStore persistentStore() {
+
+        return store;
+    }
+
+    /**
+     * Changes the persistent store that backs this cache. Intermediate symbols already in the cache are not written to
+     * the new store.
+     *
+     * @param store
+     *            A persistent store of intermediate symbols, or {@code null} to stop using a persistent store
+     */
+    public synchronized void setPersistentStore(IntermediateSymbolsStore store) {
+
+        this.store = store;
+    }
+
+    /**
+     * Returns the number of bytes of intermediate symbols currently kept by this cache.
+     *
+     * @return the number of bytes of intermediate symbols currently kept by this cache
+     */
+    public synchronized long usedBytes() {
+
+        return usedBytes;
+    }
+
+    /**
+     * Returns the number of source blocks whose intermediate symbols are currently kept by this cache.
+     *
+     * @return the number of source blocks whose intermediate symbols are currently kept by this cache
+     */
+    public synchronized int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of times the intermediate symbols of a source block were found in this cache.
+     *
+     * @return the number of cache hits
+     */
+    public long hits() {
+
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times the intermediate symbols of a source block had to be computed because they were not
+     * found in this cache.
+     *
+     * @return the number of cache misses
+     */
+    public long misses() {
+
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of times the intermediate symbols of a source block were evicted from this cache in order to
+     * respect the maximum number of bytes.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long evictions() {
+
+        return evictions;
+    }
+
+    /**
+     * Removes every entry from this cache. The hit, miss and eviction counters are not reset.
+     */
+    public synchronized void clear() {
+
+        for (Key key : entries.keySet()) {
+            key.symbols = null;
+        }
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * @param key
+     *            The cache key of a source block
+     * @return the cached intermediate symbols of the source block, or {@code null} if they are not cached
+     */
+    SymbolMatrix get(Key key) {
+
+        // no lock, the key references the cached intermediate symbols
+        final SymbolMatrix is = key.symbols;
+        if (is == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+            if (!key.recentlyUsed) { // avoid writing to shared memory on every hit
+                key.recentlyUsed = true;
+            }
+        }
+
+        return is;
+    }
+
+    /**
+     * Caches the intermediate symbols of a source block, evicting others if needed. Intermediate symbols that are
+     * larger than the maximum number of bytes are not cached.
+     *
+     * @param key
+     *            The cache key of a source block
+     * @param is
+     *            The intermediate symbols of the source block
+     */
+    synchronized void put(Key key, SymbolMatrix is) {
+
+        Objects.requireNonNull(key);
+        if (is.sizeInBytes() > maxBytes) {
+            return;
+        }
+
+        final SymbolMatrix previous = entries.put(key, is);
+        if (previous != null) {
+            usedBytes -= previous.sizeInBytes();
+        }
+        usedBytes += is.sizeInBytes();
+        key.symbols = is;
+        key.recentlyUsed = true; // so that it is not the first one evicted by the following
+
+        evictUntilWithinBounds();
+    }
+
+    /**
+     * Removes the intermediate symbols of a source block from the cache, if they are there.
+     *
+     * @param key
+     *            The cache key of a source block
+     */
+    synchronized void remove(Key key) {
+
+        final SymbolMatrix is = entries.remove(key);
+        if (is != null) {
+            usedBytes -= is.sizeInBytes();
+            key.symbols = null;
+        }
+    }
+
+    // requires the lock
+    private void evictUntilWithinBounds() {
+
+        while (usedBytes > maxBytes && !entries.isEmpty()) {
+            final Iterator<Key> iter = entries.keySet().iterator();
+            final Key eldest = iter.next();
+            if (eldest.recentlyUsed) {
+                // give it a second chance, since hits do not reorder the entries
+                eldest.recentlyUsed = false;
+                entries.get(eldest); // moves it to the end
+            }
+            else {
+                usedBytes -= eldest.symbols.sizeInBytes();
+                eldest.symbols = null;
+                iter.remove();
+                evictions++;
+            }
+        }
+    }
+}
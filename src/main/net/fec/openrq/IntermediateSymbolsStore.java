@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.fec.openrq.parameters.FECParameters;
+
+
+/**
+ * A persistent store of the intermediate symbols of source block encoders, kept in a directory of the file system.
+ * <p>
+ * Computing the intermediate symbols of a source block is the most expensive part of encoding. A sender that encodes
+ * the same data again after a restart (for example, a data carousel) can avoid that cost by attaching a store to the
+ * {@linkplain IntermediateSymbolsCache cache} of its encoders: intermediate symbols that are not found in the cache are
+ * then looked up in the store, and intermediate symbols that had to be computed are written to the store.
+ * <p>
+ * The intermediate symbols of each source block are kept in a separate file, whose name is derived from a hash of the
+ * FEC parameters, the source block number and the content of the source block, so a changed source block is never
+ * matched with stale intermediate symbols. Files are memory-mapped when read, so their content is only brought into
+ * memory as needed, and outside the heap.
+ * <p>
+ * The store behaves as a cache: files that cannot be read or written are simply treated as missing, in which case the
+ * intermediate symbols are computed as usual. Files are never deleted by the store.
+ * <p>
+ * Instances of this class are thread safe, and a directory may be used by multiple stores (including stores of
+ * different processes) at the same time.
+ */
+public final class IntermediateSymbolsStore {
+
+    /**
+     * Returns a new store that keeps intermediate symbols in the provided directory. The directory is created if it
+     * does not exist.
+     *
+     * @param directory
+     *            The directory where intermediate symbols are kept
+     * @return a new persistent store of intermediate symbols
+     * @exception NullPointerException
+     *                If {@code directory} is {@code null}
+     * @exception IOException
+     *                If the directory does not exist and cannot be created
+     */
+    public static IntermediateSymbolsStore newStore(File directory) throws IOException {
+
+        Files.createDirectories(directory.toPath());
+        return new IntermediateSymbolsStore(directory);
+    }
+
+
+    private static final String FILE_SUFFIX = ".is";
+
+    // "ORIS", followed by the format version, the number of symbols and the symbol size
+    private static final int MAGIC = 0x4F524953;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.SIZE / Byte.SIZE;
+
+    private final File directory;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+
+    private IntermediateSymbolsStore(File directory) {
+
+        this.directory = Objects.requireNonNull(directory);
+    }
+
+    /**
+     * Returns the directory where intermediate symbols are kept.
+     *
+     * @return the directory where intermediate symbols are kept
+     */
+    public File directory() {
+
+        return directory;
+    }
+
+    /**
+     * Returns the number of times the intermediate symbols of a source block were read from this store.
+     *
+     * @return the number of store hits
+     */
+    public long hits() {
+
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times the intermediate symbols of a source block were not found in this store (or could
+     * not be read from it).
+     *
+     * @return the number of store misses
+     */
+    public long misses() {
+
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of times the intermediate symbols of a source block were written to this store.
+     *
+     * @return the number of writes
+     */
+    public long writes() {
+
+        return writes.get();
+    }
+
+    /**
+     * @param fecParams
+     *            The FEC parameters of the source block
+     * @param sbn
+     *            The source block number
+     * @param sourceSymbols
+     *            The source symbols of the source block
+     * @return the key that identifies the intermediate symbols of the source block inside this store
+     */
+    static String key(FECParameters fecParams, int sbn, EncodingSymbol[] sourceSymbols) {
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("every Java platform supports SHA-256");
+        }
+
+        digest.update(fecParams.asArray());
+        digest.update(ByteBuffer.allocate(8).putInt(sbn).putInt(sourceSymbols.length).array());
+        for (EncodingSymbol symbol : sourceSymbols) {
+            digest.update(symbol.transportData());
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @param key
+     *            A key returned by {@link #key(FECParameters, int, EncodingSymbol[])}
+     * @param L
+     *            The expected number of intermediate symbols
+     * @param T
+     *            The expected symbol size
+     * @return the memory-mapped intermediate symbols, or {@code null} if they are not available
+     */
+    SymbolMatrix load(String key, int L, int T) {
+
+        final File file = fileOf(key);
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel ch = raf.getChannel();
+            final long dataSize = (long)L * T;
+            if (ch.size() != HEADER_SIZE + dataSize) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && ch.read(header, header.position()) >= 0) {
+                // keep reading
+            }
+            header.flip();
+            if (header.remaining() != HEADER_SIZE
+                || header.getInt() != MAGIC
+                || header.getInt() != VERSION
+                || header.getInt() != L
+                || header.getInt() != T)
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            // the mapping remains valid after the channel is closed
+            final ByteBuffer mapped = ch.map(MapMode.READ_ONLY, HEADER_SIZE, dataSize);
+            hits.incrementAndGet();
+            return SymbolMatrix.wrapDirect(mapped, L, T);
+        }
+        catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Writes intermediate symbols to this store. The file is written under a temporary name and then renamed, so
+     * concurrent readers never see a partially written file.
+     *
+     * @param key
+     *            A key returned by {@link #key(FECParameters, int, EncodingSymbol[])}
+     * @param is
+     *            The intermediate symbols
+     */
+    void save(String key, SymbolMatrix is) {
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, ".tmp", directory);
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                final FileChannel ch = raf.getChannel();
+
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(is.numRows()).putInt(is.symbolSize()).flip();
+                while (header.hasRemaining()) {
+                    ch.write(header);
+                }
+
+                final ByteBuffer data = is.asReadOnlyBuffer();
+                while (data.hasRemaining()) {
+                    ch.write(data);
+                }
+                ch.force(false);
+            }
+
+            try {
+                Files.move(tmp.toPath(), fileOf(key).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), fileOf(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+            writes.incrementAndGet();
+        }
+        catch (IOException e) {
+            // the intermediate symbols will be computed again next time
+        }
+        finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private File fileOf(String key) {
+
+        return new File(directory, key + FILE_SUFFIX);
+    }
+}
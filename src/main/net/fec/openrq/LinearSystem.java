@@ -17,7 +17,6 @@ package net.fec.openrq;
 
 
 import java.util.ArrayDeque;
-import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -355,6 +354,45 @@ final class LinearSystem {
      * @return an encoding symbol
      */
     static byte[] enc(int Kprime, byte[][] C, Tuple tuple, int T)
+    {
+
+        return enc(Kprime, new ArrayRows(C, T), tuple, new byte[T]);
+    }
+
+    /**
+     * Encodes a source symbol from intermediate symbols stored in a contiguous symbol matrix.
+     * 
+     * @param Kprime
+     * @param C
+     * @param tuple
+     * @param T
+     * @return an encoding symbol
+     */
+    static byte[] enc(int Kprime, SymbolMatrix C, Tuple tuple, int T)
+    {
+
+        return enc(Kprime, C, tuple, new byte[T]);
+    }
+
+    /**
+     * Encodes a source symbol from intermediate symbols stored in a contiguous symbol matrix, into the provided array.
+     * 
+     * @param Kprime
+     * @param C
+     * @param tuple
+     * @param T
+     * @param result
+     *            An array with a length of at least {@code T}, whose first {@code T} bytes are overwritten
+     * @return the provided array
+     */
+    static byte[] enc(int Kprime, SymbolMatrix C, Tuple tuple, int T, byte[] result)
+    {
+
+        return enc(Kprime, (SymbolRows)C, tuple, result);
+    }
+
+    // the intermediate symbols are only accessed through their rows, wherever they are stored
+    private static byte[] enc(int Kprime, SymbolRows C, Tuple tuple, byte[] result)
     {
 
         // necessary parameters
@@ -372,8 +410,8 @@ final class LinearSystem {
         int a1 = (int)tuple.getA1();
         int b1 = (int)tuple.getB1();
 
-        // allocate memory and initialize the encoding symbol
-        byte[] result = Arrays.copyOf(C[b], T);
+        // initialize the encoding symbol
+        C.getRow(b, result);
 
         /*
          * encoding -- refer to section 5.3.5.3 of RFC 6330
@@ -382,13 +420,13 @@ final class LinearSystem {
         for (long j = 0; j < d; j++)
         {
             b = (b + a) % W;
-            MatrixUtilities.xorSymbolInPlace(result, C[b]);
+            C.xorRowInto(b, result);
         }
 
         while (b1 >= P)
             b1 = (b1 + a1) % P1;
 
-        MatrixUtilities.xorSymbolInPlace(result, C[W + b1]);
+        C.xorRowInto(W + b1, result);
 
         for (long j = 1; j < d1; j++)
         {
@@ -396,7 +434,7 @@ final class LinearSystem {
                 b1 = (b1 + a1) % P1;
             while (b1 >= P);
 
-            MatrixUtilities.xorSymbolInPlace(result, C[W + b1]);
+            C.xorRowInto(W + b1, result);
         }
 
         return result;
@@ -1138,4 +1176,35 @@ final class LinearSystem {
 
         // not instantiable
     }
+
+
+    // intermediate symbols allocated separately, one array per row
+    private static final class ArrayRows implements SymbolRows {
+
+        private final byte[][] rows;
+        private final int T;
+
+
+        ArrayRows(byte[][] rows, int T) {
+
+            this.rows = rows;
+            this.T = T;
+        }
+
+        @Override
+        public byte[] getRow(int row, byte[] dst) {
+
+            System.arraycopy(rows[row], 0, dst, 0, T);
+            return dst;
+        }
+
+        @Override
+        public void xorRowInto(int row, byte[] dst) {
+
+            final byte[] src = rows[row];
+            for (int i = 0; i < T; i++) {
+                dst[i] ^= src[i];
+            }
+        }
+    }
 }
@@ -16,6 +16,13 @@
 
 package net.fec.openrq;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
 import net.fec.openrq.decoder.DataDecoder;
 import net.fec.openrq.decoder.SourceBlockDecoder;
 import net.fec.openrq.encoder.DataEncoder;
@@ -79,7 +86,202 @@ public final class OpenRQ {
     public static ArrayDataEncoder newEncoder(byte[] data, int offset, FECParameters fecParams) {
 
         // exceptions are checked inside the invoked method
-        return ArrayDataEncoder.newEncoder(data, offset, fecParams);
+        return ArrayDataEncoder.newEncoder(data, offset, fecParams, IntermediateSymbolsCache.newUnboundedCache());
+    }
+
+    /**
+     * Returns a {@link DataEncoder} object with an array of bytes as the source data, configured according to the
+     * provided FEC parameters, that keeps the intermediate symbols of its source blocks in the provided cache.
+     * <p>
+     * A bounded cache shared by multiple encoders limits the memory they use for intermediate symbols, at the cost of
+     * recomputing the intermediate symbols of source blocks that are evicted from the cache.
+     * <p>
+     * Note that the maximum supported data length is {@link Integer#MAX_VALUE}.
+     * 
+     * @param fecParams
+     *            FEC parameters that configure the returned data encoder object
+     * @param data
+     *            An array of bytes containing the source data to be encoded
+     * @param cache
+     *            The cache of intermediate symbols used by the returned data encoder
+     * @return a data encoder object backed by an array of bytes
+     * @exception NullPointerException
+     *                If {@code data}, {@code fecParams} or {@code cache} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code fecParams.dataLength() > Integer.MAX_VALUE}
+     * @exception IndexOutOfBoundsException
+     *                If {@code fecParams.dataLength() > data.length}
+     */
+    public static ArrayDataEncoder newEncoder(byte[] data, FECParameters fecParams, IntermediateSymbolsCache cache) {
+
+        return newEncoder(data, 0, fecParams, cache);
+    }
+
+    /**
+     * Returns a {@link DataEncoder} object with an array of bytes as the source data, configured according to the
+     * provided FEC parameters, that keeps the intermediate symbols of its source blocks in the provided cache.
+     * <p>
+     * A bounded cache shared by multiple encoders limits the memory they use for intermediate symbols, at the cost of
+     * recomputing the intermediate symbols of source blocks that are evicted from the cache.
+     * <p>
+     * Note that the maximum supported data length is {@link Integer#MAX_VALUE}.
+     * 
+     * @param fecParams
+     *            FEC parameters that configure the returned data encoder object
+     * @param data
+     *            An array of bytes containing the source data to be encoded
+     * @param offset
+     *            The index in the array where the source data begins
+     * @param cache
+     *            The cache of intermediate symbols used by the returned data encoder
+     * @return a data encoder object backed by an array of bytes
+     * @exception NullPointerException
+     *                If {@code data}, {@code fecParams} or {@code cache} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code fecParams.dataLength() > Integer.MAX_VALUE}
+     * @exception IndexOutOfBoundsException
+     *                If {@code offset < 0 || fecParams.dataLength() > (data.length - offset)}
+     */
+    public static ArrayDataEncoder newEncoder(
+        byte[] data,
+        int offset,
+        FECParameters fecParams,
+        IntermediateSymbolsCache cache)
+    {
+
+        // exceptions are checked inside the invoked method
+        return ArrayDataEncoder.newEncoder(data, offset, fecParams, cache);
+    }
+
+    /**
+     * Returns a {@link DataEncoder} object with a file as the source data, configured according to the provided FEC
+     * parameters. The source data is read from the channel one source block at a time, and at most
+     * {@link FileDataEncoder#DEFAULT_WINDOW_SIZE} source blocks are kept in memory.
+     * <p>
+     * The data length is only limited by the FEC parameters, but each source block must not be larger than
+     * {@link Integer#MAX_VALUE} bytes.
+     * 
+     * @param channel
+     *            A channel from which the source data is read
+     * @param position
+     *            The position in the channel where the source data begins
+     * @param fecParams
+     *            FEC parameters that configure the returned data encoder object
+     * @return a data encoder object backed by a file
+     * @exception NullPointerException
+     *                If {@code channel} or {@code fecParams} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code position < 0}, or if a source block is larger than {@code Integer.MAX_VALUE} bytes
+     */
+    public static FileDataEncoder newEncoder(FileChannel channel, long position, FECParameters fecParams) {
+
+        return newEncoder(channel, position, fecParams,
+            FileDataEncoder.DEFAULT_WINDOW_SIZE, IntermediateSymbolsCache.newUnboundedCache());
+    }
+
+    /**
+     * Returns a {@link DataEncoder} object with a file as the source data, configured according to the provided FEC
+     * parameters. The source data is read from the channel one source block at a time, and at most
+     * {@code windowSize} source blocks are kept in memory, with their intermediate symbols kept in the provided cache.
+     * <p>
+     * The data length is only limited by the FEC parameters, but each source block must not be larger than
+     * {@link Integer#MAX_VALUE} bytes.
+     * 
+     * @param channel
+     *            A channel from which the source data is read
+     * @param position
+     *            The position in the channel where the source data begins
+     * @param fecParams
+     *            FEC parameters that configure the returned data encoder object
+     * @param windowSize
+     *            The maximum number of source blocks kept in memory
+     * @param cache
+     *            The cache of intermediate symbols used by the returned data encoder
+     * @return a data encoder object backed by a file
+     * @exception NullPointerException
+     *                If {@code channel}, {@code fecParams} or {@code cache} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code position < 0 || windowSize < 1}, or if a source block is larger than
+     *                {@code Integer.MAX_VALUE} bytes
+     */
+    public static FileDataEncoder newEncoder(
+        FileChannel channel,
+        long position,
+        FECParameters fecParams,
+        int windowSize,
+        IntermediateSymbolsCache cache)
+    {
+
+        // exceptions are checked inside the invoked method
+        return FileDataEncoder.newEncoder(channel, position, fecParams, windowSize, cache);
+    }
+
+    /**
+     * Returns a {@link StreamingDataEncoder} object that encodes a stream of data, one block at a time, as the data is
+     * written. Every block with {@code sourceSymbolsPerBlock} source symbols of size {@code symbolSize} is sealed and
+     * handed to the provided listener as soon as enough data has been written, and at most {@code windowSize} sealed
+     * blocks are kept by the encoder.
+     * 
+     * @param symbolSize
+     *            The size of a symbol, in number of bytes
+     * @param sourceSymbolsPerBlock
+     *            The number of source symbols in each block (except, possibly, in flushed blocks)
+     * @param windowSize
+     *            The maximum number of sealed blocks kept by the encoder
+     * @param listener
+     *            The listener of sealed blocks
+     * @return a new streaming encoder
+     * @exception NullPointerException
+     *                If {@code listener} is {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code windowSize < 1}, or if the symbol size and number of source symbols per block do not
+     *                result in valid FEC parameters
+     */
+    public static StreamingDataEncoder newStreamingEncoder(
+        int symbolSize,
+        int sourceSymbolsPerBlock,
+        int windowSize,
+        StreamingDataEncoder.Listener listener)
+    {
+
+        return newStreamingEncoder(symbolSize, sourceSymbolsPerBlock, windowSize,
+            IntermediateSymbolsCache.newUnboundedCache(), listener);
+    }
+
+    /**
+     * Returns a {@link StreamingDataEncoder} object that encodes a stream of data, one block at a time, as the data is
+     * written, and that keeps the intermediate symbols of its blocks in the provided cache. Every block with
+     * {@code sourceSymbolsPerBlock} source symbols of size {@code symbolSize} is sealed and handed to the provided
+     * listener as soon as enough data has been written, and at most {@code windowSize} sealed blocks are kept by the
+     * encoder.
+     * 
+     * @param symbolSize
+     *            The size of a symbol, in number of bytes
+     * @param sourceSymbolsPerBlock
+     *            The number of source symbols in each block (except, possibly, in flushed blocks)
+     * @param windowSize
+     *            The maximum number of sealed blocks kept by the encoder
+     * @param cache
+     *            The cache of intermediate symbols used by the returned encoder
+     * @param listener
+     *            The listener of sealed blocks
+     * @return a new streaming encoder
+     * @exception NullPointerException
+     *                If {@code cache} or {@code listener} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code windowSize < 1}, or if the symbol size and number of source symbols per block do not
+     *                result in valid FEC parameters
+     */
+    public static StreamingDataEncoder newStreamingEncoder(
+        int symbolSize,
+        int sourceSymbolsPerBlock,
+        int windowSize,
+        IntermediateSymbolsCache cache,
+        StreamingDataEncoder.Listener listener)
+    {
+
+        // exceptions are checked inside the invoked method
+        return StreamingDataEncoder.newEncoder(symbolSize, sourceSymbolsPerBlock, windowSize, cache, listener);
     }
 
     /**
@@ -182,6 +384,143 @@ public final class OpenRQ {
         return newDecoder(fecParams, 2, fileID, tempStorageDir);
     }
 
+    /**
+     * Returns a {@link DataDecoder} object that decodes source data directly into a file, configured according to the
+     * provided FEC parameters and symbol overhead. All source block decoders will initially be configured with the
+     * provided symbol overhead value.
+     * <p>
+     * For information on the symbol overhead value, refer to the section on
+     * <a href="decoder/SourceBlockDecoder.html#symbol-overhead"><em>Symbol overhead</em></a> in the
+     * {@link SourceBlockDecoder} class header.
+     * <p>
+     * The data length is only limited by the FEC parameters, but each source block must not be larger than
+     * {@link Integer#MAX_VALUE} bytes.
+     * 
+     * @param fecParams
+     *            FEC parameters that configure the returned data decoder object
+     * @param symbolOverhead
+     *            Symbol overhead (must be non-negative)
+     * @param file
+     *            The file where the source data is decoded into (created if it does not exist)
+     * @param position
+     *            The position in the file where the source data begins
+     * @return a data decoder object that decodes source data into a file
+     * @exception NullPointerException
+     *                If {@code fecParams} or {@code file} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code symbolOverhead < 0 || position < 0}, or if a source block is larger than
+     *                {@code Integer.MAX_VALUE} bytes
+     * @exception IOException
+     *                If the file cannot be opened for reading and writing
+     */
+    public static FileDataDecoder newDecoder(FECParameters fecParams, int symbolOverhead, File file, long position)
+        throws IOException
+    {
+
+        // exceptions are checked inside the invoked method
+        return FileDataDecoder.newDecoder(fecParams, symbolOverhead, file, position);
+    }
+
+    /**
+     * Returns an input stream over the source data of the provided data decoder, which yields the source blocks in
+     * source block number order as soon as each one (and every source block before it) is decoded. The storage of each
+     * source block is freed after the source block is read, if it is a temporary file.
+     * 
+     * @param dataDecoder
+     *            A data decoder returned by one of the factory methods in this class
+     * @return a new input stream over the source data of the data decoder
+     * @exception NullPointerException
+     *                If {@code dataDecoder} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the data decoder was not returned by this class
+     * @see DecodedDataInputStream
+     */
+    public static DecodedDataInputStream newDecodedDataInputStream(DataDecoder dataDecoder) {
+
+        // exceptions are checked inside the invoked method
+        return DecodedDataInputStream.newStream(dataDecoder);
+    }
+
+    /**
+     * Returns an asynchronous front end for the provided data decoder, which stores the symbols of each encoding
+     * packet with an asynchronous file channel and decodes the source blocks in the provided executor, so that putting
+     * a packet never blocks the calling thread.
+     * 
+     * @param dataDecoder
+     *            A data decoder returned by one of the factory methods in this class
+     * @param executor
+     *            The executor that stores the symbols and decodes the source blocks
+     * @return a new asynchronous data decoder
+     * @exception NullPointerException
+     *                If {@code dataDecoder} or {@code executor} are {@code null}
+     * @exception IllegalArgumentException
+     *                If the data decoder was not returned by this class
+     * @see AsyncDataDecoder
+     */
+    public static AsyncDataDecoder newAsyncDataDecoder(DataDecoder dataDecoder, ExecutorService executor) {
+
+        // exceptions are checked inside the invoked method
+        return AsyncDataDecoder.newDecoder(dataDecoder, executor);
+    }
+
+    /**
+     * Returns a driver for the provided data decoder that feeds each active source block from its own thread, which
+     * consumes a bounded queue of encoding packets of that source block.
+     * 
+     * @param dataDecoder
+     *            The data decoder fed by the returned driver
+     * @param queueCapacity
+     *            The maximum number of packets queued for each source block
+     * @param threadFactory
+     *            The factory of the threads that feed the source blocks
+     * @return a new driver for the data decoder
+     * @exception NullPointerException
+     *                If {@code dataDecoder} or {@code threadFactory} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code queueCapacity < 1}
+     * @see ThreadPerBlockDecoder
+     */
+    public static ThreadPerBlockDecoder newThreadPerBlockDecoder(
+        DataDecoder dataDecoder,
+        int queueCapacity,
+        ThreadFactory threadFactory)
+    {
+
+        // exceptions are checked inside the invoked method
+        return ThreadPerBlockDecoder.newDecoder(dataDecoder, queueCapacity, threadFactory);
+    }
+
+    /**
+     * Returns a publisher of the encoding packets of the provided data encoder, which interleaves the source blocks and
+     * computes the packets in the provided executor ahead of the demand of its subscribers.
+     * 
+     * @param dataEncoder
+     *            The encoder of the published packets
+     * @param repairPacketsPerBlock
+     *            The number of repair packets published for each source block
+     * @param lookahead
+     *            The maximum number of packets computed ahead of their delivery, for each subscriber
+     * @param executor
+     *            The executor that computes the packets
+     * @return a new publisher of the encoding packets of the data encoder
+     * @exception NullPointerException
+     *                If {@code dataEncoder} or {@code executor} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code lookahead < 1}, or if the number of repair packets is negative or exceeds the number of
+     *                repair symbols of some source block
+     * @see PacketPublisher
+     */
+    public static PacketPublisher newPacketPublisher(
+        DataEncoder dataEncoder,
+        int repairPacketsPerBlock,
+        int lookahead,
+        Executor executor)
+    {
+
+        // exceptions are checked inside the invoked method
+        return PacketPublisher.newPublisher(dataEncoder, repairPacketsPerBlock, lookahead, executor);
+    }
+
     /**
      * Calculates the minimum number of repair symbols from a source block to be transmitted for a given network loss
      * rate.
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.parameters.ParameterChecker;
+import net.fec.openrq.parameters.ParameterIO;
+import net.fec.openrq.util.arithmetic.ExtraMath;
+import net.fec.openrq.util.numericaltype.SizeOf;
+
+
+/**
+ * A run of encoding symbols with consecutive encoding symbol identifiers (ESI) from the same source block, in a compact
+ * format for storing or forwarding many symbols at once.
+ * <p>
+ * A packet batch is written as a single header followed by the concatenated data of its symbols. The header has:
+ * <ul>
+ * <li>the <em>FEC Payload ID</em> (4 bytes), with the source block number and the ESI of the first symbol;
+ * <li>the symbol size (2 bytes, unsigned);
+ * <li>the length of the symbols data (4 bytes).
+ * </ul>
+ * The number of symbols is derived from the symbol size and the length of the symbols data (the last source symbol of
+ * a source block may be shorter than the others). Since the symbol size is included, a batch can be parsed without
+ * knowing the FEC parameters of the data, which is useful for archives of encoding symbols. A run of encoding packets
+ * with a single symbol each is written with one header instead of one header per packet, and is parsed with a single
+ * parsing operation.
+ * <p>
+ * Packet batches are created from encoding packets (see {@link #fromPacket(EncodingPacket, int)} and
+ * {@link #coalesce(Iterable, int)}) or from serializable packets, and are turned back into encoding packets by a data
+ * decoder with method {@link #asEncodingPacket(DataDecoder)}.
+ * <p>
+ * Instances of this class are immutable and thread safe.
+ */
+public final class PacketBatch {
+
+    /**
+     * The size of the header of a packet batch, in number of bytes (10).
+     */
+    public static final int HEADER_SIZE = SizeOf.INT + SizeOf.UNSIGNED_SHORT + SizeOf.INT;
+
+    // header buffers reused by batch reads from, and writes to, channels
+    private static final ThreadLocal<ByteBuffer> HEADER_BUFFERS = new ThreadLocal<ByteBuffer>() {
+
+        @Override
+        protected ByteBuffer initialValue() {
+
+            return ByteBuffer.allocate(HEADER_SIZE);
+        }
+    };
+
+
+    /**
+     * Returns a new packet batch with the provided symbols data. The batch keeps a read-only view of the remaining
+     * bytes of the buffer, without copying them, so the buffer contents must not be changed afterwards.
+     *
+     * @param sbn
+     *            The source block number of the symbols
+     * @param esi
+     *            The encoding symbol identifier of the first symbol
+     * @param symbolSize
+     *            The size of a symbol, in number of bytes
+     * @param symbols
+     *            A buffer with the data of the symbols
+     * @return a new packet batch
+     * @exception NullPointerException
+     *                If {@code symbols} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the source block number, the encoding symbol identifier or the symbol size are out of bounds,
+     *                if the buffer has no bytes remaining, or if the last symbol has an ESI larger than the
+     *                {@linkplain ParameterChecker#maxEncodingSymbolID() maximum ESI}
+     */
+    public static PacketBatch newBatch(int sbn, int esi, int symbolSize, ByteBuffer symbols) {
+
+        if (ParameterChecker.isSourceBlockNumberOutOfBounds(sbn)) {
+            throw new IllegalArgumentException("source block number is out of bounds");
+        }
+        if (ParameterChecker.isEncodingSymbolIDOutOfBounds(esi)) {
+            throw new IllegalArgumentException("encoding symbol identifier is out of bounds");
+        }
+        final String failure = checkBatch(esi, symbolSize, symbols.remaining());
+        if (failure != null) throw new IllegalArgumentException(failure);
+
+        return new PacketBatch(ParameterIO.buildFECpayloadID(sbn, esi), symbolSize, symbols.slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Returns a new packet batch with the symbols of an encoding packet. The batch keeps a view of the symbols data of
+     * the packet, without copying it, so the packet must not be {@linkplain EncodingPacket#release() released} while
+     * the batch is used.
+     *
+     * @param packet
+     *            An encoding packet
+     * @param symbolSize
+     *            The size of a symbol, in number of bytes
+     * @return a new packet batch
+     * @exception NullPointerException
+     *                If {@code packet} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the symbol size is out of bounds or does not agree with the number of symbols in the packet
+     */
+    public static PacketBatch fromPacket(EncodingPacket packet, int symbolSize) {
+
+        final PacketBatch batch = newBatch(
+            packet.sourceBlockNumber(), packet.encodingSymbolID(), symbolSize, packet.symbols());
+        if (batch.numberOfSymbols() != packet.numberOfSymbols()) {
+            throw new IllegalArgumentException("symbol size does not agree with the number of symbols in the packet");
+        }
+
+        return batch;
+    }
+
+    /**
+     * Returns a new packet batch with the symbols of a serializable packet. The batch keeps a view of the symbols array
+     * of the serializable packet, without copying it.
+     *
+     * @param serPac
+     *            A serializable packet
+     * @param symbolSize
+     *            The size of a symbol, in number of bytes
+     * @return a new packet batch
+     * @exception NullPointerException
+     *                If {@code serPac} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the symbol size is out of bounds, or if the serializable packet has no symbols data
+     */
+    public static PacketBatch fromSerializable(SerializablePacket serPac, int symbolSize) {
+
+        return newBatch(
+            serPac.sourceBlockNumber(), serPac.encodingSymbolID(), symbolSize, ByteBuffer.wrap(serPac.symbols()));
+    }
+
+    /**
+     * Coalesces encoding packets into as few packet batches as possible. Consecutive packets (in iteration order) are
+     * placed in the same batch if they have the same source block number and the same symbol type, and if the
+     * encoding symbol identifier of each one follows the last symbol of the previous one. The symbols data of
+     * coalesced packets is copied into a single buffer per batch.
+     *
+     * @param packets
+     *            The encoding packets to be coalesced
+     * @param symbolSize
+     *            The size of a symbol, in number of bytes
+     * @return a list of packet batches with the symbols of the provided packets, in the same order
+     * @exception NullPointerException
+     *                If {@code packets} is {@code null}, or any specific packet is {@code null}
+     * @exception IllegalArgumentException
+     *                If the symbol size is out of bounds or does not agree with the number of symbols in some packet
+     */
+    public static List<PacketBatch> coalesce(Iterable<? extends EncodingPacket> packets, int symbolSize) {
+
+        if (ParameterChecker.isSymbolSizeOutOfBounds(symbolSize)) {
+            throw new IllegalArgumentException("symbol size is out of bounds");
+        }
+
+        final List<PacketBatch> batches = new ArrayList<>();
+        final List<EncodingPacket> run = new ArrayList<>();
+
+        final Iterator<? extends EncodingPacket> it = packets.iterator();
+        while (it.hasNext()) {
+            final EncodingPacket packet = it.next();
+            if (ExtraMath.ceilDiv(packet.symbolsLength(), symbolSize) != packet.numberOfSymbols()) {
+                throw new IllegalArgumentException("symbol size does not agree with the number of symbols in a packet");
+            }
+
+            if (!run.isEmpty() && !follows(run.get(run.size() - 1), packet, symbolSize)) {
+                batches.add(mergeRun(run, symbolSize));
+                run.clear();
+            }
+            run.add(packet);
+        }
+        if (!run.isEmpty()) {
+            batches.add(mergeRun(run, symbolSize));
+        }
+
+        return batches;
+    }
+
+    // true if the packet can be appended to the run ending with the previous packet
+    private static boolean follows(EncodingPacket prev, EncodingPacket packet, int symbolSize) {
+
+        return packet.sourceBlockNumber() == prev.sourceBlockNumber()
+               && packet.symbolType() == prev.symbolType()
+               && packet.encodingSymbolID() == prev.encodingSymbolID() + prev.numberOfSymbols()
+               // only the last symbol of a batch may be shorter than the symbol size
+               && prev.symbolsLength() == symbolSize * prev.numberOfSymbols();
+    }
+
+    // requires a non-empty run of packets that can be coalesced
+    private static PacketBatch mergeRun(List<EncodingPacket> run, int symbolSize) {
+
+        final EncodingPacket first = run.get(0);
+        if (run.size() == 1) {
+            return fromPacket(first, symbolSize);
+        }
+
+        int symbolsLen = 0;
+        for (EncodingPacket packet : run) {
+            symbolsLen += packet.symbolsLength();
+        }
+        final ByteBuffer symbols = ByteBuffer.allocate(symbolsLen);
+        for (EncodingPacket packet : run) {
+            symbols.put(packet.symbols());
+        }
+        symbols.flip();
+
+        return newBatch(first.sourceBlockNumber(), first.encodingSymbolID(), symbolSize, symbols);
+    }
+
+    /**
+     * Parses a packet batch from the given buffer. The batch bytes in the buffer must follow the format specified by
+     * {@link #asBuffer()}.
+     * <p>
+     * The batch will be read, in the buffer, from the current {@linkplain ByteBuffer#position() position}. If the
+     * parsing succeeds, the position of the buffer will have been advanced by the number of bytes read, so that
+     * multiple batches stored back to back in a buffer can be parsed in sequence.
+     * <p>
+     * The returned container object indicates if the parsing succeeded or failed:
+     * <ul>
+     * <li>If the parsing succeeded, the packet batch can be retrieved by calling the method {@link Parsed#value()}
+     * <li>If the parsing failed, the container object will be {@linkplain Parsed#isValid() invalid} and the reason for
+     * the parsing failure can be retrieved by calling the method {@link Parsed#failureReason()}
+     * </ul>
+     *
+     * @param buffer
+     *            A buffer containing a packet batch
+     * @param copySymbols
+     *            If {@code true}, a copy of the symbols data will be performed, otherwise the batch will keep a
+     *            read-only view of the buffer
+     * @return a container object containing a packet batch or a parsing failure reason string
+     * @exception NullPointerException
+     *                If {@code buffer} is {@code null}
+     */
+    public static Parsed<PacketBatch> parse(ByteBuffer buffer, boolean copySymbols) {
+
+        if (buffer.remaining() < HEADER_SIZE) {
+            return Parsed.invalid("the buffer is too small to contain a packet batch header");
+        }
+
+        final int pos = buffer.position();
+        final int fecPayloadID = buffer.getInt(pos);
+        final int symbolSize = buffer.getShort(pos + SizeOf.INT) & 0xFFFF;
+        final int symbolsLen = buffer.getInt(pos + SizeOf.INT + SizeOf.UNSIGNED_SHORT);
+
+        final String failure = checkBatch(ParameterIO.extractEncodingSymbolID(fecPayloadID), symbolSize, symbolsLen);
+        if (failure != null) return Parsed.invalid(failure);
+        if (buffer.remaining() - HEADER_SIZE < symbolsLen) {
+            return Parsed.invalid("the buffer is too small to contain the symbols data of the packet batch");
+        }
+
+        final ByteBuffer view = buffer.duplicate();
+        view.position(pos + HEADER_SIZE);
+        view.limit(pos + HEADER_SIZE + symbolsLen);
+        buffer.position(pos + HEADER_SIZE + symbolsLen);
+
+        final ByteBuffer symbols;
+        if (copySymbols) {
+            symbols = ByteBuffer.allocate(symbolsLen);
+            symbols.put(view);
+            symbols.flip();
+        }
+        else {
+            symbols = view.slice();
+        }
+
+        return Parsed.of(new PacketBatch(fecPayloadID, symbolSize, symbols.asReadOnlyBuffer()));
+    }
+
+    /**
+     * Reads and parses a packet batch from a {@code ReadableByteChannel} object. The read batch bytes must follow the
+     * format specified by {@link #writeTo(WritableByteChannel)}. Only the bytes of one batch are read from the channel,
+     * unless the parsing fails, in which case no more bytes than the header are read.
+     * <p>
+     * The returned container object indicates if the parsing succeeded or failed:
+     * <ul>
+     * <li>If the parsing succeeded, the packet batch can be retrieved by calling the method {@link Parsed#value()}
+     * <li>If the parsing failed, the container object will be {@linkplain Parsed#isValid() invalid} and the reason for
+     * the parsing failure can be retrieved by calling the method {@link Parsed#failureReason()}
+     * </ul>
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until a whole batch is read from the channel, or a parsing
+     * failure is detected, or an {@code IOException} is throw.
+     *
+     * @param ch
+     *            A {@code ReadableByteChannel} object from which a packet batch is read
+     * @return a container object containing a packet batch or a parsing failure reason string
+     * @throws IOException
+     *             If an IO error occurs while reading from the {@code ReadableByteChannel} object
+     * @exception java.io.EOFException
+     *                If the end of the channel is reached before the end of the batch
+     * @exception java.nio.channels.IllegalBlockingModeException
+     *                If the channel is a selectable channel in non-blocking mode
+     * @exception NullPointerException
+     *                If {@code ch} is {@code null}
+     */
+    public static Parsed<PacketBatch> readFrom(ReadableByteChannel ch) throws IOException {
+
+        DataUtils.checkBlocking(Objects.requireNonNull(ch));
+        final ByteBuffer header = HEADER_BUFFERS.get();
+        header.clear();
+        DataUtils.readFully(ch, header);
+        header.flip();
+
+        final int fecPayloadID = header.getInt();
+        final int symbolSize = header.getShort() & 0xFFFF;
+        final int symbolsLen = header.getInt();
+
+        final String failure = checkBatch(ParameterIO.extractEncodingSymbolID(fecPayloadID), symbolSize, symbolsLen);
+        if (failure != null) return Parsed.invalid(failure);
+
+        final ByteBuffer symbols = ByteBuffer.allocate(symbolsLen);
+        DataUtils.readFully(ch, symbols);
+        symbols.flip();
+
+        return Parsed.of(new PacketBatch(fecPayloadID, symbolSize, symbols.asReadOnlyBuffer()));
+    }
+
+    /**
+     * Writes multiple packet batches directly into the provided {@code GatheringByteChannel} object, in the order they
+     * appear in the list. Each batch is written in the same format as in method {@link #writeTo(WritableByteChannel)},
+     * with as few gathering write operations as the channel allows (ideally, only one).
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until every batch is written to the channel, or an
+     * {@code IOException} is throw.
+     *
+     * @param ch
+     *            A {@code GatheringByteChannel} object into which the batches are written
+     * @param batches
+     *            The packet batches to be written
+     * @throws IOException
+     *             If an IO error occurs while writing to the {@code GatheringByteChannel} object
+     * @exception NullPointerException
+     *                If {@code ch} or {@code batches} are {@code null}, or if some batch is {@code null}
+     */
+    public static void writeTo(GatheringByteChannel ch, List<PacketBatch> batches) throws IOException {
+
+        Objects.requireNonNull(ch);
+        final int numBatches = batches.size();
+
+        // a single header buffer for all batches, sliced into one header per batch
+        final ByteBuffer headers = ByteBuffer.allocate(numBatches * HEADER_SIZE);
+        final ByteBuffer[] srcs = new ByteBuffer[2 * numBatches];
+        for (int i = 0; i < numBatches; i++) {
+            final PacketBatch batch = batches.get(i);
+            headers.limit((i + 1) * HEADER_SIZE);
+            headers.position(i * HEADER_SIZE);
+
+            srcs[2 * i] = batch.putHeader(headers.slice());
+            srcs[2 * i].flip();
+            srcs[2 * i + 1] = batch.symbols();
+        }
+
+        DataUtils.writeFully(ch, srcs);
+    }
+
+    // returns a failure reason, or null if the batch is valid
+    private static String checkBatch(int esi, int symbolSize, int symbolsLen) {
+
+        if (ParameterChecker.isSymbolSizeOutOfBounds(symbolSize)) {
+            return "symbol size is out of bounds";
+        }
+        if (symbolsLen <= 0) {
+            return "there is no symbols data";
+        }
+
+        final int numSymbols = ExtraMath.ceilDiv(symbolsLen, symbolSize); // account for smaller last symbol
+        final int maxESI = ParameterChecker.maxEncodingSymbolID();
+        if (numSymbols > 1 + maxESI - esi) {
+            return String.format(
+                "an ESI of %d requires a number of symbols (%d) of at most %d",
+                esi, numSymbols, 1 + maxESI - esi);
+        }
+
+        return null;
+    }
+
+
+    private final int fecPayloadID;
+    private final int symbolSize;
+    private final ByteBuffer symbols; // read-only, never has its position changed
+
+
+    private PacketBatch(int fecPayloadID, int symbolSize, ByteBuffer symbols) {
+
+        this.fecPayloadID = fecPayloadID;
+        this.symbolSize = symbolSize;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Returns the source block number of all symbols in this batch.
+     *
+     * @return the source block number of all symbols in this batch
+     */
+    public int sourceBlockNumber() {
+
+        return ParameterIO.extractSourceBlockNumber(fecPayloadID);
+    }
+
+    /**
+     * Returns the encoding symbol identifier of the first symbol in this batch.
+     *
+     * @return the encoding symbol identifier of the first symbol in this batch
+     */
+    public int encodingSymbolID() {
+
+        return ParameterIO.extractEncodingSymbolID(fecPayloadID);
+    }
+
+    /**
+     * Returns the <em>FEC Payload ID</em> of this batch, with the source block number and the encoding symbol
+     * identifier of the first symbol, as specified in RFC 6330.
+     *
+     * @return the FEC Payload ID of this batch
+     */
+    public int fecPayloadID() {
+
+        return fecPayloadID;
+    }
+
+    /**
+     * Returns the size of a symbol in this batch, in number of bytes.
+     *
+     * @return the size of a symbol in this batch
+     */
+    public int symbolSize() {
+
+        return symbolSize;
+    }
+
+    /**
+     * Returns the number of symbols in this batch.
+     *
+     * @return the number of symbols in this batch
+     */
+    public int numberOfSymbols() {
+
+        return ExtraMath.ceilDiv(symbolsLength(), symbolSize);
+    }
+
+    /**
+     * Returns the length of the symbols data in this batch, in number of bytes.
+     *
+     * @return the length of the symbols data in this batch
+     */
+    public int symbolsLength() {
+
+        return symbols.remaining();
+    }
+
+    /**
+     * Returns a read-only buffer with the symbols data of this batch.
+     *
+     * @return a read-only buffer with the symbols data of this batch
+     */
+    public ByteBuffer symbols() {
+
+        return symbols.duplicate();
+    }
+
+    /**
+     * Returns the number of bytes taken by this batch when written, which is the size of the header plus the length
+     * of the symbols data.
+     *
+     * @return the number of bytes taken by this batch when written
+     */
+    public int serializedLength() {
+
+        return HEADER_SIZE + symbolsLength();
+    }
+
+    /**
+     * Parses an encoding packet with the symbols of this batch, using the provided data decoder. The packet keeps a
+     * view of the symbols data of this batch, without copying it.
+     * <p>
+     * The parsing fails if the symbol size of this batch differs from the one of the data decoder, or if the symbols
+     * are not valid for the data decoder (for example, if they include both source and repair symbols).
+     *
+     * @param dec
+     *            A data decoder
+     * @return a container object containing an encoding packet or a parsing failure reason string
+     * @exception NullPointerException
+     *                If {@code dec} is {@code null}
+     */
+    public Parsed<EncodingPacket> asEncodingPacket(DataDecoder dec) {
+
+        if (dec.symbolSize() != symbolSize) {
+            return Parsed.invalid(String.format(
+                "symbol size of the batch (%d) differs from the one of the decoder (%d)", symbolSize, dec.symbolSize()));
+        }
+
+        return dec.parsePacket(sourceBlockNumber(), encodingSymbolID(), symbols(), false);
+    }
+
+    /**
+     * Returns a serializable packet with the symbols of this batch. The symbols data is copied.
+     *
+     * @return a serializable packet with the symbols of this batch
+     */
+    public SerializablePacket asSerializable() {
+
+        final byte[] array = new byte[symbolsLength()];
+        symbols().get(array);
+        return new SerializablePacket(fecPayloadID, array);
+    }
+
+    /**
+     * Returns a buffer with the contents of this batch. The buffer will contain the header, followed by the symbols
+     * data.
+     *
+     * @return a buffer with the contents of this batch
+     */
+    public ByteBuffer asBuffer() {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(serializedLength());
+        writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes in the provided buffer the contents of this batch. The write consists of the header, followed by the
+     * symbols data.
+     * <p>
+     * The provided buffer must not be {@linkplain ByteBuffer#isReadOnly() read-only}, and must have at least
+     * {@link #serializedLength()} bytes {@linkplain ByteBuffer#remaining() remaining}. If this method returns normally,
+     * the position of the provided buffer will have been advanced by the same amount.
+     *
+     * @param buffer
+     *            A buffer on which the batch contents are written
+     * @exception ReadOnlyBufferException
+     *                If the provided buffer is read-only
+     * @exception BufferOverflowException
+     *                If the provided buffer has less than {@code serializedLength()} bytes remaining
+     * @exception NullPointerException
+     *                If the {@code buffer} is {@code null}
+     */
+    public void writeTo(ByteBuffer buffer) {
+
+        if (buffer.isReadOnly()) throw new ReadOnlyBufferException();
+        if (buffer.remaining() < serializedLength()) throw new BufferOverflowException();
+
+        putHeader(buffer);
+        buffer.put(symbols());
+    }
+
+    /**
+     * Writes this batch directly into the provided {@code WritableByteChannel} object. The method will write the
+     * header, followed by the symbols data. If the channel is a {@code GatheringByteChannel}, both are written with a
+     * single gathering write operation, if possible.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until the whole batch is written to the channel, or an
+     * {@code IOException} is throw.
+     *
+     * @param ch
+     *            A {@code WritableByteChannel} object into which the batch is written
+     * @throws IOException
+     *             If an IO error occurs while writing to the {@code WritableByteChannel} object
+     * @exception NullPointerException
+     *                If {@code ch} is {@code null}
+     */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+
+        Objects.requireNonNull(ch);
+        final ByteBuffer header = HEADER_BUFFERS.get();
+        header.clear();
+        putHeader(header).flip();
+        final ByteBuffer symbolsBuf = symbols();
+
+        if (ch instanceof GatheringByteChannel) {
+            DataUtils.writeFully((GatheringByteChannel)ch, new ByteBuffer[] {header, symbolsBuf});
+        }
+        else {
+            while (header.hasRemaining()) {
+                ch.write(header);
+            }
+            while (symbolsBuf.hasRemaining()) {
+                ch.write(symbolsBuf);
+            }
+        }
+    }
+
+    // returns the provided buffer
+    private ByteBuffer putHeader(ByteBuffer buffer) {
+
+        buffer.putInt(fecPayloadID);
+        buffer.putShort((short)symbolSize);
+        buffer.putInt(symbolsLength());
+        return buffer;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.fec.openrq.util.collection.ImmutableList;
+
+
+/**
+ * Dispatches batches of encoding packets to the source block decoders of a data decoder.
+ * <p>
+ * Packets are first grouped by source block number, preserving their relative order. Each group is then claimed, as a
+ * whole, by one of the <em>stripes</em> that feed the batch, so the order in which a block receives its packets is the
+ * order in which they appear in the batch.
+ * <p>
+ * Stripes run in parallel when an {@code Executor} is provided: the calling thread is one of the stripes, and the
+ * others are tasks run by the executor. Every stripe keeps claiming groups until none is left, so the calling thread
+ * feeds by itself the groups that the other stripes did not claim yet (for instance, because the executor is busy), and
+ * then only waits for the groups still being fed. The dispatching methods only return after every packet in the batch
+ * has been put.
+ * <p>
+ * The lists that group the packets are kept for the next batch, so a steady flow of batches does not allocate them
+ * again.
+ */
+final class PacketDispatcher {
+
+    /**
+     * @param decoders
+     *            The source block decoders, indexed by source block number
+     * @return a new packet dispatcher
+     */
+    static PacketDispatcher newDispatcher(ImmutableList<ArraySourceBlockDecoder> decoders) {
+
+        return newDispatcher(decoders, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param decoders
+     *            The source block decoders, indexed by source block number
+     * @param maxStripes
+     *            The maximum number of stripes that feed a batch, including the calling thread
+     * @return a new packet dispatcher
+     */
+    static PacketDispatcher newDispatcher(ImmutableList<ArraySourceBlockDecoder> decoders, int maxStripes) {
+
+        if (maxStripes < 1) throw new IllegalArgumentException("maximum number of stripes must be positive");
+        return new PacketDispatcher(Objects.requireNonNull(decoders), maxStripes);
+    }
+
+
+    private final ImmutableList<ArraySourceBlockDecoder> decoders;
+    private final int maxStripes;
+
+    // a batch whose lists are reused by the next dispatch, or null if it is in use (or was never created)
+    private final AtomicReference<Batch> spareBatch = new AtomicReference<>();
+
+
+    private PacketDispatcher(ImmutableList<ArraySourceBlockDecoder> decoders, int maxStripes) {
+
+        this.decoders = decoders;
+        this.maxStripes = maxStripes;
+    }
+
+    /**
+     * Puts every packet in the calling thread, grouped by source block.
+     *
+     * @param packets
+     * @return the number of packets put
+     * @exception IllegalArgumentException
+     *                If some packet has an invalid source block number (in which case no packet is put)
+     */
+    int dispatch(Iterable<? extends EncodingPacket> packets) {
+
+        final Batch batch = takeBatch();
+        try {
+            batch.group(packets);
+            batch.feedGroups();
+
+            rethrow(batch.failure.get());
+            return batch.numPackets;
+        }
+        finally {
+            batch.release();
+        }
+    }
+
+    /**
+     * Puts every packet using the provided executor, with the calling thread as one of the stripes.
+     *
+     * @param packets
+     * @param executor
+     * @return the number of packets put
+     * @exception IllegalArgumentException
+     *                If some packet has an invalid source block number (in which case no packet is put)
+     */
+    int dispatch(Iterable<? extends EncodingPacket> packets, Executor executor) {
+
+        Objects.requireNonNull(executor);
+        final Batch batch = takeBatch();
+        try {
+            batch.group(packets);
+
+            // the calling thread is one of the stripes
+            final int numHelpers = Math.min(batch.numGroups, maxStripes) - 1;
+            for (int i = 0; i < numHelpers; i++) {
+                batch.retain();
+                try {
+                    executor.execute(batch);
+                }
+                catch (RejectedExecutionException e) {
+                    batch.release(); // the executor is saturated or shut down, so the calling thread does the work
+                    break;
+                }
+            }
+
+            batch.feedGroups();
+            batch.awaitGroups();
+
+            rethrow(batch.failure.get());
+            return batch.numPackets;
+        }
+        finally {
+            batch.release();
+        }
+    }
+
+    private Batch takeBatch() {
+
+        final Batch batch = spareBatch.getAndSet(null);
+        return (batch != null) ? batch : new Batch();
+    }
+
+    private static void rethrow(Throwable t) {
+
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        }
+        else if (t instanceof Error) {
+            throw (Error)t;
+        }
+        else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+
+    /*
+     * The packets of a batch grouped by source block, and the state of the stripes that feed them. The run method is
+     * the body of the stripes run by an executor.
+     *
+     * A batch is only reused after every stripe is done with it, which is tracked by a reference count, so that a
+     * stripe that starts late cannot see the packets of a later batch.
+     */
+    private final class Batch implements Runnable {
+
+        private final List<List<EncodingPacket>> groups; // indexed by source block number
+        private final int[] groupSBNs; // the source block numbers of the non-empty groups, in order of appearance
+
+        int numGroups;
+        int numPackets;
+
+        private final AtomicInteger nextGroup = new AtomicInteger(); // the index of the next group to be claimed
+        private int groupsFed; // guarded by this batch
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        private final AtomicInteger refCount = new AtomicInteger(1); // the caller and the stripes run by an executor
+
+
+        Batch() {
+
+            this.groups = new ArrayList<>(decoders.size());
+            for (int sbn = 0; sbn < decoders.size(); sbn++) {
+                groups.add(new ArrayList<EncodingPacket>());
+            }
+            this.groupSBNs = new int[decoders.size()];
+        }
+
+        void group(Iterable<? extends EncodingPacket> packets) {
+
+            for (EncodingPacket packet : packets) {
+                final int sbn = packet.sourceBlockNumber();
+                if (sbn < 0 || sbn >= groups.size()) {
+                    throw new IllegalArgumentException("invalid source block number");
+                }
+
+                final List<EncodingPacket> group = groups.get(sbn);
+                if (group.isEmpty()) {
+                    groupSBNs[numGroups++] = sbn;
+                }
+                group.add(packet);
+                numPackets++;
+            }
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                feedGroups();
+            }
+            finally {
+                release();
+            }
+        }
+
+        // claims and feeds groups until none is left
+        void feedGroups() {
+
+            int index;
+            while ((index = nextGroup.getAndIncrement()) < numGroups) {
+                try {
+                    final int sbn = groupSBNs[index];
+                    final ArraySourceBlockDecoder decoder = decoders.get(sbn);
+                    for (EncodingPacket packet : groups.get(sbn)) {
+                        decoder.putEncodingPacket(packet);
+                    }
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                finally {
+                    synchronized (this) {
+                        if (++groupsFed == numGroups) {
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+
+        // waits for the groups claimed by other stripes
+        void awaitGroups() {
+
+            boolean interrupted = false;
+            synchronized (this) {
+                while (groupsFed < numGroups) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true; // must wait for the other stripes anyway
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void retain() {
+
+            refCount.incrementAndGet();
+        }
+
+        // the last one to release the batch clears it and keeps it for the next dispatch
+        void release() {
+
+            if (refCount.decrementAndGet() == 0) {
+                for (int i = 0; i < numGroups; i++) {
+                    groups.get(groupSBNs[i]).clear();
+                }
+                numGroups = 0;
+                numPackets = 0;
+                nextGroup.set(0);
+                synchronized (this) {
+                    groupsFed = 0;
+                }
+                failure.set(null);
+                refCount.set(1);
+
+                spareBatch.set(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.fec.openrq.encoder.DataEncoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.ParameterChecker;
+
+
+/**
+ * A publisher of the encoding packets of a data encoder, which delivers packets to its subscribers only as fast as
+ * they request them, while computing the next packets in the background.
+ * <p>
+ * Each subscriber receives, in its own sequence, the source packets and a fixed number of repair packets of every
+ * source block, with the source blocks <em>interleaved</em>: the packets with encoding symbol identifier {@code 0} of
+ * every source block come first, then the packets with identifier {@code 1}, and so on. Losing a burst of consecutive
+ * packets therefore costs each source block only a few symbols.
+ * <p>
+ * Encoding symbols are computed by tasks in an executor up to a configurable <em>lookahead</em>, that is, at most that
+ * many packets are computed (or being computed) but not yet delivered to a subscriber, regardless of its demand.
+ * Computing repair symbols thus overlaps with the transmission of the previous packets, and a subscriber that keeps
+ * requesting packets (for instance, a rate-controlled sender) rarely waits for the encoder.
+ * <p>
+ * The {@link Subscriber} and {@link Subscription} interfaces follow the same protocol as the interfaces with the same
+ * name in the <a href="http://www.reactive-streams.org/">Reactive Streams</a> specification: the methods of a
+ * subscriber are never invoked concurrently, {@code onNext} is invoked at most as many times as the number of
+ * requested packets, and the sequence ends with either {@code onComplete} or {@code onError}, unless the subscription
+ * is cancelled. The methods of a subscriber may be invoked by the thread that requests packets or by a thread of the
+ * executor.
+ * <p>
+ * This class is thread safe, and packets of a subscription may be requested concurrently by multiple threads.
+ */
+public final class PacketPublisher {
+
+    /**
+     * Receives the encoding packets of a publisher, as they are requested.
+     */
+    public static interface Subscriber {
+
+        /**
+         * Invoked once, before any other method, with the subscription through which packets are requested.
+         *
+         * @param subscription
+         *            The subscription of this subscriber
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Invoked with the next encoding packet.
+         *
+         * @param packet
+         *            The next encoding packet
+         */
+        void onNext(EncodingPacket packet);
+
+        /**
+         * Invoked once if the subscription fails, after which no other method is invoked.
+         *
+         * @param cause
+         *            The cause of the failure
+         */
+        void onError(Throwable cause);
+
+        /**
+         * Invoked once after the last encoding packet, after which no other method is invoked.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and one of its subscribers.
+     */
+    public static interface Subscription {
+
+        /**
+         * Requests the delivery of more encoding packets. The demand is cumulative, and a total demand larger than
+         * {@code Long.MAX_VALUE} is considered unbounded. A non-positive number fails the subscription with an
+         * {@code IllegalArgumentException}.
+         *
+         * @param n
+         *            The number of additional packets to deliver
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery of encoding packets. Packets may still be delivered while this method is running.
+         */
+        void cancel();
+    }
+
+
+    /**
+     * @param dataEncoder
+     *            The encoder of the published packets
+     * @param repairPacketsPerBlock
+     *            The number of repair packets published for each source block
+     * @param lookahead
+     *            The maximum number of packets computed ahead of their delivery, for each subscriber
+     * @param executor
+     *            The executor that computes the packets
+     * @return a new publisher of the encoding packets of the data encoder
+     * @exception NullPointerException
+     *                If {@code dataEncoder} or {@code executor} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code lookahead < 1}, or if the number of repair packets is negative or exceeds the number of
+     *                repair symbols of some source block
+     */
+    static PacketPublisher newPublisher(
+        DataEncoder dataEncoder,
+        int repairPacketsPerBlock,
+        int lookahead,
+        Executor executor)
+    {
+
+        Objects.requireNonNull(executor);
+        if (lookahead < 1) throw new IllegalArgumentException("lookahead must be positive");
+
+        final int[] numPackets = new int[dataEncoder.numberOfSourceBlocks()];
+        for (int sbn = 0; sbn < numPackets.length; sbn++) {
+            final int K = dataEncoder.sourceBlock(sbn).numberOfSourceSymbols();
+            if (repairPacketsPerBlock < 0 || repairPacketsPerBlock > (1 + ParameterChecker.maxEncodingSymbolID() - K)) {
+                throw new IllegalArgumentException("invalid number of repair packets");
+            }
+            numPackets[sbn] = K + repairPacketsPerBlock;
+        }
+
+        return new PacketPublisher(dataEncoder, numPackets, lookahead, executor);
+    }
+
+
+    private final DataEncoder dataEncoder;
+    private final int[] numPackets; // the number of packets of each source block
+    private final int lookahead;
+    private final Executor executor;
+
+
+    private PacketPublisher(DataEncoder dataEncoder, int[] numPackets, int lookahead, Executor executor) {
+
+        this.dataEncoder = dataEncoder;
+        this.numPackets = numPackets;
+        this.lookahead = lookahead;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the encoder of the published packets.
+     *
+     * @return the encoder of the published packets
+     */
+    public DataEncoder dataEncoder() {
+
+        return dataEncoder;
+    }
+
+    /**
+     * Returns the maximum number of packets computed ahead of their delivery, for each subscriber.
+     *
+     * @return the lookahead of this publisher
+     */
+    public int lookahead() {
+
+        return lookahead;
+    }
+
+    /**
+     * Returns the number of packets published to each subscriber.
+     *
+     * @return the number of packets published to each subscriber
+     */
+    public long numberOfPackets() {
+
+        long total = 0;
+        for (int n : numPackets) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Starts publishing the encoding packets to a new subscriber, which receives its own sequence of packets from the
+     * beginning. The subscriber is first given its subscription, after which the first packets start being computed.
+     *
+     * @param subscriber
+     *            A subscriber of encoding packets
+     * @exception NullPointerException
+     *                If {@code subscriber} is {@code null}
+     */
+    public void subscribe(Subscriber subscriber) {
+
+        final PacketSubscription subscription = new PacketSubscription(Objects.requireNonNull(subscriber));
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+
+    /*
+     * The subscriber is only invoked from inside the drain loop, which is run by a single thread at a time: a thread
+     * that finds the counter of pending drains at zero runs the loop until no more drains are pending, and every other
+     * thread just increments the counter (so that the running thread loops once more).
+     */
+    private final class PacketSubscription implements Subscription {
+
+        private final Subscriber subscriber;
+
+        private final AtomicLong requested; // the demand not yet satisfied
+        private final AtomicInteger pendingDrains;
+        private volatile boolean cancelled;
+        private volatile Throwable requestFailure;
+
+        // only accessed inside the drain loop
+        private final Queue<PacketTask> ahead; // the packets computed ahead, in publishing order
+        private int nextRound; // the encoding symbol identifier of the next packet to compute
+        private int nextSBN; // the source block number of the next packet to compute
+        private long packetsLeft; // the packets not yet delivered
+        private boolean done;
+
+
+        PacketSubscription(Subscriber subscriber) {
+
+            this.subscriber = subscriber;
+
+            this.requested = new AtomicLong(0);
+            this.pendingDrains = new AtomicInteger(0);
+            this.cancelled = false;
+            this.requestFailure = null;
+
+            this.ahead = new ArrayDeque<>(lookahead);
+            this.nextRound = 0;
+            this.nextSBN = 0;
+            this.packetsLeft = numberOfPackets();
+            this.done = false;
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (n <= 0) {
+                requestFailure = new IllegalArgumentException("non-positive number of requested packets");
+            }
+            else {
+                long current, next;
+                do {
+                    current = requested.get();
+                    next = current + n;
+                    if (next < 0) next = Long.MAX_VALUE; // unbounded
+                }
+                while (!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+
+            cancelled = true;
+            drain(); // drops the packets computed ahead
+        }
+
+        void drain() {
+
+            if (pendingDrains.getAndIncrement() != 0) {
+                return; // another thread is draining, and will loop once more
+            }
+
+            int missed = 1;
+            do {
+                if (!done) {
+                    drainOnce();
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        private void drainOnce() {
+
+            if (cancelled) {
+                finish();
+                return;
+            }
+
+            final Throwable failure = requestFailure;
+            if (failure != null) {
+                fail(failure);
+                return;
+            }
+
+            scheduleAhead();
+            while (!done && !cancelled && requested.get() > 0 && !ahead.isEmpty() && ahead.peek().isComputed()) {
+                final PacketTask task = ahead.poll();
+                if (task.failure != null) {
+                    fail(task.failure);
+                    return;
+                }
+
+                if (requested.get() != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                packetsLeft--;
+                subscriber.onNext(task.packet);
+
+                scheduleAhead();
+            }
+
+            if (!done && !cancelled && packetsLeft == 0) {
+                finish();
+                subscriber.onComplete();
+            }
+        }
+
+        // computes the next packets, until the lookahead is full or every packet is computed
+        private void scheduleAhead() {
+
+            while (ahead.size() < lookahead && nextRound >= 0) {
+                final PacketTask task = new PacketTask(this, nextSBN, nextRound);
+                ahead.add(task);
+                advance();
+
+                if (task.esi < dataEncoder.sourceBlock(task.sbn).numberOfSourceSymbols()) {
+                    task.compute(); // source packets are cheap, so they are not worth a task
+                }
+                else {
+                    try {
+                        executor.execute(task);
+                    }
+                    catch (RejectedExecutionException e) {
+                        task.failure = e;
+                        task.computed = true;
+                    }
+                }
+            }
+        }
+
+        // moves to the next packet to compute, in interleaved order, or sets nextRound to -1 if there are no more
+        private void advance() {
+
+            int skipped = 0;
+            do {
+                nextSBN++;
+                if (nextSBN == numPackets.length) {
+                    nextSBN = 0;
+                    nextRound++;
+                }
+                if (++skipped > numPackets.length) {
+                    nextRound = -1; // every source block is exhausted
+                    return;
+                }
+            }
+            while (nextRound >= numPackets[nextSBN]);
+        }
+
+        private void fail(Throwable cause) {
+
+            finish();
+            subscriber.onError(cause);
+        }
+
+        private void finish() {
+
+            done = true;
+            ahead.clear();
+        }
+    }
+
+    private final class PacketTask implements Runnable {
+
+        private final PacketSubscription subscription;
+        final int sbn;
+        final int esi;
+
+        volatile boolean computed;
+        EncodingPacket packet; // written before computed
+        Throwable failure; // written before computed
+
+
+        PacketTask(PacketSubscription subscription, int sbn, int esi) {
+
+            this.subscription = subscription;
+            this.sbn = sbn;
+            this.esi = esi;
+            this.computed = false;
+        }
+
+        boolean isComputed() {
+
+            return computed;
+        }
+
+        @Override
+        public void run() {
+
+            compute();
+            subscription.drain();
+        }
+
+        void compute() {
+
+            if (!subscription.cancelled) {
+                try {
+                    final SourceBlockEncoder sbEnc = dataEncoder.sourceBlock(sbn);
+                    packet = sbEnc.encodingPacket(esi);
+                }
+                catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+            computed = true;
+        }
+    }
+}
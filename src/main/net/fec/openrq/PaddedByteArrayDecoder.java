@@ -18,24 +18,83 @@ package net.fec.openrq;
 
 import net.fec.openrq.util.array.ArrayUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
 
 
 /**
+ * Storage for the source symbols of a source block being decoded, backed by a temporary file.
+ * <p>
+ * All reads and writes use positional {@link FileChannel} operations, so they never touch the file pointer of the
+ * underlying {@code RandomAccessFile} and may be issued concurrently by multiple threads, as long as concurrent writes
+ * target disjoint regions.
+ * <p>
+ * Whole symbols can also be read and written in bulk, in which case runs of consecutive symbols are transferred with a
+ * single I/O operation each (up to a bounded chunk size), instead of one operation per symbol.
+ * <p>
+ * Bytes may also be written with an {@link AsynchronousFileChannel}, in which case the calling thread only starts the
+ * write and a completion handler is notified once the bytes are in the file.
+ * <p>
+ * A failure to read or write the file is thrown as a {@link DataIOException}. Since file channels are interruptible, a
+ * thread that is interrupted during an I/O operation closes the channel, after which every read and write fails; the
+ * threads that access this storage must therefore not be interrupted.
  */
 final class PaddedByteArrayDecoder {
 
+    // maximum number of bytes transferred by a single bulk I/O operation
+    private static final int MAX_CHUNK_BYTES = 1 << 16;
+
     static PaddedByteArrayDecoder newArray(RandomAccessFileHandle rafHandle, int off, int len, int paddedLen) {
 
         if (paddedLen < 0) throw new IllegalArgumentException("negative padded length");
 
-        return new PaddedByteArrayDecoder(rafHandle, off, len, paddedLen);
+        return new PaddedByteArrayDecoder(rafHandle, 0L, off, len, paddedLen, true);
+    }
+
+    /**
+     * Returns storage for a source block inside a region of a file that may be shared with other source blocks (and
+     * whose size may exceed {@code Integer.MAX_VALUE} bytes).
+     *
+     * @param rafHandle
+     *            The file
+     * @param filePos
+     *            The position in the file where the source block begins
+     * @param dataOff
+     *            The offset of the source block inside the source data
+     * @param len
+     *            The length of the source block without padding
+     * @param paddedLen
+     *            The length of the source block with padding
+     * @return storage for a source block inside a region of a file
+     */
+    static PaddedByteArrayDecoder newFileRegion(
+        RandomAccessFileHandle rafHandle,
+        long filePos,
+        long dataOff,
+        int len,
+        int paddedLen)
+    {
+
+        if (filePos < 0) throw new IllegalArgumentException("negative file position");
+        if (paddedLen < 0) throw new IllegalArgumentException("negative padded length");
+
+        return new PaddedByteArrayDecoder(rafHandle, filePos, dataOff, len, paddedLen, false);
     }
 
     private final RandomAccessFileHandle rafHandle;
-    private final int arrayOff;
+    private final FileChannel channel;
+    private final long filePos; // every index is relative to this position in the file
+    private final boolean ownsFile; // true if the file only stores this array
+    private final long dataOff;
     private final int arrayLen;
 
     // paddedLength >= arrayLen ALWAYS
@@ -43,10 +102,20 @@ final class PaddedByteArrayDecoder {
     private final byte[] padding;
 
 
-    private PaddedByteArrayDecoder(RandomAccessFileHandle rafHandle, int off, int len, int paddedLen) {
+    private PaddedByteArrayDecoder(
+        RandomAccessFileHandle rafHandle,
+        long filePos,
+        long dataOff,
+        int len,
+        int paddedLen,
+        boolean ownsFile)
+    {
 
         this.rafHandle = rafHandle;
-        this.arrayOff = off;
+        this.channel = rafHandle.getHandle().getChannel();
+        this.filePos = filePos;
+        this.ownsFile = ownsFile;
+        this.dataOff = dataOff;
         this.arrayLen = Math.min(len, paddedLen);
         this.paddedLen = paddedLen;
 
@@ -60,13 +129,8 @@ final class PaddedByteArrayDecoder {
 
     byte[] array(byte[] buffer) {
 
-        try {
-            rafHandle.getHandle().read(buffer);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            return buffer;
-        }
+        readFully(0, ByteBuffer.wrap(buffer, 0, Math.min(buffer.length, arrayLen)));
+        return buffer;
     }
 
     RandomAccessFile tempStorage () {
@@ -77,9 +141,36 @@ final class PaddedByteArrayDecoder {
         return rafHandle.getName();
     }
 
-    int arrayOffset() {
+    /**
+     * Returns {@code true} if the file only stores this array, in which case {@link #release()} deletes it.
+     *
+     * @return {@code true} if the file only stores this array
+     */
+    boolean ownsFile() {
+
+        return ownsFile;
+    }
+
+    /**
+     * Closes and deletes the file, if it only stores this array; otherwise, does nothing. The array must not be used
+     * afterwards.
+     */
+    void release() {
+
+        if (ownsFile) {
+            try {
+                rafHandle.closeAsyncChannel();
+                rafHandle.getHandle().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            new File(rafHandle.getName()).delete();
+        }
+    }
+
+    long dataOffset() {
 
-        return arrayOff;
+        return dataOff;
     }
 
     int paddinglessLength() {
@@ -94,51 +185,92 @@ final class PaddedByteArrayDecoder {
 
     private byte safeGet(int index) {
 
-        byte readByte = 0;
-
         if (index >= arrayLen) {
             return padding[index - arrayLen];
         }
         else {
-            try {
-                rafHandle.getHandle().seek(index);
-                readByte = rafHandle.getHandle().readByte();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return readByte;
+            final ByteBuffer one = ByteBuffer.allocate(1);
+            readFully(index, one);
+            return one.get(0);
         }
     }
 
-    private void safeSet(int index, byte value) {
+    // reads the region [index, index + dst.remaining()) and advances the position of dst
+    private void safeGetBytes(int index, ByteBuffer dst) {
 
-        if (index >= arrayLen) {
-            padding[index - arrayLen] = value;
+        final int len = dst.remaining();
+        final int fileLen = Math.max(0, Math.min(len, arrayLen - index));
+
+        if (fileLen > 0) {
+            final int lim = dst.limit();
+            dst.limit(dst.position() + fileLen);
+            readFully(index, dst);
+            dst.limit(lim);
         }
-        else {
-            try {
-                rafHandle.getHandle().seek(index);
-                rafHandle.getHandle().write(value);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (fileLen < len) { // the remaining bytes are in the padding
+            final int padOff = Math.max(0, index - arrayLen);
+            dst.put(padding, padOff, len - fileLen);
         }
     }
 
-    private void safeSetBytes(int index, byte [] value, int offset, int len) {
+    // writes the region [index, index + src.remaining()) and advances the position of src
+    private void safeSetBytes(int index, ByteBuffer src) {
 
-        if (offset >= arrayLen) {
-            for (int i = offset; i < (offset + len); i++)
-            padding[i - arrayLen] = value [i];
+        final int len = src.remaining();
+        final int fileLen = Math.max(0, Math.min(len, arrayLen - index));
+
+        if (fileLen > 0) {
+            final int lim = src.limit();
+            src.limit(src.position() + fileLen);
+            writeFully(index, src);
+            src.limit(lim);
         }
-        else {
-            try {
-                rafHandle.getHandle().seek(index);
-                rafHandle.getHandle().write(value, offset, len);
-            } catch (IOException e) {
-                e.printStackTrace();
+        if (fileLen < len) { // the remaining bytes go into the padding
+            final int padOff = Math.max(0, index - arrayLen);
+            src.get(padding, padOff, len - fileLen);
+        }
+    }
+
+    private void readFully(long index, ByteBuffer dst) {
+
+        long position = filePos + index;
+        try {
+            while (dst.hasRemaining()) {
+                final int read = channel.read(dst, position);
+                if (read < 0) { // reading past the end of the file, fill with zeros
+                    while (dst.hasRemaining()) {
+                        dst.put((byte)0);
+                    }
+                }
+                else {
+                    position += read;
+                }
+            }
+        }
+        catch (IOException e) {
+            throw storageFailure("could not read from", e);
+        }
+    }
+
+    private void writeFully(long index, ByteBuffer src) {
+
+        long position = filePos + index;
+        try {
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
             }
         }
+        catch (IOException e) {
+            throw storageFailure("could not write to", e);
+        }
+    }
+
+    private DataIOException storageFailure(String what, IOException e) {
+
+        if (e instanceof ClosedByInterruptException) {
+            return new DataIOException(what + " file " + tempStorageName() + " (closed by an interrupt)", e);
+        }
+        return new DataIOException(what + " file " + tempStorageName(), e);
     }
 
     byte get(int index) {
@@ -165,15 +297,18 @@ final class PaddedByteArrayDecoder {
     byte[] getBytes(int index, byte[] dst, int off, int len) {
 
         checkIndexAndArray(index, length(), dst, off, len);
-
-        final int end = off + len;
-        for (int d = off, ii = index; d < end; d++, ii++) {
-            dst[d] = safeGet(ii);
-        }
+        safeGetBytes(index, ByteBuffer.wrap(dst, off, len));
 
         return dst;
     }
 
+    // reads dst.remaining() bytes and advances the position of dst
+    void getBytes(int index, ByteBuffer dst) {
+
+        checkIndexAndLength(index, length(), dst.remaining());
+        safeGetBytes(index, dst);
+    }
+
     void putBytes(byte[] src) {
 
         putBytes(0, src, 0, src.length);
@@ -192,15 +327,176 @@ final class PaddedByteArrayDecoder {
     void putBytes(int index, byte[] src, int off, int len) {
 
         checkIndexAndArray(index, length(), src, off, len);
+        safeSetBytes(index, ByteBuffer.wrap(src, off, len));
+    }
 
-        safeSetBytes(index, src, off, len);
+    // writes src.remaining() bytes and advances the position of src
+    void putBytes(int index, ByteBuffer src) {
 
+        checkIndexAndLength(index, length(), src.remaining());
+        safeSetBytes(index, src);
+    }
+
+    /**
+     * Writes {@code src.remaining()} bytes asynchronously and advances the position of {@code src} immediately. The
+     * bytes between the position and the limit of {@code src} must not be modified until the handler is notified.
+     *
+     * @param index
+     *            The index of the first byte to write
+     * @param src
+     *            The bytes to write
+     * @param executor
+     *            The executor of the asynchronous channel of the file, if it is not yet open
+     * @param attachment
+     *            The object to attach to the operation
+     * @param handler
+     *            The handler notified with the number of bytes written, or with the cause of the failure
+     */
+    <A> void putBytes(
+        int index,
+        ByteBuffer src,
+        ExecutorService executor,
+        final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+
+        checkIndexAndLength(index, length(), src.remaining());
+
+        final int len = src.remaining();
+        final int fileLen = Math.max(0, Math.min(len, arrayLen - index));
+
+        final ByteBuffer fileSrc = src.duplicate();
+        fileSrc.limit(src.position() + fileLen);
+        src.position(src.position() + fileLen);
+        if (fileLen < len) { // the remaining bytes go into the padding, right away
+            final int padOff = Math.max(0, index - arrayLen);
+            src.get(padding, padOff, len - fileLen);
+        }
+
+        if (fileLen == 0) {
+            handler.completed(len, attachment);
+            return;
+        }
+
+        final AsynchronousFileChannel asyncChannel;
+        try {
+            // temporary files are opened in "rws" mode, so their asynchronous writes are synchronous too
+            asyncChannel = rafHandle.asyncChannel(executor, ownsFile);
+        }
+        catch (IOException e) {
+            handler.failed(e, attachment);
+            return;
+        }
+
+        asyncChannel.write(fileSrc, filePos + index, filePos + index, new CompletionHandler<Integer, Long>() {
+
+            @Override
+            public void completed(Integer written, Long position) {
+
+                if (fileSrc.hasRemaining()) { // partial write, continue from where it stopped
+                    final long next = position + written;
+                    asyncChannel.write(fileSrc, next, next, this);
+                }
+                else {
+                    handler.completed(len, attachment);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Long position) {
+
+                handler.failed(exc, attachment);
+            }
+        });
+    }
+
+    /**
+     * Reads the symbols whose indexes are set in the provided bit set, copying symbol {@code i} into
+     * {@code rows[firstRow + i]}.
+     *
+     * @param symbols
+     *            The indexes of the symbols to read
+     * @param T
+     *            The size of each symbol
+     * @param rows
+     *            The destination rows, each with a length of at least {@code T}
+     * @param firstRow
+     *            The row of the symbol with index {@code 0}
+     */
+    void getSymbols(BitSet symbols, int T, byte[][] rows, int firstRow) {
+
+        final ByteBuffer chunk = newChunk(T);
+        final int chunkSymbols = chunk.capacity() / T;
+
+        int first = symbols.nextSetBit(0);
+        while (first >= 0) {
+            final int end = Math.min(symbols.nextClearBit(first), first + chunkSymbols);
+            checkIndexAndLength(first * T, length(), (end - first) * T);
+
+            chunk.clear().limit((end - first) * T);
+            safeGetBytes(first * T, chunk);
+            chunk.flip();
+            for (int i = first; i < end; i++) {
+                chunk.get(rows[firstRow + i], 0, T);
+            }
+
+            first = symbols.nextSetBit(end);
+        }
+    }
+
+    /**
+     * Writes symbol {@code symbols[i]} at symbol index {@code indexes[i]}, for every {@code i} lower than
+     * {@code count}.
+     *
+     * @param indexes
+     *            The indexes of the symbols to write, in ascending order
+     * @param symbols
+     *            The symbols to write, each with a length of at least {@code T}
+     * @param count
+     *            The number of symbols to write
+     * @param T
+     *            The size of each symbol
+     */
+    void putSymbols(int[] indexes, byte[][] symbols, int count, int T) {
+
+        final ByteBuffer chunk = newChunk(T);
+        final int chunkSymbols = chunk.capacity() / T;
+
+        int i = 0;
+        while (i < count) {
+            // find a run of consecutive indexes
+            int end = i + 1;
+            while (end < count && end - i < chunkSymbols && indexes[end] == indexes[end - 1] + 1) {
+                end++;
+            }
+            checkIndexAndLength(indexes[i] * T, length(), (end - i) * T);
+
+            chunk.clear();
+            for (int j = i; j < end; j++) {
+                chunk.put(symbols[j], 0, T);
+            }
+            chunk.flip();
+            safeSetBytes(indexes[i] * T, chunk);
+
+            i = end;
+        }
+    }
+
+    private static ByteBuffer newChunk(int T) {
+
+        final int chunkSymbols = Math.max(1, MAX_CHUNK_BYTES / T);
+        return ByteBuffer.allocateDirect(chunkSymbols * T);
     }
 
     private static final void checkIndexAndArray(int index, int length, byte[] dst, int off, int len) {
 
-        ArrayUtils.checkIndexRange(index, length);
         ArrayUtils.checkArrayBounds(off, len, dst.length);
+        checkIndexAndLength(index, length, len);
+    }
+
+    private static final void checkIndexAndLength(int index, int length, int len) {
+
+        ArrayUtils.checkIndexRange(index, length);
 
         final int remaining = length - index;
         if (len > remaining) throw new BufferOverflowException();
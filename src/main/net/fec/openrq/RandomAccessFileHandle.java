@@ -1,6 +1,13 @@
 package net.fec.openrq;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Created by philip on 6/25/2014.
@@ -9,6 +16,9 @@ public class RandomAccessFileHandle {
     RandomAccessFile handle;
     String name;
 
+    // opened on the first asynchronous write, and shared by every source block stored in the file
+    private AsynchronousFileChannel asyncChannel;
+
     public RandomAccessFile getHandle() {
         return handle;
     }
@@ -22,5 +32,44 @@ public class RandomAccessFileHandle {
         this.name = name;
     }
 
+    /**
+     * Returns an asynchronous channel for writing into the file, opening it if necessary. The channel is bound to the
+     * executor of the first caller, which also runs the completion handlers of its operations.
+     *
+     * @param executor
+     *            The executor of the channel, if it is not yet open
+     * @param sync
+     *            If {@code true}, every write also updates the storage device synchronously (like the "rws" mode)
+     * @return an asynchronous channel for writing into the file
+     * @throws IOException
+     *             If an I/O error occurs while opening the channel
+     */
+    synchronized AsynchronousFileChannel asyncChannel(ExecutorService executor, boolean sync) throws IOException {
+
+        if (asyncChannel == null) {
+            final Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.WRITE);
+            if (sync) {
+                options.add(StandardOpenOption.SYNC);
+            }
+            asyncChannel = AsynchronousFileChannel.open(Paths.get(name), options, executor);
+        }
+
+        return asyncChannel;
+    }
+
+    /**
+     * Closes the asynchronous channel of the file, if it was opened.
+     *
+     * @throws IOException
+     *             If an I/O error occurs while closing the channel
+     */
+    synchronized void closeAsyncChannel() throws IOException {
+
+        if (asyncChannel != null) {
+            asyncChannel.close();
+            asyncChannel = null;
+        }
+    }
+
 
 }
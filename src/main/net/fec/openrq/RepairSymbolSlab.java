@@ -0,0 +1,407 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.fec.openrq.util.array.ArrayUtils;
+
+
+/**
+ * Off-heap storage for the repair symbols received by a source block decoder.
+ * <p>
+ * Symbols are kept inside a single direct buffer divided into fixed slots of {@code T} bytes, and are indexed by their
+ * encoding symbol identifier with a primitive open-addressing table. Slots are handed out in receiving order, so
+ * iterating from slot {@code 0} to slot {@code size() - 1} follows the order by which repair symbols were received.
+ * <p>
+ * The buffer grows geometrically when full, which means a whole block normally costs a handful of allocations instead
+ * of one heap array (plus wrapper objects) per received symbol.
+ * <p>
+ * A slot may also hold a view over a symbol stored outside the slab (in a buffer owned by the caller), in which case
+ * the symbol is not copied, and the slab does not reserve space for it.
+ * <p>
+ * This class is not thread safe, with one exception: the methods {@link #size()}, {@link #esis()} and
+ * {@link #containsPublished(int)} may be called by any thread while a single other thread modifies the slab. The index
+ * table is never resized in place (a new table is filled and then replaced), and every entry is written before the
+ * size is published, so concurrent lookups probe the index like the modifying thread does.
+ */
+final class RepairSymbolSlab {
+
+    private static final int DEFAULT_INITIAL_SLOTS = 16;
+
+    // marks an empty entry in the index table (slots are stored with a +1 offset)
+    private static final int NO_SLOT = 0;
+
+
+    /**
+     * @param T
+     *            The size of each symbol, in number of bytes
+     * @return a new empty repair symbol slab
+     */
+    static RepairSymbolSlab newSlab(int T) {
+
+        return newSlab(T, DEFAULT_INITIAL_SLOTS);
+    }
+
+    /**
+     * @param T
+     *            The size of each symbol, in number of bytes
+     * @param initialSlots
+     *            The number of slots to reserve when the first symbol is added
+     * @return a new empty repair symbol slab
+     */
+    static RepairSymbolSlab newSlab(int T, int initialSlots) {
+
+        if (T < 1) throw new IllegalArgumentException("symbol size must be positive");
+        if (initialSlots < 1) throw new IllegalArgumentException("number of initial slots must be positive");
+
+        return new RepairSymbolSlab(T, initialSlots);
+    }
+
+
+    private final int T;
+    private final int initialSlots;
+
+    // lazily allocated, and released when the slab is cleared
+    private ByteBuffer slab;
+    private int slabSize; // number of symbols copied into the slab
+    private volatile int[] slotESIs; // volatile so that concurrent readers see the ESIs of published slots
+    private int[] slabPositions; // the position inside the slab of the symbol in each slot
+    private ByteBuffer[] views; // the symbol in each slot that is stored outside the slab, or null
+    private volatile int[] index; // volatile so that concurrent readers see a rebuilt table only after it is filled
+    private volatile int size; // a slot is only published after its ESI and index entry are written
+
+    private long copiedBytes; // total number of bytes copied into the slab, including when it grows
+
+
+    private RepairSymbolSlab(int T, int initialSlots) {
+
+        this.T = T;
+        this.initialSlots = initialSlots;
+        clear();
+    }
+
+    /**
+     * @return the number of symbols in this slab
+     */
+    int size() {
+
+        return size;
+    }
+
+    /**
+     * @return the number of slots currently reserved, which may be larger than the number of symbols
+     */
+    int capacity() {
+
+        return slotESIs.length;
+    }
+
+    /**
+     * @param esi
+     * @return {@code true} if, and only if, this slab contains the repair symbol with the given ESI
+     */
+    boolean contains(int esi) {
+
+        return slotOf(esi) >= 0;
+    }
+
+    /**
+     * @param esi
+     * @return the slot holding the symbol with the given ESI, or {@code -1} if there is none
+     */
+    int slotOf(int esi) {
+
+        if (size == 0) return -1;
+
+        final int[] table = index;
+        final int mask = table.length - 1;
+        for (int i = hash(esi) & mask;; i = (i + 1) & mask) {
+            final int entry = table[i];
+            if (entry == NO_SLOT) {
+                return -1;
+            }
+            else if (slotESIs[entry - 1] == esi) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * @param slot
+     * @return the ESI of the symbol in the given slot
+     */
+    int esiAt(int slot) {
+
+        ArrayUtils.checkIndexRange(slot, size);
+        return slotESIs[slot];
+    }
+
+    /**
+     * @param esi
+     * @return {@code true} if, and only if, this slab contains the repair symbol with the given ESI (this method may
+     *         be called concurrently with a modifying thread)
+     */
+    boolean containsPublished(int esi) {
+
+        final int n = size; // read the size before the arrays
+        final int[] table = index;
+        final int[] esis = slotESIs;
+        if (n == 0 || table.length == 0) return false; // the slab may be cleared meanwhile
+
+        final int mask = table.length - 1;
+        for (int i = hash(esi) & mask;; i = (i + 1) & mask) {
+            final int entry = table[i];
+            if (entry == NO_SLOT) {
+                return false;
+            }
+
+            // skip the entries of slots that are not yet published, or that were cleared meanwhile
+            final int slot = entry - 1;
+            if (slot < n && slot < esis.length && esis[slot] == esi) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return a new array with the ESIs of every symbol in this slab, in slot order (this method may be called
+     *         concurrently with a modifying thread)
+     */
+    int[] esis() {
+
+        final int n = size; // read the size before the array
+        final int[] esis = slotESIs;
+        return Arrays.copyOf(esis, Math.min(n, esis.length));
+    }
+
+    /**
+     * Copies {@code T} bytes from the current position of the provided buffer into a new slot. The position of the
+     * buffer is advanced by {@code T} whether or not the symbol is added.
+     * <p>
+     * A {@code BufferUnderflowException} is thrown if the buffer has less than {@code T} bytes remaining.
+     *
+     * @param esi
+     * @param symbolData
+     * @return {@code true} if the symbol was added, or {@code false} if a symbol with the same ESI was already present
+     */
+    boolean put(int esi, ByteBuffer symbolData) {
+
+        if (symbolData.remaining() < T) throw new BufferUnderflowException();
+        final int bufPos = symbolData.position();
+        if (contains(esi)) {
+            symbolData.position(bufPos + T);
+            return false;
+        }
+
+        final int slot = size;
+        ensureCapacity(slot + 1);
+        ensureSlabCapacity(slabSize + 1);
+
+        // copy exactly T bytes without touching the limit of the caller's buffer
+        final ByteBuffer src = symbolData.duplicate();
+        src.limit(bufPos + T);
+        final ByteBuffer dst = slab.duplicate();
+        dst.position(slabSize * T);
+        dst.put(src);
+        symbolData.position(bufPos + T);
+        copiedBytes += T;
+
+        slabPositions[slot] = slabSize++;
+        views[slot] = null;
+        publish(esi, slot);
+        return true;
+    }
+
+    /**
+     * Keeps a view over {@code T} bytes from the current position of the provided buffer in a new slot, without
+     * copying them. The position of the buffer is advanced by {@code T} whether or not the symbol is added.
+     * <p>
+     * The symbol must not be modified while it is in the slab.
+     * <p>
+     * A {@code BufferUnderflowException} is thrown if the buffer has less than {@code T} bytes remaining.
+     *
+     * @param esi
+     * @param symbolData
+     * @return {@code true} if the symbol was added, or {@code false} if a symbol with the same ESI was already present
+     */
+    boolean putView(int esi, ByteBuffer symbolData) {
+
+        if (symbolData.remaining() < T) throw new BufferUnderflowException();
+        final int bufPos = symbolData.position();
+        if (contains(esi)) {
+            symbolData.position(bufPos + T);
+            return false;
+        }
+
+        final int slot = size;
+        ensureCapacity(slot + 1);
+
+        final ByteBuffer view = symbolData.asReadOnlyBuffer();
+        view.limit(bufPos + T);
+        views[slot] = view.slice();
+        symbolData.position(bufPos + T);
+
+        publish(esi, slot);
+        return true;
+    }
+
+    private void publish(int esi, int slot) {
+
+        slotESIs[slot] = esi;
+        insertIntoIndex(esi, slot);
+        size = slot + 1; // publish the new slot
+    }
+
+    /**
+     * Copies the symbol in the given slot into the provided array.
+     *
+     * @param slot
+     * @param dst
+     *            An array with a length of at least {@code T}
+     * @return the provided array
+     */
+    byte[] get(int slot, byte[] dst) {
+
+        ArrayUtils.checkIndexRange(slot, size);
+        final ByteBuffer src;
+        if (views[slot] != null) {
+            src = views[slot].duplicate();
+        }
+        else {
+            src = slab.duplicate();
+            src.position(slabPositions[slot] * T);
+        }
+        src.get(dst, 0, T);
+        return dst;
+    }
+
+    /**
+     * @param slot
+     * @return a read-only view over the symbol in the given slot
+     */
+    ByteBuffer view(int slot) {
+
+        ArrayUtils.checkIndexRange(slot, size);
+        if (views[slot] != null) {
+            return views[slot].duplicate();
+        }
+
+        final int pos = slabPositions[slot] * T;
+        final ByteBuffer view = slab.asReadOnlyBuffer();
+        view.limit(pos + T).position(pos);
+        return view.slice();
+    }
+
+    /**
+     * @return the total number of bytes copied into this slab, including the bytes moved when the slab grows
+     */
+    long copiedBytes() {
+
+        return copiedBytes;
+    }
+
+    /**
+     * Removes every symbol (including the views over symbols stored outside the slab) and releases the off-heap
+     * buffer.
+     */
+    void clear() {
+
+        size = 0;
+        slab = null;
+        slabSize = 0;
+        slotESIs = ArrayUtils.EmptyArrayOf.ints();
+        slabPositions = ArrayUtils.EmptyArrayOf.ints();
+        views = new ByteBuffer[0];
+        index = ArrayUtils.EmptyArrayOf.ints();
+    }
+
+    private void ensureCapacity(int minSlots) {
+
+        final int oldSlots = slotESIs.length;
+        if (minSlots <= oldSlots) return;
+
+        final int newSlots = Math.max(minSlots, (oldSlots == 0) ? initialSlots : growSlots(oldSlots));
+        slotESIs = Arrays.copyOf(slotESIs, newSlots);
+        slabPositions = Arrays.copyOf(slabPositions, newSlots);
+        views = Arrays.copyOf(views, newSlots);
+
+        // keep the load factor of the index at most 1/2
+        rebuildIndex(Integer.highestOneBit(newSlots) << 2);
+    }
+
+    private void ensureSlabCapacity(int minSymbols) {
+
+        final int oldSymbols = (slab == null) ? 0 : slab.capacity() / T;
+        if (minSymbols <= oldSymbols) return;
+
+        final int newSymbols = Math.max(minSymbols, (oldSymbols == 0) ? initialSlots : growSlots(oldSymbols));
+        if ((long)newSymbols * T > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("repair symbol slab cannot hold more than 2^^31 - 1 bytes");
+        }
+
+        final ByteBuffer newSlab = ByteBuffer.allocateDirect(newSymbols * T);
+        if (slab != null) {
+            final ByteBuffer old = slab.duplicate();
+            old.limit(slabSize * T).position(0);
+            newSlab.put(old);
+            newSlab.clear();
+            copiedBytes += slabSize * (long)T;
+        }
+        slab = newSlab;
+    }
+
+    private int growSlots(int oldSlots) {
+
+        final int grown = oldSlots + (oldSlots >> 1);
+        return (grown < 0) ? Integer.MAX_VALUE : grown;
+    }
+
+    private void rebuildIndex(int tableSize) {
+
+        // fill the new table before replacing the old one, which concurrent readers may still be probing
+        final int[] table = new int[tableSize];
+        for (int slot = 0; slot < size; slot++) {
+            insertInto(table, slotESIs[slot], slot);
+        }
+        index = table;
+    }
+
+    private void insertIntoIndex(int esi, int slot) {
+
+        insertInto(index, esi, slot);
+    }
+
+    private static void insertInto(int[] table, int esi, int slot) {
+
+        final int mask = table.length - 1;
+        int i = hash(esi) & mask;
+        while (table[i] != NO_SLOT) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    private static int hash(int esi) {
+
+        // repair ESIs are mostly consecutive, so spread them a bit before masking
+        final int h = esi * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.util.Objects;
+
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+
+/**
+ * A source block sealed by a {@link StreamingDataEncoder}.
+ * <p>
+ * Each block of a stream is encoded as a separate data object with a single source block, described by its own FEC
+ * parameters (the last block of a stream may be shorter than the others). Blocks are identified by a sequence number,
+ * starting at {@code 0} for the first block of the stream. The encoding packets of a block always have source block
+ * number {@code 0}, so the sequence number and the FEC parameters of the block must be conveyed to the receivers by
+ * other means (for instance, in a header prepended to each packet).
+ */
+public final class StreamBlock {
+
+    private final long seqNum;
+    private final ArrayDataEncoder dataEncoder;
+
+
+    StreamBlock(long seqNum, ArrayDataEncoder dataEncoder) {
+
+        this.seqNum = seqNum;
+        this.dataEncoder = Objects.requireNonNull(dataEncoder);
+    }
+
+    /**
+     * Returns the position of this block in the stream, starting at {@code 0}.
+     *
+     * @return the position of this block in the stream
+     */
+    public long sequenceNumber() {
+
+        return seqNum;
+    }
+
+    /**
+     * Returns the FEC parameters of the data object formed by this block alone.
+     *
+     * @return the FEC parameters of this block
+     */
+    public FECParameters fecParameters() {
+
+        return dataEncoder.fecParameters();
+    }
+
+    /**
+     * Returns the number of bytes of stream data inside this block.
+     *
+     * @return the number of bytes of stream data inside this block
+     */
+    public int dataLength() {
+
+        return dataEncoder.fecParameters().dataLengthAsInt();
+    }
+
+    /**
+     * Returns an encoder for this block, from which source and repair packets can be obtained.
+     *
+     * @return an encoder for this block
+     */
+    public SourceBlockEncoder encoder() {
+
+        return dataEncoder.sourceBlock(0);
+    }
+
+    // drops the intermediate symbols of this block from the cache
+    void release() {
+
+        dataEncoder.sourceBlock(0).releaseIntermediateSymbols();
+    }
+}
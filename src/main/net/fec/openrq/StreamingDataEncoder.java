@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.util.array.ArrayUtils;
+
+
+/**
+ * A RaptorQ encoder for a stream of data whose length is not known in advance.
+ * <p>
+ * Data is appended to the stream with the {@code write} methods. Every time {@code K} source symbols of data have
+ * accumulated, they are sealed into a {@link StreamBlock}, which is immediately handed to a {@link Listener}, so the
+ * source and repair packets of the block can be sent right away. The latency between writing data and sending its
+ * packets is therefore at most one block, rather than one whole data object. Method {@link #flush()} seals the data
+ * written since the last sealed block into a shorter block, which is useful at the end of the stream or when the
+ * producer is idle.
+ * <p>
+ * The encoder keeps a sliding <em>window</em> with the most recently sealed blocks, which can be retrieved with
+ * {@link #block(long)} (for example, to send more repair packets for a block after receiver feedback). When a block
+ * leaves the window, its intermediate symbols are dropped from the {@linkplain IntermediateSymbolsCache cache}, which
+ * bounds the memory used by the encoder.
+ * <p>
+ * This class is not thread safe. The listener is invoked by the thread that writes the data (or flushes it).
+ */
+public final class StreamingDataEncoder {
+
+    /**
+     * Receives the blocks sealed by a streaming encoder.
+     */
+    public static interface Listener {
+
+        /**
+         * Invoked each time a block is sealed, in sequence number order.
+         *
+         * @param block
+         *            A newly sealed block
+         */
+        void blockSealed(StreamBlock block);
+    }
+
+
+    /**
+     * @param symbolSize
+     *            The size of a symbol, in number of bytes
+     * @param sourceSymbolsPerBlock
+     *            The number of source symbols in each block (except, possibly, in flushed blocks)
+     * @param windowSize
+     *            The maximum number of sealed blocks kept by the encoder
+     * @param cache
+     *            The cache of intermediate symbols used by the returned encoder
+     * @param listener
+     *            The listener of sealed blocks
+     * @return a new streaming encoder
+     * @exception NullPointerException
+     *                If {@code cache} or {@code listener} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code windowSize < 1}, or if the symbol size and number of source symbols per block do not
+     *                result in valid FEC parameters
+     */
+    static StreamingDataEncoder newEncoder(
+        int symbolSize,
+        int sourceSymbolsPerBlock,
+        int windowSize,
+        IntermediateSymbolsCache cache,
+        Listener listener)
+    {
+
+        Objects.requireNonNull(cache);
+        Objects.requireNonNull(listener);
+        if (windowSize < 1) throw new IllegalArgumentException("window size must be positive");
+
+        // throws IllegalArgumentException if the parameters are invalid
+        final FECParameters fullBlockParams = FECParameters.newParameters(
+            (long)sourceSymbolsPerBlock * symbolSize, symbolSize, 1);
+        if (fullBlockParams.totalSymbols() != sourceSymbolsPerBlock) {
+            throw new IllegalArgumentException("invalid number of source symbols per block");
+        }
+
+        return new StreamingDataEncoder(fullBlockParams, windowSize, cache, listener);
+    }
+
+
+    private final FECParameters fullBlockParams;
+    private final int windowSize;
+    private final IntermediateSymbolsCache cache;
+    private final Listener listener;
+
+    private byte[] pending; // data of the block being filled
+    private int pendingLen;
+    private long nextSeqNum;
+
+    // the most recently sealed blocks, oldest first
+    private final Deque<StreamBlock> window;
+
+
+    private StreamingDataEncoder(
+        FECParameters fullBlockParams,
+        int windowSize,
+        IntermediateSymbolsCache cache,
+        Listener listener)
+    {
+
+        this.fullBlockParams = fullBlockParams;
+        this.windowSize = windowSize;
+        this.cache = cache;
+        this.listener = listener;
+
+        this.pending = new byte[fullBlockParams.dataLengthAsInt()];
+        this.pendingLen = 0;
+        this.nextSeqNum = 0;
+
+        this.window = new ArrayDeque<>(windowSize);
+    }
+
+    /**
+     * Returns the size of a symbol, in number of bytes.
+     *
+     * @return the size of a symbol, in number of bytes
+     */
+    public int symbolSize() {
+
+        return fullBlockParams.symbolSize();
+    }
+
+    /**
+     * Returns the number of source symbols in each full block.
+     *
+     * @return the number of source symbols in each full block
+     */
+    public int sourceSymbolsPerBlock() {
+
+        return fullBlockParams.totalSymbols();
+    }
+
+    /**
+     * Returns the maximum number of sealed blocks kept by this encoder.
+     *
+     * @return the maximum number of sealed blocks kept by this encoder
+     */
+    public int windowSize() {
+
+        return windowSize;
+    }
+
+    /**
+     * Returns the number of bytes written since the last sealed block.
+     *
+     * @return the number of bytes written since the last sealed block
+     */
+    public int pendingBytes() {
+
+        return pendingLen;
+    }
+
+    /**
+     * Returns the sequence number that the next sealed block will have.
+     *
+     * @return the sequence number that the next sealed block will have
+     */
+    public long nextSequenceNumber() {
+
+        return nextSeqNum;
+    }
+
+    /**
+     * Appends data to the stream, sealing as many blocks as it fills.
+     *
+     * @param data
+     *            An array of bytes
+     * @param off
+     *            The index in the array of the first byte to append
+     * @param len
+     *            The number of bytes to append
+     * @exception NullPointerException
+     *                If {@code data} is {@code null}
+     * @exception IndexOutOfBoundsException
+     *                If {@code off < 0 || len < 0 || len > (data.length - off)}
+     */
+    public void write(byte[] data, int off, int len) {
+
+        ArrayUtils.checkArrayBounds(off, len, data.length);
+        write(ByteBuffer.wrap(data, off, len));
+    }
+
+    /**
+     * Appends the remaining bytes of a buffer to the stream, sealing as many blocks as it fills. The position of the
+     * buffer is advanced to its limit.
+     *
+     * @param data
+     *            A buffer
+     * @exception NullPointerException
+     *                If {@code data} is {@code null}
+     */
+    public void write(ByteBuffer data) {
+
+        while (data.hasRemaining()) {
+            final int n = Math.min(data.remaining(), pending.length - pendingLen);
+            data.get(pending, pendingLen, n);
+            pendingLen += n;
+
+            if (pendingLen == pending.length) {
+                seal(fullBlockParams);
+            }
+        }
+    }
+
+    /**
+     * Seals the data written since the last sealed block, if any, into a block that may be shorter than a full block.
+     *
+     * @return the sealed block, or {@code null} if no data was written since the last sealed block
+     */
+    public StreamBlock flush() {
+
+        if (pendingLen == 0) {
+            return null;
+        }
+        else {
+            return seal(FECParameters.newParameters(pendingLen, fullBlockParams.symbolSize(), 1));
+        }
+    }
+
+    /**
+     * Returns the sealed block with the provided sequence number, if it is still inside the window.
+     *
+     * @param seqNum
+     *            The sequence number of a block
+     * @return the sealed block with the provided sequence number, or {@code null} if it has left the window or if it
+     *         was not sealed yet
+     */
+    public StreamBlock block(long seqNum) {
+
+        for (StreamBlock block : window) {
+            if (block.sequenceNumber() == seqNum) {
+                return block;
+            }
+        }
+
+        return null;
+    }
+
+    private StreamBlock seal(FECParameters blockParams) {
+
+        final byte[] data;
+        if (pendingLen == pending.length) {
+            // the sealed block keeps the array, so the next block needs a new one
+            data = pending;
+            pending = new byte[pending.length];
+        }
+        else {
+            data = Arrays.copyOf(pending, pendingLen);
+        }
+        pendingLen = 0;
+
+        final StreamBlock block = new StreamBlock(nextSeqNum++, ArrayDataEncoder.newEncoder(data, 0, blockParams, cache));
+
+        window.addLast(block);
+        if (window.size() > windowSize) {
+            window.removeFirst().release();
+        }
+
+        listener.blockSealed(block);
+        return block;
+    }
+}
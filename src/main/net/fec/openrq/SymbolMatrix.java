@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.nio.ByteBuffer;
+
+import net.fec.openrq.util.array.ArrayUtils;
+import net.fec.openrq.util.numericaltype.SizeOf;
+
+
+/**
+ * A matrix of symbols (one symbol per row) stored in a single contiguous region of memory.
+ * <p>
+ * Row {@code r} occupies the bytes from {@code r * T} inclusive to {@code (r + 1) * T} exclusive, where {@code T} is
+ * the symbol size. The region is either a heap array or a direct (off-heap) buffer, such as a file mapped by a
+ * {@linkplain IntermediateSymbolsStore persistent store}.
+ * <p>
+ * Rows are only written through {@link #setRow(int, byte[])}, which is meant to be used while the matrix is being
+ * filled. After that, a matrix may be safely read by multiple threads.
+ */
+final class SymbolMatrix implements SymbolRows {
+
+    /**
+     * @param numRows
+     *            The number of rows (symbols)
+     * @param T
+     *            The size of each symbol, in number of bytes
+     * @return a new zeroed matrix stored in the heap
+     */
+    static SymbolMatrix newMatrix(int numRows, int T) {
+
+        checkDimensions(numRows, T);
+        return new SymbolMatrix(new byte[numRows * T], null, numRows, T);
+    }
+
+    /**
+     * @param rows
+     *            Separately allocated rows, each with a length of at least {@code T}
+     * @param T
+     *            The size of each symbol, in number of bytes
+     * @return a new matrix stored in the heap with a copy of the provided rows
+     */
+    static SymbolMatrix copyOf(byte[][] rows, int T) {
+
+        final SymbolMatrix matrix = newMatrix(rows.length, T);
+        for (int row = 0; row < rows.length; row++) {
+            matrix.setRow(row, rows[row]);
+        }
+
+        return matrix;
+    }
+
+    /**
+     * @param buffer
+     *            A direct buffer with exactly {@code numRows * T} remaining bytes (its content is shared, not copied)
+     * @param numRows
+     *            The number of rows (symbols)
+     * @param T
+     *            The size of each symbol, in number of bytes
+     * @return a new matrix stored outside the heap, backed by the provided buffer
+     */
+    static SymbolMatrix wrapDirect(ByteBuffer buffer, int numRows, int T) {
+
+        checkDimensions(numRows, T);
+        if (!buffer.isDirect()) throw new IllegalArgumentException("buffer must be direct");
+        if (buffer.remaining() != numRows * T) throw new IllegalArgumentException("buffer has the wrong size");
+
+        return new SymbolMatrix(null, buffer.slice(), numRows, T);
+    }
+
+    private static void checkDimensions(int numRows, int T) {
+
+        if (numRows < 0) throw new IllegalArgumentException("negative number of rows");
+        if (T < 1) throw new IllegalArgumentException("symbol size must be positive");
+        if ((long)numRows * T > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("symbol matrix cannot hold more than 2^^31 - 1 bytes");
+        }
+    }
+
+
+    // exactly one of these is non-null
+    private final byte[] array;
+    private final ByteBuffer direct;
+
+    private final int numRows;
+    private final int T;
+
+
+    private SymbolMatrix(byte[] array, ByteBuffer direct, int numRows, int T) {
+
+        this.array = array;
+        this.direct = direct;
+        this.numRows = numRows;
+        this.T = T;
+    }
+
+    /**
+     * @return the number of rows (symbols)
+     */
+    int numRows() {
+
+        return numRows;
+    }
+
+    /**
+     * @return the size of each symbol, in number of bytes
+     */
+    int symbolSize() {
+
+        return T;
+    }
+
+    /**
+     * @return the number of bytes used by this matrix
+     */
+    int sizeInBytes() {
+
+        return numRows * T;
+    }
+
+    /**
+     * @return {@code true} if, and only if, this matrix is stored outside the heap
+     */
+    boolean isDirect() {
+
+        return direct != null;
+    }
+
+    /**
+     * @return a read-only buffer over the contiguous storage of this matrix, with every row in order
+     */
+    ByteBuffer asReadOnlyBuffer() {
+
+        if (direct == null) {
+            return ByteBuffer.wrap(array).asReadOnlyBuffer();
+        }
+        else {
+            return direct.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * @param row
+     * @return the offset of the given row inside the contiguous storage
+     */
+    int rowOffset(int row) {
+
+        ArrayUtils.checkIndexRange(row, numRows);
+        return row * T;
+    }
+
+    /**
+     * Copies the given row into the provided array.
+     *
+     * @param row
+     * @param dst
+     *            An array with a length of at least {@code T}
+     * @return the provided array
+     */
+    @Override
+    public byte[] getRow(int row, byte[] dst) {
+
+        final int off = rowOffset(row);
+        if (direct == null) {
+            System.arraycopy(array, off, dst, 0, T);
+        }
+        else {
+            final ByteBuffer src = direct.duplicate();
+            src.position(off);
+            src.get(dst, 0, T);
+        }
+
+        return dst;
+    }
+
+    /**
+     * Copies the provided array into the given row.
+     *
+     * @param row
+     * @param src
+     *            An array with a length of at least {@code T}
+     */
+    void setRow(int row, byte[] src) {
+
+        final int off = rowOffset(row);
+        if (direct == null) {
+            System.arraycopy(src, 0, array, off, T);
+        }
+        else {
+            final ByteBuffer dst = direct.duplicate();
+            dst.position(off);
+            dst.put(src, 0, T);
+        }
+    }
+
+    /**
+     * Adds (XORs) the given row to the provided array.
+     *
+     * @param row
+     * @param dst
+     *            An array with a length of at least {@code T}
+     */
+    @Override
+    public void xorRowInto(int row, byte[] dst) {
+
+        final int off = rowOffset(row);
+        if (direct == null) {
+            for (int i = 0; i < T; i++) {
+                dst[i] ^= array[off + i];
+            }
+        }
+        else {
+            // eight bytes per read, since every absolute read of a direct buffer is checked (the slice is big-endian)
+            int i = 0;
+            for (; i <= T - SizeOf.LONG; i += SizeOf.LONG) {
+                final long v = direct.getLong(off + i);
+                dst[i] ^= (byte)(v >>> 56);
+                dst[i + 1] ^= (byte)(v >>> 48);
+                dst[i + 2] ^= (byte)(v >>> 40);
+                dst[i + 3] ^= (byte)(v >>> 32);
+                dst[i + 4] ^= (byte)(v >>> 24);
+                dst[i + 5] ^= (byte)(v >>> 16);
+                dst[i + 6] ^= (byte)(v >>> 8);
+                dst[i + 7] ^= (byte)v;
+            }
+            for (; i < T; i++) {
+                dst[i] ^= direct.get(off + i);
+            }
+        }
+    }
+}
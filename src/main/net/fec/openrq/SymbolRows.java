@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+/**
+ * Read access to rows of symbols of {@code T} bytes each, such as the intermediate symbols combined by the encoding
+ * function of {@link LinearSystem}.
+ */
+interface SymbolRows {
+
+    /**
+     * Copies the given row into the provided array.
+     *
+     * @param row
+     * @param dst
+     *            An array with a length of at least {@code T}
+     * @return the provided array
+     */
+    byte[] getRow(int row, byte[] dst);
+
+    /**
+     * Adds (XORs) the given row to the provided array.
+     *
+     * @param row
+     * @param dst
+     *            An array with a length of at least {@code T}
+     */
+    void xorRowInto(int row, byte[] dst);
+}
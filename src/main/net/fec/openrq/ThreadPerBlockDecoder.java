@@ -0,0 +1,453 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.decoder.SourceBlockDecoder;
+
+
+/**
+ * A driver for a data decoder that feeds each source block from its own thread.
+ * <p>
+ * The first encoding packet of a source block starts a new thread, obtained from a {@link ThreadFactory}, which
+ * consumes a bounded queue of packets of that source block only, storing their symbols and decoding the source block
+ * itself. The thread ends as soon as its source block is decoded, so there is one thread per <em>active</em> source
+ * block. Packets of a source block are put in the order by which they are queued, and packets of source blocks that are
+ * already decoded are discarded without being queued.
+ * <p>
+ * When the queue of a source block is full, method {@link #putEncodingPacket(EncodingPacket)} blocks the calling thread
+ * (which slows down a receiver that is faster than the decoding of that source block), whereas method
+ * {@link #offerEncodingPacket(EncodingPacket)} returns immediately. Blocking is done with {@code ReentrantLock}
+ * conditions and the symbols are stored with blocking file I/O, so this driver is suited to a thread factory of
+ * lightweight threads, with which thousands of source blocks (or of data decoders, one driver per transfer) can be
+ * active at the same time. With a factory of platform threads, each active source block costs a full thread.
+ * <p>
+ * Pooled packets are released by this driver after being put (or discarded), so the caller must not release them.
+ * <p>
+ * If putting a packet fails (for instance, with a {@link DataIOException} when the storage of the source block cannot
+ * be written), the thread of its source block stops and the packets of that source block are rejected from then on. The
+ * failure is available from method {@link #failure(int)}, and is also thrown by method
+ * {@link #awaitDataDecoded(long, TimeUnit)}.
+ * <p>
+ * This class is thread safe, and packets may be queued concurrently by multiple threads.
+ */
+public final class ThreadPerBlockDecoder implements Closeable {
+
+    /**
+     * @param dataDecoder
+     *            The data decoder fed by the returned driver
+     * @param queueCapacity
+     *            The maximum number of packets queued for each source block
+     * @param threadFactory
+     *            The factory of the threads that feed the source blocks
+     * @return a new driver for the data decoder
+     * @exception NullPointerException
+     *                If {@code dataDecoder} or {@code threadFactory} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code queueCapacity < 1}
+     */
+    static ThreadPerBlockDecoder newDecoder(DataDecoder dataDecoder, int queueCapacity, ThreadFactory threadFactory) {
+
+        Objects.requireNonNull(dataDecoder);
+        Objects.requireNonNull(threadFactory);
+        if (queueCapacity < 1) throw new IllegalArgumentException("queue capacity must be positive");
+
+        return new ThreadPerBlockDecoder(dataDecoder, queueCapacity, threadFactory);
+    }
+
+
+    private final DataDecoder dataDecoder;
+    private final int queueCapacity;
+    private final ThreadFactory threadFactory;
+
+    // the worker of each source block, created with its first packet and kept after it finishes
+    private final AtomicReferenceArray<BlockWorker> workers;
+    private final AtomicInteger activeBlocks;
+    private final AtomicReference<Throwable> firstFailure;
+    private volatile boolean closed;
+
+    // waiting threads are notified each time a worker finishes
+    private final Object finishedSignal = new Object();
+
+
+    private ThreadPerBlockDecoder(DataDecoder dataDecoder, int queueCapacity, ThreadFactory threadFactory) {
+
+        this.dataDecoder = dataDecoder;
+        this.queueCapacity = queueCapacity;
+        this.threadFactory = threadFactory;
+
+        this.workers = new AtomicReferenceArray<>(dataDecoder.numberOfSourceBlocks());
+        this.activeBlocks = new AtomicInteger(0);
+        this.firstFailure = new AtomicReference<>();
+        this.closed = false;
+    }
+
+    /**
+     * Returns the data decoder fed by this driver.
+     *
+     * @return the data decoder fed by this driver
+     */
+    public DataDecoder dataDecoder() {
+
+        return dataDecoder;
+    }
+
+    /**
+     * Returns the maximum number of packets queued for each source block.
+     *
+     * @return the maximum number of packets queued for each source block
+     */
+    public int queueCapacity() {
+
+        return queueCapacity;
+    }
+
+    /**
+     * Returns the number of source blocks that currently have a thread feeding them.
+     *
+     * @return the number of active source blocks
+     */
+    public int activeSourceBlocks() {
+
+        return activeBlocks.get();
+    }
+
+    /**
+     * Returns the exception thrown while putting a packet into a source block, which stopped the thread of that source
+     * block, or {@code null} if there is none.
+     *
+     * @param sbn
+     *            A source block number
+     * @return the failure of the source block, or {@code null} if there is none
+     * @exception IllegalArgumentException
+     *                If the source block number is invalid
+     */
+    public Throwable failure(int sbn) {
+
+        if (sbn < 0 || sbn >= workers.length()) {
+            throw new IllegalArgumentException("invalid source block number");
+        }
+        final BlockWorker worker = workers.get(sbn);
+        return (worker == null) ? null : worker.failure;
+    }
+
+    /**
+     * Queues an encoding packet for the thread of its source block, waiting while the queue of the source block is
+     * full. The packet is discarded if its source block is already decoded.
+     *
+     * @param packet
+     *            An encoding packet
+     * @throws InterruptedException
+     *             If the calling thread is interrupted while waiting (in which case the packet is not queued)
+     * @exception NullPointerException
+     *                If {@code packet} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the packet has an invalid source block number
+     * @exception IllegalStateException
+     *                If this driver is closed, or if the thread of the source block failed (in which case the packet is
+     *                released)
+     */
+    public void putEncodingPacket(EncodingPacket packet) throws InterruptedException {
+
+        final BlockWorker worker = workerFor(packet);
+        if (worker != null) {
+            worker.put(packet);
+        }
+    }
+
+    /**
+     * Queues an encoding packet for the thread of its source block, if the queue of the source block is not full. The
+     * packet is discarded if its source block is already decoded.
+     *
+     * @param packet
+     *            An encoding packet
+     * @return {@code false} if the queue of the source block is full (in which case the packet is not queued), or
+     *         {@code true} otherwise
+     * @exception NullPointerException
+     *                If {@code packet} is {@code null}
+     * @exception IllegalArgumentException
+     *                If the packet has an invalid source block number
+     * @exception IllegalStateException
+     *                If this driver is closed, or if the thread of the source block failed (in which case the packet is
+     *                released)
+     */
+    public boolean offerEncodingPacket(EncodingPacket packet) {
+
+        final BlockWorker worker = workerFor(packet);
+        return worker == null || worker.offer(packet);
+    }
+
+    /**
+     * Waits until the data is decoded, or until this driver is closed, or until the thread of a source block fails, or
+     * until the timeout elapses.
+     *
+     * @param timeout
+     *            The maximum time to wait
+     * @param unit
+     *            The unit of the timeout
+     * @return {@code true} if the data is decoded
+     * @throws InterruptedException
+     *             If the calling thread is interrupted while waiting
+     * @throws ExecutionException
+     *             If the thread of a source block failed before the data was decoded, with the first failure as the
+     *             cause (see {@link #failure(int)})
+     */
+    public boolean awaitDataDecoded(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (finishedSignal) {
+            // workers notify while holding the lock, so the notification cannot be lost between these calls
+            while (!dataDecoder.isDataDecoded() && !closed) {
+                final Throwable failure = firstFailure.get();
+                if (failure != null) {
+                    throw new ExecutionException(failure);
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(finishedSignal, remaining);
+            }
+        }
+
+        return dataDecoder.isDataDecoded();
+    }
+
+    /**
+     * Stops every thread of this driver and discards the queued packets. Each thread first finishes putting the packet
+     * it is currently putting, and this method waits for that to happen, unless the calling thread is interrupted.
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+        for (int sbn = 0; sbn < workers.length(); sbn++) {
+            final BlockWorker worker = workers.get(sbn);
+            if (worker != null) {
+                worker.stop();
+            }
+        }
+
+        try {
+            for (int sbn = 0; sbn < workers.length(); sbn++) {
+                final BlockWorker worker = workers.get(sbn);
+                if (worker != null) {
+                    worker.thread.join();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (finishedSignal) {
+            finishedSignal.notifyAll();
+        }
+    }
+
+    // returns null if the source block of the packet is already decoded, in which case the packet is discarded
+    private BlockWorker workerFor(EncodingPacket packet) {
+
+        if (closed) throw new IllegalStateException("decoder is closed");
+
+        final int sbn = packet.sourceBlockNumber();
+        final SourceBlockDecoder sbDec = dataDecoder.sourceBlock(sbn); // throws IllegalArgumentException
+        if (sbDec.isSourceBlockDecoded()) {
+            packet.release();
+            return null;
+        }
+
+        final BlockWorker existing = workers.get(sbn);
+        if (existing != null) {
+            return existing;
+        }
+
+        final BlockWorker worker = new BlockWorker(sbDec);
+        if (workers.compareAndSet(sbn, null, worker)) {
+            activeBlocks.incrementAndGet();
+            worker.thread.start();
+            if (closed) { // close() may have missed this worker
+                worker.stop();
+            }
+            return worker;
+        }
+        else { // another thread created the worker first, the thread of this one is never started
+            return workers.get(sbn);
+        }
+    }
+
+
+    private final class BlockWorker implements Runnable {
+
+        private final SourceBlockDecoder sbDec;
+        private final Thread thread;
+
+        // the queue is guarded by the lock
+        private final Queue<EncodingPacket> queue;
+        private final ReentrantLock lock;
+        private final Condition notEmpty;
+        private final Condition notFull;
+        private boolean stopped; // once stopped, packets are discarded instead of queued
+        private volatile Throwable failure; // set before stopping, if putting a packet failed
+
+
+        BlockWorker(SourceBlockDecoder sbDec) {
+
+            this.sbDec = sbDec;
+            this.thread = threadFactory.newThread(this);
+            if (thread == null) {
+                throw new IllegalStateException("thread factory did not create a thread");
+            }
+
+            this.queue = new ArrayDeque<>(queueCapacity);
+            this.lock = new ReentrantLock();
+            this.notEmpty = lock.newCondition();
+            this.notFull = lock.newCondition();
+            this.stopped = false;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                while (!sbDec.isSourceBlockDecoded()) {
+                    final EncodingPacket packet = take();
+                    if (packet == null) {
+                        break; // stopped
+                    }
+
+                    try {
+                        sbDec.putEncodingPacket(packet);
+                    }
+                    catch (RuntimeException | Error e) {
+                        failure = e;
+                        firstFailure.compareAndSet(null, e);
+                        break;
+                    }
+                    finally {
+                        packet.release();
+                    }
+                }
+            }
+            finally {
+                stop();
+                activeBlocks.decrementAndGet();
+                synchronized (finishedSignal) {
+                    finishedSignal.notifyAll();
+                }
+            }
+        }
+
+        void put(EncodingPacket packet) throws InterruptedException {
+
+            lock.lock();
+            try {
+                while (queue.size() == queueCapacity && !stopped) {
+                    notFull.await();
+                }
+                enqueue(packet);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        boolean offer(EncodingPacket packet) {
+
+            lock.lock();
+            try {
+                if (queue.size() == queueCapacity && !stopped) {
+                    return false;
+                }
+                enqueue(packet);
+                return true;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // requires the lock
+        private void enqueue(EncodingPacket packet) {
+
+            if (failure != null) {
+                packet.release();
+                throw new IllegalStateException(
+                    "source block " + sbDec.sourceBlockNumber() + " failed to be decoded", failure);
+            }
+            else if (stopped) { // the source block is decoded, or the driver is closed
+                packet.release();
+            }
+            else {
+                queue.add(packet);
+                notEmpty.signal();
+            }
+        }
+
+        // returns null if stopped
+        private EncodingPacket take() {
+
+            lock.lock();
+            try {
+                // interrupts are ignored, since an interrupt during file channel I/O would close the storage
+                while (queue.isEmpty() && !stopped) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (stopped) {
+                    return null;
+                }
+
+                notFull.signal();
+                return queue.poll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        void stop() {
+
+            lock.lock();
+            try {
+                stopped = true;
+                EncodingPacket packet;
+                while ((packet = queue.poll()) != null) {
+                    packet.release();
+                }
+                notEmpty.signalAll();
+                notFull.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -20,7 +20,9 @@ import java.io.DataInput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
 
+import net.fec.openrq.BufferPool;
 import net.fec.openrq.EncodingPacket;
 import net.fec.openrq.Parsed;
 import net.fec.openrq.SerializablePacket;
@@ -118,6 +120,87 @@ public interface DataDecoder {
      */
     public Iterable<? extends SourceBlockDecoder> sourceBlockIterable();
 
+    /**
+     * Puts a batch of encoding packets into their respective source block decoders, in the calling thread.
+     * <p>
+     * The packets are grouped by source block number before being put, and the packets of each source block are put
+     * in the order by which they are provided. This method is equivalent to calling
+     * {@code sourceBlock(packet.sourceBlockNumber()).putEncodingPacket(packet)} for every packet, but with better
+     * locality when packets of different source blocks are interleaved.
+     *
+     * @param packets
+     *            The encoding packets to be put
+     * @return the number of packets that were put
+     * @exception NullPointerException
+     *                If {@code packets} is {@code null}, or any specific packet is {@code null}
+     * @exception IllegalArgumentException
+     *                If some packet has an invalid source block number (in which case no packet is put)
+     * @see SourceBlockDecoder#putEncodingPacket(EncodingPacket)
+     */
+    public int putEncodingPackets(Iterable<? extends EncodingPacket> packets);
+
+    /**
+     * Puts a batch of encoding packets into their respective source block decoders, using the provided executor to
+     * feed different source blocks in parallel.
+     * <p>
+     * The packets are grouped by source block number, and the groups are fed by a number of <em>stripes</em> that is
+     * at most the number of available processors. The calling thread is one of the stripes, and the others run as
+     * tasks in the executor; each stripe claims one source block at a time, until none is left. Every source block is
+     * fed by a single stripe, so the packets of each source block are still put in the order by which they are
+     * provided. The calling thread feeds by itself the source blocks that were not claimed by the other stripes, so it
+     * never waits for a task that the executor did not start yet.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until every packet is put. If the feeding of some source
+     * block fails with an exception, the exception is rethrown by this method after every source block was fed.
+     *
+     * @param packets
+     *            The encoding packets to be put
+     * @param executor
+     *            An executor that runs the stripes
+     * @return the number of packets that were put
+     * @exception NullPointerException
+     *                If {@code packets} or {@code executor} are {@code null}, or any specific packet is {@code null}
+     * @exception IllegalArgumentException
+     *                If some packet has an invalid source block number (in which case no packet is put)
+     * @see SourceBlockDecoder#putEncodingPacket(EncodingPacket)
+     */
+    public int putEncodingPackets(Iterable<? extends EncodingPacket> packets, Executor executor);
+
+    /**
+     * Parses a batch of encoding packets from the given buffers and puts them into their respective source block
+     * decoders, in the calling thread. Each buffer must contain a single packet in the format specified by
+     * {@link EncodingPacket#asBuffer()}, and is parsed as in {@link #parsePacket(ByteBuffer, boolean)} without copying
+     * the symbols data. Buffers that fail to be parsed are ignored.
+     *
+     * @param buffers
+     *            Buffers containing one encoding packet each
+     * @return the number of packets that were parsed and put
+     * @exception NullPointerException
+     *                If {@code buffers} is {@code null}, or any specific buffer is {@code null}
+     * @see #putEncodingPackets(Iterable)
+     */
+    public int putEncodingPackets(ByteBuffer[] buffers);
+
+    /**
+     * Parses a batch of encoding packets from the given buffers and puts them into their respective source block
+     * decoders, using the provided executor to feed different source blocks in parallel. Each buffer must contain a
+     * single packet in the format specified by {@link EncodingPacket#asBuffer()}, and is parsed as in
+     * {@link #parsePacket(ByteBuffer, boolean)} without copying the symbols data. Buffers that fail to be parsed are
+     * ignored.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until every packet is put.
+     *
+     * @param buffers
+     *            Buffers containing one encoding packet each
+     * @param executor
+     *            An executor that runs the stripes
+     * @return the number of packets that were parsed and put
+     * @exception NullPointerException
+     *                If {@code buffers} or {@code executor} are {@code null}, or any specific buffer is {@code null}
+     * @see #putEncodingPackets(Iterable, Executor)
+     */
+    public int putEncodingPackets(ByteBuffer[] buffers, Executor executor);
+
     /**
      * Parses an encoding packet from the given source block number, encoding symbol identifier of the first symbol, and
      * symbols data.
@@ -315,6 +398,45 @@ public interface DataDecoder {
      */
     public Parsed<EncodingPacket> parsePacket(ByteBuffer buffer, boolean copySymbols);
 
+    /**
+     * Parses an encoding packet from the given buffer, copying the symbols data into a buffer acquired from the
+     * provided pool. The packet bytes in the buffer must follow the format specified by
+     * {@link EncodingPacket#asBuffer()}, and are read as in method {@link #parsePacket(ByteBuffer, boolean)}.
+     * <p>
+     * If the parsing succeeds, the returned packet owns the pooled buffer, and should be
+     * {@linkplain EncodingPacket#release() released} after being used. If the parsing fails, no buffer is acquired.
+     *
+     * @param buffer
+     *            A buffer containing an encoding packet
+     * @param pool
+     *            The pool from which the buffer for the symbols data is acquired
+     * @return a container object containing an encoding packet or a parsing failure reason string
+     * @exception NullPointerException
+     *                If {@code buffer} or {@code pool} are {@code null}
+     */
+    public Parsed<EncodingPacket> parsePacket(ByteBuffer buffer, BufferPool pool);
+
+    /**
+     * Parses an encoding packet from a buffer acquired from the provided pool, without copying the symbols data. The
+     * packet bytes in the buffer must follow the format specified by {@link EncodingPacket#asBuffer()}, and are read as
+     * in method {@link #parsePacket(ByteBuffer, boolean)}.
+     * <p>
+     * The ownership of the buffer is transferred to the returned packet, which should be
+     * {@linkplain EncodingPacket#release() released} after being used; if the parsing fails, the buffer is
+     * immediately released back to the pool. Either way, the caller must not use the buffer after calling this
+     * method. Together with the {@linkplain SourceBlockDecoder#setZeroCopy(boolean) zero-copy} mode of source block
+     * decoders, this method allows repair symbols to be stored without ever being copied after being received.
+     *
+     * @param buffer
+     *            A buffer acquired from the pool, containing an encoding packet
+     * @param pool
+     *            The pool from which the buffer was acquired
+     * @return a container object containing an encoding packet or a parsing failure reason string
+     * @exception NullPointerException
+     *                If {@code buffer} or {@code pool} are {@code null}
+     */
+    public Parsed<EncodingPacket> parsePooledPacket(ByteBuffer buffer, BufferPool pool);
+
     /**
      * Reads and parses an encoding packet from a {@code DataInput} object. The read packet bytes must follow the format
      * specified by {@link EncodingPacket#writeTo(java.io.DataOutput)}.
@@ -342,6 +464,29 @@ public interface DataDecoder {
      */
     public Parsed<EncodingPacket> readPacketFrom(DataInput in) throws IOException;
 
+    /**
+     * Reads and parses an encoding packet from a {@code DataInput} object, reading the symbols data into a buffer
+     * acquired from the provided pool. The read packet bytes must follow the format specified by
+     * {@link EncodingPacket#writeTo(java.io.DataOutput)}, and are read as in method {@link #readPacketFrom(DataInput)}.
+     * <p>
+     * If the parsing succeeds, the returned packet owns the pooled buffer, and should be
+     * {@linkplain EncodingPacket#release() released} after being used. Otherwise, the buffer is returned to the pool.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until a whole packet is read from the input, or a parsing
+     * failure is detected, or an {@code IOException} is throw.
+     *
+     * @param in
+     *            A {@code DataInput} object from which an encoding packet is read
+     * @param pool
+     *            The pool from which the buffer for the symbols data is acquired
+     * @return a container object containing an encoding packet or a parsing failure reason string
+     * @throws IOException
+     *             If an IO error occurs while reading from the {@code DataInput} object
+     * @exception NullPointerException
+     *                If {@code in} or {@code pool} are {@code null}
+     */
+    public Parsed<EncodingPacket> readPacketFrom(DataInput in, BufferPool pool) throws IOException;
+
     /**
      * Reads and parses an encoding packet from a {@code ReadableByteChannel} object. The read packet bytes must follow
      * the format specified by {@link EncodingPacket#writeTo(java.nio.channels.WritableByteChannel)}.
@@ -357,15 +502,46 @@ public interface DataDecoder {
      * </ul>
      * <p>
      * <b><em>Blocking behavior</em></b>: this method blocks until a whole packet is read from the channel, or a parsing
-     * failure is detected, or an {@code IOException} is throw.
+     * failure is detected, or an {@code IOException} is throw. Selectable channels must be in blocking mode; packets
+     * can be read from non-blocking channels with a {@link net.fec.openrq.transport.PacketReader PacketReader}.
      *
      * @param ch
      *            A {@code ReadableByteChannel} object from which an encoding packet is read
      * @return a container object containing an encoding packet or a parsing failure reason string
      * @throws IOException
-     *             If an IO error occurs while reading from the {@code ReadableByteChannel} object
+     *             If an IO error occurs while reading from the {@code ReadableByteChannel} object, or if the end of
+     *             the channel is reached before a whole packet is read
+     * @exception java.nio.channels.IllegalBlockingModeException
+     *                If the channel is a selectable channel in non-blocking mode
      * @exception NullPointerException
      *                If {@code ch} is {@code null}
      */
     public Parsed<EncodingPacket> readPacketFrom(ReadableByteChannel ch) throws IOException;
+
+    /**
+     * Reads and parses an encoding packet from a {@code ReadableByteChannel} object, reading the symbols data into a
+     * buffer acquired from the provided pool. The read packet bytes must follow the format specified by
+     * {@link EncodingPacket#writeTo(java.nio.channels.WritableByteChannel)}, and are read as in method
+     * {@link #readPacketFrom(ReadableByteChannel)}.
+     * <p>
+     * If the parsing succeeds, the returned packet owns the pooled buffer, and should be
+     * {@linkplain EncodingPacket#release() released} after being used. Otherwise, the buffer is returned to the pool.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: this method blocks until a whole packet is read from the channel, or a parsing
+     * failure is detected, or an {@code IOException} is throw. Selectable channels must be in blocking mode.
+     *
+     * @param ch
+     *            A {@code ReadableByteChannel} object from which an encoding packet is read
+     * @param pool
+     *            The pool from which the buffer for the symbols data is acquired
+     * @return a container object containing an encoding packet or a parsing failure reason string
+     * @throws IOException
+     *             If an IO error occurs while reading from the {@code ReadableByteChannel} object, or if the end of
+     *             the channel is reached before a whole packet is read
+     * @exception java.nio.channels.IllegalBlockingModeException
+     *                If the channel is a selectable channel in non-blocking mode
+     * @exception NullPointerException
+     *                If {@code ch} or {@code pool} are {@code null}
+     */
+    public Parsed<EncodingPacket> readPacketFrom(ReadableByteChannel ch, BufferPool pool) throws IOException;
 }
@@ -20,6 +20,7 @@ package net.fec.openrq.decoder;
 import java.io.RandomAccessFile;
 import java.util.Set;
 
+import net.fec.openrq.DataIOException;
 import net.fec.openrq.EncodingPacket;
 import net.fec.openrq.SBDInfo;
 import net.fec.openrq.parameters.ParameterChecker;
@@ -91,6 +92,38 @@ import net.fec.openrq.parameters.ParameterChecker;
  * <td><code>2</code></td>
  * <td><code>K + 2</code></td>
  * <td>99.9999% <em>(one in a million chance of failure)</em> </td> </tr> </table> </blockquote>
+ * <p>
+ * <a name="incremental-decoding">
+ * <h5>Incremental decoding</h5></a>
+ * <p>
+ * By default, a decoding operation only starts once enough encoding symbols are available, and the whole system of
+ * linear equations is then solved at once. In <em>incremental decoding</em> mode, the equation of each received
+ * encoding symbol is eliminated against the previous ones as soon as the symbol arrives, so when enough symbols are
+ * available only a cheap back-substitution remains to be done. This spreads the decoding work over the time it takes
+ * to receive the symbols, and reduces the delay between receiving the last needed symbol and having the source block
+ * decoded. The decoding succeeds as soon as the received symbols are sufficient, even if fewer than
+ * {@code K + symbolOverhead} symbols were received.
+ * <p>
+ * The method {@link #isIncrementalDecodingEnabled()} indicates if this mode is enabled, and the method
+ * {@link #setIncrementalDecoding(boolean)} enables or disables it.
+ * <p>
+ * <a name="zero-copy">
+ * <h5>Zero-copy mode</h5></a>
+ * <p>
+ * By default, the symbols data of every received encoding packet is copied into storage owned by the decoder. In
+ * <em>zero-copy</em> mode, repair packets whose symbols data lives in a buffer acquired from a
+ * {@link net.fec.openrq.BufferPool BufferPool} (as returned by
+ * {@link DataDecoder#parsePooledPacket(java.nio.ByteBuffer, net.fec.openrq.BufferPool)}) are not copied; instead, the
+ * decoder takes over the ownership of the pooled buffer, and returns it to the pool once the repair symbols are no
+ * longer needed (when the source block is decoded). Source symbols are always copied exactly once, directly into the
+ * storage of the source data. Repair packets that are not pooled are copied as usual.
+ * <p>
+ * In this mode, the pooled buffers of the received repair packets are retained by the decoder until the source block
+ * is decoded, so the pool must be able to provide enough buffers for all the source blocks being decoded at the same
+ * time.
+ * <p>
+ * The method {@link #isZeroCopyEnabled()} indicates if this mode is enabled, and the method
+ * {@link #setZeroCopy(boolean)} enables or disables it.
  */
 public interface SourceBlockDecoder {
 
@@ -107,6 +140,14 @@ public interface SourceBlockDecoder {
 
     public int getDataOffset();
 
+    /**
+     * Returns the offset of this source block inside the source data. Unlike {@link #getDataOffset()}, this method
+     * supports offsets larger than {@code Integer.MAX_VALUE}.
+     *
+     * @return the offset of this source block inside the source data, in number of bytes
+     */
+    public long getLongDataOffset();
+
     public RandomAccessFile getTempStorage();
 
     public String getTempStorageName();
@@ -219,6 +260,33 @@ public interface SourceBlockDecoder {
      */
     public Set<Integer> availableRepairSymbols();
 
+    /**
+     * Returns the number of missing source symbols from the source block being decoded. This value is the same as
+     * {@code missingSourceSymbols().size()}, but is obtained without building a set.
+     *
+     * @return the number of missing source symbols
+     */
+    public int numberOfMissingSourceSymbols();
+
+    /**
+     * Returns a new array containing the encoding symbol identifiers of the missing source symbols from the source
+     * block being decoded, in ascending order. The array holds the same values as {@link #missingSourceSymbols()},
+     * without boxing them.
+     *
+     * @return an array of encoding symbol identifiers of missing source symbols
+     */
+    public int[] missingSourceSymbolsArray();
+
+    /**
+     * Returns a new array containing the encoding symbol identifiers of the available repair symbols for decoding, in
+     * the order by which they have been received. If the source block is already decoded, then an empty array is
+     * returned instead. The array holds the same values as {@link #availableRepairSymbols()}, without boxing them.
+     *
+     * @return an array of encoding symbol identifiers of available repair symbols, or an empty array if the source
+     *         block is already decoded
+     */
+    public int[] availableRepairSymbolsArray();
+
     /**
      * Returns current information from this decoder inside an {@code SBDInfo} object. The information will consist
      * of the {@linkplain #sourceBlockNumber() source block number}, the {@linkplain #latestState() latest state}, the
@@ -249,6 +317,9 @@ public interface SourceBlockDecoder {
      * @return a {@code SourceBlockState} value indicating the result of the method invocation (see method description)
      * @exception IllegalArgumentException
      *                If {@code packet.sourceBlockNumber() != this.sourceBlockNumber()}
+     * @exception DataIOException
+     *                If the symbols cannot be written to the storage of this decoder; the symbols that were not written
+     *                do not count as received, and may be put again
      */
     public SourceBlockState putEncodingPacket(EncodingPacket packet);
 
@@ -279,4 +350,48 @@ public interface SourceBlockDecoder {
      * @see #symbolOverhead()
      */
     public void setSymbolOverhead(int symbOver);
+
+    /**
+     * Returns {@code true} if, and only if, this decoder is in incremental decoding mode. For information on this mode,
+     * refer to the section on <a href="#incremental-decoding"><em>Incremental decoding</em></a> in the class header.
+     * <p>
+     * Incremental decoding is disabled by default.
+     *
+     * @return {@code true} if, and only if, this decoder is in incremental decoding mode
+     */
+    public boolean isIncrementalDecodingEnabled();
+
+    /**
+     * Enables or disables the incremental decoding mode. For information on this mode, refer to the section on
+     * <a href="#incremental-decoding"><em>Incremental decoding</em></a> in the class header.
+     * <p>
+     * When the mode is enabled, the encoding symbols received so far are immediately taken into account.
+     *
+     * @param enable
+     *            If {@code true}, incremental decoding is enabled, otherwise it is disabled
+     * @see #isIncrementalDecodingEnabled()
+     */
+    public void setIncrementalDecoding(boolean enable);
+
+    /**
+     * Returns {@code true} if, and only if, this decoder is in zero-copy mode. For information on this mode, refer to
+     * the section on <a href="#zero-copy"><em>Zero-copy mode</em></a> in the class header.
+     * <p>
+     * Zero-copy mode is disabled by default.
+     *
+     * @return {@code true} if, and only if, this decoder is in zero-copy mode
+     */
+    public boolean isZeroCopyEnabled();
+
+    /**
+     * Enables or disables the zero-copy mode. For information on this mode, refer to the section on
+     * <a href="#zero-copy"><em>Zero-copy mode</em></a> in the class header.
+     * <p>
+     * Disabling the mode only affects packets received afterwards.
+     *
+     * @param enable
+     *            If {@code true}, zero-copy mode is enabled, otherwise it is disabled
+     * @see #isZeroCopyEnabled()
+     */
+    public void setZeroCopy(boolean enable);
 }
@@ -17,6 +17,10 @@
 package net.fec.openrq.encoder;
 
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
 import net.fec.openrq.EncodingPacket;
 import net.fec.openrq.parameters.ParameterChecker;
 
@@ -302,6 +306,44 @@ public interface SourceBlockEncoder {
      */
     public EncodingPacket repairPacket(int esi, int numSymbols);
 
+    /**
+     * Writes an encoding packet with an encoding symbol from the source block being encoded into the provided buffer,
+     * without creating an {@link EncodingPacket} object. The symbol is a source or a repair symbol according to the
+     * provided identifier.
+     * <p>
+     * The write has the same format as {@link EncodingPacket#writeTo(ByteBuffer)}: the FEC payload ID, followed by the
+     * symbol data length, followed by the symbol data itself. If this method returns normally, the position of the
+     * provided buffer will have been advanced by the returned number of bytes; otherwise the buffer is not modified.
+     * <p>
+     * This method is meant for send loops that reuse a few buffers for every packet, since it does not allocate memory
+     * for the packet nor for its symbol.
+     * <p>
+     * <b><em>Bounds checking</em></b> - If we have {@code K} as the number of source symbols into which is divided the
+     * source block being encoded, and {@code max_esi} as the {@linkplain ParameterChecker#maxEncodingSymbolID() maximum
+     * value for the encoding symbol identifier}, then the following must be true, otherwise an
+     * {@code IllegalArgumentException} is thrown:
+     * <ul>
+     * <li>{@code esi} &ge; 0
+     * <li>{@code esi} &le; {@code max_esi}
+     * </ul>
+     * 
+     * @param esi
+     *            The encoding symbol identifier of the encoding symbol in the written packet
+     * @param buffer
+     *            A buffer on which the packet contents are written
+     * @return the number of bytes written
+     * @exception IllegalArgumentException
+     *                If the provided encoding symbol identifier is invalid
+     * @exception ReadOnlyBufferException
+     *                If the provided buffer is read-only
+     * @exception BufferOverflowException
+     *                If the provided buffer has less bytes remaining than the size of the packet
+     * @exception NullPointerException
+     *                If {@code buffer} is {@code null}
+     * @see #encodingPacket(int)
+     */
+    public int writeEncodingPacket(int esi, ByteBuffer buffer);
+
     /**
      * Returns a new builder object for an iterable over encoding packets.
      * <p>
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq.transport;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import net.fec.openrq.BufferPool;
+import net.fec.openrq.EncodingPacket;
+import net.fec.openrq.Parsed;
+import net.fec.openrq.decoder.DataDecoder;
+
+
+/**
+ * Receives encoding packets from a non-blocking {@code DatagramChannel}, one encoding packet per datagram, and puts
+ * them into a data decoder.
+ * <p>
+ * Datagrams are received into a fixed set of direct buffers that are allocated once and reused by every receive
+ * operation, so no buffer is allocated per packet. Each received datagram is parsed as in
+ * {@link DataDecoder#parsePacket(ByteBuffer, boolean)} without copying the symbols data, and the parsed packets are
+ * put into the data decoder (which copies the symbols data into its own storage) before the buffers are reused.
+ * Datagrams that fail to be parsed, or that are larger than the maximum packet size, are ignored.
+ * <p>
+ * Alternatively, a receiver may take its buffers from a {@link BufferPool}, in which case every datagram is received
+ * into a pooled buffer whose ownership is transferred to the parsed packet (as in
+ * {@link DataDecoder#parsePooledPacket(ByteBuffer, BufferPool)}). Source block decoders in
+ * {@linkplain net.fec.openrq.decoder.SourceBlockDecoder#setZeroCopy(boolean) zero-copy} mode then keep the repair
+ * symbols inside the received buffers, so no symbol is copied between the channel and the decoder storage.
+ * <p>
+ * Method {@link #receive()} is meant to be called whenever the channel is readable, for instance after being selected
+ * by a {@link java.nio.channels.Selector Selector}.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class DatagramReceiver {
+
+    /**
+     * @param channel
+     *            The non-blocking channel from which datagrams are received
+     * @param dataDecoder
+     *            The data decoder into which encoding packets are put
+     * @param maxPacketSize
+     *            The maximum size of an encoding packet, in number of bytes (including the 8 bytes of the FEC payload
+     *            ID and symbols data length)
+     * @param numBuffers
+     *            The number of direct buffers used by the receiver, which is the maximum number of packets received
+     *            before they are put into the data decoder
+     * @return a new datagram receiver
+     * @exception NullPointerException
+     *                If {@code channel} or {@code dataDecoder} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code maxPacketSize < 8 || numBuffers < 1}
+     */
+    public static DatagramReceiver newReceiver(
+        DatagramChannel channel,
+        DataDecoder dataDecoder,
+        int maxPacketSize,
+        int numBuffers)
+    {
+
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(dataDecoder);
+        if (maxPacketSize < HEADER_SIZE) throw new IllegalArgumentException("maximum packet size is too small");
+        if (numBuffers < 1) throw new IllegalArgumentException("number of buffers must be positive");
+
+        return new DatagramReceiver(channel, dataDecoder, maxPacketSize, numBuffers, null);
+    }
+
+    /**
+     * @param channel
+     *            The non-blocking channel from which datagrams are received
+     * @param dataDecoder
+     *            The data decoder into which encoding packets are put
+     * @param maxPacketSize
+     *            The maximum size of an encoding packet, in number of bytes (including the 8 bytes of the FEC payload
+     *            ID and symbols data length)
+     * @param numBuffers
+     *            The maximum number of packets received before they are put into the data decoder
+     * @param pool
+     *            The pool from which a buffer is acquired for each received datagram
+     * @return a new datagram receiver that takes its buffers from a pool
+     * @exception NullPointerException
+     *                If {@code channel}, {@code dataDecoder} or {@code pool} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code maxPacketSize < 8 || numBuffers < 1}
+     */
+    public static DatagramReceiver newReceiver(
+        DatagramChannel channel,
+        DataDecoder dataDecoder,
+        int maxPacketSize,
+        int numBuffers,
+        BufferPool pool)
+    {
+
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(dataDecoder);
+        Objects.requireNonNull(pool);
+        if (maxPacketSize < HEADER_SIZE) throw new IllegalArgumentException("maximum packet size is too small");
+        if (numBuffers < 1) throw new IllegalArgumentException("number of buffers must be positive");
+
+        return new DatagramReceiver(channel, dataDecoder, maxPacketSize, numBuffers, pool);
+    }
+
+
+    // the FEC payload ID and the symbols data length
+    private static final int HEADER_SIZE = 8;
+
+    private final DatagramChannel channel;
+    private final DataDecoder dataDecoder;
+    private final int maxPacketSize;
+    private final ByteBuffer[] buffers; // null if the buffers are taken from a pool
+
+    private final BufferPool pool; // null if the buffers are fixed
+    private final List<EncodingPacket> packets; // the packets of the current batch, reused by every batch
+    private final int batchSize;
+
+    private long datagramsReceived;
+    private long packetsPut;
+
+
+    private DatagramReceiver(
+        DatagramChannel channel,
+        DataDecoder dataDecoder,
+        int maxPacketSize,
+        int numBuffers,
+        BufferPool pool)
+    {
+
+        this.channel = channel;
+        this.dataDecoder = dataDecoder;
+        this.maxPacketSize = maxPacketSize;
+
+        this.pool = pool;
+        this.batchSize = numBuffers;
+        if (pool == null) {
+            // one extra byte per buffer, so that datagrams larger than the maximum packet size can be detected
+            final int bufSize = maxPacketSize + 1;
+            final ByteBuffer all = ByteBuffer.allocateDirect(bufSize * numBuffers);
+            this.buffers = new ByteBuffer[numBuffers];
+            for (int i = 0; i < numBuffers; i++) {
+                all.limit((i + 1) * bufSize);
+                all.position(i * bufSize);
+                buffers[i] = all.slice();
+            }
+        }
+        else {
+            this.buffers = null;
+        }
+        this.packets = new ArrayList<>(numBuffers);
+
+        this.datagramsReceived = 0;
+        this.packetsPut = 0;
+    }
+
+    /**
+     * Returns the channel from which datagrams are received.
+     *
+     * @return the channel from which datagrams are received
+     */
+    public DatagramChannel channel() {
+
+        return channel;
+    }
+
+    /**
+     * Returns the data decoder into which encoding packets are put.
+     *
+     * @return the data decoder into which encoding packets are put
+     */
+    public DataDecoder dataDecoder() {
+
+        return dataDecoder;
+    }
+
+    /**
+     * Returns the maximum size of an encoding packet, in number of bytes.
+     *
+     * @return the maximum size of an encoding packet, in number of bytes
+     */
+    public int maxPacketSize() {
+
+        return maxPacketSize;
+    }
+
+    /**
+     * Returns the total number of datagrams received by this receiver.
+     *
+     * @return the total number of datagrams received by this receiver
+     */
+    public long datagramsReceived() {
+
+        return datagramsReceived;
+    }
+
+    /**
+     * Returns the total number of encoding packets put into the data decoder by this receiver.
+     *
+     * @return the total number of encoding packets put into the data decoder by this receiver
+     */
+    public long packetsPut() {
+
+        return packetsPut;
+    }
+
+    /**
+     * Receives every datagram currently available in the channel, and puts the encoding packets they contain into the
+     * data decoder. This method never blocks waiting for datagrams.
+     *
+     * @return the number of encoding packets put into the data decoder
+     * @throws IOException
+     *             If an IO error occurs while receiving a datagram
+     * @exception IllegalBlockingModeException
+     *                If the channel is in blocking mode
+     */
+    public int receive() throws IOException {
+
+        if (channel.isBlocking()) throw new IllegalBlockingModeException();
+        if (pool != null) {
+            return receivePooled();
+        }
+
+        int put = 0;
+        int n;
+        do {
+            // receive as many datagrams as there are buffers, then put them into the decoder
+            n = 0;
+            try {
+                while (n < buffers.length) {
+                    final ByteBuffer buf = buffers[n];
+                    buf.clear();
+                    if (channel.receive(buf) == null) {
+                        break;
+                    }
+
+                    datagramsReceived++;
+                    if (buf.position() <= maxPacketSize) {
+                        buf.flip();
+                        n++; // the buffer is in use until the batch is put, even if it fails to be parsed
+                        final Parsed<EncodingPacket> parsed = dataDecoder.parsePacket(buf, false);
+                        if (parsed.isValid()) {
+                            packets.add(parsed.value());
+                        }
+                    }
+                }
+
+                if (!packets.isEmpty()) {
+                    put += dataDecoder.putEncodingPackets(packets);
+                }
+            }
+            finally {
+                packets.clear();
+            }
+        }
+        while (n == buffers.length);
+
+        packetsPut += put;
+        return put;
+    }
+
+    private int receivePooled() throws IOException {
+
+        int put = 0;
+        boolean drained = false;
+        while (!drained) {
+            // receive as many datagrams as the batch size, then put them into the decoder
+            try {
+                while (packets.size() < batchSize) {
+                    final ByteBuffer buf = pool.acquire(maxPacketSize + 1); // to detect larger datagrams
+                    if (channel.receive(buf) == null) {
+                        pool.release(buf);
+                        drained = true;
+                        break;
+                    }
+
+                    datagramsReceived++;
+                    if (buf.position() > maxPacketSize) {
+                        pool.release(buf);
+                    }
+                    else {
+                        buf.flip();
+                        final Parsed<EncodingPacket> parsed = dataDecoder.parsePooledPacket(buf, pool);
+                        if (parsed.isValid()) {
+                            packets.add(parsed.value());
+                        }
+                    }
+                }
+
+                if (!packets.isEmpty()) {
+                    put += dataDecoder.putEncodingPackets(packets);
+                }
+            }
+            finally {
+                // packets adopted by zero-copy decoders are not affected
+                for (EncodingPacket packet : packets) {
+                    packet.release();
+                }
+                packets.clear();
+            }
+        }
+
+        packetsPut += put;
+        return put;
+    }
+
+    /**
+     * Returns {@code true} if, and only if, every source block of the data decoder is decoded.
+     *
+     * @return {@code true} if the data is decoded
+     * @see DataDecoder#isDataDecoded()
+     */
+    public boolean isDataDecoded() {
+
+        return dataDecoder.isDataDecoded();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq.transport;
+
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import net.fec.openrq.EncodingPacket;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.ParameterChecker;
+
+
+/**
+ * Sends encoding packets over a {@code DatagramChannel}, one encoding packet per datagram.
+ * <p>
+ * Packets are written, in the format specified by {@link EncodingPacket#asBuffer()}, into a fixed set of direct
+ * buffers that are allocated once and reused by every send operation, so no buffer is allocated per packet. Packets
+ * are taken from any iterable of encoding packets, such as the ones built by
+ * {@link SourceBlockEncoder#newIterableBuilder()}. When the packets of a source block are sent directly from its encoder,
+ * they are {@linkplain SourceBlockEncoder#writeEncodingPacket(int, ByteBuffer) written} straight into those buffers, so
+ * no encoding packet objects are created either.
+ * <p>
+ * The sender can be <em>paced</em> to a maximum number of packets per second, in which case the calling thread is
+ * parked between datagrams, so that bursts of packets do not overflow the buffers of the network or of the receivers.
+ * <p>
+ * The channel should be in blocking mode. In non-blocking mode, datagrams that the channel cannot send immediately are
+ * dropped, which the receivers perceive as packet loss.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class DatagramSender {
+
+    /**
+     * @param channel
+     *            The channel through which datagrams are sent
+     * @param target
+     *            The address to which datagrams are sent
+     * @param maxPacketSize
+     *            The maximum size of an encoding packet, in number of bytes (including the 8 bytes of the FEC payload
+     *            ID and symbols data length)
+     * @param numBuffers
+     *            The number of direct buffers used by the sender, which is the maximum number of packets taken from an
+     *            iterable before they are sent
+     * @param packetsPerSecond
+     *            The maximum number of packets sent per second, or {@code 0} to send packets as fast as possible
+     * @return a new datagram sender
+     * @exception NullPointerException
+     *                If {@code channel} or {@code target} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code maxPacketSize < 8 || numBuffers < 1 || packetsPerSecond < 0}
+     */
+    public static DatagramSender newSender(
+        DatagramChannel channel,
+        SocketAddress target,
+        int maxPacketSize,
+        int numBuffers,
+        long packetsPerSecond)
+    {
+
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(target);
+        if (maxPacketSize < HEADER_SIZE) throw new IllegalArgumentException("maximum packet size is too small");
+        if (numBuffers < 1) throw new IllegalArgumentException("number of buffers must be positive");
+        if (packetsPerSecond < 0) throw new IllegalArgumentException("negative packet rate");
+
+        return new DatagramSender(channel, target, maxPacketSize, numBuffers, packetsPerSecond);
+    }
+
+
+    // the FEC payload ID and the symbols data length
+    private static final int HEADER_SIZE = 8;
+
+    private final DatagramChannel channel;
+    private final SocketAddress target;
+    private final int maxPacketSize;
+    private final ByteBuffer[] buffers;
+
+    private final long nanosPerPacket; // 0 if not paced
+    private long nextSendTime;
+
+    private long packetsSent;
+    private long packetsDropped;
+
+
+    private DatagramSender(
+        DatagramChannel channel,
+        SocketAddress target,
+        int maxPacketSize,
+        int numBuffers,
+        long packetsPerSecond)
+    {
+
+        this.channel = channel;
+        this.target = target;
+        this.maxPacketSize = maxPacketSize;
+
+        // a single direct allocation, sliced into one buffer per packet
+        final ByteBuffer pool = ByteBuffer.allocateDirect(maxPacketSize * numBuffers);
+        this.buffers = new ByteBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++) {
+            pool.limit((i + 1) * maxPacketSize);
+            pool.position(i * maxPacketSize);
+            buffers[i] = pool.slice();
+        }
+
+        this.nanosPerPacket = (packetsPerSecond == 0) ? 0 : Math.max(1, TimeUnit.SECONDS.toNanos(1) / packetsPerSecond);
+        this.nextSendTime = System.nanoTime();
+
+        this.packetsSent = 0;
+        this.packetsDropped = 0;
+    }
+
+    /**
+     * Returns the channel through which datagrams are sent.
+     *
+     * @return the channel through which datagrams are sent
+     */
+    public DatagramChannel channel() {
+
+        return channel;
+    }
+
+    /**
+     * Returns the address to which datagrams are sent.
+     *
+     * @return the address to which datagrams are sent
+     */
+    public SocketAddress target() {
+
+        return target;
+    }
+
+    /**
+     * Returns the maximum size of an encoding packet, in number of bytes.
+     *
+     * @return the maximum size of an encoding packet, in number of bytes
+     */
+    public int maxPacketSize() {
+
+        return maxPacketSize;
+    }
+
+    /**
+     * Returns the total number of packets sent by this sender.
+     *
+     * @return the total number of packets sent by this sender
+     */
+    public long packetsSent() {
+
+        return packetsSent;
+    }
+
+    /**
+     * Returns the total number of packets that were dropped because the channel could not send them immediately.
+     *
+     * @return the total number of packets dropped by this sender
+     */
+    public long packetsDropped() {
+
+        return packetsDropped;
+    }
+
+    /**
+     * Sends every encoding packet of an iterable, in iteration order.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: if the sender is paced, this method blocks until every packet is sent at the
+     * configured rate.
+     *
+     * @param packets
+     *            The encoding packets to be sent
+     * @return the number of packets sent
+     * @throws IOException
+     *             If an IO error occurs while sending a datagram
+     * @exception NullPointerException
+     *                If {@code packets} is {@code null}, or any specific packet is {@code null}
+     * @exception IllegalArgumentException
+     *                If some packet is larger than the maximum packet size (in which case the packets before it are
+     *                already sent)
+     */
+    public int send(Iterable<? extends EncodingPacket> packets) throws IOException {
+
+        final Iterator<? extends EncodingPacket> it = packets.iterator();
+        int sent = 0;
+        while (it.hasNext()) {
+            // take as many packets as there are buffers, then send them
+            int n = 0;
+            while (n < buffers.length && it.hasNext()) {
+                final EncodingPacket packet = it.next();
+                if (HEADER_SIZE + packet.symbolsLength() > maxPacketSize) {
+                    sent += sendBuffers(n);
+                    throw new IllegalArgumentException("packet is larger than the maximum packet size");
+                }
+
+                final ByteBuffer buf = buffers[n++];
+                buf.clear();
+                packet.writeTo(buf);
+                buf.flip();
+            }
+
+            sent += sendBuffers(n);
+        }
+
+        return sent;
+    }
+
+    /**
+     * Sends every source packet of a source block, followed by a number of repair packets. Each packet contains a
+     * single symbol.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: if the sender is paced, this method blocks until every packet is sent at the
+     * configured rate.
+     *
+     * @param encoder
+     *            The encoder of a source block
+     * @param numRepairPackets
+     *            The number of repair packets sent after the source packets
+     * @return the number of packets sent
+     * @throws IOException
+     *             If an IO error occurs while sending a datagram
+     * @exception NullPointerException
+     *                If {@code encoder} is {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code numRepairPackets} is negative or too large, or if a packet is larger than the maximum
+     *                packet size
+     */
+    public int send(SourceBlockEncoder encoder, int numRepairPackets) throws IOException {
+
+        final int K = encoder.numberOfSourceSymbols();
+        if (numRepairPackets < 0 || numRepairPackets > (1 + ParameterChecker.maxEncodingSymbolID() - K)) {
+            throw new IllegalArgumentException("invalid number of repair packets");
+        }
+
+        int sent = 0;
+        final int endESI = K + numRepairPackets;
+        int esi = 0;
+        while (esi < endESI) {
+            // write as many packets as there are buffers, then send them
+            int n = 0;
+            while (n < buffers.length && esi < endESI) {
+                final ByteBuffer buf = buffers[n];
+                buf.clear();
+                try {
+                    encoder.writeEncodingPacket(esi, buf);
+                }
+                catch (BufferOverflowException e) {
+                    sent += sendBuffers(n);
+                    throw new IllegalArgumentException("packet is larger than the maximum packet size");
+                }
+                buf.flip();
+                n++;
+                esi++;
+            }
+
+            sent += sendBuffers(n);
+        }
+
+        return sent;
+    }
+
+    private int sendBuffers(int n) throws IOException {
+
+        int sent = 0;
+        for (int i = 0; i < n; i++) {
+            pace();
+            if (channel.send(buffers[i], target) == 0) {
+                packetsDropped++;
+            }
+            else {
+                packetsSent++;
+                sent++;
+            }
+        }
+
+        return sent;
+    }
+
+    private void pace() {
+
+        if (nanosPerPacket != 0) {
+            long now = System.nanoTime();
+            while (now - nextSendTime < 0) {
+                LockSupport.parkNanos(nextSendTime - now);
+                now = System.nanoTime();
+            }
+            // do not accumulate credit while idle, which would allow a burst afterwards
+            nextSendTime = Math.max(nextSendTime, now) + nanosPerPacket;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq.transport;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.List;
+import java.util.Objects;
+
+import net.fec.openrq.BufferPool;
+import net.fec.openrq.EncodingPacket;
+import net.fec.openrq.Parsed;
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.parameters.ParameterIO;
+
+
+/**
+ * Reads encoding packets from a stream of bytes, such as a {@link java.nio.channels.SocketChannel SocketChannel}, in
+ * the format specified by {@link EncodingPacket#writeTo(java.nio.channels.WritableByteChannel)}.
+ * <p>
+ * Unlike {@link DataDecoder#readPacketFrom(ReadableByteChannel)}, a packet reader never waits for a whole packet to
+ * arrive. Each call to {@link #read(List)} reads the bytes currently available in the channel, yields every packet
+ * that is now complete, and keeps any partial header or symbols data until the next call. The reader can therefore be
+ * driven by a {@link java.nio.channels.Selector Selector}, calling method {@code read} whenever the channel is
+ * readable, so that many connections are served by a single thread.
+ * <p>
+ * Bytes are read into a direct buffer that is allocated once and reused by every read, and which only keeps the bytes
+ * of a partial packet between reads. The symbols data of each packet is copied once, into a buffer owned by the
+ * packet, which may be acquired from a {@link BufferPool} (as in
+ * {@link DataDecoder#parsePooledPacket(ByteBuffer, BufferPool)}). Packets whose symbols data is larger than the
+ * buffer are read directly into their own buffer.
+ * <p>
+ * Packets that fail to be parsed by the data decoder, or that are larger than the maximum packet size, are skipped.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class PacketReader {
+
+    /**
+     * @param channel
+     *            The channel from which encoding packets are read
+     * @param dataDecoder
+     *            The data decoder that parses the encoding packets
+     * @param bufferSize
+     *            The size of the buffer into which bytes are read, in number of bytes
+     * @param maxPacketSize
+     *            The maximum size of an encoding packet, in number of bytes (including the 8 bytes of the FEC payload
+     *            ID and symbols data length)
+     * @return a new packet reader
+     * @exception NullPointerException
+     *                If {@code channel} or {@code dataDecoder} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code bufferSize < 8 || maxPacketSize <= 8}
+     */
+    public static PacketReader newReader(
+        ReadableByteChannel channel,
+        DataDecoder dataDecoder,
+        int bufferSize,
+        int maxPacketSize)
+    {
+
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(dataDecoder);
+        if (bufferSize < HEADER_SIZE) throw new IllegalArgumentException("buffer size is too small");
+        if (maxPacketSize <= HEADER_SIZE) throw new IllegalArgumentException("maximum packet size is too small");
+
+        return new PacketReader(channel, dataDecoder, bufferSize, maxPacketSize, null);
+    }
+
+    /**
+     * @param channel
+     *            The channel from which encoding packets are read
+     * @param dataDecoder
+     *            The data decoder that parses the encoding packets
+     * @param bufferSize
+     *            The size of the buffer into which bytes are read, in number of bytes
+     * @param maxPacketSize
+     *            The maximum size of an encoding packet, in number of bytes (including the 8 bytes of the FEC payload
+     *            ID and symbols data length)
+     * @param pool
+     *            The pool from which a buffer is acquired for each encoding packet
+     * @return a new packet reader that reads each packet into a pooled buffer
+     * @exception NullPointerException
+     *                If {@code channel}, {@code dataDecoder} or {@code pool} are {@code null}
+     * @exception IllegalArgumentException
+     *                If {@code bufferSize < 8 || maxPacketSize <= 8}
+     */
+    public static PacketReader newReader(
+        ReadableByteChannel channel,
+        DataDecoder dataDecoder,
+        int bufferSize,
+        int maxPacketSize,
+        BufferPool pool)
+    {
+
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(dataDecoder);
+        Objects.requireNonNull(pool);
+        if (bufferSize < HEADER_SIZE) throw new IllegalArgumentException("buffer size is too small");
+        if (maxPacketSize <= HEADER_SIZE) throw new IllegalArgumentException("maximum packet size is too small");
+
+        return new PacketReader(channel, dataDecoder, bufferSize, maxPacketSize, pool);
+    }
+
+
+    // the FEC payload ID and the symbols data length
+    private static final int HEADER_SIZE = 8;
+
+    private final ReadableByteChannel channel;
+    private final DataDecoder dataDecoder;
+    private final int maxPacketSize;
+    private final BufferPool pool; // null if packets are read into new buffers
+
+    // kept in fill mode between reads, holding only the bytes of a partial packet
+    private final ByteBuffer buffer;
+
+    // the packet being read, after its header was read
+    private int pendingPayloadID;
+    private ByteBuffer pending; // null if no header was read yet
+    private long bytesToSkip; // the remaining bytes of a packet that is larger than the maximum packet size
+
+    private long packetsRead;
+    private long packetsSkipped;
+
+
+    private PacketReader(
+        ReadableByteChannel channel,
+        DataDecoder dataDecoder,
+        int bufferSize,
+        int maxPacketSize,
+        BufferPool pool)
+    {
+
+        this.channel = channel;
+        this.dataDecoder = dataDecoder;
+        this.maxPacketSize = maxPacketSize;
+        this.pool = pool;
+
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+
+        this.pendingPayloadID = 0;
+        this.pending = null;
+        this.bytesToSkip = 0;
+
+        this.packetsRead = 0;
+        this.packetsSkipped = 0;
+    }
+
+    /**
+     * Returns the channel from which encoding packets are read.
+     *
+     * @return the channel from which encoding packets are read
+     */
+    public ReadableByteChannel channel() {
+
+        return channel;
+    }
+
+    /**
+     * Returns the data decoder that parses the encoding packets.
+     *
+     * @return the data decoder that parses the encoding packets
+     */
+    public DataDecoder dataDecoder() {
+
+        return dataDecoder;
+    }
+
+    /**
+     * Returns the maximum size of an encoding packet, in number of bytes.
+     *
+     * @return the maximum size of an encoding packet, in number of bytes
+     */
+    public int maxPacketSize() {
+
+        return maxPacketSize;
+    }
+
+    /**
+     * Returns the total number of encoding packets yielded by this reader.
+     *
+     * @return the total number of encoding packets yielded by this reader
+     */
+    public long packetsRead() {
+
+        return packetsRead;
+    }
+
+    /**
+     * Returns the total number of encoding packets skipped by this reader, because they failed to be parsed or were
+     * larger than the maximum packet size.
+     *
+     * @return the total number of encoding packets skipped by this reader
+     */
+    public long packetsSkipped() {
+
+        return packetsSkipped;
+    }
+
+    /**
+     * Returns {@code true} if, and only if, this reader holds the bytes of a partial packet, which will be completed by
+     * the next reads.
+     *
+     * @return {@code true} if this reader holds the bytes of a partial packet
+     */
+    public boolean hasPartialPacket() {
+
+        return buffer.position() > 0 || pending != null || bytesToSkip > 0;
+    }
+
+    /**
+     * Reads the bytes currently available in the channel, and adds every encoding packet that is now complete to the
+     * provided list, in the order they were read.
+     * <p>
+     * <b><em>Blocking behavior</em></b>: if the channel is in non-blocking mode, this method never blocks. Otherwise,
+     * it blocks until some bytes are read from the channel (but not until a whole packet is read).
+     *
+     * @param packets
+     *            A list to which the complete encoding packets are added
+     * @return the number of encoding packets added to the list (possibly zero), or {@code -1} if the channel has
+     *         reached end-of-stream and no packet was added
+     * @throws IOException
+     *             If an IO error occurs while reading from the channel, or if a packet has a non-positive symbols data
+     *             length (after which the stream cannot be read any further)
+     * @exception EOFException
+     *                If the channel reaches end-of-stream in the middle of a packet (the packets completed before it
+     *                are still added to the list, and the partial packet is discarded)
+     * @exception NullPointerException
+     *                If {@code packets} is {@code null}
+     */
+    public int read(List<? super EncodingPacket> packets) throws IOException {
+
+        Objects.requireNonNull(packets);
+
+        int added = 0;
+        while (true) {
+            final int space;
+            final int read;
+            if (pending != null && buffer.position() == 0 && pending.remaining() >= buffer.capacity()) {
+                // large symbols data goes directly into the buffer of the packet
+                space = pending.remaining();
+                read = channel.read(pending);
+            }
+            else {
+                space = buffer.remaining();
+                read = channel.read(buffer);
+            }
+
+            if (read < 0) {
+                if (hasPartialPacket()) {
+                    reset(); // releases the pooled buffer of the partial packet
+                    throw new EOFException("end of channel reached before the end of the packet");
+                }
+                return (added == 0) ? -1 : added;
+            }
+
+            added += extractPackets(packets);
+
+            // if the read did not fill the available space, the channel has no more bytes for now
+            if (read < space || isBlocking()) {
+                return added;
+            }
+        }
+    }
+
+    private boolean isBlocking() {
+
+        return channel instanceof SelectableChannel && ((SelectableChannel)channel).isBlocking();
+    }
+
+    /**
+     * Discards the bytes of a partial packet held by this reader, if any, so that the reader can be used again after
+     * the channel is re-synchronized with the beginning of a packet.
+     */
+    public void reset() {
+
+        buffer.clear();
+        releasePending();
+        bytesToSkip = 0;
+    }
+
+    private int extractPackets(List<? super EncodingPacket> packets) throws IOException {
+
+        buffer.flip();
+        try {
+            int added = 0;
+            while (true) {
+                if (bytesToSkip > 0) {
+                    final int n = (int)Math.min(bytesToSkip, buffer.remaining());
+                    buffer.position(buffer.position() + n);
+                    bytesToSkip -= n;
+                    if (bytesToSkip > 0) {
+                        return added;
+                    }
+                }
+
+                if (pending == null) {
+                    if (buffer.remaining() < HEADER_SIZE) {
+                        return added;
+                    }
+                    startPacket(buffer.getInt(), buffer.getInt());
+                }
+                else {
+                    transfer(buffer, pending);
+                    if (pending.hasRemaining()) {
+                        return added;
+                    }
+
+                    final EncodingPacket packet = finishPacket();
+                    if (packet != null) {
+                        packets.add(packet);
+                        added++;
+                    }
+                }
+            }
+        }
+        finally {
+            buffer.compact();
+        }
+    }
+
+    private void startPacket(int fecPayloadID, int symbLen) throws IOException {
+
+        if (symbLen <= 0) {
+            throw new IOException("size of symbols data is non-positive, the stream is corrupted");
+        }
+
+        if (symbLen > maxPacketSize - HEADER_SIZE) {
+            packetsSkipped++;
+            bytesToSkip = symbLen;
+        }
+        else if (pool == null) {
+            pendingPayloadID = fecPayloadID;
+            pending = ByteBuffer.allocate(symbLen);
+        }
+        else {
+            // the pooled packet is parsed with its header, as if it was received in a datagram
+            pendingPayloadID = fecPayloadID;
+            pending = pool.acquire(HEADER_SIZE + symbLen);
+            pending.putInt(fecPayloadID).putInt(symbLen);
+        }
+    }
+
+    // returns null if the packet is skipped
+    private EncodingPacket finishPacket() {
+
+        final ByteBuffer data = pending;
+        pending = null;
+        data.flip();
+
+        final Parsed<EncodingPacket> parsed;
+        if (pool == null) {
+            final int sbn = ParameterIO.extractSourceBlockNumber(pendingPayloadID);
+            final int esi = ParameterIO.extractEncodingSymbolID(pendingPayloadID);
+            parsed = dataDecoder.parsePacket(sbn, esi, data, false);
+        }
+        else {
+            // the pooled buffer is released if the parsing fails
+            parsed = dataDecoder.parsePooledPacket(data, pool);
+        }
+
+        if (parsed.isValid()) {
+            packetsRead++;
+            return parsed.value();
+        }
+        else {
+            packetsSkipped++;
+            return null;
+        }
+    }
+
+    private void releasePending() {
+
+        if (pending != null && pool != null) {
+            pool.release(pending);
+        }
+        pending = null;
+    }
+
+    // transfers as many bytes as possible from the source buffer into the destination buffer
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+
+        if (src.remaining() <= dst.remaining()) {
+            dst.put(src);
+        }
+        else {
+            final int lim = src.limit();
+            src.limit(src.position() + dst.remaining());
+            dst.put(src);
+            src.limit(lim);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * This package contains helper classes for transmitting encoding packets in datagrams, over
+ * {@link java.nio.channels.DatagramChannel DatagramChannel} objects, with one encoding packet per datagram, and for
+ * reading encoding packets from non-blocking byte streams, such as {@link java.nio.channels.SocketChannel
+ * SocketChannel} objects. Please refer to the documentation of the <a href="../package-summary.html#package_description">net.fec.openrq</a> package
+ * for more details.
+ */
+package net.fec.openrq.transport;
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq.util.collection;
+
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.fec.openrq.util.array.ArrayUtils;
+
+
+/**
+ * A fixed-size bit set whose bits can be set concurrently without locking.
+ * <p>
+ * The method {@link #claim(int)} atomically sets a bit and reports whether the calling thread was the one that set it,
+ * which allows multiple threads to agree on a single "owner" for each index. The owner may later give up its claim
+ * with method {@link #clear(int)}.
+ */
+public final class AtomicBitSet {
+
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+
+
+    private final AtomicLongArray words;
+    private final int length;
+
+
+    /**
+     * Creates a new bit set with the provided number of bits, all initially false.
+     *
+     * @param length
+     *            The number of bits (must be non-negative)
+     * @exception IllegalArgumentException
+     *                If {@code length} is negative
+     */
+    public AtomicBitSet(int length) {
+
+        if (length < 0) throw new IllegalArgumentException("negative length");
+
+        this.words = new AtomicLongArray(wordIndex(length + 63));
+        this.length = length;
+    }
+
+    private static int wordIndex(int bitIndex) {
+
+        return bitIndex >>> ADDRESS_BITS_PER_WORD;
+    }
+
+    /**
+     * Returns the number of bits in this bit set.
+     *
+     * @return the number of bits in this bit set
+     */
+    public int length() {
+
+        return length;
+    }
+
+    /**
+     * Returns the value of the bit at the provided index.
+     *
+     * @param index
+     *            A bit index
+     * @return the value of the bit at the provided index
+     * @exception IndexOutOfBoundsException
+     *                If {@code index < 0 || index >= length()}
+     */
+    public boolean get(int index) {
+
+        ArrayUtils.checkIndexRange(index, length);
+        return (words.get(wordIndex(index)) & (1L << index)) != 0;
+    }
+
+    /**
+     * Atomically sets the bit at the provided index to true.
+     *
+     * @param index
+     *            A bit index
+     * @return {@code true} if the bit was false before this call, or {@code false} if it was already true
+     * @exception IndexOutOfBoundsException
+     *                If {@code index < 0 || index >= length()}
+     */
+    public boolean claim(int index) {
+
+        ArrayUtils.checkIndexRange(index, length);
+
+        final int w = wordIndex(index);
+        final long mask = 1L << index;
+        while (true) {
+            final long word = words.get(w);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(w, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Atomically sets the bit at the provided index to false.
+     *
+     * @param index
+     *            A bit index
+     * @return {@code true} if the bit was true before this call, or {@code false} if it was already false
+     * @exception IndexOutOfBoundsException
+     *                If {@code index < 0 || index >= length()}
+     */
+    public boolean clear(int index) {
+
+        ArrayUtils.checkIndexRange(index, length);
+
+        final int w = wordIndex(index);
+        final long mask = 1L << index;
+        while (true) {
+            final long word = words.get(w);
+            if ((word & mask) == 0) {
+                return false;
+            }
+            if (words.compareAndSet(w, word, word & ~mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of this bit set. Bits that are set concurrently with this call may or may not be present in
+     * the snapshot.
+     *
+     * @return a new {@code BitSet} with the bits of this bit set
+     */
+    public BitSet snapshot() {
+
+        final long[] copy = new long[words.length()];
+        for (int w = 0; w < copy.length; w++) {
+            copy[w] = words.get(w);
+        }
+
+        return BitSet.valueOf(copy);
+    }
+}
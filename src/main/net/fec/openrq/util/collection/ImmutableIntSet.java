@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq.util.collection;
+
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.fec.openrq.util.array.ArrayUtils;
+
+
+/**
+ * An immutable set of integers backed by an array of primitive {@code int} values.
+ * <p>
+ * The iteration order is the order of the elements in the backing array. Membership tests use a binary search if the
+ * elements are in ascending order, and a linear search otherwise. Elements are only boxed when accessed through the
+ * {@link java.util.Set} interface; the methods {@link #getInt(int)} and {@link #toIntArray()} avoid boxing altogether.
+ */
+public final class ImmutableIntSet extends AbstractSet<Integer> {
+
+    private static final ImmutableIntSet EMPTY = new ImmutableIntSet(ArrayUtils.EmptyArrayOf.ints(), 0);
+
+
+    /**
+     * Returns an immutable empty set.
+     *
+     * @return an immutable empty set
+     */
+    public static ImmutableIntSet empty() {
+
+        return EMPTY;
+    }
+
+    /**
+     * Returns an immutable set with the first {@code size} elements of the provided array. The returned set keeps a
+     * reference to the provided array, so make sure the array is not modified afterwards. The elements must be
+     * distinct.
+     *
+     * @param elements
+     *            The distinct elements to be placed in an immutable set
+     * @param size
+     *            The number of elements to use from the start of the array
+     * @return an immutable set of the provided elements
+     * @exception NullPointerException
+     *                If {@code elements} is {@code null}
+     * @exception IndexOutOfBoundsException
+     *                If {@code size < 0 || size > elements.length}
+     */
+    public static ImmutableIntSet of(int[] elements, int size) {
+
+        ArrayUtils.checkArrayBounds(0, size, elements.length);
+        return (size == 0) ? EMPTY : new ImmutableIntSet(elements, size);
+    }
+
+
+    private final int[] elements;
+    private final int size;
+    private final boolean ascending;
+
+
+    private ImmutableIntSet(int[] elements, int size) {
+
+        this.elements = elements;
+        this.size = size;
+        this.ascending = isAscending(elements, size);
+    }
+
+    private static boolean isAscending(int[] elements, int size) {
+
+        for (int i = 1; i < size; i++) {
+            if (elements[i - 1] >= elements[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+
+        return (o instanceof Integer) && containsInt((Integer)o);
+    }
+
+    /**
+     * Returns {@code true} if, and only if, this set contains the provided value.
+     *
+     * @param value
+     *            A value
+     * @return {@code true} if, and only if, this set contains the provided value
+     */
+    public boolean containsInt(int value) {
+
+        if (ascending) {
+            return Arrays.binarySearch(elements, 0, size, value) >= 0;
+        }
+        else {
+            for (int i = 0; i < size; i++) {
+                if (elements[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the element at the given position in the iteration order of this set.
+     *
+     * @param index
+     *            A position in the iteration order
+     * @return the element at the given position
+     * @exception IndexOutOfBoundsException
+     *                If {@code index < 0 || index >= size()}
+     */
+    public int getInt(int index) {
+
+        ArrayUtils.checkIndexRange(index, size);
+        return elements[index];
+    }
+
+    /**
+     * Returns a new array with the elements of this set, in iteration order.
+     *
+     * @return a new array with the elements of this set
+     */
+    public int[] toIntArray() {
+
+        return Arrays.copyOf(elements, size);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+
+        return new Iterator<Integer>() {
+
+            private int next = 0;
+
+
+            @Override
+            public boolean hasNext() {
+
+                return next < size;
+            }
+
+            @Override
+            public Integer next() {
+
+                if (next >= size) throw new NoSuchElementException();
+                return elements[next++];
+            }
+
+            @Override
+            public void remove() {
+
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
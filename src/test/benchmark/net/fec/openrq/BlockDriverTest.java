@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+ * Measures the time to decode a data object whose packets of different source blocks arrive interleaved, with two
+ * ways of spreading the source blocks among threads:
+ * - "striped": each batch of received packets is put with DataDecoder.putEncodingPackets(Iterable, Executor), which
+ * feeds groups of source blocks in parallel on a fixed pool with one thread per processor
+ * - "threadperblock": each received packet is queued into a ThreadPerBlockDecoder, which feeds each active source
+ * block from its own thread (platform threads here, but any other thread factory can be plugged in)
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+public class BlockDriverTest {
+
+    // default parameter values
+    private static final int DEF_NUM_SOURCE_BLOCKS = 64;
+    private static final int DEF_NUM_SOURCE_SYMBOLS = 40;
+    private static final int DEF_SYMBOL_SIZE = 256;
+    private static final int DEF_LOST_PERCENT = 10;
+    private static final int DEF_BATCH_SIZE = 64;
+    private static final int DEF_QUEUE_CAPACITY = 16;
+
+
+    @Param({"8", "" + DEF_NUM_SOURCE_BLOCKS, "256"})
+    private int srcblocks;
+
+    @Param({"" + DEF_NUM_SOURCE_SYMBOLS})
+    private int srcsymbs;
+
+    @Param({"" + DEF_SYMBOL_SIZE})
+    private int symbsize;
+
+    @Param({"" + DEF_LOST_PERCENT})
+    private int lostpercent;
+
+    @Param({"" + DEF_BATCH_SIZE})
+    private int batchsize;
+
+    @Param({"" + DEF_QUEUE_CAPACITY})
+    private int queuecapacity;
+
+    @Param({"striped", "threadperblock"})
+    private String driver;
+
+    private FECParameters fecParams;
+    private List<List<EncodingPacket>> batches; // the packets in the order they are received, in receive batches
+    private ExecutorService stripeExecutor;
+    private ThreadFactory blockThreadFactory;
+
+    private ArrayDataDecoder dataDec;
+
+
+    public BlockDriverTest() {
+
+        this.srcblocks = DEF_NUM_SOURCE_BLOCKS;
+        this.srcsymbs = DEF_NUM_SOURCE_SYMBOLS;
+        this.symbsize = DEF_SYMBOL_SIZE;
+        this.lostpercent = DEF_LOST_PERCENT;
+        this.batchsize = DEF_BATCH_SIZE;
+        this.queuecapacity = DEF_QUEUE_CAPACITY;
+        this.driver = "striped";
+    }
+
+    @Setup
+    public void setup() {
+
+        fecParams = FECParameters.newParameters((long)srcblocks * srcsymbs * symbsize, symbsize, srcblocks);
+
+        final byte[] data = TestingCommon.randomBytes(fecParams.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (SourceBlockEncoder enc : OpenRQ.newEncoder(data, fecParams).sourceBlockIterable()) {
+            // the first source symbols are lost, and replaced by the same number of repair symbols (plus a couple more)
+            final int K = enc.numberOfSourceSymbols();
+            final int lost = K * lostpercent / 100;
+            for (EncodingPacket packet : enc.newIterableBuilder().startAt(lost).endAt(K + lost + 2).build()) {
+                packets.add(packet);
+            }
+        }
+        Collections.shuffle(packets, TestingCommon.newSeededRandom());
+
+        batches = new ArrayList<>();
+        for (int i = 0; i < packets.size(); i += batchsize) {
+            batches.add(packets.subList(i, Math.min(packets.size(), i + batchsize)));
+        }
+
+        stripeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        blockThreadFactory = Executors.defaultThreadFactory();
+    }
+
+    @TearDown
+    public void shutdown() {
+
+        stripeExecutor.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void newDecoder() {
+
+        dataDec = OpenRQ.newDecoder(fecParams, 0, 0L, System.getProperty("java.io.tmpdir"));
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseDecoder() {
+
+        for (SourceBlockDecoder sbDec : dataDec.sourceBlockIterable()) {
+            ((ArraySourceBlockDecoder)sbDec).releaseStorage();
+        }
+    }
+
+    @Benchmark
+    public void test() throws InterruptedException, ExecutionException {
+
+        switch (driver) {
+            case "striped":
+                for (List<EncodingPacket> batch : batches) {
+                    dataDec.putEncodingPackets(batch, stripeExecutor);
+                }
+            break;
+
+            case "threadperblock":
+                try (ThreadPerBlockDecoder blockDec = OpenRQ.newThreadPerBlockDecoder(
+                    dataDec, queuecapacity, blockThreadFactory))
+                {
+                    for (List<EncodingPacket> batch : batches) {
+                        for (EncodingPacket packet : batch) {
+                            blockDec.putEncodingPacket(packet);
+                        }
+                    }
+                    blockDec.awaitDataDecoded(1, TimeUnit.MINUTES);
+                }
+            break;
+
+            default:
+                throw new IllegalArgumentException("unknown driver " + driver);
+        }
+
+        if (!dataDec.isDataDecoded()) {
+            throw new IllegalStateException("decoding failed, try using a different set of symbols");
+        }
+    }
+
+    // for CPU/memory profiling, and for a quick comparison of both drivers
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+
+        for (String driver : new String[] {"striped", "threadperblock"}) {
+            final BlockDriverTest test = new BlockDriverTest();
+            test.driver = driver;
+            test.setup();
+
+            final int iters = 20;
+            long elapsed = 0;
+            for (int i = 0; i < iters; i++) {
+                test.newDecoder();
+                final long start = System.nanoTime();
+                test.test();
+                elapsed += System.nanoTime() - start;
+                test.releaseDecoder();
+            }
+            test.shutdown();
+
+            System.out.printf("%s: %.3f ms per data object%n", driver, elapsed / 1e6 / iters);
+        }
+    }
+}
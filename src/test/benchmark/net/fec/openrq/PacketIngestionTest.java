@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Jose Lopes
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+ * Measures the ingestion of received datagrams into a source block decoder, from pooled receive buffers until the
+ * source block is decoded, with and without zero-copy mode. Besides the time per source block, the auxiliary counters
+ * report the bytes received and the bytes copied by the decoder (source symbols written into the source data storage,
+ * plus repair symbols copied into the repair symbol slab), whose ratio is the number of bytes copied per byte received.
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+public class PacketIngestionTest {
+
+    // default parameter values
+    private static final int DEF_NUM_SOURCE_SYMBOLS = 250;
+    private static final int DEF_SYMBOL_SIZE = 1024;
+    private static final int DEF_LOST_PERCENT = 20;
+
+
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class CopyCounters {
+
+        public long bytesReceived;
+        public long bytesCopied;
+
+
+        @Setup(Level.Iteration)
+        public void reset() {
+
+            bytesReceived = 0;
+            bytesCopied = 0;
+        }
+    }
+
+
+    @Param({"" + DEF_NUM_SOURCE_SYMBOLS})
+    private int srcsymbs;
+
+    @Param({"" + DEF_SYMBOL_SIZE})
+    private int symbsize;
+
+    @Param({"5", "" + DEF_LOST_PERCENT, "50"})
+    private int lostpercent;
+
+    @Param({"false", "true"})
+    private boolean zerocopy;
+
+    private FECParameters fecParams;
+    private BufferPool pool;
+    private List<byte[]> datagrams; // the datagrams of a source block, in the order they are received
+    private long sourceBytes; // the bytes of source symbols inside the datagrams
+
+    private ArrayDataDecoder dataDec;
+
+
+    public PacketIngestionTest() {
+
+        this.srcsymbs = DEF_NUM_SOURCE_SYMBOLS;
+        this.symbsize = DEF_SYMBOL_SIZE;
+        this.lostpercent = DEF_LOST_PERCENT;
+        this.zerocopy = false;
+    }
+
+    @Setup
+    public void setup() {
+
+        // force single source block
+        fecParams = FECParameters.newParameters((long)srcsymbs * symbsize, symbsize, 1);
+        pool = BufferPool.newDirectPool();
+
+        final byte[] data = TestingCommon.randomBytes(fecParams.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        final SourceBlockEncoder enc = OpenRQ.newEncoder(data, fecParams).sourceBlock(0);
+
+        // the first source symbols are lost, and replaced by the same number of repair symbols (plus a couple more)
+        final int lost = srcsymbs * lostpercent / 100;
+        datagrams = new ArrayList<>();
+        sourceBytes = 0;
+        for (EncodingPacket packet : enc.newIterableBuilder().startAt(lost).endAt(srcsymbs + lost + 2).build()) {
+            datagrams.add(packet.asArray());
+            if (packet.symbolType() == SymbolType.SOURCE) {
+                sourceBytes += packet.symbolsLength();
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newDecoder() {
+
+        dataDec = OpenRQ.newDecoder(fecParams, 0, 0L, System.getProperty("java.io.tmpdir"));
+        dataDec.sourceBlock(0).setZeroCopy(zerocopy);
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseDecoder() {
+
+        ((ArraySourceBlockDecoder)dataDec.sourceBlock(0)).releaseStorage();
+    }
+
+    @Benchmark
+    public void test(CopyCounters counters) {
+
+        final SourceBlockDecoder sbDec = dataDec.sourceBlock(0);
+        for (byte[] datagram : datagrams) {
+            // stands for the copy from the network into the receive buffer, which is not counted
+            final ByteBuffer buf = pool.acquire(datagram.length);
+            buf.put(datagram).flip();
+
+            final EncodingPacket packet = dataDec.parsePooledPacket(buf, pool).value();
+            sbDec.putEncodingPacket(packet);
+            packet.release();
+            counters.bytesReceived += datagram.length;
+        }
+
+        if (!sbDec.isSourceBlockDecoded()) {
+            throw new IllegalStateException("decoding failed, try using a different set of symbols");
+        }
+        counters.bytesCopied += sourceBytes + ArraySourceBlockDecoder.repairBytesCopied((ArraySourceBlockDecoder)sbDec);
+    }
+
+    // for CPU/memory profiling, and for a quick report of the bytes copied per byte received
+    public static void main(String[] args) {
+
+        for (boolean zeroCopy : new boolean[] {false, true}) {
+            final PacketIngestionTest test = new PacketIngestionTest();
+            test.zerocopy = zeroCopy;
+            test.setup();
+
+            final CopyCounters counters = new CopyCounters();
+            final int iters = 100;
+            for (int i = 0; i < iters; i++) {
+                test.newDecoder();
+                test.test(counters);
+                test.releaseDecoder();
+            }
+
+            System.out.printf("zero-copy = %b: %.3f bytes copied per byte received%n",
+                zeroCopy, (double)counters.bytesCopied / counters.bytesReceived);
+        }
+    }
+}
@@ -18,12 +18,16 @@ package net.fec.openrq;
 
 import static net.fec.openrq.util.arithmetic.ExtraMath.integerPow;
 
+import java.io.File;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.fec.openrq.decoder.DataDecoder;
+import net.fec.openrq.decoder.SourceBlockDecoder;
 import net.fec.openrq.parameters.FECParameters;
 import net.fec.openrq.parameters.ParameterChecker;
 
@@ -35,6 +39,9 @@ public final class TestingCommon {
 
     private static final long RAND_SEED = 42L;
 
+    // distinguishes the temporary storage files of decoders created by the same test run
+    private static final AtomicLong NEXT_FILE_ID = new AtomicLong(System.nanoTime());
+
 
     public static Random newRandom() {
 
@@ -53,6 +60,56 @@ public final class TestingCommon {
         return bs;
     }
 
+    /**
+     * Returns a new data decoder whose source blocks are stored in temporary files inside the default temporary
+     * directory. The files should be deleted afterwards with {@link #releaseDecoder(DataDecoder)}.
+     *
+     * @param fecParams
+     *            The FEC parameters of the decoder
+     * @param extraSymbols
+     *            The symbol overhead of the decoder
+     * @return a new data decoder
+     */
+    public static ArrayDataDecoder newTempDecoder(FECParameters fecParams, int extraSymbols) {
+
+        final String tempDir = System.getProperty("java.io.tmpdir") + File.separator;
+        return OpenRQ.newDecoder(fecParams, extraSymbols, NEXT_FILE_ID.getAndIncrement(), tempDir);
+    }
+
+    /**
+     * Returns the source data of a data decoder returned by one of the factory methods in class {@link OpenRQ},
+     * whether or not it is decoded.
+     *
+     * @param dataDec
+     *            A data decoder
+     * @return a new array with the source data
+     */
+    public static byte[] decodedData(DataDecoder dataDec) {
+
+        final byte[] data = new byte[(int)dataDec.dataLength()];
+        int off = 0;
+        for (SourceBlockDecoder sbDec : dataDec.sourceBlockIterable()) {
+            final ArraySourceBlockDecoder dec = (ArraySourceBlockDecoder)sbDec;
+            dec.readData(0, data, off, dec.getDataLength());
+            off += dec.getDataLength();
+        }
+
+        return data;
+    }
+
+    /**
+     * Deletes the temporary files of a data decoder returned by {@link #newTempDecoder(FECParameters, int)}.
+     *
+     * @param dataDec
+     *            A data decoder
+     */
+    public static void releaseDecoder(DataDecoder dataDec) {
+
+        for (SourceBlockDecoder sbDec : dataDec.sourceBlockIterable()) {
+            ((ArraySourceBlockDecoder)sbDec).releaseStorage();
+        }
+    }
+
     public static Set<Integer> randomAnyESIs(Random rand, int numSymbols) {
 
         final int minESI = ParameterChecker.minEncodingSymbolID();
@@ -19,6 +19,8 @@ package net.fec.openrq;
 
 import net.fec.openrq.suites.ParametersBoundsSuite;
 import net.fec.openrq.suites.ReadWriteSuite;
+import net.fec.openrq.transport.DatagramTransportTest;
+import net.fec.openrq.transport.PacketReaderTest;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -30,6 +32,24 @@ import org.junit.runners.Suite.SuiteClasses;
                ParametersBoundsSuite.class,
                OpenRQClassTest.class,
                DataIntegrityCheckTest.class,
+               ConcurrentDecodingTest.class,
+               IncrementalDecodingTest.class,
+               ErasureRecoveryTest.class,
+               FileDecodingTest.class,
+               PacketBatchTest.class,
+               PacketReaderTest.class,
+               StorageFailureTest.class,
+               IntermediateSymbolsCacheTest.class,
+               AsyncDataDecoderTest.class,
+               ThreadPerBlockDecoderTest.class,
+               DecodedDataInputStreamTest.class,
+               DatagramTransportTest.class,
+               PacketDispatcherTest.class,
+               RepairSymbolSlabTest.class,
+               SymbolMatrixTest.class,
+               PacketPublisherTest.class,
+               StreamingDataEncoderTest.class,
+               EncodingPacketWriteTest.class,
                ReadWriteSuite.class
 })
 public class AllTests {
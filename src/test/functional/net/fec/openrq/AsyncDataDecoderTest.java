@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.fec.openrq.decoder.SourceBlockState;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the asynchronous decoding of encoding packets, with completion handlers and with futures.
+ */
+public final class AsyncDataDecoderTest {
+
+    private static final int K = 40;
+    private static final int T = 32;
+    private static final double LOSS = 0.2;
+
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(3 * K * T - 7, T, 3);
+
+    // stores the symbols and decodes the source blocks
+    private static ExecutorService executor;
+
+
+    @BeforeClass
+    public static void initExecutor() {
+
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void shutdownExecutor() throws InterruptedException {
+
+        executor.shutdown();
+        executor.awaitTermination(2L, TimeUnit.SECONDS);
+    }
+
+
+    private byte[] data;
+    private ArrayDataEncoder enc;
+    private ArrayDataDecoder dec;
+    private AsyncDataDecoder asyncDec;
+
+
+    @Before
+    public void setup() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        asyncDec = OpenRQ.newAsyncDataDecoder(dec, executor);
+    }
+
+    @After
+    public void cleanup() {
+
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test(timeout = 10000)
+    public void checkDecodingWithCompletionHandler() throws InterruptedException {
+
+        final List<EncodingPacket> packets = lossyPackets(TestingCommon.newSeededRandom());
+        final Results results = new Results(packets.size());
+        for (EncodingPacket packet : packets) {
+            asyncDec.putEncodingPacket(packet, packet, results);
+        }
+
+        results.await();
+        assertNull(results.failure.get());
+        assertEquals(0, asyncDec.pendingOperations());
+        assertTrue(dec.isDataDecoded());
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+    }
+
+    @Test(timeout = 10000)
+    public void checkDecodingWithFutures() throws InterruptedException, ExecutionException, TimeoutException {
+
+        final List<Future<SourceBlockState>> futures = new ArrayList<>();
+        for (EncodingPacket packet : lossyPackets(TestingCommon.newSeededRandom())) {
+            futures.add(asyncDec.putEncodingPacket(packet));
+        }
+
+        for (Future<SourceBlockState> future : futures) {
+            future.get();
+            assertTrue(future.isDone());
+            assertFalse(future.cancel(true));
+            assertFalse(future.isCancelled());
+        }
+
+        assertEquals(0, asyncDec.pendingOperations());
+        assertTrue(dec.isDataDecoded());
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+
+        // a packet for a decoded source block completes right away
+        final Future<SourceBlockState> late = asyncDec.putEncodingPacket(enc.sourceBlock(0).repairPacket(K));
+        assertEquals(SourceBlockState.DECODED, late.get(1L, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void checkPooledPacketsAreReleased() throws InterruptedException {
+
+        // every packet twice (the second ones are duplicates or arrive late), and then some more late ones
+        final CountingPool pool = new CountingPool();
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            for (EncodingPacket packet : lossyPackets(TestingCommon.newSeededRandom())) {
+                packets.add(pooledCopy(packet, pool));
+            }
+        }
+
+        final Results results = new Results(packets.size());
+        for (EncodingPacket packet : packets) {
+            asyncDec.putEncodingPacket(packet, packet, results);
+        }
+        results.await();
+        assertTrue(dec.isDataDecoded());
+
+        final List<EncodingPacket> latePackets = new ArrayList<>();
+        for (EncodingPacket packet : lossyPackets(TestingCommon.newSeededRandom())) {
+            latePackets.add(pooledCopy(packet, pool));
+        }
+        final Results lateResults = new Results(latePackets.size());
+        for (EncodingPacket packet : latePackets) {
+            asyncDec.putEncodingPacket(packet, packet, lateResults);
+        }
+        lateResults.await();
+
+        assertNull(results.failure.get());
+        assertNull(lateResults.failure.get());
+        assertEquals(0, pool.outstanding.get());
+    }
+
+    @Test(timeout = 10000)
+    public void checkFailedWriteGivesUpClaims() throws InterruptedException {
+
+        // the asynchronous channel cannot be opened for a deleted file
+        final ArraySourceBlockDecoder sbDec = (ArraySourceBlockDecoder)dec.sourceBlock(0);
+        assertTrue(new File(sbDec.getTempStorageName()).delete());
+
+        final SourceBlockEncoder sbEnc = enc.sourceBlock(0);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                asyncDec.putEncodingPacket(sbEnc.sourcePacket(0, 3)).get();
+                fail("write to deleted storage");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+
+            // the symbols are not received, and are not claimed either (otherwise, the second attempt would succeed)
+            for (int esi = 0; esi < 3; esi++) {
+                assertFalse(sbDec.containsSourceSymbol(esi));
+            }
+            assertEquals(K, sbDec.numberOfMissingSourceSymbols());
+        }
+        assertEquals(0, asyncDec.pendingOperations());
+    }
+
+    // loses some source packets, and sends enough repair packets to recover them
+    private List<EncodingPacket> lossyPackets(Random rand) {
+
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            final int numSource = sbEnc.numberOfSourceSymbols();
+            int lost = 0;
+            for (int esi = 0; esi < numSource; esi++) {
+                if (rand.nextDouble() < LOSS) {
+                    lost++;
+                }
+                else {
+                    packets.add(sbEnc.sourcePacket(esi));
+                }
+            }
+            for (int esi = numSource; esi < numSource + lost + 4; esi++) {
+                packets.add(sbEnc.repairPacket(esi));
+            }
+        }
+
+        return packets;
+    }
+
+    private EncodingPacket pooledCopy(EncodingPacket packet, BufferPool pool) {
+
+        final ByteBuffer buf = packet.asBuffer();
+        return dec.parsePacket(buf, pool).value();
+    }
+
+
+    // counts the completed operations, and keeps the first failure
+    private static final class Results implements CompletionHandler<SourceBlockState, EncodingPacket> {
+
+        final CountDownLatch done;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+
+        Results(int numOperations) {
+
+            this.done = new CountDownLatch(numOperations);
+        }
+
+        @Override
+        public void completed(SourceBlockState state, EncodingPacket packet) {
+
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Throwable exc, EncodingPacket packet) {
+
+            failure.compareAndSet(null, exc);
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+
+            done.await();
+        }
+    }
+
+    // counts the buffers that were acquired and not yet released
+    private static final class CountingPool extends BufferPool {
+
+        final AtomicInteger outstanding = new AtomicInteger();
+
+
+        @Override
+        public ByteBuffer acquire(int size) {
+
+            outstanding.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+
+            outstanding.decrementAndGet();
+        }
+    }
+}
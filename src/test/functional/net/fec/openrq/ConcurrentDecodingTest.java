@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.decoder.SourceBlockState;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Puts the same encoding packets into the same decoder from many threads at once, then checks that every symbol is
+ * counted once, that each source block becomes decoded exactly once, and that the decoded data matches the original.
+ */
+public final class ConcurrentDecodingTest {
+
+    private static final int NUM_THREADS = 8;
+    private static final int ROUNDS = 20;
+
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(2 * 120 * 64, 64, 2);
+
+
+    private byte[] data;
+    private ArrayDataEncoder enc;
+    private ArrayDataDecoder dec;
+
+
+    @Before
+    public void newCoders() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+    }
+
+    @After
+    public void releaseDecoder() {
+
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test
+    public void checkDataWithConcurrentPuts() throws Throwable {
+
+        // a fifth of the source symbols are lost, and replaced by repair symbols
+        final Random rand = TestingCommon.newSeededRandom();
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            final int K = sbEnc.numberOfSourceSymbols();
+            for (int esi = 0; esi < K; esi++) {
+                if (rand.nextInt(5) != 0) {
+                    packets.add(sbEnc.encodingPacket(esi));
+                }
+            }
+            for (int esi = K; esi < K + K / 3; esi++) {
+                packets.add(sbEnc.encodingPacket(esi));
+            }
+        }
+
+        final AtomicInteger[] decodedCounts = countDecodedNotifications();
+        putConcurrently(packets, 1);
+
+        assertTrue(dec.isDataDecoded());
+        for (SourceBlockDecoder sbDec : dec.sourceBlockIterable()) {
+            assertEquals(SourceBlockState.DECODED, sbDec.latestState());
+            assertEquals(0, sbDec.numberOfMissingSourceSymbols());
+            assertEquals(1, decodedCounts[sbDec.sourceBlockNumber()].get());
+        }
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+    }
+
+    @Test
+    public void checkDuplicateSourceSymbolsAreCountedOnce() throws Throwable {
+
+        // every source symbol except one is put, many times by each thread
+        final List<EncodingPacket> packets = new ArrayList<>();
+        final int[] missing = new int[FEC_PARAMS.numberOfSourceBlocks()];
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            final int K = sbEnc.numberOfSourceSymbols();
+            missing[sbEnc.sourceBlockNumber()] = K / 2;
+            for (int esi = 0; esi < K; esi++) {
+                if (esi != K / 2) {
+                    packets.add(sbEnc.encodingPacket(esi));
+                }
+            }
+        }
+
+        final AtomicInteger[] decodedCounts = countDecodedNotifications();
+        putConcurrently(packets, ROUNDS);
+
+        for (SourceBlockDecoder sbDec : dec.sourceBlockIterable()) {
+            final int sbn = sbDec.sourceBlockNumber();
+            assertEquals(SourceBlockState.INCOMPLETE, sbDec.latestState());
+            assertEquals(1, sbDec.numberOfMissingSourceSymbols());
+            assertArrayEquals(new int[] {missing[sbn]}, sbDec.missingSourceSymbolsArray());
+            assertEquals(0, decodedCounts[sbn].get());
+        }
+
+        // the last source symbol of each source block completes it
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            final int sbn = sbEnc.sourceBlockNumber();
+            final EncodingPacket last = sbEnc.encodingPacket(missing[sbn]);
+            assertEquals(SourceBlockState.DECODED, dec.sourceBlock(sbn).putEncodingPacket(last));
+            assertEquals(1, decodedCounts[sbn].get());
+        }
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+    }
+
+    @Test
+    public void checkDuplicateRepairSymbolsAreCountedOnce() throws Throwable {
+
+        // too few repair symbols to decode, put many times by each thread
+        final int numRepair = 10;
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            final int K = sbEnc.numberOfSourceSymbols();
+            for (int esi = K; esi < K + numRepair; esi++) {
+                packets.add(sbEnc.encodingPacket(esi));
+            }
+        }
+
+        putConcurrently(packets, ROUNDS);
+
+        for (SourceBlockDecoder sbDec : dec.sourceBlockIterable()) {
+            final int K = sbDec.numberOfSourceSymbols();
+            assertEquals(SourceBlockState.INCOMPLETE, sbDec.latestState());
+            assertEquals(K, sbDec.numberOfMissingSourceSymbols());
+            assertEquals(numRepair, sbDec.availableRepairSymbolsArray().length);
+            for (int esi = K; esi < K + numRepair; esi++) {
+                assertTrue(sbDec.containsRepairSymbol(esi));
+            }
+        }
+    }
+
+    private AtomicInteger[] countDecodedNotifications() {
+
+        final AtomicInteger[] counts = new AtomicInteger[dec.numberOfSourceBlocks()];
+        for (SourceBlockDecoder sbDec : dec.sourceBlockIterable()) {
+            final AtomicInteger count = new AtomicInteger(0);
+            counts[sbDec.sourceBlockNumber()] = count;
+            ((ArraySourceBlockDecoder)sbDec).addDecodedListener(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    count.incrementAndGet();
+                }
+            });
+        }
+
+        return counts;
+    }
+
+    // every thread puts every packet the given number of times, each thread in its own random order
+    private void putConcurrently(final List<EncodingPacket> packets, final int rounds) throws Throwable {
+
+        final CyclicBarrier start = new CyclicBarrier(NUM_THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final List<EncodingPacket> order = new ArrayList<>(packets);
+            Collections.shuffle(order, new Random(t));
+
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        start.await();
+                        for (int r = 0; r < rounds; r++) {
+                            for (EncodingPacket packet : order) {
+                                dec.sourceBlock(packet.sourceBlockNumber()).putEncodingPacket(packet);
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
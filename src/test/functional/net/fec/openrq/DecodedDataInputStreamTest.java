@@ -0,0 +1,281 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.fec.openrq.decoder.SourceBlockState;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the in-order delivery of source blocks by a {@link DecodedDataInputStream}, the blocking of reads until the
+ * next source block is decoded, and the freeing of the storage of read source blocks and of the ones left unread when
+ * the stream is closed.
+ */
+public final class DecodedDataInputStreamTest {
+
+    private static final int K = 30;
+    private static final int T = 16;
+
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(3 * K * T - 5, T, 3);
+
+
+    private byte[] data;
+    private ArrayDataEncoder enc;
+    private ArrayDataDecoder dec;
+    private DecodedDataInputStream in;
+
+
+    @Before
+    public void setup() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        in = OpenRQ.newDecodedDataInputStream(dec);
+    }
+
+    @After
+    public void cleanup() {
+
+        in.close();
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test
+    public void checkInOrderDelivery() throws IOException {
+
+        // the last source blocks are decoded first, but nothing can be read before the first one
+        feedSourceBlock(2);
+        feedSourceBlock(1);
+        assertEquals(0, in.available());
+        assertEquals(0, in.currentSourceBlockNumber());
+
+        feedSourceBlock(0);
+        assertEquals(sourceBlock(0).getDataLength(), in.available());
+
+        final byte[] read = new byte[data.length];
+        int off = 0;
+        int n;
+        while ((n = in.read(read, off, Math.min(7, read.length - off))) > 0) {
+            off += n;
+        }
+        assertEquals(data.length, off);
+        assertArrayEquals(data, read);
+        assertEquals(FEC_PARAMS.numberOfSourceBlocks(), in.currentSourceBlockNumber());
+        assertEquals(-1, in.read());
+    }
+
+    @Test(timeout = 10000)
+    public void checkReadBlocksUntilDecoded() throws InterruptedException {
+
+        final byte[] read = new byte[data.length];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    // a single byte first, and then the rest of the data
+                    read[0] = (byte)in.read();
+                    int off = 1;
+                    int n;
+                    while ((n = in.read(read, off, read.length - off)) > 0) {
+                        off += n;
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        reader.start();
+
+        Thread.sleep(50L);
+        assertTrue(reader.isAlive()); // nothing is decoded yet
+
+        for (int sbn = 0; sbn < FEC_PARAMS.numberOfSourceBlocks(); sbn++) {
+            feedSourceBlock(sbn);
+        }
+        reader.join();
+
+        assertNull(failure.get());
+        assertArrayEquals(data, read);
+    }
+
+    @Test
+    public void checkStorageOfReadBlockIsReleased() throws IOException {
+
+        feedSourceBlock(0);
+        feedSourceBlock(1);
+
+        final ArraySourceBlockDecoder sbDec = sourceBlock(0);
+        final byte[] read = new byte[sbDec.getDataLength()];
+        assertEquals(read.length, in.read(read, 0, read.length));
+        assertEquals(1, in.currentSourceBlockNumber());
+
+        // only the storage of the source block that was completely read is freed
+        assertFalse(new File(sbDec.getTempStorageName()).exists());
+        assertTrue(new File(sourceBlock(1).getTempStorageName()).exists());
+
+        // packets put into the read source block afterwards are ignored
+        sbDec.putEncodingPacket(enc.sourceBlock(0).sourcePacket(0));
+    }
+
+    @Test(timeout = 10000)
+    public void checkCloseIgnoresLaterPackets() throws InterruptedException {
+
+        // another thread keeps putting the packets of a source block while the stream is closed
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    final SourceBlockEncoder sbEnc = enc.sourceBlock(1);
+                    for (int esi = 0; esi < K; esi++) {
+                        sourceBlock(1).putEncodingPacket(sbEnc.sourcePacket(esi));
+                        started.countDown();
+                        Thread.sleep(1L);
+                    }
+                }
+                catch (InterruptedException | RuntimeException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        writer.start();
+        started.await();
+        in.close();
+        writer.join();
+        assertNull(failure.get());
+
+        for (int sbn = 0; sbn < FEC_PARAMS.numberOfSourceBlocks(); sbn++) {
+            assertFalse(new File(sourceBlock(sbn).getTempStorageName()).exists());
+        }
+
+        // neither synchronous nor asynchronous puts count any symbol, and pooled packets are released
+        final int missing = sourceBlock(2).numberOfMissingSourceSymbols();
+        sourceBlock(2).putEncodingPacket(enc.sourceBlock(2).sourcePacket(0));
+        assertEquals(missing, sourceBlock(2).numberOfMissingSourceSymbols());
+
+        final CountingPool pool = new CountingPool();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final ByteBuffer buf = enc.sourceBlock(2).sourcePacket(1, 3).asBuffer();
+            final EncodingPacket pooled = dec.parsePacket(buf, pool).value();
+            final CountDownLatch completed = new CountDownLatch(1);
+            sourceBlock(2).putEncodingPacket(pooled, executor, null, new CompletionHandler<SourceBlockState, Void>() {
+
+                @Override
+                public void completed(SourceBlockState state, Void attachment) {
+
+                    completed.countDown();
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+
+                    failure.set(exc);
+                    completed.countDown();
+                }
+            });
+            completed.await();
+        }
+        finally {
+            executor.shutdown();
+            executor.awaitTermination(2L, TimeUnit.SECONDS);
+        }
+        assertNull(failure.get());
+        assertEquals(missing, sourceBlock(2).numberOfMissingSourceSymbols());
+        assertEquals(0, pool.outstanding.get());
+
+        try {
+            in.read();
+            fail("read from a closed stream");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void feedSourceBlock(int sbn) {
+
+        // loses every fifth source packet, and replaces them with repair packets
+        final SourceBlockEncoder sbEnc = enc.sourceBlock(sbn);
+        for (int esi = 0; esi < K; esi++) {
+            if (esi % 5 != 2) {
+                dec.sourceBlock(sbn).putEncodingPacket(sbEnc.sourcePacket(esi));
+            }
+        }
+        for (int esi = K; esi < K + K / 5 + 2; esi++) {
+            dec.sourceBlock(sbn).putEncodingPacket(sbEnc.repairPacket(esi));
+        }
+        assertTrue(dec.sourceBlock(sbn).isSourceBlockDecoded());
+    }
+
+    private ArraySourceBlockDecoder sourceBlock(int sbn) {
+
+        return (ArraySourceBlockDecoder)dec.sourceBlock(sbn);
+    }
+
+
+    // counts the buffers that were acquired and not yet released
+    private static final class CountingPool extends BufferPool {
+
+        final AtomicInteger outstanding = new AtomicInteger();
+
+
+        @Override
+        public ByteBuffer acquire(int size) {
+
+            outstanding.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+
+            outstanding.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the writing of encoding packets into gathering channels that write only part of the provided buffers at a
+ * time, and the writing of batches with more buffers than a single gathering write takes.
+ */
+public final class EncodingPacketWriteTest {
+
+    private static final int K = 10;
+    private static final int T = 16;
+
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(2 * K * T - 5, T, 2);
+
+
+    private ArrayDataEncoder enc;
+
+
+    @Before
+    public void newEncoder() {
+
+        enc = OpenRQ.newEncoder(
+            TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom()), FEC_PARAMS);
+    }
+
+    @Test
+    public void checkSinglePacketPartialWrites() throws IOException {
+
+        // fewer bytes per write than the header of a packet
+        final TricklingChannel ch = new TricklingChannel(3);
+        final List<EncodingPacket> packets = packets(2);
+        for (EncodingPacket packet : packets) {
+            packet.writeTo(ch);
+        }
+
+        assertArrayEquals(serialized(packets), ch.written());
+        assertTrue(ch.numWrites > packets.size());
+    }
+
+    @Test
+    public void checkBatchPartialWrites() throws IOException {
+
+        // the written bytes of each call end inside a header or inside the symbols data of a packet
+        final List<EncodingPacket> packets = packets(2);
+        for (int maxBytes : new int[] {1, 5, T + 3}) {
+            final TricklingChannel ch = new TricklingChannel(maxBytes);
+            EncodingPacket.writeTo(ch, packets);
+            assertArrayEquals(serialized(packets), ch.written());
+        }
+
+        // the buffers reused by the batch do not affect the next writes
+        final TricklingChannel ch = new TricklingChannel(7);
+        EncodingPacket.writeTo(ch, packets);
+        EncodingPacket.writeTo(ch, packets.subList(0, 1));
+        packets.get(3).writeTo(ch);
+        EncodingPacket.writeTo(ch, Collections.<EncodingPacket>emptyList());
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(serialized(packets));
+        expected.write(serialized(packets.subList(0, 1)));
+        expected.write(packets.get(3).asArray());
+        assertArrayEquals(expected.toByteArray(), ch.written());
+    }
+
+    @Test
+    public void checkLargeBatchIsWrittenInChunks() throws IOException {
+
+        // more than 1024 buffers, a header and the symbols data for each packet
+        final List<EncodingPacket> packets = packets(600);
+        final TricklingChannel ch = new TricklingChannel(Integer.MAX_VALUE);
+        EncodingPacket.writeTo(ch, packets);
+
+        assertArrayEquals(serialized(packets), ch.written());
+        assertEquals(3, ch.numWrites);
+        assertTrue(ch.maxBuffersPerWrite <= 1024);
+    }
+
+    // the source packets and some repair packets of every source block
+    private List<EncodingPacket> packets(int numRepair) {
+
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            for (EncodingPacket packet : sbEnc.sourcePacketsIterable()) {
+                packets.add(packet);
+            }
+            for (EncodingPacket packet : sbEnc.repairPacketsIterable(numRepair)) {
+                packets.add(packet);
+            }
+        }
+
+        return packets;
+    }
+
+    private static byte[] serialized(List<EncodingPacket> packets) throws IOException {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (EncodingPacket packet : packets) {
+            out.write(packet.asArray());
+        }
+
+        return out.toByteArray();
+    }
+
+
+    // writes at most a given number of bytes in each call
+    private static final class TricklingChannel implements GatheringByteChannel {
+
+        private final int maxBytes;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int numWrites = 0;
+        int maxBuffersPerWrite = 0;
+
+
+        TricklingChannel(int maxBytes) {
+
+            this.maxBytes = maxBytes;
+        }
+
+        byte[] written() {
+
+            return out.toByteArray();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+
+            numWrites++;
+            maxBuffersPerWrite = Math.max(maxBuffersPerWrite, length);
+
+            int n = 0;
+            for (int i = offset; i < offset + length && n < maxBytes; i++) {
+                while (srcs[i].hasRemaining() && n < maxBytes) {
+                    out.write(srcs[i].get());
+                    n++;
+                }
+            }
+
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+
+            return (int)write(new ByteBuffer[] {src});
+        }
+
+        @Override
+        public boolean isOpen() {
+
+            return true;
+        }
+
+        @Override
+        public void close() {
+
+            // nothing to close
+        }
+    }
+}
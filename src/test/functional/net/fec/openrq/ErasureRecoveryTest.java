@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.decoder.SourceBlockState;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.util.rq.SystematicIndices;
+
+import org.junit.Test;
+
+
+/**
+ * Checks the recovery of a few missing source symbols from the cached source generator matrix: the limits under which
+ * it is applied, the regular decodings before the matrix is cached, and the regular decoding of source blocks outside
+ * those limits. Every test uses its own number of source symbols, since the cached matrices are shared.
+ */
+public final class ErasureRecoveryTest {
+
+    private static final int T = 4;
+
+    // the regular decodings before the source generator matrix of a value of K' is cached
+    private static final int WARM_UP_DECODINGS = 3;
+
+    // the largest K' whose source generator matrix is cached
+    private static final int MAX_K_PRIME = 1020;
+
+
+    @Test
+    public void checkApplicabilityLimits() {
+
+        assertEquals(MAX_K_PRIME, SystematicIndices.ceil(MAX_K_PRIME));
+        assertTrue(SystematicIndices.ceil(MAX_K_PRIME + 1) > 1024);
+
+        // no erasures
+        assertFalse(ErasureRecovery.isApplicable(512, 0));
+
+        // at most 16 erasures
+        assertTrue(ErasureRecovery.isApplicable(MAX_K_PRIME, 16));
+        assertFalse(ErasureRecovery.isApplicable(MAX_K_PRIME, 17));
+
+        // at most K/32 erasures
+        assertTrue(ErasureRecovery.isApplicable(320, 10));
+        assertFalse(ErasureRecovery.isApplicable(319, 10));
+        assertTrue(ErasureRecovery.isApplicable(32, 1));
+        assertFalse(ErasureRecovery.isApplicable(31, 1));
+
+        // K' at most 1024
+        assertTrue(ErasureRecovery.isApplicable(MAX_K_PRIME, 1));
+        assertFalse(ErasureRecovery.isApplicable(MAX_K_PRIME + 1, 1));
+    }
+
+    @Test
+    public void checkGeneratorIsCachedAfterWarmUp() {
+
+        final int K = 300;
+        final Coder coder = new Coder(K);
+
+        for (int decoding = 1; decoding <= WARM_UP_DECODINGS; decoding++) {
+            coder.decodeWithErasures(2);
+            assertFalse("cached after decoding " + decoding, ErasureRecovery.isSourceGeneratorCached(K));
+        }
+
+        coder.decodeWithErasures(2);
+        assertTrue(ErasureRecovery.isSourceGeneratorCached(K));
+
+        // from now on the missing source symbols are recovered from the cached matrix
+        for (int e = 1; e * 32 <= K; e++) {
+            coder.decodeWithErasures(e);
+        }
+    }
+
+    @Test
+    public void checkRecoveryBelowLimits() {
+
+        // 16 erasures, K/32 erasures
+        final int K = 512;
+        final Coder coder = new Coder(K);
+
+        for (int decoding = 0; decoding <= WARM_UP_DECODINGS + 2; decoding++) {
+            coder.decodeWithErasures(16);
+        }
+        assertTrue(ErasureRecovery.isSourceGeneratorCached(K));
+    }
+
+    @Test
+    public void checkRecoveryAtMaximumKprime() {
+
+        final Coder coder = new Coder(MAX_K_PRIME);
+
+        for (int decoding = 0; decoding <= WARM_UP_DECODINGS + 2; decoding++) {
+            coder.decodeWithErasures(1);
+        }
+        assertTrue(ErasureRecovery.isSourceGeneratorCached(MAX_K_PRIME));
+    }
+
+    @Test
+    public void checkFallbackAboveErasuresLimit() {
+
+        checkFallback(600, 17);
+    }
+
+    @Test
+    public void checkFallbackAboveSourceSymbolsPerErasureLimit() {
+
+        checkFallback(100, 4);
+    }
+
+    @Test
+    public void checkFallbackAboveKprimeLimit() {
+
+        checkFallback(MAX_K_PRIME + 1, 1);
+    }
+
+    // the source block is always decoded regularly, so no source generator matrix is ever computed
+    private static void checkFallback(int K, int numErasures) {
+
+        assertFalse(ErasureRecovery.isApplicable(K, numErasures));
+
+        final Coder coder = new Coder(K);
+        for (int decoding = 0; decoding <= WARM_UP_DECODINGS; decoding++) {
+            coder.decodeWithErasures(numErasures);
+        }
+        assertFalse(ErasureRecovery.isSourceGeneratorCached(K));
+    }
+
+
+    private static final class Coder {
+
+        private final FECParameters fecParams;
+        private final byte[] data;
+        private final SourceBlockEncoder sbEnc;
+        private final Random rand;
+
+
+        Coder(int K) {
+
+            this.fecParams = FECParameters.newParameters(K * T, T, 1);
+            this.rand = TestingCommon.newSeededRandom();
+            this.data = TestingCommon.randomBytes(fecParams.dataLengthAsInt(), rand);
+            this.sbEnc = OpenRQ.newEncoder(data, fecParams).sourceBlock(0);
+        }
+
+        // loses a random set of source symbols, and puts repair symbols until the source block is decoded
+        void decodeWithErasures(int numErasures) {
+
+            final int K = sbEnc.numberOfSourceSymbols();
+            final Set<Integer> lost = new TreeSet<>();
+            while (lost.size() < numErasures) {
+                lost.add(rand.nextInt(K));
+            }
+
+            final ArrayDataDecoder dec = TestingCommon.newTempDecoder(fecParams, 0);
+            try {
+                final SourceBlockDecoder sbDec = dec.sourceBlock(0);
+                for (int esi = 0; esi < K; esi++) {
+                    if (!lost.contains(esi)) {
+                        assertEquals(SourceBlockState.INCOMPLETE, sbDec.putEncodingPacket(sbEnc.encodingPacket(esi)));
+                    }
+                }
+                assertEquals(numErasures, sbDec.numberOfMissingSourceSymbols());
+
+                SourceBlockState state = SourceBlockState.INCOMPLETE;
+                for (int esi = K; state != SourceBlockState.DECODED; esi++) {
+                    assertTrue("too many repair symbols needed", esi < K + numErasures + 10);
+                    state = sbDec.putEncodingPacket(sbEnc.encodingPacket(esi));
+                }
+
+                assertArrayEquals(data, TestingCommon.decodedData(dec));
+            }
+            finally {
+                TestingCommon.releaseDecoder(dec);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.encoder.DataEncoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Checks the decoding of source data into a file, at file positions and data offsets that do not fit inside an
+ * {@code int}. The files are sparse, so only the decoded regions take disk space.
+ */
+public final class FileDecodingTest {
+
+    private static final long LARGE_POSITION = 3000000000L;
+    private static final double LOSS = 0.05;
+
+
+    private File srcFile;
+    private File dstFile;
+
+
+    @Before
+    public void newFiles() throws IOException {
+
+        srcFile = File.createTempFile("openrq-src", ".bin");
+        dstFile = File.createTempFile("openrq-dst", ".bin");
+    }
+
+    @After
+    public void deleteFiles() {
+
+        srcFile.delete();
+        dstFile.delete();
+    }
+
+    @Test
+    public void checkDataAtLargePosition() throws IOException {
+
+        final Random rand = TestingCommon.newSeededRandom();
+        final FECParameters fecParams = FECParameters.newParameters(123457, 200, 3);
+        final byte[] data = TestingCommon.randomBytes(fecParams.dataLengthAsInt(), rand);
+        final DataEncoder enc = OpenRQ.newEncoder(data, fecParams);
+
+        try (FileDataDecoder dec = OpenRQ.newDecoder(fecParams, 0, dstFile, LARGE_POSITION)) {
+            assertEquals(LARGE_POSITION, dec.dataPosition());
+            for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+                decode(sbEnc, dec.sourceBlock(sbEnc.sourceBlockNumber()), rand);
+            }
+            assertTrue(dec.isDataDecoded());
+        }
+
+        assertEquals(LARGE_POSITION + data.length, dstFile.length());
+        assertArrayEquals(data, readFile(dstFile, LARGE_POSITION, data.length));
+    }
+
+    @Test
+    public void checkSourceBlockAtLargeDataOffset() throws IOException {
+
+        // the last source block begins after the first 2^^31 - 1 bytes of the data
+        final FECParameters fecParams = FECParameters.newParameters(LARGE_POSITION, 65528, 256);
+        final int sbn = fecParams.numberOfSourceBlocks() - 1;
+        final long off = DataUtils.getSourceBlockOffset(fecParams, sbn);
+        assertTrue(off > Integer.MAX_VALUE);
+
+        // only the last source block is written, the rest of the source file is a hole
+        final Random rand = TestingCommon.newSeededRandom();
+        final byte[] block = TestingCommon.randomBytes((int)(fecParams.dataLength() - off), rand);
+        try (RandomAccessFile raf = new RandomAccessFile(srcFile, "rw")) {
+            raf.setLength(fecParams.dataLength());
+            raf.seek(off);
+            raf.write(block);
+
+            final DataEncoder enc = OpenRQ.newEncoder(raf.getChannel(), 0, fecParams);
+            try (FileDataDecoder dec = OpenRQ.newDecoder(fecParams, 0, dstFile, 0)) {
+                final SourceBlockDecoder sbDec = dec.sourceBlock(sbn);
+                assertEquals(off, sbDec.getLongDataOffset());
+
+                decode(enc.sourceBlock(sbn), sbDec, rand);
+            }
+        }
+
+        assertArrayEquals(block, readFile(dstFile, off, block.length));
+    }
+
+    // loses a few source symbols, and puts repair symbols until the source block is decoded
+    private static void decode(SourceBlockEncoder sbEnc, SourceBlockDecoder sbDec, Random rand) {
+
+        final int K = sbEnc.numberOfSourceSymbols();
+        for (int esi = 0; esi < K; esi++) {
+            if (rand.nextDouble() >= LOSS) {
+                sbDec.putEncodingPacket(sbEnc.sourcePacket(esi));
+            }
+        }
+
+        for (int esi = K; !sbDec.isSourceBlockDecoded(); esi++) {
+            assertTrue("too many repair symbols needed", esi < 2 * K + 10);
+            sbDec.putEncodingPacket(sbEnc.repairPacket(esi));
+        }
+    }
+
+    private static byte[] readFile(File file, long position, int length) throws IOException {
+
+        final byte[] bytes = new byte[length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(position);
+            raf.readFully(bytes);
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.decoder.SourceBlockState;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.util.rq.SystematicIndices;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Checks the incremental system of linear equations, and the incremental decoding of source blocks, both when it is
+ * enabled from the start and when a source block falls back to it after a decoding failure.
+ */
+public final class IncrementalDecodingTest {
+
+    private static final int K = 10;
+    private static final int T = 16;
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(K * T, T, 1);
+
+    // the number of symbol sets tried until a decoding failure happens (the failure probability is about 1%)
+    private static final int MAX_FAILURE_ATTEMPTS = 5000;
+
+
+    private byte[] data;
+    private SourceBlockEncoder sbEnc;
+
+
+    @Before
+    public void newEncoder() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        sbEnc = OpenRQ.newEncoder(data, FEC_PARAMS).sourceBlock(0);
+    }
+
+    @Test
+    public void checkInitialRankHasConstraintsAndPadding() {
+
+        final int Kprime = SystematicIndices.ceil(K);
+        final int Ki = SystematicIndices.getKIndex(Kprime);
+        final int SH = SystematicIndices.S(Ki) + SystematicIndices.H(Ki);
+
+        final IncrementalLinearSystem system = IncrementalLinearSystem.newSystem(K, T);
+        assertEquals(SH + (Kprime - K), system.rank());
+        assertFalse(system.isSolvable());
+    }
+
+    @Test
+    public void checkIntermediateSymbolsFromMixedSymbols() {
+
+        final IncrementalLinearSystem system = IncrementalLinearSystem.newSystem(K, T);
+        for (int esi = 0; esi < K / 2; esi++) {
+            assertTrue(system.addSourceSymbol(esi, symbol(esi)));
+        }
+
+        // add repair symbols one at a time until the system is solvable
+        int esi = K;
+        while (!system.isSolvable()) {
+            system.addRepairSymbol(esi, symbol(esi));
+            esi++;
+            assertTrue("too many repair symbols needed", esi < 3 * K);
+        }
+
+        checkIntermediateSymbols(system.intermediateSymbols());
+    }
+
+    @Test
+    public void checkDuplicateSymbolsDoNotIncreaseRank() {
+
+        final IncrementalLinearSystem system = IncrementalLinearSystem.newSystem(K, T);
+
+        assertTrue(system.addSourceSymbol(3, symbol(3)));
+        final int rank = system.rank();
+        assertFalse(system.addSourceSymbol(3, symbol(3)));
+        assertEquals(rank, system.rank());
+
+        assertTrue(system.addRepairSymbol(K + 5, symbol(K + 5)));
+        assertFalse(system.addRepairSymbol(K + 5, symbol(K + 5)));
+        assertEquals(rank + 1, system.rank());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void checkRankDeficientSystemIsNotSolvable() {
+
+        final IncrementalLinearSystem system = IncrementalLinearSystem.newSystem(K, T);
+        for (int esi = 0; esi < K - 1; esi++) {
+            system.addSourceSymbol(esi, symbol(esi));
+            system.addSourceSymbol(esi, symbol(esi)); // duplicates add nothing
+        }
+
+        assertFalse(system.isSolvable());
+        system.intermediateSymbols();
+    }
+
+    @Test
+    public void checkIncrementalDecodingWithDuplicates() {
+
+        final ArrayDataDecoder dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        try {
+            final SourceBlockDecoder sbDec = dec.sourceBlock(0);
+            sbDec.setIncrementalDecoding(true);
+
+            // duplicate symbols are not counted, so the block is neither decoded nor failed
+            for (int round = 0; round < 3; round++) {
+                for (int esi = 1; esi < K; esi++) {
+                    assertEquals(SourceBlockState.INCOMPLETE, sbDec.putEncodingPacket(sbEnc.encodingPacket(esi)));
+                }
+            }
+            assertEquals(1, sbDec.numberOfMissingSourceSymbols());
+
+            // a single repair symbol is enough to recover the missing source symbol
+            SourceBlockState state = SourceBlockState.INCOMPLETE;
+            for (int esi = K; state != SourceBlockState.DECODED && esi < 2 * K; esi++) {
+                state = sbDec.putEncodingPacket(sbEnc.encodingPacket(esi));
+            }
+            assertEquals(SourceBlockState.DECODED, state);
+            assertArrayEquals(data, TestingCommon.decodedData(dec));
+        }
+        finally {
+            TestingCommon.releaseDecoder(dec);
+        }
+    }
+
+    @Test
+    public void checkFallbackAfterDecodingFailure() {
+
+        // find a set of K repair symbols (at zero overhead) whose decoding fails
+        ArrayDataDecoder dec = null;
+        int nextESI = K;
+        for (int attempt = 0; attempt < MAX_FAILURE_ATTEMPTS && dec == null; attempt++) {
+            final ArrayDataDecoder candidate = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+            SourceBlockState state = null;
+            for (int i = 0; i < K; i++) {
+                state = candidate.sourceBlock(0).putEncodingPacket(sbEnc.encodingPacket(nextESI++));
+            }
+
+            if (state == SourceBlockState.DECODING_FAILURE) {
+                dec = candidate;
+            }
+            else {
+                TestingCommon.releaseDecoder(candidate);
+            }
+        }
+        Assume.assumeTrue(dec != null);
+
+        try {
+            // the retained system only needs the missing rank, one repair symbol at a time
+            final SourceBlockDecoder sbDec = dec.sourceBlock(0);
+            SourceBlockState state = SourceBlockState.DECODING_FAILURE;
+            int added = 0;
+            while (state != SourceBlockState.DECODED) {
+                assertTrue("too many repair symbols needed", added < K);
+
+                // a duplicate of an already received symbol changes nothing
+                assertEquals(state, sbDec.putEncodingPacket(sbEnc.encodingPacket(nextESI - 1)));
+
+                state = sbDec.putEncodingPacket(sbEnc.encodingPacket(nextESI++));
+                added++;
+                assertTrue(state == SourceBlockState.DECODED || state == SourceBlockState.DECODING_FAILURE);
+            }
+
+            assertEquals(0, sbDec.numberOfMissingSourceSymbols());
+            assertArrayEquals(data, TestingCommon.decodedData(dec));
+        }
+        finally {
+            TestingCommon.releaseDecoder(dec);
+        }
+    }
+
+    private byte[] symbol(int esi) {
+
+        final ByteBuffer symbols = sbEnc.encodingPacket(esi).symbols();
+        final byte[] symbol = new byte[T];
+        symbols.get(symbol);
+        return symbol;
+    }
+
+    // every source symbol and a few repair symbols must be generated from the intermediate symbols
+    private void checkIntermediateSymbols(byte[][] C) {
+
+        final int Kprime = SystematicIndices.ceil(K);
+        for (int esi = 0; esi < 2 * K; esi++) {
+            final int isi = (esi < K) ? esi : esi + (Kprime - K);
+            final byte[] symbol = LinearSystem.enc(Kprime, C, new Tuple(Kprime, isi), T);
+            assertNotNull(symbol);
+            assertArrayEquals("symbol " + esi, symbol(esi), symbol);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Checks the eviction policy of the intermediate symbols cache, and that a source block encoder does not compute its
+ * intermediate symbols again when the cache refuses or evicts them.
+ */
+public final class IntermediateSymbolsCacheTest {
+
+    private static final int T = 16;
+    private static final int ROWS = 10;
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(2 * 30 * T, T, 2);
+
+
+    private byte[] data;
+
+
+    @Before
+    public void newData() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+    }
+
+    @Test
+    public void checkClockGivesSecondChance() {
+
+        final IntermediateSymbolsCache cache = IntermediateSymbolsCache.newCache(2 * ROWS * T);
+        final IntermediateSymbolsCache.Key a = new IntermediateSymbolsCache.Key();
+        final IntermediateSymbolsCache.Key b = new IntermediateSymbolsCache.Key();
+        final IntermediateSymbolsCache.Key c = new IntermediateSymbolsCache.Key();
+        final IntermediateSymbolsCache.Key d = new IntermediateSymbolsCache.Key();
+
+        // every entry was just put, so the eldest one is evicted after a full turn of second chances
+        cache.put(a, newMatrix());
+        cache.put(b, newMatrix());
+        cache.put(c, newMatrix());
+        assertNull(cache.get(a));
+        assertEquals(1, cache.evictions());
+
+        // a hit on b, the eldest entry, saves it from the next eviction
+        final SymbolMatrix bSymbols = cache.get(b);
+        cache.put(d, newMatrix());
+        assertSame(bSymbols, cache.get(b));
+        assertNull(cache.get(c));
+        assertEquals(2, cache.evictions());
+        assertEquals(2, cache.size());
+        assertEquals(2 * ROWS * T, cache.usedBytes());
+    }
+
+    @Test
+    public void checkOversizedSymbolsAreNotCached() {
+
+        final IntermediateSymbolsCache cache = IntermediateSymbolsCache.newCache(ROWS * T - 1);
+        final IntermediateSymbolsCache.Key key = new IntermediateSymbolsCache.Key();
+
+        cache.put(key, newMatrix());
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.usedBytes());
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void checkEncoderKeepsRefusedSymbols() {
+
+        // a cache without room for anything
+        final IntermediateSymbolsCache cache = IntermediateSymbolsCache.newCache(0);
+        final ArraySourceBlockEncoder sbEnc = OpenRQ.newEncoder(data, FEC_PARAMS, cache).sourceBlock(0);
+
+        final SymbolMatrix symbols = ArraySourceBlockEncoder.intermediateSymbols(sbEnc);
+        assertSame(symbols, ArraySourceBlockEncoder.intermediateSymbols(sbEnc));
+        assertEquals(0, cache.size());
+
+        checkRepairPackets(sbEnc);
+        assertSame(symbols, ArraySourceBlockEncoder.intermediateSymbols(sbEnc));
+    }
+
+    @Test
+    public void checkEncoderKeepsEvictedSymbols() {
+
+        final long blockBytes = probeEncoder().sizeInBytes();
+        final IntermediateSymbolsCache cache = IntermediateSymbolsCache.newCache(blockBytes);
+        final ArrayDataEncoder enc = OpenRQ.newEncoder(data, FEC_PARAMS, cache);
+
+        final SymbolMatrix symbols = ArraySourceBlockEncoder.intermediateSymbols(enc.sourceBlock(0));
+        ArraySourceBlockEncoder.intermediateSymbols(enc.sourceBlock(1)); // evicts those of source block 0
+        assertEquals(1, cache.evictions());
+        assertEquals(1, cache.size());
+
+        assertSame(symbols, ArraySourceBlockEncoder.intermediateSymbols(enc.sourceBlock(0)));
+        checkRepairPackets(enc.sourceBlock(0));
+
+        // released symbols are obtained again
+        enc.sourceBlock(0).releaseIntermediateSymbols();
+        assertNotSame(symbols, ArraySourceBlockEncoder.intermediateSymbols(enc.sourceBlock(0)));
+    }
+
+    private SymbolMatrix probeEncoder() {
+
+        final ArrayDataEncoder enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        return ArraySourceBlockEncoder.intermediateSymbols(enc.sourceBlock(0));
+    }
+
+    // the repair symbols must be the same as the ones of an encoder with an unbounded cache
+    private void checkRepairPackets(ArraySourceBlockEncoder sbEnc) {
+
+        final ArraySourceBlockEncoder expected = OpenRQ.newEncoder(data, FEC_PARAMS).sourceBlock(
+            sbEnc.sourceBlockNumber());
+        final int K = sbEnc.numberOfSourceSymbols();
+        for (int esi = K; esi < K + 5; esi++) {
+            assertArrayEquals(expected.repairPacket(esi).asArray(), sbEnc.repairPacket(esi).asArray());
+        }
+    }
+
+    private static SymbolMatrix newMatrix() {
+
+        return SymbolMatrix.newMatrix(ROWS, T);
+    }
+}
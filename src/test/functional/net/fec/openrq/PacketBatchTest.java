@@ -0,0 +1,388 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.parameters.ParameterChecker;
+import net.fec.openrq.util.numericaltype.SizeOf;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the coalescing of encoding packets into packet batches, and the parsing, reading and writing of packet
+ * batches.
+ */
+public final class PacketBatchTest {
+
+    private static final int K = 10;
+    private static final int T = 16;
+    private static final int NUM_REPAIR = 3;
+
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(2 * K * T, T, 2);
+
+    // for I/O
+    private static ExecutorService executor;
+
+
+    @BeforeClass
+    public static void initExecutor() {
+
+        executor = Executors.newFixedThreadPool(1);
+    }
+
+    @AfterClass
+    public static void shutdownExecutor() throws InterruptedException {
+
+        executor.shutdown();
+        executor.awaitTermination(2L, TimeUnit.SECONDS);
+    }
+
+
+    private byte[] data;
+    private ArrayDataEncoder enc;
+
+
+    @Before
+    public void newEncoder() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+    }
+
+    @Test
+    public void testCoalesceSplitsAtSymbolTypeAndSourceBlock() {
+
+        final List<EncodingPacket> packets = allPackets();
+        final List<PacketBatch> batches = PacketBatch.coalesce(packets, T);
+
+        // one batch of source symbols and one of repair symbols per source block
+        assertEquals(4, batches.size());
+        checkBatch(batches.get(0), 0, 0, K, K * T);
+        checkBatch(batches.get(1), 0, K, NUM_REPAIR, NUM_REPAIR * T);
+        checkBatch(batches.get(2), 1, 0, K, K * T);
+        checkBatch(batches.get(3), 1, K, NUM_REPAIR, NUM_REPAIR * T);
+
+        assertArrayEquals(packetSymbols(packets), batchSymbols(batches));
+    }
+
+    @Test
+    public void testCoalesceSplitsAtMissingSymbol() {
+
+        final SourceBlockEncoder sbEnc = enc.sourceBlock(0);
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (int esi = 0; esi < K; esi++) {
+            if (esi != 4) {
+                packets.add(sbEnc.sourcePacket(esi));
+            }
+        }
+
+        final List<PacketBatch> batches = PacketBatch.coalesce(packets, T);
+        assertEquals(2, batches.size());
+        checkBatch(batches.get(0), 0, 0, 4, 4 * T);
+        checkBatch(batches.get(1), 0, 5, K - 5, (K - 5) * T);
+    }
+
+    @Test
+    public void testCoalesceEndsAtShortLastSymbol() {
+
+        // only the last symbol of a batch may be shorter than the symbol size, so a packet that ends with a short
+        // symbol ends the batch, even if the next packet follows it
+        final List<EncodingPacket> packets = Arrays.asList(
+            EncodingPacket.newSourcePacket(1, 0, ByteBuffer.allocate(T), 1),
+            EncodingPacket.newSourcePacket(1, 1, ByteBuffer.allocate(3 * T - 3), 3),
+            EncodingPacket.newSourcePacket(1, 4, ByteBuffer.allocate(T), 1),
+            EncodingPacket.newSourcePacket(1, 5, ByteBuffer.allocate(T - 1), 1));
+
+        final List<PacketBatch> batches = PacketBatch.coalesce(packets, T);
+        assertEquals(2, batches.size());
+        checkBatch(batches.get(0), 1, 0, 4, 4 * T - 3);
+        checkBatch(batches.get(1), 1, 4, 2, 2 * T - 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCoalesceExceptionMismatchedSymbolSize() {
+
+        PacketBatch.coalesce(Arrays.asList(enc.sourceBlock(0).sourcePacket(0, 2)), T / 2);
+    }
+
+    @Test
+    public void testParseBackToBack() {
+
+        final List<PacketBatch> batches = PacketBatch.coalesce(allPackets(), T);
+        int totalLen = 0;
+        for (PacketBatch batch : batches) {
+            totalLen += batch.serializedLength();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(totalLen);
+        for (PacketBatch batch : batches) {
+            batch.writeTo(buffer);
+        }
+        buffer.flip();
+
+        for (int i = 0; i < batches.size(); i++) {
+            final Parsed<PacketBatch> parsed = PacketBatch.parse(buffer, i % 2 == 0);
+            assertTrue(parsed.failureReason(), parsed.isValid());
+            checkSameBatch(batches.get(i), parsed.value());
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testParseTruncatedHeader() {
+
+        final ByteBuffer buffer = firstBatch().asBuffer();
+        buffer.limit(PacketBatch.HEADER_SIZE - 1);
+
+        assertFalse(PacketBatch.parse(buffer, false).isValid());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testParseTruncatedSymbols() {
+
+        final ByteBuffer buffer = firstBatch().asBuffer();
+        buffer.limit(buffer.limit() - 1);
+
+        assertFalse(PacketBatch.parse(buffer, true).isValid());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testParseCorruptHeader() {
+
+        // symbol size out of bounds
+        ByteBuffer buffer = firstBatch().asBuffer();
+        buffer.putShort(SizeOf.INT, (short)0);
+        assertFalse(PacketBatch.parse(buffer, false).isValid());
+        assertEquals(0, buffer.position());
+
+        // no symbols data
+        buffer = firstBatch().asBuffer();
+        buffer.putInt(SizeOf.INT + SizeOf.UNSIGNED_SHORT, 0);
+        assertFalse(PacketBatch.parse(buffer, false).isValid());
+
+        // negative length of the symbols data
+        buffer = firstBatch().asBuffer();
+        buffer.putInt(SizeOf.INT + SizeOf.UNSIGNED_SHORT, -T);
+        assertFalse(PacketBatch.parse(buffer, false).isValid());
+
+        // too many symbols for the ESI of the first one
+        buffer = firstBatch().asBuffer();
+        buffer.putInt(0, ParameterChecker.maxEncodingSymbolID());
+        assertFalse(PacketBatch.parse(buffer, false).isValid());
+    }
+
+    @Test(timeout = 5000)
+    public void testWriteToReadFromByteChannel() throws IOException {
+
+        final List<PacketBatch> batches = PacketBatch.coalesce(allPackets(), T);
+        final Pipe pipe = Pipe.open();
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    // one batch at a time, then all of them with a gathering write
+                    for (PacketBatch batch : batches) {
+                        batch.writeTo(pipe.sink());
+                    }
+                    PacketBatch.writeTo(pipe.sink(), batches);
+                    pipe.sink().close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        for (int round = 0; round < 2; round++) {
+            for (PacketBatch batch : batches) {
+                final Parsed<PacketBatch> parsed = PacketBatch.readFrom(pipe.source());
+                assertTrue(parsed.failureReason(), parsed.isValid());
+                checkSameBatch(batch, parsed.value());
+            }
+        }
+        assertEquals(-1, pipe.source().read(ByteBuffer.allocate(1)));
+    }
+
+    @Test(timeout = 5000, expected = EOFException.class)
+    public void testReadFromByteChannelExceptionEndOfChannel() throws IOException {
+
+        final ByteBuffer buffer = firstBatch().asBuffer();
+        buffer.limit(buffer.limit() - 1);
+
+        final Pipe pipe = Pipe.open();
+        pipe.sink().write(buffer);
+        pipe.sink().close();
+
+        PacketBatch.readFrom(pipe.source());
+    }
+
+    @Test(timeout = 5000)
+    public void testReadFromByteChannelCorruptHeader() throws IOException {
+
+        final ByteBuffer buffer = firstBatch().asBuffer();
+        buffer.putShort(SizeOf.INT, (short)0);
+
+        final Pipe pipe = Pipe.open();
+        pipe.sink().write(buffer);
+        pipe.sink().close();
+
+        assertFalse(PacketBatch.readFrom(pipe.source()).isValid());
+    }
+
+    @Test(expected = IllegalBlockingModeException.class)
+    public void testReadFromByteChannelExceptionNonBlocking() throws IOException {
+
+        final Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        PacketBatch.readFrom(pipe.source());
+    }
+
+    @Test
+    public void testAsEncodingPacket() {
+
+        final ArrayDataDecoder dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        try {
+            for (PacketBatch batch : PacketBatch.coalesce(allPackets(), T)) {
+                final Parsed<EncodingPacket> parsed = batch.asEncodingPacket(dec);
+                assertTrue(parsed.failureReason(), parsed.isValid());
+                assertEquals(batch.numberOfSymbols(), parsed.value().numberOfSymbols());
+                dec.sourceBlock(batch.sourceBlockNumber()).putEncodingPacket(parsed.value());
+            }
+
+            assertTrue(dec.isDataDecoded());
+            assertArrayEquals(data, TestingCommon.decodedData(dec));
+        }
+        finally {
+            TestingCommon.releaseDecoder(dec);
+        }
+    }
+
+    @Test
+    public void testAsEncodingPacketMismatchedSymbolSize() {
+
+        // the same symbols data, with half the symbol size
+        final PacketBatch batch = firstBatch();
+        final PacketBatch halved = PacketBatch.newBatch(
+            batch.sourceBlockNumber(), batch.encodingSymbolID(), T / 2, batch.symbols());
+        assertEquals(2 * batch.numberOfSymbols(), halved.numberOfSymbols());
+
+        final ArrayDataDecoder dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        try {
+            assertFalse(halved.asEncodingPacket(dec).isValid());
+        }
+        finally {
+            TestingCommon.releaseDecoder(dec);
+        }
+    }
+
+    // every source packet and a few repair packets of each source block, in order
+    private List<EncodingPacket> allPackets() {
+
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            for (EncodingPacket packet : sbEnc.sourcePacketsIterable()) {
+                packets.add(packet);
+            }
+            for (EncodingPacket packet : sbEnc.repairPacketsIterable(NUM_REPAIR)) {
+                packets.add(packet);
+            }
+        }
+
+        return packets;
+    }
+
+    private PacketBatch firstBatch() {
+
+        return PacketBatch.coalesce(allPackets(), T).get(0);
+    }
+
+    private static void checkBatch(PacketBatch batch, int sbn, int esi, int numSymbols, int symbolsLen) {
+
+        assertEquals(sbn, batch.sourceBlockNumber());
+        assertEquals(esi, batch.encodingSymbolID());
+        assertEquals(T, batch.symbolSize());
+        assertEquals(numSymbols, batch.numberOfSymbols());
+        assertEquals(symbolsLen, batch.symbolsLength());
+        assertEquals(PacketBatch.HEADER_SIZE + symbolsLen, batch.serializedLength());
+    }
+
+    private static void checkSameBatch(PacketBatch expected, PacketBatch actual) {
+
+        assertEquals(expected.fecPayloadID(), actual.fecPayloadID());
+        assertEquals(expected.symbolSize(), actual.symbolSize());
+        assertEquals(expected.symbols(), actual.symbols());
+    }
+
+    private static byte[] packetSymbols(List<EncodingPacket> packets) {
+
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        for (EncodingPacket packet : packets) {
+            buffers.add(packet.symbols());
+        }
+        return concat(buffers);
+    }
+
+    private static byte[] batchSymbols(List<PacketBatch> batches) {
+
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        for (PacketBatch batch : batches) {
+            buffers.add(batch.symbols());
+        }
+        return concat(buffers);
+    }
+
+    private static byte[] concat(List<ByteBuffer> buffers) {
+
+        int totalLen = 0;
+        for (ByteBuffer buffer : buffers) {
+            totalLen += buffer.remaining();
+        }
+
+        final ByteBuffer all = ByteBuffer.allocate(totalLen);
+        for (ByteBuffer buffer : buffers) {
+            all.put(buffer);
+        }
+        return all.array();
+    }
+}
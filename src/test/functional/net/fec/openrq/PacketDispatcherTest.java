@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.util.collection.ImmutableList;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the dispatching of batches of encoding packets by stripes run in an executor and by the calling thread, when
+ * the executor does not start the stripes or rejects them, and when a source block fails to be fed.
+ */
+public final class PacketDispatcherTest {
+
+    private static final int K = 20;
+    private static final int T = 16;
+    private static final int Z = 6;
+    private static final int MAX_STRIPES = 4;
+
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(Z * K * T - 3, T, Z);
+
+    // runs the stripes other than the calling thread
+    private static ExecutorService executor;
+
+
+    @BeforeClass
+    public static void initExecutor() {
+
+        executor = Executors.newFixedThreadPool(MAX_STRIPES - 1);
+    }
+
+    @AfterClass
+    public static void shutdownExecutor() throws InterruptedException {
+
+        executor.shutdown();
+        executor.awaitTermination(2L, TimeUnit.SECONDS);
+    }
+
+
+    private byte[] data;
+    private ArrayDataEncoder enc;
+    private ArrayDataDecoder dec;
+    private PacketDispatcher dispatcher;
+
+
+    @Before
+    public void setup() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+
+        final ArraySourceBlockDecoder[] decoders = new ArraySourceBlockDecoder[Z];
+        for (int sbn = 0; sbn < Z; sbn++) {
+            decoders[sbn] = sourceBlock(sbn);
+        }
+        dispatcher = PacketDispatcher.newDispatcher(ImmutableList.of(decoders), MAX_STRIPES);
+    }
+
+    @After
+    public void cleanup() {
+
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test(timeout = 10000)
+    public void checkStripedDispatch() {
+
+        final AtomicInteger stripes = new AtomicInteger();
+        final Executor counting = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+
+                stripes.incrementAndGet();
+                executor.execute(command);
+            }
+        };
+
+        // several batches, each one with packets of every source block
+        for (List<EncodingPacket> batch : interleavedBatches()) {
+            assertEquals(batch.size(), dispatcher.dispatch(batch, counting));
+        }
+
+        assertTrue(stripes.get() > 0);
+        assertTrue(dec.isDataDecoded());
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+    }
+
+    @Test(timeout = 10000)
+    public void checkCallerFeedsUnstartedStripes() {
+
+        // an executor that never starts its tasks, until they are run at the end
+        final List<Runnable> queued = new ArrayList<>();
+        final Executor idle = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+
+                queued.add(command);
+            }
+        };
+
+        for (List<EncodingPacket> batch : interleavedBatches()) {
+            assertEquals(batch.size(), dispatcher.dispatch(batch, idle));
+        }
+        assertEquals(interleavedBatches().size() * (MAX_STRIPES - 1), queued.size());
+        assertTrue(dec.isDataDecoded());
+
+        // the late stripes find nothing to feed, and the dispatcher still works afterwards
+        for (Runnable stripe : queued) {
+            stripe.run();
+        }
+        final List<EncodingPacket> late = Arrays.asList(enc.sourceBlock(0).sourcePacket(0));
+        assertEquals(1, dispatcher.dispatch(late, idle));
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+    }
+
+    @Test(timeout = 10000)
+    public void checkRejectedExecutionFallback() {
+
+        final Executor rejecting = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+
+                throw new RejectedExecutionException("saturated");
+            }
+        };
+
+        // the calling thread feeds every source block
+        for (List<EncodingPacket> batch : interleavedBatches()) {
+            assertEquals(batch.size(), dispatcher.dispatch(batch, rejecting));
+        }
+        assertTrue(dec.isDataDecoded());
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+    }
+
+    @Test(timeout = 10000)
+    public void checkInvalidSourceBlockPutsNothing() {
+
+        final List<EncodingPacket> batch = Arrays.asList(
+            enc.sourceBlock(0).sourcePacket(0),
+            enc.sourceBlock(1).sourcePacket(0),
+            EncodingPacket.newSourcePacket(Z, 0, ByteBuffer.allocate(T), 1));
+        try {
+            dispatcher.dispatch(batch, executor);
+            fail("invalid source block number");
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals(K, sourceBlock(0).numberOfMissingSourceSymbols());
+            assertEquals(K, sourceBlock(1).numberOfMissingSourceSymbols());
+        }
+
+        // the packets of the rejected batch are not kept for the next one
+        assertEquals(1, dispatcher.dispatch(Arrays.asList(enc.sourceBlock(2).sourcePacket(0)), executor));
+        assertEquals(K, sourceBlock(0).numberOfMissingSourceSymbols());
+        assertEquals(K - 1, sourceBlock(2).numberOfMissingSourceSymbols());
+    }
+
+    @Test(timeout = 10000)
+    public void checkFailureIsRethrown() throws IOException {
+
+        // the storage of source block 1 cannot be written
+        sourceBlock(1).getTempStorage().close();
+
+        final List<EncodingPacket> batch = new ArrayList<>();
+        for (int sbn = 0; sbn < 3; sbn++) {
+            for (EncodingPacket packet : enc.sourceBlock(sbn).sourcePacketsIterable()) {
+                batch.add(packet);
+            }
+        }
+        try {
+            dispatcher.dispatch(batch, executor);
+            fail("source block 1 failed");
+        }
+        catch (DataIOException e) {
+            // the other source blocks are fed before the failure is rethrown
+            assertTrue(sourceBlock(0).isSourceBlockDecoded());
+            assertTrue(sourceBlock(2).isSourceBlockDecoded());
+            assertEquals(K, sourceBlock(1).numberOfMissingSourceSymbols());
+        }
+    }
+
+    // every source block loses some source packets, and the packets of all source blocks are interleaved in batches
+    private List<List<EncodingPacket>> interleavedBatches() {
+
+        final List<List<EncodingPacket>> batches = new ArrayList<>();
+        for (int round = 0; round < K + K / 4 + 2; round++) {
+            final List<EncodingPacket> batch = new ArrayList<>();
+            for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+                final int esi = (round < K) ? round : round - K + sbEnc.numberOfSourceSymbols();
+                if (esi >= K || (esi + sbEnc.sourceBlockNumber()) % 5 != 1) {
+                    batch.add(sbEnc.encodingPacket(esi));
+                }
+            }
+            batches.add(batch);
+        }
+
+        return batches;
+    }
+
+    private ArraySourceBlockDecoder sourceBlock(int sbn) {
+
+        return (ArraySourceBlockDecoder)dec.sourceBlock(sbn);
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the delivery of encoding packets by a {@link PacketPublisher}: the interleaved order, the demand of the
+ * subscriber, the lookahead, and the ways a subscription ends.
+ */
+public final class PacketPublisherTest {
+
+    private static final int T = 16;
+    private static final int R = 5; // repair packets per source block
+    private static final int LOOKAHEAD = 4;
+
+    // 62 source symbols in 3 source blocks, so that the last source block has one source symbol less
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(62 * T - 3, T, 3);
+
+    // runs every task right away, in the calling thread
+    private static final Executor DIRECT = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+
+            command.run();
+        }
+    };
+
+
+    private ArrayDataEncoder enc;
+
+
+    @Before
+    public void newEncoder() {
+
+        enc = OpenRQ.newEncoder(
+            TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom()), FEC_PARAMS);
+    }
+
+    @Test
+    public void checkInterleavedOrder() {
+
+        assertEquals(21, enc.sourceBlock(0).numberOfSourceSymbols());
+        assertEquals(20, enc.sourceBlock(2).numberOfSourceSymbols());
+
+        final PacketPublisher publisher = OpenRQ.newPacketPublisher(enc, R, LOOKAHEAD, DIRECT);
+        final Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        // the ESI of the last source packet of source block 0 is a repair ESI in source block 2
+        final List<EncodingPacket> expected = interleavedPackets();
+        assertEquals(publisher.numberOfPackets(), expected.size());
+        assertEquals(expected.size(), recorder.packets.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).fecPayloadID(), recorder.packets.get(i).fecPayloadID());
+            assertArrayEquals(expected.get(i).asArray(), recorder.packets.get(i).asArray());
+        }
+        assertEquals(1, recorder.completions.get());
+        assertNull(recorder.error.get());
+    }
+
+    @Test(timeout = 10000)
+    public void checkDemandIsNeverExceeded() throws InterruptedException {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final PacketPublisher publisher = OpenRQ.newPacketPublisher(enc, R, LOOKAHEAD, executor);
+            final AtomicLong granted = new AtomicLong();
+            final Recorder recorder = new Recorder(granted);
+            publisher.subscribe(recorder);
+
+            // small requests, each one after the previous packets were delivered
+            final Random rand = TestingCommon.newSeededRandom();
+            while (granted.get() < publisher.numberOfPackets()) {
+                final long n = 1 + rand.nextInt(5);
+                granted.addAndGet(n);
+                recorder.subscription.request(n);
+                while (recorder.count() < Math.min(granted.get(), publisher.numberOfPackets())) {
+                    Thread.sleep(1L);
+                }
+                assertEquals(Math.min(granted.get(), publisher.numberOfPackets()), recorder.count());
+            }
+
+            recorder.finished.await();
+            assertNull(recorder.exceeded.get());
+            assertEquals(publisher.numberOfPackets(), recorder.packets.size());
+            assertEquals(1, recorder.completions.get());
+        }
+        finally {
+            executor.shutdown();
+            executor.awaitTermination(2L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void checkLookaheadBoundsQueuedTasks() {
+
+        final QueueingExecutor executor = new QueueingExecutor();
+        final PacketPublisher publisher = OpenRQ.newPacketPublisher(enc, R, LOOKAHEAD, executor);
+        final Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        // the source packets are computed right away, and the repair packets wait for the executor
+        assertEquals(LOOKAHEAD, executor.queued.size());
+        while (!executor.queued.isEmpty()) {
+            assertTrue(executor.queued.size() <= LOOKAHEAD);
+            executor.runNext();
+        }
+
+        assertEquals(publisher.numberOfPackets(), recorder.packets.size());
+        assertEquals(1, recorder.completions.get());
+
+        // no packet is delivered after the last one
+        recorder.subscription.request(1);
+        assertEquals(publisher.numberOfPackets(), recorder.packets.size());
+        assertEquals(1, recorder.completions.get());
+    }
+
+    @Test
+    public void checkCancel() {
+
+        final QueueingExecutor executor = new QueueingExecutor();
+        final PacketPublisher publisher = OpenRQ.newPacketPublisher(enc, R, LOOKAHEAD, executor);
+        final Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(3);
+        assertEquals(3, recorder.packets.size());
+
+        recorder.subscription.cancel();
+        recorder.subscription.request(Long.MAX_VALUE);
+        while (!executor.queued.isEmpty()) {
+            executor.runNext();
+        }
+
+        // cancelling ends the sequence without any signal
+        assertEquals(3, recorder.packets.size());
+        assertEquals(0, recorder.completions.get());
+        assertNull(recorder.error.get());
+    }
+
+    @Test
+    public void checkNonPositiveRequestFails() {
+
+        final PacketPublisher publisher = OpenRQ.newPacketPublisher(enc, R, LOOKAHEAD, DIRECT);
+        final Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(2);
+        recorder.subscription.request(0);
+
+        assertTrue(recorder.error.get() instanceof IllegalArgumentException);
+        assertEquals(1, recorder.errors.get());
+
+        // the failed subscription delivers nothing else
+        recorder.subscription.request(5);
+        assertEquals(2, recorder.packets.size());
+        assertEquals(0, recorder.completions.get());
+        assertEquals(1, recorder.errors.get());
+    }
+
+    @Test
+    public void checkRejectedExecutionFails() {
+
+        final Executor rejecting = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+
+                throw new RejectedExecutionException("saturated");
+            }
+        };
+
+        final PacketPublisher publisher = OpenRQ.newPacketPublisher(enc, R, LOOKAHEAD, rejecting);
+        final Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        // every packet before the first repair packet is delivered, then the subscription fails
+        int numBeforeRepair = 0;
+        for (EncodingPacket packet : interleavedPackets()) {
+            if (packet.symbolType() == SymbolType.REPAIR) {
+                break;
+            }
+            numBeforeRepair++;
+        }
+        assertEquals(numBeforeRepair, recorder.packets.size());
+        assertTrue(recorder.error.get() instanceof RejectedExecutionException);
+        assertEquals(1, recorder.errors.get());
+        assertEquals(0, recorder.completions.get());
+    }
+
+    // the packets of every source block, interleaved by encoding symbol identifier
+    private List<EncodingPacket> interleavedPackets() {
+
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (int esi = 0;; esi++) {
+            boolean any = false;
+            for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+                if (esi < sbEnc.numberOfSourceSymbols() + R) {
+                    packets.add(sbEnc.encodingPacket(esi));
+                    any = true;
+                }
+            }
+            if (!any) {
+                return packets;
+            }
+        }
+    }
+
+
+    // keeps every signal of its subscription
+    private static final class Recorder implements PacketPublisher.Subscriber {
+
+        private final AtomicLong granted; // the packets requested so far, or null if not checked
+
+        volatile PacketPublisher.Subscription subscription;
+        final List<EncodingPacket> packets = new ArrayList<>(); // only modified by the subscriber methods
+        final AtomicInteger completions = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicReference<String> exceeded = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+
+        Recorder() {
+
+            this(null);
+        }
+
+        Recorder(AtomicLong granted) {
+
+            this.granted = granted;
+        }
+
+        @Override
+        public void onSubscribe(PacketPublisher.Subscription subscription) {
+
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(EncodingPacket packet) {
+
+            synchronized (packets) {
+                packets.add(packet);
+                if (granted != null && packets.size() > granted.get()) {
+                    exceeded.compareAndSet(null, "packet " + packets.size() + " was not requested");
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+
+            error.compareAndSet(null, cause);
+            errors.incrementAndGet();
+            finished.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+
+            completions.incrementAndGet();
+            finished.countDown();
+        }
+
+        int count() {
+
+            synchronized (packets) {
+                return packets.size();
+            }
+        }
+    }
+
+    // keeps the tasks until they are run one at a time, in order
+    private static final class QueueingExecutor implements Executor {
+
+        final List<Runnable> queued = new ArrayList<>();
+
+
+        @Override
+        public void execute(Runnable command) {
+
+            queued.add(command);
+        }
+
+        void runNext() {
+
+            queued.remove(0).run();
+        }
+    }
+}
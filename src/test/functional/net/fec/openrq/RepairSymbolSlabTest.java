@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the lookup of repair symbols in a {@link RepairSymbolSlab}, by the modifying thread and by concurrent readers,
+ * while the slab grows.
+ */
+public final class RepairSymbolSlabTest {
+
+    private static final int T = 8;
+    private static final int FIRST_ESI = 1000;
+    private static final int NUM_SYMBOLS = 2000;
+
+
+    @Test
+    public void checkLookupsAcrossGrowth() {
+
+        final RepairSymbolSlab slab = RepairSymbolSlab.newSlab(T, 2);
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            final ByteBuffer symbol = symbol(FIRST_ESI + i);
+            if (i % 3 == 0) {
+                assertTrue(slab.putView(FIRST_ESI + i, symbol));
+            }
+            else {
+                assertTrue(slab.put(FIRST_ESI + i, symbol));
+            }
+        }
+        assertFalse(slab.put(FIRST_ESI, symbol(FIRST_ESI))); // already present
+
+        assertEquals(NUM_SYMBOLS, slab.size());
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            final int esi = FIRST_ESI + i;
+            assertEquals(i, slab.slotOf(esi));
+            assertTrue(slab.containsPublished(esi));
+            assertArrayEquals(symbol(esi).array(), slab.get(i, new byte[T]));
+        }
+        assertFalse(slab.containsPublished(FIRST_ESI - 1));
+        assertFalse(slab.containsPublished(FIRST_ESI + NUM_SYMBOLS));
+
+        slab.clear();
+        assertFalse(slab.containsPublished(FIRST_ESI));
+        assertEquals(-1, slab.slotOf(FIRST_ESI));
+    }
+
+    @Test(timeout = 10000)
+    public void checkConcurrentLookups() throws InterruptedException {
+
+        final RepairSymbolSlab slab = RepairSymbolSlab.newSlab(T, 1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        // every symbol published before a lookup must be found, and symbols never added must never be found
+        final Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                while (writing.get()) {
+                    final int n = slab.size();
+                    if (n > 0 && !slab.containsPublished(FIRST_ESI + n - 1)) {
+                        failure.compareAndSet(null, "published symbol " + (n - 1) + " was not found");
+                    }
+                    if (n > 0 && !slab.containsPublished(FIRST_ESI + n / 2)) {
+                        failure.compareAndSet(null, "published symbol " + (n / 2) + " was not found");
+                    }
+                    if (slab.containsPublished(FIRST_ESI - 1 - n)) {
+                        failure.compareAndSet(null, "unknown symbol was found");
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < NUM_SYMBOLS; i++) {
+            slab.put(FIRST_ESI + i, symbol(FIRST_ESI + i));
+        }
+        writing.set(false);
+        reader.join();
+
+        assertNull(failure.get());
+    }
+
+    private static ByteBuffer symbol(int esi) {
+
+        final ByteBuffer symbol = ByteBuffer.allocate(T);
+        symbol.putInt(0, esi).putInt(4, ~esi);
+        return symbol;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.decoder.SourceBlockState;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Checks that a failure to write the storage of a source block decoder is reported, and that the symbols that were not
+ * written do not count as received.
+ */
+public final class StorageFailureTest {
+
+    private static final int K = 20;
+    private static final int T = 16;
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(K * T, T, 1);
+
+
+    private SourceBlockEncoder sbEnc;
+    private ArrayDataDecoder dec;
+    private ArraySourceBlockDecoder sbDec;
+
+
+    @Before
+    public void setup() {
+
+        final byte[] data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        sbEnc = OpenRQ.newEncoder(data, FEC_PARAMS).sourceBlock(0);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        sbDec = (ArraySourceBlockDecoder)dec.sourceBlock(0);
+    }
+
+    @After
+    public void cleanup() {
+
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test
+    public void checkFailedSourceWriteIsNotCounted() throws IOException {
+
+        for (int esi = 0; esi < K / 2; esi++) {
+            sbDec.putEncodingPacket(sbEnc.sourcePacket(esi));
+        }
+
+        sbDec.getTempStorage().close(); // every later write fails
+        try {
+            sbDec.putEncodingPacket(sbEnc.sourcePacket(K / 2));
+            fail("write to closed storage");
+        }
+        catch (DataIOException e) {
+            assertFalse(sbDec.containsSourceSymbol(K / 2));
+            assertEquals(K - K / 2, sbDec.numberOfMissingSourceSymbols());
+        }
+
+        // the symbol was not claimed for good, so a retry fails again instead of being silently ignored
+        try {
+            sbDec.putEncodingPacket(sbEnc.sourcePacket(K / 2));
+            fail("write to closed storage");
+        }
+        catch (DataIOException e) {
+            assertFalse(sbDec.containsSourceSymbol(K / 2));
+        }
+    }
+
+    @Test
+    public void checkFailedDecodingIsNotDecoded() throws IOException {
+
+        for (int esi = 1; esi < K; esi++) {
+            sbDec.putEncodingPacket(sbEnc.sourcePacket(esi));
+        }
+
+        // the missing source symbol cannot be recovered, so the source block is not decoded
+        sbDec.getTempStorage().close();
+        try {
+            for (int esi = K; esi < 2 * K; esi++) {
+                sbDec.putEncodingPacket(sbEnc.repairPacket(esi));
+            }
+            fail("write to closed storage");
+        }
+        catch (DataIOException e) {
+            assertFalse(sbDec.isSourceBlockDecoded());
+            assertTrue(sbDec.latestState() != SourceBlockState.DECODED);
+            assertEquals(1, sbDec.numberOfMissingSourceSymbols());
+        }
+    }
+
+    @Test
+    public void checkReadFailureIsReported() throws IOException {
+
+        final SourceBlockDecoder decoded = dec.sourceBlock(0);
+        for (int esi = 0; esi < K; esi++) {
+            decoded.putEncodingPacket(sbEnc.sourcePacket(esi));
+        }
+        assertTrue(decoded.isSourceBlockDecoded());
+
+        sbDec.getTempStorage().close();
+        try {
+            TestingCommon.decodedData(dec);
+            fail("read from closed storage");
+        }
+        catch (DataIOException e) {
+            // expected
+        }
+    }
+}
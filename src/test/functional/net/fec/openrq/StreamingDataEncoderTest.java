@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the sealing of blocks by a {@link StreamingDataEncoder} as data is written and flushed, the release of the
+ * intermediate symbols of blocks that leave the window, and the decoding of the packets of a sealed block.
+ */
+public final class StreamingDataEncoderTest {
+
+    private static final int T = 16;
+    private static final int K = 10;
+    private static final int WINDOW = 2;
+
+
+    private IntermediateSymbolsCache cache;
+    private List<StreamBlock> sealed;
+    private StreamingDataEncoder enc;
+    private byte[] data;
+
+
+    @Before
+    public void setup() {
+
+        cache = IntermediateSymbolsCache.newUnboundedCache();
+        sealed = new ArrayList<>();
+        enc = OpenRQ.newStreamingEncoder(T, K, WINDOW, cache, new StreamingDataEncoder.Listener() {
+
+            @Override
+            public void blockSealed(StreamBlock block) {
+
+                sealed.add(block);
+            }
+        });
+        data = TestingCommon.randomBytes(4 * K * T, TestingCommon.newSeededRandom());
+    }
+
+    @Test
+    public void checkBlockIsSealedAtExactlyKSymbols() {
+
+        // one byte short of a full block, in several writes
+        enc.write(data, 0, 3 * T);
+        enc.write(ByteBuffer.wrap(data, 3 * T, 5 * T));
+        enc.write(data, 8 * T, 2 * T - 1);
+        assertTrue(sealed.isEmpty());
+        assertEquals(K * T - 1, enc.pendingBytes());
+
+        // the last byte seals the block, and the bytes after it start the next one
+        enc.write(data, K * T - 1, 2);
+        assertEquals(1, sealed.size());
+        assertEquals(1, enc.pendingBytes());
+        assertEquals(1, enc.nextSequenceNumber());
+
+        final StreamBlock block = sealed.get(0);
+        assertEquals(0, block.sequenceNumber());
+        assertEquals(K * T, block.dataLength());
+        assertEquals(K, block.encoder().numberOfSourceSymbols());
+        assertArrayEquals(Arrays.copyOfRange(data, 0, K * T), sourceData(block));
+        assertSame(block, enc.block(0));
+    }
+
+    @Test
+    public void checkFlushSealsShortBlock() {
+
+        assertNull(enc.flush());
+
+        final int len = K * T + 3 * T + 5;
+        enc.write(data, 0, len);
+        final StreamBlock shortBlock = enc.flush();
+        assertEquals(2, sealed.size());
+        assertSame(shortBlock, sealed.get(1));
+        assertEquals(0, enc.pendingBytes());
+        assertNull(enc.flush());
+
+        // the short block has FEC parameters of its own, with fewer source symbols
+        final FECParameters params = shortBlock.fecParameters();
+        assertEquals(3 * T + 5, params.dataLengthAsInt());
+        assertEquals(T, params.symbolSize());
+        assertEquals(1, params.numberOfSourceBlocks());
+        assertEquals(4, shortBlock.encoder().numberOfSourceSymbols());
+        assertEquals(K, sealed.get(0).encoder().numberOfSourceSymbols());
+        assertArrayEquals(Arrays.copyOfRange(data, K * T, len), sourceData(shortBlock));
+
+        // a full block after the short one is not affected by it
+        enc.write(data, len, K * T);
+        assertEquals(3, sealed.size());
+        assertEquals(2, sealed.get(2).sequenceNumber());
+        assertArrayEquals(Arrays.copyOfRange(data, len, len + K * T), sourceData(sealed.get(2)));
+    }
+
+    @Test
+    public void checkEvictionReleasesIntermediateSymbols() {
+
+        for (int i = 0; i < 4; i++) {
+            enc.write(data, i * K * T, K * T);
+
+            // a repair packet puts the intermediate symbols of the new block in the cache
+            sealed.get(i).encoder().repairPacket(K);
+            assertEquals(Math.min(i + 1, WINDOW), cache.size());
+        }
+
+        assertNull(enc.block(0));
+        assertNull(enc.block(1));
+        assertNotNull(enc.block(2));
+        assertNotNull(enc.block(3));
+        assertNull(enc.block(4));
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void checkSealedBlockIsDecoded() {
+
+        enc.write(data, 0, K * T + 7 * T + 1);
+        final StreamBlock full = sealed.get(0);
+        final StreamBlock shortBlock = enc.flush();
+
+        for (StreamBlock block : Arrays.asList(full, shortBlock)) {
+            final ArrayDataDecoder dec = TestingCommon.newTempDecoder(block.fecParameters(), 0);
+            try {
+                // every other source packet is lost, and replaced by a repair packet
+                final SourceBlockEncoder sbEnc = block.encoder();
+                final SourceBlockDecoder sbDec = dec.sourceBlock(0);
+                final int numSource = sbEnc.numberOfSourceSymbols();
+                for (int esi = 0; esi < numSource; esi += 2) {
+                    sbDec.putEncodingPacket(sbEnc.sourcePacket(esi));
+                }
+                for (EncodingPacket packet : sbEnc.repairPacketsIterable(numSource / 2 + 1)) {
+                    sbDec.putEncodingPacket(packet);
+                }
+
+                assertTrue(dec.isDataDecoded());
+                final int off = (int)(block.sequenceNumber() * K * T);
+                assertArrayEquals(
+                    Arrays.copyOfRange(data, off, off + block.dataLength()),
+                    TestingCommon.decodedData(dec));
+            }
+            finally {
+                TestingCommon.releaseDecoder(dec);
+            }
+        }
+    }
+
+    // the data of a block, read back from its source packets
+    private static byte[] sourceData(StreamBlock block) {
+
+        final ByteBuffer buf = ByteBuffer.allocate(block.encoder().numberOfSourceSymbols() * T);
+        for (EncodingPacket packet : block.encoder().sourcePacketsIterable()) {
+            buf.put(packet.symbols());
+        }
+
+        return Arrays.copyOf(buf.array(), block.dataLength());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import net.fec.openrq.util.rq.SystematicIndices;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that the rows of a symbol matrix are read and added the same way whether the matrix is stored in the heap or
+ * outside of it, and that the encoding function gives the same symbols for every storage of the intermediate symbols.
+ */
+public final class SymbolMatrixTest {
+
+    // not a multiple of eight, so that the last bytes of each row are read one at a time
+    private static final int T = 29;
+
+
+    @Test
+    public void checkXorRowIntoIsSameForEveryStorage() {
+
+        final Random rand = TestingCommon.newSeededRandom();
+        final byte[][] rows = randomRows(rand, 5);
+        final SymbolMatrix heap = SymbolMatrix.copyOf(rows, T);
+        final SymbolMatrix direct = directCopyOf(rows);
+
+        for (int row = 0; row < rows.length; row++) {
+            final byte[] expected = TestingCommon.randomBytes(T, rand);
+            final byte[] fromHeap = expected.clone();
+            final byte[] fromDirect = expected.clone();
+            for (int i = 0; i < T; i++) {
+                expected[i] ^= rows[row][i];
+            }
+
+            heap.xorRowInto(row, fromHeap);
+            direct.xorRowInto(row, fromDirect);
+            assertArrayEquals(expected, fromHeap);
+            assertArrayEquals(expected, fromDirect);
+            assertArrayEquals(rows[row], direct.getRow(row, new byte[T]));
+        }
+    }
+
+    @Test
+    public void checkEncodingIsSameForEveryStorage() {
+
+        final Random rand = TestingCommon.newSeededRandom();
+        for (int K : new int[] {10, 101, 1000}) {
+            final int Kprime = SystematicIndices.ceil(K);
+            final int Ki = SystematicIndices.getKIndex(Kprime);
+            final int L = Kprime + SystematicIndices.S(Ki) + SystematicIndices.H(Ki);
+
+            final byte[][] rows = randomRows(rand, L);
+            final SymbolMatrix heap = SymbolMatrix.copyOf(rows, T);
+            final SymbolMatrix direct = directCopyOf(rows);
+
+            for (int isi = 0; isi < Kprime + 20; isi += 7) {
+                final Tuple tuple = new Tuple(Kprime, isi);
+                final byte[] expected = LinearSystem.enc(Kprime, rows, tuple, T);
+                assertArrayEquals(expected, LinearSystem.enc(Kprime, heap, tuple, T));
+                assertArrayEquals(expected, LinearSystem.enc(Kprime, direct, tuple, T, new byte[T]));
+            }
+        }
+    }
+
+    private static byte[][] randomRows(Random rand, int numRows) {
+
+        final byte[][] rows = new byte[numRows][];
+        for (int row = 0; row < numRows; row++) {
+            rows[row] = TestingCommon.randomBytes(T, rand);
+        }
+
+        return rows;
+    }
+
+    private static SymbolMatrix directCopyOf(byte[][] rows) {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(rows.length * T);
+        for (byte[] row : rows) {
+            buffer.put(row);
+        }
+        buffer.flip();
+
+        return SymbolMatrix.wrapDirect(buffer, rows.length, T);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the decoding of source blocks by the threads of a {@link ThreadPerBlockDecoder}, the rejection of packets when
+ * a queue is full or when a source block fails, and the closing of the driver.
+ */
+public final class ThreadPerBlockDecoderTest {
+
+    private static final int K = 30;
+    private static final int T = 16;
+    private static final int QUEUE_CAPACITY = 4;
+
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(3 * K * T, T, 3);
+
+
+    private byte[] data;
+    private ArrayDataEncoder enc;
+    private ArrayDataDecoder dec;
+    private CountingPool pool;
+
+    // the threads of the driver wait for this latch before taking any packet
+    private CountDownLatch gate;
+
+
+    @Before
+    public void setup() {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        pool = new CountingPool();
+        gate = new CountDownLatch(1);
+    }
+
+    @After
+    public void cleanup() {
+
+        gate.countDown();
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test(timeout = 10000)
+    public void checkDecoding() throws InterruptedException, ExecutionException {
+
+        try (ThreadPerBlockDecoder driver = OpenRQ.newThreadPerBlockDecoder(
+            dec, QUEUE_CAPACITY, Executors.defaultThreadFactory()))
+        {
+            for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+                for (int esi = 0; esi < K; esi++) {
+                    if (esi % 7 != 3) {
+                        driver.putEncodingPacket(pooled(sbEnc.sourcePacket(esi)));
+                    }
+                }
+                for (int esi = K; esi < 2 * K; esi++) {
+                    driver.putEncodingPacket(pooled(sbEnc.repairPacket(esi)));
+                }
+            }
+
+            assertTrue(driver.awaitDataDecoded(5L, TimeUnit.SECONDS));
+            assertArrayEquals(data, TestingCommon.decodedData(dec));
+
+            // packets of decoded source blocks are discarded
+            assertTrue(driver.offerEncodingPacket(pooled(enc.sourceBlock(0).sourcePacket(0))));
+            for (int sbn = 0; sbn < FEC_PARAMS.numberOfSourceBlocks(); sbn++) {
+                assertNull(driver.failure(sbn));
+            }
+        }
+
+        assertEquals(0, pool.outstanding.get());
+    }
+
+    @Test(timeout = 10000)
+    public void checkOfferWhenQueueIsFull() throws InterruptedException, ExecutionException {
+
+        try (ThreadPerBlockDecoder driver = OpenRQ.newThreadPerBlockDecoder(dec, QUEUE_CAPACITY, gatedFactory())) {
+            final SourceBlockEncoder sbEnc = enc.sourceBlock(0);
+            int esi = 0;
+            while (esi < QUEUE_CAPACITY) {
+                assertTrue(driver.offerEncodingPacket(pooled(sbEnc.sourcePacket(esi++))));
+            }
+
+            // the thread of the source block is not taking any packet yet
+            final EncodingPacket rejected = pooled(sbEnc.sourcePacket(esi));
+            assertFalse(driver.offerEncodingPacket(rejected));
+            rejected.release(); // the caller keeps a packet that is not queued
+            assertEquals(1, driver.activeSourceBlocks());
+
+            gate.countDown();
+            while (esi < K) {
+                driver.putEncodingPacket(pooled(sbEnc.sourcePacket(esi++)));
+            }
+
+            // the other source blocks are never fed
+            assertFalse(driver.awaitDataDecoded(10L, TimeUnit.MILLISECONDS));
+            assertTrue(dec.sourceBlock(0).isSourceBlockDecoded());
+        }
+
+        assertEquals(0, pool.outstanding.get());
+    }
+
+    @Test(timeout = 10000)
+    public void checkClose() throws InterruptedException, ExecutionException {
+
+        final ThreadPerBlockDecoder driver = OpenRQ.newThreadPerBlockDecoder(dec, QUEUE_CAPACITY, gatedFactory());
+        for (int esi = 0; esi < QUEUE_CAPACITY; esi++) {
+            driver.putEncodingPacket(pooled(enc.sourceBlock(1).sourcePacket(esi)));
+        }
+
+        // the queued packets are discarded, and close waits for the thread of the source block to stop
+        final Thread closer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                driver.close();
+            }
+        });
+        closer.start();
+        while (pool.outstanding.get() > 0) {
+            Thread.sleep(1L);
+        }
+        gate.countDown();
+        closer.join();
+
+        assertEquals(0, driver.activeSourceBlocks());
+        assertEquals(K, dec.sourceBlock(1).numberOfMissingSourceSymbols());
+        assertFalse(driver.awaitDataDecoded(1L, TimeUnit.MINUTES)); // returns right away
+
+        try {
+            driver.putEncodingPacket(enc.sourceBlock(0).sourcePacket(0));
+            fail("put into a closed driver");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void checkFailureIsReported() throws InterruptedException, IOException {
+
+        try (ThreadPerBlockDecoder driver = OpenRQ.newThreadPerBlockDecoder(
+            dec, QUEUE_CAPACITY, Executors.defaultThreadFactory()))
+        {
+            // the storage of source block 2 cannot be written
+            ((ArraySourceBlockDecoder)dec.sourceBlock(2)).getTempStorage().close();
+            driver.putEncodingPacket(pooled(enc.sourceBlock(2).sourcePacket(0)));
+
+            try {
+                driver.awaitDataDecoded(5L, TimeUnit.SECONDS);
+                fail("source block 2 failed");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DataIOException);
+            }
+            assertTrue(driver.failure(2) instanceof DataIOException);
+            assertNull(driver.failure(0));
+
+            // the packets of the failed source block are rejected, the others are still decoded
+            try {
+                driver.putEncodingPacket(pooled(enc.sourceBlock(2).sourcePacket(1)));
+                fail("put into a failed source block");
+            }
+            catch (IllegalStateException e) {
+                assertNotNull(e.getCause());
+            }
+
+            for (int esi = 0; esi < K; esi++) {
+                driver.putEncodingPacket(pooled(enc.sourceBlock(0).sourcePacket(esi)));
+            }
+            while (!dec.sourceBlock(0).isSourceBlockDecoded()) {
+                Thread.sleep(1L);
+            }
+        }
+
+        assertEquals(0, pool.outstanding.get());
+    }
+
+    private EncodingPacket pooled(EncodingPacket packet) {
+
+        return dec.parsePacket(packet.asBuffer(), pool).value();
+    }
+
+    private ThreadFactory gatedFactory() {
+
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+
+                return new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        try {
+                            gate.await();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        r.run();
+                    }
+                });
+            }
+        };
+    }
+
+
+    // counts the buffers that were acquired and not yet released
+    private static final class CountingPool extends BufferPool {
+
+        final AtomicInteger outstanding = new AtomicInteger();
+
+
+        @Override
+        public ByteBuffer acquire(int size) {
+
+            outstanding.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+
+            outstanding.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq.transport;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.fec.openrq.ArrayDataDecoder;
+import net.fec.openrq.BufferPool;
+import net.fec.openrq.EncodingPacket;
+import net.fec.openrq.OpenRQ;
+import net.fec.openrq.TestingCommon;
+import net.fec.openrq.decoder.SourceBlockDecoder;
+import net.fec.openrq.encoder.DataEncoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.parameters.ParameterIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the sending of encoding packets over a loopback {@code DatagramChannel} pair, and their decoding by a receiver
+ * with fixed buffers and by a receiver with pooled buffers and zero-copy source block decoders.
+ */
+public final class DatagramTransportTest {
+
+    private static final int T = 64;
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(3 * 40 * T - 5, T, 3);
+
+    private static final int MAX_PACKET_SIZE = 8 + 4 * T;
+    private static final int NUM_BUFFERS = 6; // fewer than the packets of a source block, to have partial batches
+
+
+    private byte[] data;
+    private DataEncoder enc;
+    private ArrayDataDecoder dec;
+    private DatagramChannel sendChannel;
+    private DatagramChannel receiveChannel;
+    private Selector selector;
+
+
+    @Before
+    public void setup() throws IOException {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+
+        receiveChannel = DatagramChannel.open();
+        receiveChannel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        receiveChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiveChannel.configureBlocking(false);
+        sendChannel = DatagramChannel.open();
+
+        selector = Selector.open();
+        receiveChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+
+        selector.close();
+        sendChannel.close();
+        receiveChannel.close();
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test(timeout = 10000)
+    public void checkFixedBuffersReceiver() throws IOException {
+
+        final DatagramReceiver receiver = DatagramReceiver.newReceiver(
+            receiveChannel, dec, MAX_PACKET_SIZE, NUM_BUFFERS);
+        checkTransport(receiver);
+    }
+
+    @Test(timeout = 10000)
+    public void checkPooledZeroCopyReceiver() throws IOException {
+
+        for (SourceBlockDecoder sbDec : dec.sourceBlockIterable()) {
+            sbDec.setZeroCopy(true);
+        }
+
+        final CountingPool pool = new CountingPool();
+        final DatagramReceiver receiver = DatagramReceiver.newReceiver(
+            receiveChannel, dec, MAX_PACKET_SIZE, NUM_BUFFERS, pool);
+        checkTransport(receiver);
+
+        // the buffers adopted by the decoders are returned once their source blocks are decoded
+        assertEquals(0, pool.outstanding);
+    }
+
+    private void checkTransport(DatagramReceiver receiver) throws IOException {
+
+        final DatagramSender sender = DatagramSender.newSender(
+            sendChannel, receiveChannel.getLocalAddress(), MAX_PACKET_SIZE, NUM_BUFFERS, 0L);
+
+        // the first source block straight from its encoder, the others with some lost source packets
+        int sent = sender.send(enc.sourceBlock(0), 3);
+        sent += sender.send(lossyPackets());
+        assertEquals(sent, sender.packetsSent());
+
+        // an invalid datagram and an oversized one are received, but not put
+        final ByteBuffer invalid = ByteBuffer.allocate(8 + T);
+        invalid.putInt(ParameterIO.buildFECpayloadID(FEC_PARAMS.numberOfSourceBlocks(), 0)).putInt(T).clear();
+        sendChannel.send(invalid, receiveChannel.getLocalAddress());
+        final ByteBuffer oversized = enc.sourceBlock(1).sourcePacket(0, 5).asBuffer();
+        assertTrue(oversized.remaining() > MAX_PACKET_SIZE);
+        sendChannel.send(oversized, receiveChannel.getLocalAddress());
+
+        while (receiver.datagramsReceived() < sent + 2) {
+            selector.select(1000L);
+            selector.selectedKeys().clear();
+            receiver.receive();
+        }
+
+        assertEquals(sent, receiver.packetsPut());
+        assertTrue(receiver.isDataDecoded());
+        assertArrayEquals(data, TestingCommon.decodedData(dec));
+    }
+
+    // loses every fifth source packet of the source blocks after the first, and adds enough repair packets
+    private List<EncodingPacket> lossyPackets() {
+
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (int sbn = 1; sbn < FEC_PARAMS.numberOfSourceBlocks(); sbn++) {
+            final SourceBlockEncoder sbEnc = enc.sourceBlock(sbn);
+            final int K = sbEnc.numberOfSourceSymbols();
+            for (int esi = 0; esi < K; esi++) {
+                if (esi % 5 != 2) {
+                    packets.add(sbEnc.sourcePacket(esi));
+                }
+            }
+            for (int esi = K; esi < K + K / 5 + 2; esi++) {
+                packets.add(sbEnc.repairPacket(esi));
+            }
+        }
+
+        return packets;
+    }
+
+
+    // counts the buffers that were acquired and not yet released
+    private static final class CountingPool extends BufferPool {
+
+        int outstanding = 0;
+
+
+        @Override
+        public ByteBuffer acquire(int size) {
+
+            outstanding++;
+            return ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+
+            outstanding--;
+        }
+    }
+}
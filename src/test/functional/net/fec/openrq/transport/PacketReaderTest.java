@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 Jose Lopes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.fec.openrq.transport;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.fec.openrq.ArrayDataDecoder;
+import net.fec.openrq.BufferPool;
+import net.fec.openrq.EncodingPacket;
+import net.fec.openrq.OpenRQ;
+import net.fec.openrq.TestingCommon;
+import net.fec.openrq.encoder.DataEncoder;
+import net.fec.openrq.encoder.SourceBlockEncoder;
+import net.fec.openrq.parameters.FECParameters;
+import net.fec.openrq.parameters.ParameterIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the reading of encoding packets from a non-blocking channel, whose bytes arrive in small chunks (as when the
+ * reader is driven by a selector).
+ */
+public final class PacketReaderTest {
+
+    private static final int T = 64;
+    private static final FECParameters FEC_PARAMS = FECParameters.newParameters(3 * 20 * T - 5, T, 3);
+
+    private static final int BUFFER_SIZE = 32;
+    private static final int MAX_PACKET_SIZE = 8 + 4 * T;
+
+
+    private byte[] data;
+    private DataEncoder enc;
+    private ArrayDataDecoder dec;
+    private CountingPool pool;
+    private Pipe pipe;
+
+
+    @Before
+    public void setup() throws IOException {
+
+        data = TestingCommon.randomBytes(FEC_PARAMS.dataLengthAsInt(), TestingCommon.newSeededRandom());
+        enc = OpenRQ.newEncoder(data, FEC_PARAMS);
+        dec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+        pool = new CountingPool();
+
+        pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+
+        pipe.sink().close();
+        pipe.source().close();
+        TestingCommon.releaseDecoder(dec);
+    }
+
+    @Test
+    public void checkPartialHeader() throws IOException {
+
+        final PacketReader reader = newReader(false);
+        final byte[] bytes = enc.sourceBlock(0).sourcePacket(1).asArray();
+        final List<EncodingPacket> packets = new ArrayList<>();
+
+        // a header split in three chunks
+        assertEquals(0, feed(reader, bytes, 0, 3, packets));
+        assertTrue(reader.hasPartialPacket());
+        assertEquals(0, feed(reader, bytes, 3, 5, packets));
+        assertTrue(reader.hasPartialPacket());
+        assertEquals(1, feed(reader, bytes, 5, bytes.length, packets));
+        assertFalse(reader.hasPartialPacket());
+
+        assertArrayEquals(bytes, packets.get(0).asArray());
+    }
+
+    @Test
+    public void checkPartialPayload() throws IOException {
+
+        final PacketReader reader = newReader(false);
+        final byte[] bytes = enc.sourceBlock(0).sourcePacket(1).asArray();
+        final List<EncodingPacket> packets = new ArrayList<>();
+
+        assertEquals(0, feed(reader, bytes, 0, 8 + T / 2, packets));
+        assertTrue(reader.hasPartialPacket());
+        assertEquals(1, feed(reader, bytes, 8 + T / 2, bytes.length, packets));
+        assertFalse(reader.hasPartialPacket());
+
+        assertArrayEquals(bytes, packets.get(0).asArray());
+    }
+
+    @Test
+    public void checkLargePayload() throws IOException {
+
+        // symbols data larger than the buffer of the reader is read directly into the buffer of the packet
+        for (boolean pooled : new boolean[] {false, true}) {
+            final PacketReader reader = newReader(pooled);
+            final byte[] bytes = enc.sourceBlock(1).sourcePacket(0, 4).asArray();
+            assertTrue(bytes.length > 2 * BUFFER_SIZE);
+            final List<EncodingPacket> packets = new ArrayList<>();
+
+            // the header and a few bytes, then the rest of the symbols data in one chunk
+            assertEquals(0, feed(reader, bytes, 0, 8 + 3, packets));
+            assertEquals(1, feed(reader, bytes, 8 + 3, bytes.length, packets));
+
+            assertEquals(4, packets.get(0).numberOfSymbols());
+            assertArrayEquals(bytes, packets.get(0).asArray());
+            release(packets);
+        }
+        assertEquals(0, pool.outstanding);
+    }
+
+    @Test
+    public void checkOversizedPacketIsSkipped() throws IOException {
+
+        final PacketReader reader = newReader(true);
+        final byte[] oversized = enc.sourceBlock(0).sourcePacket(0, 5).asArray();
+        final byte[] next = enc.sourceBlock(0).sourcePacket(5).asArray();
+        assertTrue(oversized.length > MAX_PACKET_SIZE);
+
+        // the oversized packet is skipped in small chunks, up to the beginning of the next packet
+        final byte[] stream = concat(oversized, next);
+        final List<EncodingPacket> packets = new ArrayList<>();
+        for (int off = 0; off < stream.length; off += 7) {
+            feed(reader, stream, off, Math.min(stream.length, off + 7), packets);
+        }
+
+        assertEquals(1, reader.packetsSkipped());
+        assertEquals(1, reader.packetsRead());
+        assertEquals(1, packets.size());
+        assertArrayEquals(next, packets.get(0).asArray());
+        release(packets);
+        assertEquals(0, pool.outstanding);
+    }
+
+    @Test
+    public void checkEndOfStreamMidPacket() throws IOException {
+
+        final PacketReader reader = newReader(true);
+        final byte[] first = enc.sourceBlock(0).sourcePacket(0).asArray();
+        final byte[] second = enc.sourceBlock(0).sourcePacket(1).asArray();
+        final List<EncodingPacket> packets = new ArrayList<>();
+
+        // a whole packet, then half of the next one
+        assertEquals(1, feed(reader, concat(first, second), 0, first.length + second.length / 2, packets));
+        assertTrue(reader.hasPartialPacket());
+        assertEquals(2, pool.outstanding); // the first packet and the partial one
+
+        pipe.sink().close();
+        try {
+            reader.read(packets);
+            fail("end of stream in the middle of a packet");
+        }
+        catch (EOFException e) {
+            // the pooled buffer of the partial packet is released
+            assertFalse(reader.hasPartialPacket());
+            assertEquals(1, packets.size());
+            release(packets);
+            assertEquals(0, pool.outstanding);
+        }
+    }
+
+    @Test
+    public void checkEndOfStreamBetweenPackets() throws IOException {
+
+        final PacketReader reader = newReader(false);
+        final byte[] bytes = enc.sourceBlock(0).sourcePacket(0).asArray();
+        final List<EncodingPacket> packets = new ArrayList<>();
+
+        assertEquals(1, feed(reader, bytes, 0, bytes.length, packets));
+        assertEquals(0, reader.read(packets)); // no bytes available yet
+
+        pipe.sink().close();
+        assertEquals(-1, reader.read(packets));
+    }
+
+    @Test
+    public void checkDecodeFromSmallChunks() throws IOException {
+
+        for (boolean pooled : new boolean[] {false, true}) {
+            final ArrayDataDecoder chunkDec = TestingCommon.newTempDecoder(FEC_PARAMS, 0);
+            try {
+                decodeFromChunks(newReader(chunkDec, pooled));
+
+                assertTrue(chunkDec.isDataDecoded());
+                assertArrayEquals(data, TestingCommon.decodedData(chunkDec));
+                assertEquals(0, pool.outstanding);
+            }
+            finally {
+                TestingCommon.releaseDecoder(chunkDec);
+            }
+        }
+    }
+
+    // loses some source packets, adds repair packets, multi-symbol packets and invalid packets, and feeds every byte in
+    // random chunks
+    private void decodeFromChunks(PacketReader reader) throws IOException {
+
+        final Random rand = TestingCommon.newSeededRandom();
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int expected = 0;
+        for (SourceBlockEncoder sbEnc : enc.sourceBlockIterable()) {
+            final int K = sbEnc.numberOfSourceSymbols();
+            for (int esi = 0; esi < K; esi++) {
+                if (esi % 5 != 2) {
+                    stream.write(sbEnc.sourcePacket(esi).asArray());
+                    expected++;
+                }
+            }
+            stream.write(sbEnc.sourcePacket(0, 3).asArray());
+            expected++;
+            for (int esi = K; esi < K + K / 4; esi++) {
+                stream.write(sbEnc.encodingPacket(esi).asArray());
+                expected++;
+            }
+
+            // an invalid source block number
+            final ByteBuffer invalid = ByteBuffer.allocate(8 + T);
+            invalid.putInt(ParameterIO.buildFECpayloadID(FEC_PARAMS.numberOfSourceBlocks(), 0)).putInt(T);
+            stream.write(invalid.array());
+        }
+
+        final byte[] bytes = stream.toByteArray();
+        final List<EncodingPacket> packets = new ArrayList<>();
+        int read = 0;
+        for (int off = 0; off < bytes.length;) {
+            final int end = Math.min(bytes.length, off + 1 + rand.nextInt(50));
+            read += feed(reader, bytes, off, end, packets);
+            off = end;
+
+            for (EncodingPacket packet : packets) {
+                reader.dataDecoder().sourceBlock(packet.sourceBlockNumber()).putEncodingPacket(packet);
+            }
+            release(packets);
+        }
+
+        assertEquals(expected, read);
+        assertEquals(expected, reader.packetsRead());
+        assertEquals(FEC_PARAMS.numberOfSourceBlocks(), reader.packetsSkipped());
+        assertFalse(reader.hasPartialPacket());
+    }
+
+    private PacketReader newReader(boolean pooled) {
+
+        return newReader(dec, pooled);
+    }
+
+    private PacketReader newReader(ArrayDataDecoder decoder, boolean pooled) {
+
+        if (pooled) {
+            return PacketReader.newReader(pipe.source(), decoder, BUFFER_SIZE, MAX_PACKET_SIZE, pool);
+        }
+        else {
+            return PacketReader.newReader(pipe.source(), decoder, BUFFER_SIZE, MAX_PACKET_SIZE);
+        }
+    }
+
+    // writes a chunk of bytes into the pipe, then reads every byte available in the pipe
+    private int feed(PacketReader reader, byte[] bytes, int from, int to, List<EncodingPacket> packets)
+        throws IOException
+    {
+
+        final ByteBuffer chunk = ByteBuffer.wrap(bytes, from, to - from);
+        while (chunk.hasRemaining()) {
+            pipe.sink().write(chunk);
+        }
+
+        final int added = reader.read(packets);
+        assertTrue(added >= 0);
+        return added;
+    }
+
+    private static void release(List<EncodingPacket> packets) {
+
+        for (EncodingPacket packet : packets) {
+            packet.release();
+        }
+        packets.clear();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+
+        final byte[] ab = new byte[a.length + b.length];
+        System.arraycopy(a, 0, ab, 0, a.length);
+        System.arraycopy(b, 0, ab, a.length, b.length);
+        return ab;
+    }
+
+
+    // counts the buffers that were acquired and not yet released
+    private static final class CountingPool extends BufferPool {
+
+        int outstanding = 0;
+
+
+        @Override
+        public ByteBuffer acquire(int size) {
+
+            outstanding++;
+            return ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+
+            outstanding--;
+        }
+    }
+}